@@ -14,13 +14,22 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
  
 import static org.mbachran.server.custom.ServerConfig.ACCEPT_POOL_QUALIFIER;
 
 /**
  * Initializes/starts the custom web server opening the server socket and spawning the acceptor threads.
+ *
+ * By default all acceptors share one server socket. If SO_REUSEPORT is configured (and supported by the platform) each acceptor binds a
+ * server socket of its own to the same address. The kernel then spreads incoming connections over the accept queues of these sockets
+ * instead of all acceptors serializing on one.
  */
 @Component
 public class Server
@@ -33,7 +42,7 @@ public class Server
 
     private final AcceptorFactory acceptorFactory;
 
-    private ServerSocketChannel serverSocketChannel;
+    private final List<ServerSocketChannel> serverSocketChannels = new ArrayList<>();
 
     @Autowired
     public Server(@Nonnull final ServerConfig serverConfig,
@@ -56,21 +65,64 @@ public class Server
         LOG.info("Starting custom server on port {} for interfaces {} with an accept backlog of {} ...", serverConfig.getPort(),
                 serverConfig.getInterface(), serverConfig.getAcceptBacklog());
 
-        // We must not use AutoClosable here as we need to keep the socket open and continue wiring the Spring context. PreDestroy takes care.
-        serverSocketChannel = ServerSocketChannel.open();
-        LOG.info("Listening to " + serverConfig.getPort());
-        serverSocketChannel.bind(new InetSocketAddress(serverConfig.getInterface(), serverConfig.getPort()), serverConfig.getAcceptBacklog());
+        final InetSocketAddress address = new InetSocketAddress(serverConfig.getInterface(), serverConfig.getPort());
+        final boolean reusePort = serverConfig.isReusePort() && isReusePortSupported();
+        LOG.info("Listening to " + serverConfig.getPort() + (reusePort ? " with a server socket per acceptor" : ""));
 
+        // We must not use AutoClosable here as we need to keep the socket open and continue wiring the Spring context. PreDestroy takes care.
+        ServerSocketChannel serverSocketChannel = null;
         for (int acceptorNumber = 0; acceptorNumber < serverConfig.getAcceptorCount(); acceptorNumber++)
         {
+            if (serverSocketChannel == null || reusePort)
+            {
+                serverSocketChannel = ServerSocketChannel.open();
+                serverSocketChannels.add(serverSocketChannel);
+                if (reusePort)
+                {
+                    serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+
+                serverSocketChannel.bind(address, serverConfig.getAcceptBacklog());
+            }
+
             final Acceptor acceptor = acceptorFactory.create(acceptorNumber, serverSocketChannel);
             acceptPool.submit(new SurvivingRunnable(acceptor::accept));
         }
     }
 
+    /**
+     * @return True if SO_REUSEPORT can be used on this platform. Logs a warning otherwise as the configuration is ignored then.
+     * @throws IOException If the probing socket cannot be opened.
+     */
+    static boolean isReusePortSupported() throws IOException
+    {
+        try (final ServerSocketChannel probe = ServerSocketChannel.open())
+        {
+            return isReusePortSupported(probe.supportedOptions());
+        }
+    }
+
+    /**
+     * @param supportedOptions The options supported by server sockets of the platform.
+     * @return True if SO_REUSEPORT is among them. Logs a warning otherwise as the configuration is ignored then.
+     */
+    static boolean isReusePortSupported(@Nonnull final Set<SocketOption<?>> supportedOptions)
+    {
+        final boolean supported = supportedOptions.contains(StandardSocketOptions.SO_REUSEPORT);
+        if (!supported)
+        {
+            LOG.warn("SO_REUSEPORT is not supported on this platform. All acceptors will share one server socket.");
+        }
+
+        return supported;
+    }
+
     @PreDestroy
     void shutdown() throws IOException
     {
-        serverSocketChannel.close();
+        for (final ServerSocketChannel serverSocketChannel : serverSocketChannels)
+        {
+            serverSocketChannel.close();
+        }
     }
 }
@@ -19,12 +19,15 @@ class ServerConfig
 
     private final String networkInterface;
 
-    ServerConfig(final int port, final int acceptorCount, final int acceptBacklog, @Nonnull final String networkInterface)
+    private final boolean reusePort;
+
+    ServerConfig(final int port, final int acceptorCount, final int acceptBacklog, @Nonnull final String networkInterface, final boolean reusePort)
     {
         this.port = port;
         this.acceptorCount = acceptorCount;
         this.acceptBacklog = acceptBacklog;
         this.networkInterface = Objects.requireNonNull(networkInterface).trim();
+        this.reusePort = reusePort;
     }
 
     /**
@@ -59,4 +62,12 @@ class ServerConfig
     {
         return networkInterface;
     }
+
+    /**
+     * @return True if each acceptor should bind a server socket of its own via SO_REUSEPORT instead of sharing one.
+     */
+    boolean isReusePort()
+    {
+        return reusePort;
+    }
 }
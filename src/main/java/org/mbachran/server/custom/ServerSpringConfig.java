@@ -25,9 +25,10 @@ public class ServerSpringConfig
     public ServerSpringConfig(@Value("${application.config.custom-server.port:7070}") final int port,
                               @Value("${application.config.custom-server.acceptor.count:1}") final int acceptorCount,
                               @Value("${application.config.custom-server.acceptor.backlog:100}") final int acceptBacklog,
-                              @Value("${application.config.custom-server.bind.networkInterface:localhost}") @Nonnull final String networkInterface)
+                              @Value("${application.config.custom-server.bind.networkInterface:localhost}") @Nonnull final String networkInterface,
+                              @Value("${application.config.custom-server.acceptor.reuse-port:false}") final boolean reusePort)
     {
-        serverConfig = new ServerConfig(port, acceptorCount, acceptBacklog, networkInterface);
+        serverConfig = new ServerConfig(port, acceptorCount, acceptBacklog, networkInterface, reusePort);
     }
 
     /**
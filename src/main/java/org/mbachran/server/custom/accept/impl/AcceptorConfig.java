@@ -1,12 +1,17 @@
 package org.mbachran.server.custom.accept.impl;
 
+import org.mbachran.server.custom.connection.api.ConnectionFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
 /**
  * Java Bean providing the Acceptor related application properties after they have been injected via the
  * value annotations at one place only.
  */
 class AcceptorConfig
 {
-    static final String CONNECTION_POOL_QUALIFIER = "connectionPool";
+    static final String CONNECTION_POOL_QUALIFIER = ConnectionFactory.CONNECTION_POOL_QUALIFIER;
 
     private final int minConnectionCount;
 
@@ -14,11 +19,30 @@ class AcceptorConfig
 
     private final int keepAliveTime;
 
-    AcceptorConfig(int minConnectionCount, int maxConnectionCount, int keepAliveTime)
+    private final PoolMode poolMode;
+
+    AcceptorConfig(int minConnectionCount, int maxConnectionCount, int keepAliveTime, @Nonnull PoolMode poolMode)
     {
         this.minConnectionCount = minConnectionCount;
         this.maxConnectionCount = maxConnectionCount;
         this.keepAliveTime = keepAliveTime;
+        this.poolMode = Objects.requireNonNull(poolMode);
+    }
+
+    /**
+     * The kind of threads the connection pool runs the connections on.
+     */
+    enum PoolMode
+    {
+        /**
+         * A bounded pool of platform threads as configured by min and max count.
+         */
+        platform,
+
+        /**
+         * A new virtual thread per connection (requires a Java 21+ runtime). Min and max count are not used.
+         */
+        virtual
     }
 
     /**
@@ -44,4 +68,13 @@ class AcceptorConfig
     {
         return keepAliveTime;
     }
+
+    /**
+     * @return The kind of threads to run the http connections on.
+     */
+    @Nonnull
+    PoolMode getPoolMode()
+    {
+        return poolMode;
+    }
 }
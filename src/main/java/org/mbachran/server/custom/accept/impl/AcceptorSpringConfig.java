@@ -6,6 +6,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.Nonnull;
 import java.util.concurrent.*;
 
 import static org.mbachran.server.custom.accept.impl.AcceptorConfig.CONNECTION_POOL_QUALIFIER;
@@ -23,18 +24,25 @@ public class AcceptorSpringConfig
     @Autowired
     public AcceptorSpringConfig(@Value("${application.config.custom-server.connection.min-count:5}") final int minConnectionCount,
                                 @Value("${application.config.custom-server.connection.max-count:100}") final int maxConnectionCount,
-                                @Value("${application.config.custom-server.connection.keep-alive-time-seconds:10}") final int keepAliveTime)
+                                @Value("${application.config.custom-server.connection.keep-alive-time-seconds:10}") final int keepAliveTime,
+                                @Value("${application.config.custom-server.connection.pool-mode:platform}") @Nonnull final String poolMode)
     {
-        acceptorConfig = new AcceptorConfig(minConnectionCount,maxConnectionCount, keepAliveTime);
+        acceptorConfig = new AcceptorConfig(minConnectionCount, maxConnectionCount, keepAliveTime,
+                AcceptorConfig.PoolMode.valueOf(poolMode.trim().toLowerCase()));
     }
 
     /**
      * @return The bean to retrieve the connection threads from. Threads will return as soon as the connection is
-     * not kept alive.
+     * not kept alive. In virtual mode each connection gets a virtual thread of its own and submits are never rejected.
      */
     @Bean(CONNECTION_POOL_QUALIFIER)
     ExecutorService executorService()
     {
+        if (acceptorConfig.getPoolMode() == AcceptorConfig.PoolMode.virtual)
+        {
+            return newVirtualThreadPerTaskExecutor("connection-");
+        }
+
         final int minConnectionCount = acceptorConfig.getMinConnectionCount();
         final int maxConnectionCount = acceptorConfig.getMaxConnectionCount();
         final int keepAliveTime = acceptorConfig.getKeepAliveTime();
@@ -51,4 +59,29 @@ public class AcceptorSpringConfig
     {
         return acceptorConfig;
     }
+
+    /**
+     * The build still targets an older language level. Therefore the Java 21 API is looked up reflectively and the mode fails fast on
+     * older runtimes instead of silently falling back to platform threads.
+     *
+     * @param namePrefix The prefix of the thread names which are suffixed by a counter.
+     * @return An executor starting a new virtual thread per task.
+     */
+    @Nonnull
+    static ExecutorService newVirtualThreadPerTaskExecutor(@Nonnull final String namePrefix)
+    {
+        try
+        {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            final ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Virtual connection pool mode requires a Java 21+ runtime. Running on " +
+                    System.getProperty("java.version") + ".", e);
+        }
+    }
 }
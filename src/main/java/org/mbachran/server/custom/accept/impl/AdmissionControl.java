@@ -0,0 +1,246 @@
+package org.mbachran.server.custom.accept.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.response.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.mbachran.server.custom.accept.impl.AcceptorConfig.CONNECTION_POOL_QUALIFIER;
+
+/**
+ * Limits the number of connections in flight within the connection pool (running or queued) as submitted by the acceptors.
+ * Connections beyond the limit or rejected by the pool are answered right away by the acceptor with a 503 and closed. The response is
+ * encoded once up front so rejecting costs one small write only. Clients fail fast and can retry elsewhere instead of hanging.
+ *
+ * Connections parked by the {@link org.mbachran.server.custom.connection.impl.IdleConnectionParker} or handed over to selector loops do not
+ * occupy the pool and therefore do not count as in flight. Parked connections are admitted again once resumed (see
+ * {@link #submit(SocketChannel, Supplier)}).
+ *
+ * The limit does not apply in the virtual pool mode: the pool never rejects and idle connections only occupy a virtual thread each.
+ *
+ * Rejections are only logged at debug level as they come in bursts exactly when the server is overloaded. The counters are exposed
+ * via JMX instead.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=AdmissionControl", description = "Connection admission control")
+public class AdmissionControl
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private final int maxInFlight;
+
+    private final ExecutorService connectionPool;
+
+    /**
+     * The pre-encoded 503 response. Only duplicates are handed out for writing.
+     */
+    private final ByteBuffer serviceUnavailable;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param maxInFlight       The maximum number of connections in flight within the connection pool. Zero or negative means unlimited.
+     *                          Ignored in the virtual pool mode.
+     * @param retryAfterSeconds The value of the Retry-After header of the 503 response.
+     * @param acceptorConfig    The configuration of the connection pool.
+     * @param connectionPool    The pool the connections are submitted to. Its queue depth is exposed.
+     */
+    @Autowired
+    AdmissionControl(@Value("${application.config.custom-server.connection.max-in-flight:200}") final int maxInFlight,
+                     @Value("${application.config.custom-server.connection.retry-after-seconds:1}") final int retryAfterSeconds,
+                     @Nonnull final AcceptorConfig acceptorConfig,
+                     @Qualifier(CONNECTION_POOL_QUALIFIER) @Nonnull final ExecutorService connectionPool)
+    {
+        this(acceptorConfig.getPoolMode() == AcceptorConfig.PoolMode.virtual ? 0 : maxInFlight, retryAfterSeconds, connectionPool);
+    }
+
+    /**
+     * @param maxInFlight       The maximum number of connections in flight within the connection pool. Zero or negative means unlimited.
+     * @param retryAfterSeconds The value of the Retry-After header of the 503 response.
+     * @param connectionPool    The pool the connections are submitted to. Its queue depth is exposed.
+     */
+    public AdmissionControl(final int maxInFlight, final int retryAfterSeconds, @Nonnull final ExecutorService connectionPool)
+    {
+        this.maxInFlight = maxInFlight;
+        this.connectionPool = connectionPool;
+        this.serviceUnavailable = new Response.Builder()
+                .code(HttpCode.SERVICE_UNAVAILABLE)
+                .addHeader("Retry-After", String.valueOf(retryAfterSeconds))
+                .addHeader("Connection", "close")
+                .contentLength(0)
+                .build()
+                .toByteBuffer()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Reserves a slot for a connection. Each successful call must be followed by exactly one call to {@link #release()}.
+     *
+     * @return True if the connection is admitted, false if the limit is reached.
+     */
+    boolean tryAdmit()
+    {
+        if (maxInFlight <= 0)
+        {
+            inFlight.incrementAndGet();
+            return true;
+        }
+
+        int current;
+        do
+        {
+            current = inFlight.get();
+            if (current >= maxInFlight)
+            {
+                return false;
+            }
+        }
+        while (!inFlight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * Frees the slot reserved by {@link #tryAdmit()}.
+     */
+    void release()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @param connection The work to track as in flight.
+     * @return A Runnable releasing the slot as soon as the given work is done.
+     */
+    @Nonnull
+    Runnable track(@Nonnull final Runnable connection)
+    {
+        return () -> {
+            try
+            {
+                connection.run();
+            }
+            finally
+            {
+                release();
+            }
+        };
+    }
+
+    /**
+     * Submits the connection to the pool tracked as in flight. Connections beyond the limit or rejected by the pool are answered with
+     * the 503 and closed. Never fails apart from the supplier.
+     *
+     * @param socketChannel The data socket of the connection.
+     * @param connection    Supplies the work serving the connection. Only called once the connection is admitted.
+     * @return True if the connection has been submitted.
+     */
+    public boolean submit(@Nonnull final SocketChannel socketChannel, @Nonnull final Supplier<? extends Runnable> connection)
+    {
+        if (!tryAdmit())
+        {
+            LOG.debug("Rejecting data connection as the limit of connections in flight is reached.");
+            reject(socketChannel);
+            return false;
+        }
+
+        final Runnable work;
+        try
+        {
+            work = connection.get();
+        }
+        catch (RuntimeException e)
+        {
+            release();
+            throw e;
+        }
+
+        try
+        {
+            connectionPool.submit(track(work));
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOG.debug("Rejecting data connection as the connection pool is exhausted.");
+            release();
+            reject(socketChannel);
+            return false;
+        }
+    }
+
+    /**
+     * Answers the connection with the pre-encoded 503 and closes it. Never fails.
+     *
+     * @param socketChannel The accepted data socket that will not be served.
+     */
+    void reject(@Nonnull final SocketChannel socketChannel)
+    {
+        rejections.incrementAndGet();
+        try (socketChannel)
+        {
+            final ByteBuffer response = serviceUnavailable.duplicate();
+            while (response.hasRemaining())
+            {
+                socketChannel.write(response);
+            }
+
+            // a resumed connection already holds its next request: closing with unread input would reset the connection and the client
+            // could lose the 503, so the input received so far is discarded first
+            socketChannel.shutdownOutput();
+            socketChannel.configureBlocking(false);
+            final ByteBuffer discard = ByteBuffer.allocate(512);
+            for (int i = 0; i < 16 && socketChannel.read(discard) > 0; i++)
+            {
+                discard.clear();
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Failed answering rejected connection: {}", e.getMessage());
+        }
+    }
+
+    @ManagedAttribute(description = "The maximum number of connections in flight. Zero or negative means unlimited.")
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    @ManagedAttribute(description = "The number of connections currently running or queued in the connection pool.")
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    @ManagedAttribute(description = "The number of connections rejected with 503 since startup.")
+    public long getRejections()
+    {
+        return rejections.get();
+    }
+
+    @ManagedAttribute(description = "The number of connections waiting in the queue of the connection pool.")
+    public int getQueueDepth()
+    {
+        return connectionPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) connectionPool).getQueue().size() : 0;
+    }
+}
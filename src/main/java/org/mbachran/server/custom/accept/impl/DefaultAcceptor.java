@@ -13,12 +13,14 @@ import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
 
 /**
  * Accepts connections and uses the injected {@link ConnectionFactory} to create/dispatch {@link Connection}s based on a SocketChannel
  * and a timestamp directly taken after accept. Dispatch wraps the {@link Connection} into a {@link SurvivingRunnable}.
  * Directly returns into the accept state after dispatching keeping the thread always up.
+ *
+ * Connections are dispatched via the {@link AdmissionControl}. The {@link Connection} is only created once admitted. Connections beyond
+ * the limit or rejected by the connection pool are answered with a 503 and closed right away by the acceptor.
  */
 public class DefaultAcceptor implements Acceptor
 {
@@ -28,21 +30,21 @@ public class DefaultAcceptor implements Acceptor
 
     private static final long STOP_RUNNING = -1L;
 
-    private final ExecutorService connectionPool;
-
     private final ConnectionFactory connectionFactory;
 
     private final int acceptorNumber;
 
     private final ServerSocketChannel serverSocketChannel;
 
-    DefaultAcceptor(@Nonnull final ExecutorService connectionPool,
-                    @Nonnull final ConnectionFactory connectionFactory,
+    private final AdmissionControl admissionControl;
+
+    DefaultAcceptor(@Nonnull final ConnectionFactory connectionFactory,
+                    @Nonnull final AdmissionControl admissionControl,
                     final int acceptorNumber,
                     @Nonnull final ServerSocketChannel serverSocketChannel)
     {
-        this.connectionPool = connectionPool;
         this.connectionFactory = connectionFactory;
+        this.admissionControl = admissionControl;
         this.acceptorNumber = acceptorNumber;
         this.serverSocketChannel = Objects.requireNonNull(serverSocketChannel);
     }
@@ -56,9 +58,15 @@ public class DefaultAcceptor implements Acceptor
             // Do not use AutoClosable here. The connection is responsible for closing the socket.
             final SocketChannel socketChannel = serverSocketChannel.accept();
             final long creationTime = System.currentTimeMillis();
-            final Connection connection = connectionFactory.create(creationTime, socketChannel);
-            LOG.debug("Created data connection at {}", creationTime);
-            connectionPool.submit(new SurvivingRunnable(connection::serve));
+            final boolean submitted = admissionControl.submit(socketChannel, () -> {
+                final Connection connection = connectionFactory.create(creationTime, socketChannel);
+                LOG.debug("Created data connection at {}", creationTime);
+                return new SurvivingRunnable(connection::serve);
+            });
+            if (!submitted)
+            {
+                return KEEP_RUNNING;
+            }
 
             LOG.debug("Acceptor number {} accepted data connection on port {}", acceptorNumber, serverSocketChannel.socket().getLocalPort());
             return KEEP_RUNNING;
@@ -8,6 +8,11 @@ import java.nio.channels.SocketChannel;
  */
 public interface ConnectionFactory
 {
+    /**
+     * The qualifier of the executor bean that {@link Connection}s are served by.
+     */
+    String CONNECTION_POOL_QUALIFIER = "connectionPool";
+
     @Nonnull
     Connection create(long creationTime, @Nonnull SocketChannel dataSocketChannel);
 }
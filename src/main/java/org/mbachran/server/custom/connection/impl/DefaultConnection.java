@@ -1,30 +1,29 @@
 package org.mbachran.server.custom.connection.impl;
 
-import org.apache.commons.lang3.StringUtils;
 import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.connection.api.Connection;
 import org.mbachran.server.custom.dispatch.api.Dispatcher;
 import org.mbachran.server.custom.parser.api.RequestParser;
 import org.mbachran.server.custom.parser.api.RequestParserFactory;
-import org.mbachran.server.custom.request.api.Request;
 import org.mbachran.server.custom.response.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
- * Factors a {@link RequestParser} per call to {@link #serve()}.
+ * Factors a {@link RequestParser} per request via its {@link RequestPipeline} which also handles pipelined requests.
  * Is responsible for closing the socket it was factored upon.
  * Dispatches to a {@link Dispatcher} to handle requests after they have been parsed and build.
  * Responds to its {@link SocketChannel}.
  * Handles connections including keep-alive.
+ * In between requests the connection is handed to the {@link IdleConnectionParker} if enabled instead of blocking the pool thread in a read.
  */
 public class DefaultConnection implements Connection
 {
@@ -51,43 +50,55 @@ public class DefaultConnection implements Connection
     private final SocketChannel dataSocketChannel;
 
     /**
-     * Default that might be temporarily overwritten on the {@link #dataSocketChannel} by the keep-alive timeout.
+     * Default in seconds that might be temporarily overwritten on the {@link #dataSocketChannel} by the keep-alive timeout.
      */
     private final int socketTimeout;
 
     /**
-     * The (Spring) configured size of the ByteBuffer to use for reading. Static at runtime.
+     * The pool to lease the read buffer from.
      */
-    private final int readBufferSize;
+    private final ReadBufferPool readBufferPool;
 
     /**
-     * Teh factory to create new {@link RequestParser}s per request.
+     * Parses and dispatches the requests read including pipelined ones.
      */
-    private final RequestParserFactory requestParserFactory;
+    private final RequestPipeline requestPipeline;
 
     /**
-     * The {@link Dispatcher} to handle requests and produce responses.
+     * Writes the responses including bodies that are not held in memory.
      */
-    private final Dispatcher dispatcher;
+    private final ResponseWriter responseWriter = new ResponseWriter();
 
     /**
-     * Counter to check keep-alive max values against.
+     * Takes the connection in between requests if enabled so the pool thread can be returned.
      */
-    private int numberOfRequestsReceived;
+    private final IdleConnectionParker idleConnectionParker;
+
+    /**
+     * The read timeout in milliseconds currently in effect. Either the default or the keep-alive timeout requested by the client.
+     */
+    private int idleTimeout;
+
+    /**
+     * Leased from the {@link #readBufferPool} on the first request and kept until the connection is closed or parked.
+     */
+    private ByteBuffer readBuffer;
 
     DefaultConnection(final int socketTimeout,
-                      final int readBufferSize,
+                      @Nonnull final ReadBufferPool readBufferPool,
                       @Nonnull final RequestParserFactory requestParserFactory,
                       final long creationTime,
                       @Nonnull final SocketChannel dataSocketChannel,
-                      @Nonnull final Dispatcher dispatcher)
+                      @Nonnull final Dispatcher dispatcher,
+                      @Nonnull final IdleConnectionParker idleConnectionParker)
     {
         this.socketTimeout = socketTimeout;
-        this.readBufferSize = readBufferSize;
-        this.requestParserFactory = requestParserFactory;
-        this.dispatcher = dispatcher;
+        this.readBufferPool = readBufferPool;
+        this.requestPipeline = new RequestPipeline(requestParserFactory, dispatcher);
         this.creationTime = creationTime;
         this.dataSocketChannel = dataSocketChannel;
+        this.idleConnectionParker = idleConnectionParker;
+        this.idleTimeout = socketTimeout * 1000;
     }
 
     @Override
@@ -98,61 +109,56 @@ public class DefaultConnection implements Connection
         LOG.info("Connection {} created at {} awaiting data ...", connectionName, creationTime);
         try
         {
-            try (final RequestParser requestParser = requestParserFactory.create())
+            if (readBuffer == null)
             {
-                final ByteBuffer readBuffer = ByteBuffer.allocateDirect(readBufferSize);
-                dataSocketChannel.socket().setSoTimeout(socketTimeout);
-                boolean reading = true;
-                while (reading)
+                readBuffer = readBufferPool.lease();
+            }
+
+            dataSocketChannel.socket().setSoTimeout(idleTimeout);
+            boolean reading = true;
+            while (reading)
+            {
+                LOG.debug("Connection {} created at {} reading data ...", connectionName, creationTime);
+                readBuffer.clear();
+                final int numBytesRead = dataSocketChannel.read(readBuffer);
+                if (numBytesRead == -1)
                 {
-                    LOG.debug("Connection {} created at {} reading data ...", connectionName, creationTime);
-                    readBuffer.clear();
-                    final int numBytesRead = dataSocketChannel.read(readBuffer);
-                    if (numBytesRead == -1)
+                    close();
+                    reading = false;
+                    keepAlive = false;
+                    LOG.info("Connection {} created at {} closed. No more data retrieved.", connectionName, creationTime);
+                }
+                else
+                {
+                    readBuffer.flip();
+                    if (LOG.isDebugEnabled())
                     {
-                        dataSocketChannel.close();
-                        reading = false;
-                        LOG.info("Connection {} created at {} closed. No more data retrieved.", connectionName, creationTime);
+                        LOG.debug("Parsing read buffer: '{}'",
+                                StandardCharsets.UTF_8.decode(readBuffer.duplicate()).toString().replaceAll("\\\\", "X"));
                     }
-                    else
-                    {
-                        readBuffer.flip();
-                        LOG.debug("Parsing read buffer: '{}'", StandardCharsets.UTF_8.decode(readBuffer).toString().replaceAll("\\\\", "X"));
-                        readBuffer.rewind();
-
-                        final boolean done = requestParser.parse(readBuffer);
-                        if (done)
-                        {
-                            final HttpCode failure = requestParser.getFailure();
-                            final Response response;
-                            if (failure != null)
-                            {
-                                response = new Response.Builder().code(failure).build();
-                            }
-                            else
-                            {
-                                final Request request = requestParser.retrieve();
-                                response = dispatcher.handle(request);
 
-                                final int timeoutSeconds = handleConnectionLiveTime(request, response);
-
-                                // go back to the default read timeout as soon as there is no keep alive header info with timeout anymore
-                                if (timeoutSeconds == -1)
-                                {
-                                    dataSocketChannel.socket().setSoTimeout(socketTimeout);
-                                }
-                            }
+                    final List<Response> responses = requestPipeline.process(readBuffer);
+                    if (!responses.isEmpty())
+                    {
+                        // go back to the default read timeout as soon as there is no keep alive header info with timeout anymore
+                        final int timeoutSeconds = requestPipeline.getKeepAliveTimeout();
+                        idleTimeout = (timeoutSeconds == -1 ? socketTimeout : timeoutSeconds) * 1000;
+                        dataSocketChannel.socket().setSoTimeout(idleTimeout);
 
-                            dataSocketChannel.write(response.toByteBuffer());
-                            final boolean connection = "close".equals(response.getHeaders().get("Connection"));
-                            if (connection)
-                            {
-                                dataSocketChannel.close();
-                                keepAlive = false;
-                            }
+                        responseWriter.begin(responses);
+                        write();
+                    }
 
-                            reading = false;
-                        }
+                    if (requestPipeline.isCloseRequested())
+                    {
+                        close();
+                        reading = false;
+                        keepAlive = false;
+                    }
+                    else
+                    {
+                        // a partially received (pipelined) request must be completed before the connection may be parked
+                        reading = requestPipeline.isRequestPending();
                     }
                 }
             }
@@ -170,68 +176,46 @@ public class DefaultConnection implements Connection
             keepAlive = false;
         }
 
+        final boolean park = keepAlive && idleConnectionParker.isEnabled();
+        if (!keepAlive || park)
+        {
+            // closed or parked: idle connections do not hold a buffer. Released before parking as once parked the connection may be
+            // resumed on another thread right away, which must neither find nor share this buffer.
+            releaseReadBuffer();
+        }
+
+        if (park)
+        {
+            // the socket is watched by the parker from now on and the connection is resubmitted as soon as the next request arrives
+            LOG.debug("Connection {} created at {} parked until more data arrives.", connectionName, creationTime);
+            idleConnectionParker.park(this, dataSocketChannel, idleTimeout);
+            return STOP_RUNNING;
+        }
+
         return keepAlive ? KEEP_RUNNING : STOP_RUNNING;
     }
 
-    private int handleConnectionLiveTime(@Nonnull final Request request, @Nonnull final Response response) throws SocketException
+    private void releaseReadBuffer()
     {
-        final String connection = request.getRequestHeaders().getHeader("connection");
-        int timeoutSeconds = -1;
-        if ("close".equalsIgnoreCase(connection))
+        if (readBuffer != null)
         {
-            response.setHeader("Connection", connection);
+            readBufferPool.release(readBuffer);
+            readBuffer = null;
         }
-        else
-        {
-            if (connection == null)
-            {
-                response.removeHeader("Connection");
-            }
-            else if ("keep-alive".equalsIgnoreCase(connection))
-            {
-                final String keepAliveHeader = request.getRequestHeaders().getHeader("keep-alive");
-                if (keepAliveHeader != null)
-                {
-                    final String[] parameters = StringUtils.split(keepAliveHeader, ',');
-                    for (final String parameter : parameters)
-                    {
-                        final String[] nameAndValue = StringUtils.split(parameter, '=');
-                        if (nameAndValue.length == 2)
-                        {
-                            final String name = nameAndValue[0].trim();
-                            final String value = nameAndValue[1].trim();
-                            if ("timeout".equalsIgnoreCase(name))
-                            {
-                                timeoutSeconds = Integer.valueOf(value);
-                                dataSocketChannel.socket().setSoTimeout(timeoutSeconds * 1000);
-                            }
-                            else if ("max".equalsIgnoreCase(name))
-                            {
-                                final int maxNumberOfRequests = Integer.valueOf(value);
-                                if (maxNumberOfRequests <= 0)
-                                {
-                                    // reset counting as soon as the max is missing once
-                                    numberOfRequestsReceived = 0;
-                                }
-                                else
-                                {
-                                    numberOfRequestsReceived++;
-                                    if (maxNumberOfRequests <= numberOfRequestsReceived)
-                                    {
-                                        // this will trigger the close and even inform the client
-                                        response.setHeader("Connection", "close");
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+    }
 
-                response.setHeader("Connection", connection);
-            }
+    /**
+     * Writes the responses of all requests processed from one read. The socket is blocking so this only returns once all is written.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void write() throws IOException
+    {
+        boolean done = false;
+        while (!done)
+        {
+            done = responseWriter.writeTo(dataSocketChannel);
         }
-
-        return timeoutSeconds;
     }
 
     private void attemptUnintentionalCloseResponse()
@@ -239,7 +223,11 @@ public class DefaultConnection implements Connection
         try
         {
             final Response response = Response.buildErrorResponse(HttpCode.INTERNAL_SERVER_ERROR);
-            dataSocketChannel.write(response.toByteBuffer());
+            final ByteBuffer[] buffers = response.toByteBuffers();
+            while (buffers[buffers.length - 1].hasRemaining())
+            {
+                dataSocketChannel.write(buffers);
+            }
         }
         catch (IOException e)
         {
@@ -249,6 +237,8 @@ public class DefaultConnection implements Connection
 
     private void close()
     {
+        requestPipeline.close();
+        responseWriter.close();
         try
         {
             dataSocketChannel.close();
@@ -6,48 +6,61 @@ import org.mbachran.server.custom.dispatch.api.Dispatcher;
 import org.mbachran.server.custom.parser.api.RequestParserFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
 import java.nio.channels.SocketChannel;
 import java.util.List;
 
+/**
+ * Factors the blocking {@link DefaultConnection}s that occupy a pool thread as long as the connection is alive.
+ * This is the default engine and active unless 'application.config.custom-server.connection.engine' is set to something else than 'blocking'.
+ */
 @Component
+@ConditionalOnProperty(name = "application.config.custom-server.connection.engine", havingValue = "blocking", matchIfMissing = true)
 public class DefaultConnectionFactory implements ConnectionFactory
 {
     private final int socketTimeout;
 
-    private final int readBufferSize;
+    private final ReadBufferPool readBufferPool;
 
     private final RequestParserFactory requestParserFactory;
 
     private final Dispatcher dispatcher;
 
+    private final IdleConnectionParker idleConnectionParker;
+
     /**
-     * @param socketTimeout        The default timeout to be used for the data sockets.
+     * @param socketTimeout        The default timeout in seconds to be used for the data sockets.
+     * @param readBufferPool       The pool the connections lease their read buffers from.
      * @param requestParserFactory The factory to use for factoring request parsers.
      * @param dispatchers           The start of the dispatch chain.
+     * @param idleConnectionParker The parker to take idle keep-alive connections off the pool threads.
      */
     @Autowired
     public DefaultConnectionFactory(@Value("${application.config.custom-server.connection.socket-timeout:60}") final int socketTimeout,
-                                    @Value("${application.config.custom-server.connection.read-buffer-size:8192}") final int readBufferSize,
                                     @Value("${application.config.custom-server.dispatch-chain.start:defaultDispatcher}") final String dispatcherName,
+                                    @Nonnull final ReadBufferPool readBufferPool,
                                     @Nonnull final RequestParserFactory requestParserFactory,
-                                    @Nonnull final List<Dispatcher> dispatchers)
+                                    @Nonnull final List<Dispatcher> dispatchers,
+                                    @Nonnull final IdleConnectionParker idleConnectionParker)
     {
         this.socketTimeout = socketTimeout;
-        this.readBufferSize = readBufferSize;
+        this.readBufferPool = readBufferPool;
         this.requestParserFactory = requestParserFactory;
         this.dispatcher = dispatchers.stream()
                 .filter(d->d.getName().equals(dispatcherName))
                 .findFirst()
                 .orElseThrow(()->new IllegalArgumentException("No such dispatcher " + dispatcherName + ". Make sure to fix the server config."));
+        this.idleConnectionParker = idleConnectionParker;
     }
 
     @Nonnull
     @Override
     public Connection create(final long creationTime, @Nonnull final SocketChannel dataSocketChannel)
     {
-        return new DefaultConnection(socketTimeout, readBufferSize, requestParserFactory, creationTime, dataSocketChannel, dispatcher);
+        return new DefaultConnection(socketTimeout, readBufferPool, requestParserFactory, creationTime, dataSocketChannel, dispatcher,
+                idleConnectionParker);
     }
 }
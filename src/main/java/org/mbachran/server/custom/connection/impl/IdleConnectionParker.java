@@ -0,0 +1,287 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.mbachran.server.custom.accept.impl.AdmissionControl;
+import org.mbachran.server.custom.connection.api.Connection;
+import org.mbachran.server.custom.util.SurvivingRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps idle keep-alive connections of the blocking engine off the connection pool.
+ *
+ * After a response has been written a {@link DefaultConnection} parks its socket here and returns its pool thread.
+ * One shared selector watches all parked sockets and as soon as new bytes arrive the connection is switched back to blocking mode and
+ * submitted to the connection pool again via the {@link AdmissionControl}, so it counts as in flight again and is answered with a 503
+ * if the limit is reached or the pool rejects it. Parked connections idle for longer than their timeout are closed.
+ *
+ * Enabled via 'application.config.custom-server.connection.park-idle'. If disabled connections keep their thread in between requests.
+ */
+@Component
+@ConditionalOnProperty(name = "application.config.custom-server.connection.engine", havingValue = "blocking", matchIfMissing = true)
+public class IdleConnectionParker
+{
+    private static final Logger LOG = LoggerFactory.getLogger(IdleConnectionParker.class);
+
+    /**
+     * The interval in milliseconds the parker wakes up at the latest to check for idle connections.
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+    private final boolean enabled;
+
+    private final AdmissionControl admissionControl;
+
+    /**
+     * Connections handed over by the connection threads waiting to be registered with the {@link #selector} within the parker thread.
+     */
+    private final Queue<Parked> registrations = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+
+    private ExecutorService parkerPool;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param enabled          Whether to park idle connections.
+     * @param admissionControl Submits the resumed connections to the connection pool.
+     */
+    @Autowired
+    public IdleConnectionParker(@Value("${application.config.custom-server.connection.park-idle:false}") final boolean enabled,
+                                @Nonnull final AdmissionControl admissionControl)
+    {
+        this.enabled = enabled;
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Opens the selector and starts the parker thread if enabled. Not done within the constructor as opening a selector is I/O.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    @PostConstruct
+    void init() throws IOException
+    {
+        if (enabled)
+        {
+            selector = Selector.open();
+            parkerPool = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder().namingPattern("parker-%d").build());
+            parkerPool.submit(this::run);
+        }
+    }
+
+    @PreDestroy
+    void shutdown()
+    {
+        if (enabled)
+        {
+            running = false;
+            selector.wakeup();
+            parkerPool.shutdown();
+        }
+    }
+
+    /**
+     * @return True if connections should be parked in between requests.
+     */
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Parks the connection until new data arrives. Thread safe.
+     * The caller must return its pool thread right after and must not touch the socket anymore.
+     *
+     * @param connection        The connection to submit to the connection pool as soon as the socket is readable.
+     * @param dataSocketChannel The socket of the connection.
+     * @param idleTimeout       The time in milliseconds after which the connection is closed if no data arrived.
+     */
+    void park(@Nonnull final Connection connection, @Nonnull final SocketChannel dataSocketChannel, final long idleTimeout)
+    {
+        registrations.add(new Parked(connection, dataSocketChannel, System.currentTimeMillis() + idleTimeout));
+        selector.wakeup();
+    }
+
+    private void run()
+    {
+        LOG.info("Idle connection parker started.");
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running)
+        {
+            try
+            {
+                selector.select(IDLE_CHECK_INTERVAL);
+                registerPending();
+                resumeReadable();
+
+                final long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL)
+                {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+            catch (ClosedSelectorException e)
+            {
+                running = false;
+            }
+            catch (Throwable t)
+            {
+                LOG.warn("Idle connection parker faced an exception or error. Keeping it alive.", t);
+            }
+        }
+
+        closeAll();
+        LOG.info("Idle connection parker stopped.");
+    }
+
+    private void registerPending()
+    {
+        Parked parked;
+        while ((parked = registrations.poll()) != null)
+        {
+            try
+            {
+                parked.dataSocketChannel.configureBlocking(false);
+                parked.dataSocketChannel.register(selector, SelectionKey.OP_READ, parked);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed parking connection: {}", e.getMessage());
+                parked.close();
+            }
+        }
+    }
+
+    /**
+     * A socket can only be switched back to blocking mode once its key has been deregistered. This happens with the next selection
+     * operation after the cancellation which is why the readable connections are collected and resumed after a {@link Selector#selectNow()}.
+     *
+     * @throws IOException If the selection fails.
+     */
+    private void resumeReadable() throws IOException
+    {
+        final List<Parked> readable = new ArrayList<>();
+        final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext())
+        {
+            final SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+            key.cancel();
+            readable.add((Parked) key.attachment());
+        }
+
+        if (readable.isEmpty())
+        {
+            return;
+        }
+
+        selector.selectNow();
+        for (final Parked parked : readable)
+        {
+            try
+            {
+                parked.dataSocketChannel.configureBlocking(true);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed resuming parked connection: {}", e.toString());
+                parked.close();
+                continue;
+            }
+
+            // rejected connections are answered with a 503 and closed
+            admissionControl.submit(parked.dataSocketChannel, () -> new SurvivingRunnable(parked.connection::serve));
+        }
+    }
+
+    private void closeIdle(final long now)
+    {
+        for (final SelectionKey key : selector.keys())
+        {
+            final Parked parked = (Parked) key.attachment();
+            if (key.isValid() && now > parked.deadline)
+            {
+                LOG.info("Closing parked connection idle for longer than its timeout.");
+                key.cancel();
+                parked.close();
+            }
+        }
+    }
+
+    private void closeAll()
+    {
+        Parked pending;
+        while ((pending = registrations.poll()) != null)
+        {
+            pending.close();
+        }
+
+        try
+        {
+            for (final SelectionKey key : selector.keys())
+            {
+                ((Parked) key.attachment()).close();
+            }
+
+            selector.close();
+        }
+        catch (ClosedSelectorException | IOException e)
+        {
+            LOG.warn("Failed closing idle connection parker: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A connection parked along with its socket and the time it is closed at unless data arrives.
+     */
+    private static class Parked
+    {
+        private final Connection connection;
+
+        private final SocketChannel dataSocketChannel;
+
+        private final long deadline;
+
+        private Parked(@Nonnull final Connection connection, @Nonnull final SocketChannel dataSocketChannel, final long deadline)
+        {
+            this.connection = connection;
+            this.dataSocketChannel = dataSocketChannel;
+            this.deadline = deadline;
+        }
+
+        private void close()
+        {
+            try
+            {
+                dataSocketChannel.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed closing socket!", e);
+            }
+        }
+    }
+}
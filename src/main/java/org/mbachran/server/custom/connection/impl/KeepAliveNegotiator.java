@@ -0,0 +1,91 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.response.Response;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Interprets the connection and keep-alive headers of a request and reflects the decision in the response headers.
+ * Stateful per connection as the keep-alive max is counted over subsequent requests.
+ *
+ * Shared by the {@link org.mbachran.server.custom.connection.api.Connection} implementations so the behavior does not depend on the
+ * I/O model in use.
+ */
+class KeepAliveNegotiator
+{
+    /**
+     * Counter to check keep-alive max values against.
+     */
+    private int numberOfRequestsReceived;
+
+    /**
+     * Sets the connection header on the response as requested by the client and counts requests against the keep-alive max.
+     * A 'Connection: close' header is set on the response if the max has been reached.
+     *
+     * @param request  The request as received.
+     * @param response The response to be sent for the request.
+     * @return The keep-alive timeout in seconds as requested by the client or -1 if none was given.
+     */
+    int negotiate(@Nonnull final Request request, @Nonnull final Response response)
+    {
+        final String connection = request.getRequestHeaders().getHeader(HeaderNames.CONNECTION);
+        int timeoutSeconds = -1;
+        if ("close".equalsIgnoreCase(connection))
+        {
+            response.setHeader("Connection", connection);
+        }
+        else
+        {
+            if (connection == null)
+            {
+                response.removeHeader("Connection");
+            }
+            else if ("keep-alive".equalsIgnoreCase(connection))
+            {
+                final String keepAliveHeader = request.getRequestHeaders().getHeader(HeaderNames.KEEP_ALIVE);
+                if (keepAliveHeader != null)
+                {
+                    final String[] parameters = StringUtils.split(keepAliveHeader, ',');
+                    for (final String parameter : parameters)
+                    {
+                        final String[] nameAndValue = StringUtils.split(parameter, '=');
+                        if (nameAndValue.length == 2)
+                        {
+                            final String name = nameAndValue[0].trim();
+                            final String value = nameAndValue[1].trim();
+                            if ("timeout".equalsIgnoreCase(name))
+                            {
+                                timeoutSeconds = Integer.valueOf(value);
+                            }
+                            else if ("max".equalsIgnoreCase(name))
+                            {
+                                final int maxNumberOfRequests = Integer.valueOf(value);
+                                if (maxNumberOfRequests <= 0)
+                                {
+                                    // reset counting as soon as the max is missing once
+                                    numberOfRequestsReceived = 0;
+                                }
+                                else
+                                {
+                                    numberOfRequestsReceived++;
+                                    if (maxNumberOfRequests <= numberOfRequestsReceived)
+                                    {
+                                        // this will trigger the close and even inform the client
+                                        response.setHeader("Connection", "close");
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+
+                response.setHeader("Connection", connection);
+            }
+        }
+
+        return timeoutSeconds;
+    }
+}
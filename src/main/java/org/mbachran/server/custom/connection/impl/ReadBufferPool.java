@@ -0,0 +1,151 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of direct {@link ByteBuffer}s of the configured read buffer size leased by the connections.
+ *
+ * Direct buffers are expensive to allocate and their memory is only freed once the GC collects them. Therefore they are allocated once
+ * and reused across connections. The total off-heap bytes allocated by the pool are capped. If the cap is reached a heap buffer is handed
+ * out instead which is simply dropped on release.
+ *
+ * Hit/miss statistics and the allocated bytes are exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=ReadBufferPool", description = "Pool of direct read buffers")
+public class ReadBufferPool
+{
+    private final int bufferSize;
+
+    private final long maxDirectBytes;
+
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong directBytes = new AtomicLong();
+
+    private final AtomicInteger leased = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong heapFallbacks = new AtomicLong();
+
+    /**
+     * @param bufferSize     The size of each buffer.
+     * @param maxDirectBytes The cap of the off-heap bytes allocated by this pool.
+     */
+    @Autowired
+    public ReadBufferPool(@Value("${application.config.custom-server.connection.read-buffer-size:8192}") final int bufferSize,
+                          @Value("${application.config.custom-server.connection.read-buffer-pool.max-bytes:8388608}") final long maxDirectBytes)
+    {
+        this.bufferSize = bufferSize;
+        this.maxDirectBytes = maxDirectBytes;
+    }
+
+    /**
+     * Thread safe.
+     *
+     * @return A cleared buffer of the configured size. Must be given back via {@link #release(ByteBuffer)} and not be used afterwards.
+     */
+    @Nonnull
+    ByteBuffer lease()
+    {
+        leased.incrementAndGet();
+        final ByteBuffer pooled = free.poll();
+        if (pooled != null)
+        {
+            hits.incrementAndGet();
+            pooled.clear();
+            return pooled;
+        }
+
+        misses.incrementAndGet();
+        long allocated;
+        do
+        {
+            allocated = directBytes.get();
+            if (allocated + bufferSize > maxDirectBytes)
+            {
+                heapFallbacks.incrementAndGet();
+                return ByteBuffer.allocate(bufferSize);
+            }
+        }
+        while (!directBytes.compareAndSet(allocated, allocated + bufferSize));
+
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Thread safe. Heap buffers handed out beyond the cap are dropped.
+     *
+     * @param buffer The buffer previously leased.
+     */
+    void release(@Nonnull final ByteBuffer buffer)
+    {
+        leased.decrementAndGet();
+        if (buffer.isDirect())
+        {
+            free.add(buffer);
+        }
+    }
+
+    @ManagedAttribute(description = "The size in bytes of each buffer.")
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    @ManagedAttribute(description = "The cap of the off-heap bytes allocated by the pool.")
+    public long getMaxDirectBytes()
+    {
+        return maxDirectBytes;
+    }
+
+    @ManagedAttribute(description = "The off-heap bytes allocated by the pool (leased and free).")
+    public long getDirectBytes()
+    {
+        return directBytes.get();
+    }
+
+    @ManagedAttribute(description = "The number of buffers currently leased (direct and heap).")
+    public int getLeasedCount()
+    {
+        return leased.get();
+    }
+
+    @ManagedAttribute(description = "The number of buffers free for leasing.")
+    public int getFreeCount()
+    {
+        return free.size();
+    }
+
+    @ManagedAttribute(description = "The number of leases served from the pool.")
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description = "The number of leases that needed an allocation.")
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @ManagedAttribute(description = "The number of leases served by a heap buffer as the off-heap cap was reached.")
+    public long getHeapFallbacks()
+    {
+        return heapFallbacks.get();
+    }
+}
@@ -0,0 +1,190 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.HttpVersion;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.parser.api.RequestParser;
+import org.mbachran.server.custom.parser.api.RequestParserFactory;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.response.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the bytes read by a connection into responses supporting HTTP/1.1 pipelining.
+ * A single read buffer might hold several complete requests followed by the start of another one. All complete requests are parsed and
+ * dispatched in order and their responses are handed back together so the connection can write them at once via its {@link ResponseWriter}.
+ * The parser of an incomplete request is kept until the next read completes it.
+ *
+ * Shared by the {@link org.mbachran.server.custom.connection.api.Connection} implementations so the behavior does not depend on the
+ * I/O model in use. Stateful per connection and not thread safe.
+ */
+class RequestPipeline implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RequestPipeline.class);
+
+    /**
+     * The factory to create new {@link RequestParser}s per request.
+     */
+    private final RequestParserFactory requestParserFactory;
+
+    /**
+     * The {@link Dispatcher} to handle requests and produce responses.
+     */
+    private final Dispatcher dispatcher;
+
+    /**
+     * Interprets the connection related headers and counts requests against the keep-alive max.
+     */
+    private final KeepAliveNegotiator keepAliveNegotiator = new KeepAliveNegotiator();
+
+    /**
+     * The parser of the request currently being received. Null in between requests.
+     */
+    private RequestParser requestParser;
+
+    /**
+     * Set as soon as a response closes the connection. Requests following within the same buffer are dropped.
+     */
+    private boolean closeRequested;
+
+    /**
+     * The keep-alive timeout in seconds as negotiated with the last request or -1 if the client did not request one.
+     */
+    private int keepAliveTimeout = -1;
+
+    RequestPipeline(@Nonnull final RequestParserFactory requestParserFactory, @Nonnull final Dispatcher dispatcher)
+    {
+        this.requestParserFactory = requestParserFactory;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Parses and dispatches all requests completed by the given bytes. Stops early if a response requests to close the connection.
+     *
+     * @param buffer The bytes read last. Consumed completely unless the connection is to be closed.
+     * @return The responses in order of the requests. Empty if no request has been completed.
+     * @throws Exception If dispatching fails.
+     */
+    @Nonnull
+    List<Response> process(@Nonnull final ByteBuffer buffer) throws Exception
+    {
+        final List<Response> responses = new ArrayList<>(1);
+        while (buffer.hasRemaining() && !closeRequested)
+        {
+            if (requestParser == null)
+            {
+                requestParser = requestParserFactory.create();
+            }
+
+            if (!requestParser.parse(buffer))
+            {
+                break;
+            }
+
+            final HttpCode failure = requestParser.getFailure();
+            final Response response;
+            if (failure != null)
+            {
+                // the start of a following request cannot be determined reliably anymore
+                response = new Response.Builder()
+                        .code(failure)
+                        .contentLength(0)
+                        .addHeader("Connection", "close")
+                        .build();
+            }
+            else
+            {
+                final Request request = requestParser.retrieve();
+                response = dispatcher.handle(request);
+                keepAliveTimeout = keepAliveNegotiator.negotiate(request, response);
+                delimitBody(request, response);
+            }
+
+            closeRequestParser();
+            closeRequested = "close".equals(response.getHeaders().get("Connection"));
+            responses.add(response);
+        }
+
+        if (responses.size() > 1)
+        {
+            LOG.debug("Processed {} pipelined requests.", responses.size());
+        }
+
+        return responses;
+    }
+
+    /**
+     * A body of unknown length is sent chunked to HTTP/1.1 clients. HTTP/1.0 clients do not know chunks so the end of the body is
+     * signalled by closing the connection.
+     */
+    private static void delimitBody(@Nonnull final Request request, @Nonnull final Response response)
+    {
+        if (response.getResponseBody().getLength() < 0)
+        {
+            if (request.getRequestLine().getVersion() == HttpVersion.HTTP_1_1)
+            {
+                response.useChunkedTransferEncoding();
+            }
+            else
+            {
+                response.setHeader("Connection", "close");
+            }
+        }
+    }
+
+    /**
+     * @return True if the bytes of an incomplete request have been received.
+     */
+    boolean isRequestPending()
+    {
+        return requestParser != null;
+    }
+
+    /**
+     * @return True if the last response requested to close the connection.
+     */
+    boolean isCloseRequested()
+    {
+        return closeRequested;
+    }
+
+    /**
+     * @return The keep-alive timeout in seconds as requested by the client with the last request or -1 if none was given.
+     */
+    int getKeepAliveTimeout()
+    {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Closes the parser of a request in progress. Never fails.
+     */
+    @Override
+    public void close()
+    {
+        closeRequestParser();
+    }
+
+    private void closeRequestParser()
+    {
+        if (requestParser != null)
+        {
+            try
+            {
+                requestParser.close();
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Failed closing request parser: " + e.getMessage());
+            }
+
+            requestParser = null;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.mbachran.server.custom.response.HeaderEncoder;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.ResponseBody;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the responses of a batch (several if pipelined) in order while handling partial writes.
+ * - heads and bodies held in memory are collected into runs written by single gathering writes
+ * - other bodies (like files) interrupt a run and are written by {@link ResponseBody#writeTo(java.nio.channels.WritableByteChannel)}
+ *
+ * Works for blocking and non-blocking channels. Non-blocking callers call {@link #writeTo(GatheringByteChannel)} again as soon as the
+ * channel is writable. Stateful per connection and not thread safe. The buffer the heads are encoded into is reused for the next batch.
+ *
+ * Callers that must not block on reading files or compressing (like selector loops) let the writer produce segments: bodies not held
+ * in memory and mapped ones (which might fault pages in) are then only written from segments copied by {@link #produceSegment()}, which
+ * the caller runs on another thread whenever {@link #needsSegment()}.
+ */
+class ResponseWriter implements AutoCloseable
+{
+    private static final int SEGMENT_SIZE = 65536;
+
+    /**
+     * Encodes the heads of the responses into a buffer reused across batches.
+     */
+    private final HeaderEncoder headerEncoder = new HeaderEncoder(512);
+
+    /**
+     * Whether bodies not held in memory are written from the segments produced by {@link #produceSegment()} only.
+     */
+    private final boolean producingSegments;
+
+    /**
+     * The segments of the current batch. Either a ByteBuffer[] to write gathering or a {@link ResponseBody} to write on its own.
+     */
+    private final List<Object> segments = new ArrayList<>(2);
+
+    /**
+     * The bodies of the current batch to close once written.
+     */
+    private final List<ResponseBody> bodies = new ArrayList<>(1);
+
+    /**
+     * The index of the segment to continue writing with.
+     */
+    private int next;
+
+    /**
+     * Holds the bytes produced for the body at {@link #next} but not yet written. Allocated on first use. In read mode between calls.
+     */
+    private ByteBuffer bodySegment;
+
+    /**
+     * Whether the body at {@link #next} has been produced completely into {@link #bodySegment}.
+     */
+    private boolean bodyProduced;
+
+    /**
+     * Whether the caller of {@link #writeSegments(GatheringByteChannel)} has to run {@link #produceSegment()} before writing on.
+     */
+    private boolean segmentNeeded;
+
+    /**
+     * Creates a writer that reads the source of the bodies while writing, for blocking callers.
+     */
+    ResponseWriter()
+    {
+        this(false);
+    }
+
+    /**
+     * @param producingSegments Whether bodies not held in memory or mapped are written from the segments produced by
+     *                          {@link #produceSegment()} only, so that writing never blocks on their source.
+     */
+    ResponseWriter(final boolean producingSegments)
+    {
+        this.producingSegments = producingSegments;
+    }
+
+    /**
+     * Starts a new batch. Must only be called if the previous one has been written completely.
+     *
+     * @param responses The responses to write in order.
+     */
+    void begin(@Nonnull final List<Response> responses)
+    {
+        if (!isDone())
+        {
+            throw new IllegalStateException("Previous responses have not been written yet.");
+        }
+
+        headerEncoder.reset();
+        segments.clear();
+        next = 0;
+        resetBodySegment();
+
+        final List<ByteBuffer> run = new ArrayList<>(responses.size() * 2);
+        for (final Response response : responses)
+        {
+            run.add(response.encodeHead(headerEncoder));
+            final ResponseBody body = response.getResponseBody();
+            bodies.add(body);
+            final ByteBuffer content = body.asByteBuffer();
+            // direct buffers of bodies are mappings that might fault pages in, written like files therefore if producing segments
+            if (content != null && !(producingSegments && content.isDirect()))
+            {
+                if (content.hasRemaining())
+                {
+                    run.add(content);
+                }
+            }
+            else
+            {
+                segments.add(run.toArray(new ByteBuffer[0]));
+                run.clear();
+                segments.add(body);
+            }
+        }
+
+        if (!run.isEmpty())
+        {
+            segments.add(run.toArray(new ByteBuffer[0]));
+        }
+    }
+
+    /**
+     * Writes as much of the batch as the channel accepts. If producing segments the source of a body is never read, so this does not
+     * block on non-blocking channels.
+     *
+     * @param channel The channel to write to.
+     * @return True if the batch has been written completely. If not, either the channel does not accept more for now or the next
+     * segment of a body is needed (see {@link #needsSegment()}).
+     * @throws IOException If writing fails.
+     */
+    boolean writeTo(@Nonnull final GatheringByteChannel channel) throws IOException
+    {
+        while (next < segments.size())
+        {
+            final Object segment = segments.get(next);
+            if (segment instanceof ByteBuffer[])
+            {
+                final ByteBuffer[] buffers = (ByteBuffer[]) segment;
+                channel.write(buffers);
+                if (buffers[buffers.length - 1].hasRemaining())
+                {
+                    return false;
+                }
+            }
+            else if (!producingSegments)
+            {
+                if (!((ResponseBody) segment).writeTo(channel))
+                {
+                    return false;
+                }
+            }
+            else
+            {
+                if (bodySegment != null && bodySegment.hasRemaining())
+                {
+                    channel.write(bodySegment);
+                    if (bodySegment.hasRemaining())
+                    {
+                        return false;
+                    }
+                }
+
+                if (!bodyProduced)
+                {
+                    segmentNeeded = true;
+                    return false;
+                }
+
+                resetBodySegment();
+            }
+
+            next++;
+        }
+
+        closeBodies();
+        return true;
+    }
+
+    /**
+     * @return True if {@link #writeTo(GatheringByteChannel)} stopped as the segment of the current body has been written.
+     */
+    boolean needsSegment()
+    {
+        return segmentNeeded;
+    }
+
+    /**
+     * Copies the next segment of the current body from its source, which might block on reading files or compressing.
+     * Must only be called if {@link #needsSegment()} and not concurrently with any other method.
+     *
+     * @throws IOException If reading the source of the body fails.
+     */
+    void produceSegment() throws IOException
+    {
+        if (!segmentNeeded)
+        {
+            throw new IllegalStateException("The current segment has not been written yet.");
+        }
+
+        if (bodySegment == null)
+        {
+            bodySegment = ByteBuffer.allocate(SEGMENT_SIZE);
+        }
+
+        bodySegment.clear();
+        bodyProduced = ((ResponseBody) segments.get(next)).writeTo(new WritableByteChannel()
+        {
+            @Override
+            public int write(@Nonnull final ByteBuffer src)
+            {
+                final int length = Math.min(src.remaining(), bodySegment.remaining());
+                bodySegment.put(src.slice().limit(length));
+                src.position(src.position() + length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+                // nothing held
+            }
+        });
+
+        bodySegment.flip();
+        segmentNeeded = false;
+    }
+
+    /**
+     * @return True if there is nothing left to write.
+     */
+    boolean isDone()
+    {
+        return next >= segments.size();
+    }
+
+    /**
+     * Drops whatever is left to write and releases the bodies. Never fails.
+     */
+    @Override
+    public void close()
+    {
+        segments.clear();
+        next = 0;
+        resetBodySegment();
+        closeBodies();
+    }
+
+    private void resetBodySegment()
+    {
+        if (bodySegment != null)
+        {
+            bodySegment.clear().limit(0);
+        }
+
+        bodyProduced = false;
+        segmentNeeded = false;
+    }
+
+    private void closeBodies()
+    {
+        for (final ResponseBody body : bodies)
+        {
+            body.close();
+        }
+
+        bodies.clear();
+    }
+}
@@ -0,0 +1,446 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.connection.api.Connection;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.parser.api.RequestParser;
+import org.mbachran.server.custom.parser.api.RequestParserFactory;
+import org.mbachran.server.custom.response.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking {@link Connection} that is driven by a {@link SelectorLoop} instead of occupying a thread of its own.
+ *
+ * {@link #serve()} is called once by the connection pool and only hands the connection over to its {@link SelectorLoop}.
+ * From then on the loop calls back on readiness:
+ * - readable bytes are handed to the worker pool that feeds them into the {@link RequestPipeline} (a new {@link RequestParser} is
+ *   factored per request) and dispatches the completed requests (several if pipelined). Handlers may block on file I/O, spooling or
+ *   forcing writes to the disk without stalling the other connections of the loop. The connection does not read meanwhile.
+ * - the responses are handed back to the loop thread and written together as far as the socket accepts them
+ * - bodies not held in memory (files, streams, compressed on the fly) and mapped ones are copied segment by segment by the worker pool,
+ *   the loop thread only writes the segments handed back
+ * - the remainder of the responses is written as soon as the socket is writable again while reading is suspended
+ *
+ * Hence the loop thread never blocks on reading files or compressing. This gives up the zero-copy transfers of files the blocking
+ * {@link DefaultConnection} uses.
+ *
+ * Idle connections are closed by the loop after the socket timeout or the keep-alive timeout requested by the client.
+ * Is responsible for closing the socket it was factored upon.
+ */
+public class SelectorConnection implements Connection
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorConnection.class);
+
+    /**
+     * The connection is handed over to the loop and the pool thread is not needed anymore.
+     */
+    private static final long STOP_RUNNING = -1L;
+
+    /**
+     * Nice to have.
+     */
+    private final long creationTime;
+
+    /**
+     * The reason for this instance to exist. Reads, writes and closes it.
+     */
+    private final SocketChannel dataSocketChannel;
+
+    /**
+     * The default idle timeout in milliseconds that might be temporarily overwritten by the keep-alive timeout.
+     */
+    private final long defaultIdleTimeout;
+
+    /**
+     * Parses and dispatches the requests read including pipelined ones.
+     */
+    private final RequestPipeline requestPipeline;
+
+    /**
+     * Holds the responses of the last read until the socket accepted them completely.
+     */
+    private final ResponseWriter responseWriter = new ResponseWriter(true);
+
+    /**
+     * The loop this connection is served by.
+     */
+    private final SelectorLoop selectorLoop;
+
+    /**
+     * Processes the bytes read by parsing and dispatching them outside the loop thread.
+     */
+    private final Executor workerPool;
+
+    /**
+     * The pool the {@link #readBuffer} is leased from.
+     */
+    private final ReadBufferPool readBufferPool;
+
+    /**
+     * Read buffer leased by the loop thread on registration and kept until the connection is closed. Not leased on construction as the
+     * acceptor thread factors the connection and drops it without closing if the connection pool rejects it.
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * The key of the registration with the selector of the {@link #selectorLoop}. Null until registered.
+     */
+    private SelectionKey key;
+
+    /**
+     * Whether the {@link #workerPool} works on behalf of the connection, processing the bytes read or producing the next segment of a
+     * response body. The worker owns the {@link #readBuffer}, the {@link #requestPipeline} and the {@link #responseWriter} meanwhile.
+     */
+    private boolean processing;
+
+    /**
+     * Whether the connection has been closed while {@link #processing}. Releasing what the worker owns is left to {@link #onProcessed}.
+     */
+    private boolean closed;
+
+    /**
+     * Whether to close the socket as soon as the responses have been written.
+     */
+    private boolean closeAfterWrite;
+
+    /**
+     * The idle timeout in milliseconds currently in effect.
+     */
+    private long idleTimeout;
+
+    /**
+     * Time of the last read or write activity.
+     */
+    private long lastActivity;
+
+    SelectorConnection(final long defaultIdleTimeout,
+                       @Nonnull final ReadBufferPool readBufferPool,
+                       @Nonnull final RequestParserFactory requestParserFactory,
+                       final long creationTime,
+                       @Nonnull final SocketChannel dataSocketChannel,
+                       @Nonnull final Dispatcher dispatcher,
+                       @Nonnull final Executor workerPool,
+                       @Nonnull final SelectorLoop selectorLoop)
+    {
+        this.defaultIdleTimeout = defaultIdleTimeout;
+        this.requestPipeline = new RequestPipeline(requestParserFactory, dispatcher);
+        this.creationTime = creationTime;
+        this.dataSocketChannel = dataSocketChannel;
+        this.workerPool = workerPool;
+        this.selectorLoop = selectorLoop;
+        this.readBufferPool = readBufferPool;
+        this.idleTimeout = defaultIdleTimeout;
+        this.lastActivity = creationTime;
+    }
+
+    @Override
+    public Long serve()
+    {
+        LOG.info("Connection created at {} handed over to selector loop.", creationTime);
+        selectorLoop.register(this);
+        return STOP_RUNNING;
+    }
+
+    /**
+     * Called by the loop thread to register for reading. Leases the read buffer.
+     *
+     * @param selector The selector of the loop.
+     * @throws IOException If the channel cannot be switched to non-blocking mode or registered.
+     */
+    void register(@Nonnull final Selector selector) throws IOException
+    {
+        dataSocketChannel.configureBlocking(false);
+        key = dataSocketChannel.register(selector, SelectionKey.OP_READ, this);
+        readBuffer = readBufferPool.lease();
+    }
+
+    /**
+     * Called by the loop thread if the socket has data to be read.
+     * Reads once and hands the bytes read to the worker pool unless a response could not be written completely.
+     */
+    void onReadable()
+    {
+        if (processing || !responseWriter.isDone())
+        {
+            return;
+        }
+
+        try
+        {
+            readBuffer.clear();
+            final int numBytesRead = dataSocketChannel.read(readBuffer);
+            if (numBytesRead == -1)
+            {
+                LOG.info("Connection created at {} closed. No more data retrieved.", creationTime);
+                close();
+            }
+            else if (numBytesRead > 0)
+            {
+                lastActivity = System.currentTimeMillis();
+                readBuffer.flip();
+                process();
+            }
+        }
+        catch (Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    /**
+     * Called by the loop thread if the socket accepts data again after a response could not be written completely.
+     */
+    void onWritable()
+    {
+        if (processing)
+        {
+            return;
+        }
+
+        try
+        {
+            flush();
+        }
+        catch (Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return True if the connection did not see any activity for longer than its idle timeout. Never while requests are processed.
+     */
+    boolean isIdleExpired(final long now)
+    {
+        return !processing && idleTimeout > 0 && now - lastActivity > idleTimeout;
+    }
+
+    /**
+     * Closes the socket and the parser of a request in progress. Never fails.
+     * If the worker pool works on behalf of the connection the parser, the read buffer and the bodies are released once it is done.
+     */
+    void close()
+    {
+        if (processing)
+        {
+            closed = true;
+            closeSocket();
+            return;
+        }
+
+        requestPipeline.close();
+        responseWriter.close();
+        if (readBuffer != null)
+        {
+            readBufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+
+        closeSocket();
+    }
+
+    private void closeSocket()
+    {
+        try
+        {
+            if (key != null)
+            {
+                key.cancel();
+            }
+
+            dataSocketChannel.close();
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed closing socket!", e);
+        }
+    }
+
+    /**
+     * Suspends reading and hands the bytes read to the worker pool. The responses are written once handed back.
+     */
+    private void process()
+    {
+        offload(() -> requestPipeline.process(readBuffer), this::respond);
+    }
+
+    /**
+     * Hands the production of the next segment of a response body to the worker pool. Writing goes on once it is handed back.
+     */
+    private void produceSegment()
+    {
+        offload(() -> {
+            responseWriter.produceSegment();
+            return null;
+        }, ignored -> flush());
+    }
+
+    /**
+     * Suspends any interest in the socket and runs the work on the worker pool. Its outcome is handed back to the loop thread.
+     *
+     * @param work         The work that might block.
+     * @param continuation Called within the loop thread with the outcome unless the work failed or the connection has been closed.
+     */
+    private <T> void offload(@Nonnull final Callable<T> work, @Nonnull final Continuation<T> continuation)
+    {
+        key.interestOps(0);
+        processing = true;
+        try
+        {
+            workerPool.execute(() -> {
+                T outcome = null;
+                Throwable failure = null;
+                try
+                {
+                    outcome = work.call();
+                }
+                catch (Throwable t)
+                {
+                    failure = t;
+                }
+
+                final T done = outcome;
+                final Throwable workFailure = failure;
+                selectorLoop.execute(() -> onOffloaded(continuation, done, workFailure));
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            processing = false;
+            fail(e);
+        }
+    }
+
+    /**
+     * Called by the loop thread once the worker pool is done.
+     *
+     * @param continuation The continuation to call with the outcome.
+     * @param outcome      The outcome of the work.
+     * @param failure      Null unless the work failed.
+     */
+    private <T> void onOffloaded(@Nonnull final Continuation<T> continuation, @Nullable final T outcome, @Nullable final Throwable failure)
+    {
+        processing = false;
+        if (closed)
+        {
+            close();
+            return;
+        }
+
+        if (failure != null)
+        {
+            fail(failure);
+            return;
+        }
+
+        try
+        {
+            continuation.accept(outcome);
+        }
+        catch (Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    /**
+     * @param responses The responses to write, reading goes on if empty.
+     * @throws IOException If writing the responses fails.
+     */
+    private void respond(@Nonnull final List<Response> responses) throws IOException
+    {
+        if (responses.isEmpty())
+        {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        // go back to the default idle timeout as soon as there is no keep alive header info with timeout anymore
+        final int timeoutSeconds = requestPipeline.getKeepAliveTimeout();
+        idleTimeout = timeoutSeconds == -1 ? defaultIdleTimeout : timeoutSeconds * 1000L;
+
+        closeAfterWrite = requestPipeline.isCloseRequested();
+        responseWriter.begin(responses);
+        flush();
+    }
+
+    /**
+     * Writes as much of the responses as the socket accepts and switches the interest to writing if something is left.
+     * Hands the production of the next segment of a body to the worker pool as soon as the current one has been written.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void flush() throws IOException
+    {
+        final boolean done = responseWriter.writeTo(dataSocketChannel);
+        lastActivity = System.currentTimeMillis();
+        if (!done)
+        {
+            if (responseWriter.needsSegment())
+            {
+                produceSegment();
+            }
+            else
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            return;
+        }
+
+        if (closeAfterWrite)
+        {
+            close();
+        }
+        else
+        {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void fail(@Nonnull final Throwable t)
+    {
+        LOG.error("Connection failed!", t);
+        attemptUnintentionalCloseResponse();
+        close();
+    }
+
+    /**
+     * Best effort as the socket is non-blocking: whatever does not fit is lost.
+     */
+    private void attemptUnintentionalCloseResponse()
+    {
+        try
+        {
+            final Response response = Response.buildErrorResponse(HttpCode.INTERNAL_SERVER_ERROR);
+            dataSocketChannel.write(response.toByteBuffers());
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed to notify client upon unintended connection close: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Continues within the loop thread with the outcome of work offloaded to the worker pool.
+     */
+    @FunctionalInterface
+    private interface Continuation<T>
+    {
+        void accept(T outcome) throws IOException;
+    }
+}
@@ -0,0 +1,141 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.mbachran.server.custom.connection.api.Connection;
+import org.mbachran.server.custom.connection.api.ConnectionFactory;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.parser.api.RequestParserFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factors {@link SelectorConnection}s distributing them round robin over a fixed number of {@link SelectorLoop}s.
+ * Active instead of the {@link DefaultConnectionFactory} if 'application.config.custom-server.connection.engine' is set to 'selector'.
+ *
+ * Concurrency is not limited by the connection pool anymore as the pool threads only hand the connections over to the loops.
+ * The requests are parsed and dispatched by a fixed pool of worker threads shared by the loops, so blocking handlers only stall the
+ * connection they serve. Without workers requests are dispatched within the loop threads and one slow request stalls all connections
+ * of its loop.
+ */
+@Component
+@ConditionalOnProperty(name = "application.config.custom-server.connection.engine", havingValue = "selector")
+public class SelectorConnectionFactory implements ConnectionFactory
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorConnectionFactory.class);
+
+    private final int socketTimeout;
+
+    private final ReadBufferPool readBufferPool;
+
+    private final int selectorCount;
+
+    private final int workerCount;
+
+    private final RequestParserFactory requestParserFactory;
+
+    private final Dispatcher dispatcher;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private SelectorLoop[] selectorLoops;
+
+    private ExecutorService selectorPool;
+
+    private ExecutorService workerPool;
+
+    /**
+     * @param socketTimeout        The idle timeout in seconds after which data sockets are closed if the client did not request another one.
+     * @param selectorCount        The number of selector loops each running in a thread of its own.
+     * @param workerCount          The number of worker threads processing the requests. Zero or negative processes them within the loops.
+     * @param dispatcherName       The name of the start of the dispatch chain.
+     * @param readBufferPool       The pool the connections lease their read buffers from.
+     * @param requestParserFactory The factory to use for factoring request parsers.
+     * @param dispatchers          The dispatchers to select the start of the dispatch chain from.
+     */
+    @Autowired
+    public SelectorConnectionFactory(@Value("${application.config.custom-server.connection.socket-timeout:60}") final int socketTimeout,
+                                     @Value("${application.config.custom-server.connection.selector.count:2}") final int selectorCount,
+                                     @Value("${application.config.custom-server.connection.selector.worker-count:16}") final int workerCount,
+                                     @Value("${application.config.custom-server.dispatch-chain.start:defaultDispatcher}") final String dispatcherName,
+                                     @Nonnull final ReadBufferPool readBufferPool,
+                                     @Nonnull final RequestParserFactory requestParserFactory,
+                                     @Nonnull final List<Dispatcher> dispatchers)
+    {
+        this.socketTimeout = socketTimeout;
+        this.readBufferPool = readBufferPool;
+        this.selectorCount = selectorCount;
+        this.workerCount = workerCount;
+        this.requestParserFactory = requestParserFactory;
+        this.dispatcher = dispatchers.stream()
+                .filter(d->d.getName().equals(dispatcherName))
+                .findFirst()
+                .orElseThrow(()->new IllegalArgumentException("No such dispatcher " + dispatcherName + ". Make sure to fix the server config."));
+    }
+
+    /**
+     * Opens the selectors and starts the loops and the workers. Not done within the constructor as opening a selector is I/O.
+     *
+     * @throws IOException If a selector cannot be opened.
+     */
+    @PostConstruct
+    void init() throws IOException
+    {
+        LOG.info("Starting {} selector loops ...", selectorCount);
+        final BasicThreadFactory factory = new BasicThreadFactory.Builder().namingPattern("selector-%d").build();
+        selectorPool = Executors.newFixedThreadPool(selectorCount, factory);
+        if (workerCount > 0)
+        {
+            final BasicThreadFactory workerFactory = new BasicThreadFactory.Builder().namingPattern("selector-worker-%d").build();
+            workerPool = Executors.newFixedThreadPool(workerCount, workerFactory);
+        }
+
+        selectorLoops = new SelectorLoop[selectorCount];
+        for (int loopNumber = 0; loopNumber < selectorCount; loopNumber++)
+        {
+            selectorLoops[loopNumber] = new SelectorLoop(loopNumber, Selector.open());
+            selectorPool.submit(selectorLoops[loopNumber]);
+        }
+    }
+
+    @PreDestroy
+    void shutdown()
+    {
+        if (workerPool != null)
+        {
+            workerPool.shutdown();
+        }
+
+        for (final SelectorLoop selectorLoop : selectorLoops)
+        {
+            selectorLoop.close();
+        }
+
+        selectorPool.shutdown();
+    }
+
+    @Nonnull
+    @Override
+    public Connection create(final long creationTime, @Nonnull final SocketChannel dataSocketChannel)
+    {
+        final SelectorLoop selectorLoop = selectorLoops[Math.floorMod(nextLoop.getAndIncrement(), selectorLoops.length)];
+        final Executor worker = workerPool != null ? workerPool : Runnable::run;
+        return new SelectorConnection(socketTimeout * 1000L, readBufferPool, requestParserFactory, creationTime, dataSocketChannel, dispatcher,
+                worker, selectorLoop);
+    }
+}
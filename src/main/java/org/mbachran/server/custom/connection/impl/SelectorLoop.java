@@ -0,0 +1,221 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop multiplexing any number of {@link SelectorConnection}s on one {@link Selector} within one thread.
+ * Connections are handed over from the acceptor threads via {@link #register(SelectorConnection)} and are owned by the loop from then on.
+ *
+ * The loop
+ * - registers handed over connections for reading
+ * - calls the connections on readiness for reading or writing
+ * - runs the tasks handed in by other threads, such as the workers handing back the responses of the requests they processed
+ * - closes connections that have been idle for longer than their timeout
+ *
+ * Everything apart from {@link #register(SelectorConnection)}, {@link #execute(Runnable)} and {@link #close()} must only be called from
+ * within the loop thread.
+ */
+class SelectorLoop implements Runnable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /**
+     * The interval in milliseconds the loop wakes up at the latest to check for idle connections.
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+    private final int loopNumber;
+
+    private final Selector selector;
+
+    /**
+     * Connections handed over by other threads waiting to be registered with the {@link #selector} within the loop thread.
+     */
+    private final Queue<SelectorConnection> registrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks handed in by other threads waiting to be run within the loop thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    SelectorLoop(final int loopNumber, @Nonnull final Selector selector)
+    {
+        this.loopNumber = loopNumber;
+        this.selector = selector;
+    }
+
+    /**
+     * Hands a connection over to this loop. Thread safe.
+     *
+     * @param connection The connection to be served by this loop from now on.
+     */
+    void register(@Nonnull final SelectorConnection connection)
+    {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a task over to be run within the loop thread. Thread safe.
+     *
+     * @param task The task to run with the next wakeup of the loop.
+     */
+    void execute(@Nonnull final Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        LOG.info("Selector loop number {} started.", loopNumber);
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running)
+        {
+            try
+            {
+                selector.select(IDLE_CHECK_INTERVAL);
+                registerPending();
+                runTasks();
+                processSelected();
+
+                final long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL)
+                {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+            catch (ClosedSelectorException e)
+            {
+                running = false;
+            }
+            catch (Throwable t)
+            {
+                LOG.warn("Selector loop number {} faced an exception or error. Keeping loop alive.", loopNumber, t);
+            }
+        }
+
+        closeAll();
+        LOG.info("Selector loop number {} stopped.", loopNumber);
+    }
+
+    /**
+     * Stops the loop closing all connections it owns. Thread safe.
+     */
+    void close()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void registerPending()
+    {
+        SelectorConnection connection;
+        while ((connection = registrations.poll()) != null)
+        {
+            try
+            {
+                connection.register(selector);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed registering connection with selector loop number {}: {}", loopNumber, e.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Task of selector loop number {} failed.", loopNumber, e);
+            }
+        }
+    }
+
+    private void processSelected()
+    {
+        final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext())
+        {
+            final SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+
+            final SelectorConnection connection = (SelectorConnection) key.attachment();
+            if (!key.isValid())
+            {
+                connection.close();
+                continue;
+            }
+
+            if (key.isWritable())
+            {
+                connection.onWritable();
+            }
+            else if (key.isReadable())
+            {
+                connection.onReadable();
+            }
+        }
+    }
+
+    private void closeIdle(final long now)
+    {
+        for (final SelectionKey key : selector.keys())
+        {
+            final SelectorConnection connection = (SelectorConnection) key.attachment();
+            if (connection.isIdleExpired(now))
+            {
+                LOG.info("Closing connection idle for longer than its timeout.");
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll()
+    {
+        SelectorConnection pending;
+        while ((pending = registrations.poll()) != null)
+        {
+            pending.close();
+        }
+
+        runTasks();
+
+        try
+        {
+            for (final SelectionKey key : selector.keys())
+            {
+                ((SelectorConnection) key.attachment()).close();
+            }
+
+            selector.close();
+        }
+        catch (ClosedSelectorException | IOException e)
+        {
+            LOG.warn("Failed closing selector loop number {}: {}", loopNumber, e.getMessage());
+        }
+    }
+}
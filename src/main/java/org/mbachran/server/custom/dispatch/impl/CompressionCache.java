@@ -0,0 +1,125 @@
+package org.mbachran.server.custom.dispatch.impl;
+
+import org.mbachran.server.custom.response.ContentCoding;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of compressed bodies bounded by the sum of their compressed sizes.
+ *
+ * An entry is keyed by the resource and the coding and only served for the very uncompressed content it was made from. Content is
+ * identified by its length and CRC32, which is orders of magnitude cheaper to compute than compressing it again. So the cache needs no
+ * invalidation by whoever changes the resources: a changed file simply misses and replaces its entry.
+ *
+ * Thread safe.
+ */
+class CompressionCache
+{
+    private final long capacity;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @param capacity The maximum sum of compressed bytes to hold. Zero or negative disables the cache.
+     */
+    CompressionCache(final long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param resource The resource the content is served for (like the request URI).
+     * @param coding   The coding of the compressed body.
+     * @param length   The length of the uncompressed content.
+     * @param checksum The CRC32 of the uncompressed content.
+     * @return The compressed body or null if none is cached for this content.
+     */
+    @Nullable
+    synchronized byte[] get(@Nonnull final String resource, @Nonnull final ContentCoding coding, final long length, final long checksum)
+    {
+        final Entry entry = entries.get(key(resource, coding));
+        if (entry == null || entry.length != length || entry.checksum != checksum)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.compressed;
+    }
+
+    /**
+     * Caches the compressed body replacing any previous one of the resource and coding. Evicts the least recently used bodies if
+     * the capacity is exceeded. Bodies larger than the capacity are not cached.
+     *
+     * @param resource   The resource the content is served for (like the request URI).
+     * @param coding     The coding of the compressed body.
+     * @param length     The length of the uncompressed content.
+     * @param checksum   The CRC32 of the uncompressed content.
+     * @param compressed The compressed body. Must not be modified afterwards.
+     */
+    synchronized void put(@Nonnull final String resource, @Nonnull final ContentCoding coding, final long length, final long checksum,
+                          @Nonnull final byte[] compressed)
+    {
+        if (capacity <= 0 || compressed.length > capacity)
+        {
+            return;
+        }
+
+        final Entry previous = entries.put(key(resource, coding), new Entry(length, checksum, compressed));
+        size += compressed.length - (previous == null ? 0 : previous.compressed.length);
+        final Iterator<Entry> eldest = entries.values().iterator();
+        while (size > capacity)
+        {
+            size -= eldest.next().compressed.length;
+            eldest.remove();
+        }
+    }
+
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    synchronized long getHits()
+    {
+        return hits;
+    }
+
+    synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @Nonnull
+    private static String key(@Nonnull final String resource, @Nonnull final ContentCoding coding)
+    {
+        return coding.name() + ' ' + resource;
+    }
+
+    private static class Entry
+    {
+        private final long length;
+
+        private final long checksum;
+
+        private final byte[] compressed;
+
+        private Entry(final long length, final long checksum, @Nonnull final byte[] compressed)
+        {
+            this.length = length;
+            this.checksum = checksum;
+            this.compressed = compressed;
+        }
+    }
+}
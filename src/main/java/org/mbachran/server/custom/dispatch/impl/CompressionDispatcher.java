@@ -0,0 +1,397 @@
+package org.mbachran.server.custom.dispatch.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.Method;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.response.ContentCoding;
+import org.mbachran.server.custom.response.DeflatingChannel;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.ResponseBody;
+import org.mbachran.server.custom.response.StreamResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.mbachran.server.custom.dispatch.impl.CompressionDispatcher.NAME;
+
+/**
+ * Compresses the responses of the next {@link Dispatcher} with gzip or deflate as negotiated by the Accept-Encoding header of the
+ * request. To use it configure it as start of the dispatch chain (application.config.custom-server.dispatch-chain.start) and the
+ * dispatcher to forward to as application.config.custom-server.compression.next.
+ *
+ * Only successful responses of at least the minimum size and of a compressible content type are compressed. The content type is
+ * taken from the response or guessed from the file name of the request URI. Such responses vary by Accept-Encoding which is announced
+ * by the Vary header even if the client did not accept any coding.
+ *
+ * Bodies up to the stream threshold are compressed as a whole and cached per request URI (see {@link CompressionCache}), so repeated
+ * requests of unchanged resources do not pay for compressing again. Larger bodies and those of unknown length are compressed on the
+ * fly while being written (see {@link DeflatingChannel}) and thereby sent chunked.
+ *
+ * A strong ETag of a compressed response is made weak, so caches do not take the variants for byte-identical while conditional
+ * requests still validate them against the resource.
+ *
+ * A 304 of a compressible content type gets the Vary header and the ETag the 200 would have had (RFC 7232 4.1). As its body size is
+ * unknown the minimum size is not checked for it.
+ */
+@Component(NAME)
+public class CompressionDispatcher implements Dispatcher
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionDispatcher.class);
+
+    static final String NAME = "compressionDispatcher";
+
+    private final Dispatcher next;
+
+    private final long minSize;
+
+    private final long streamThreshold;
+
+    private final int level;
+
+    private final List<String> contentTypes;
+
+    private final CompressionCache cache;
+
+    /**
+     * @param nextName        The name of the dispatcher to forward to.
+     * @param minSize         The minimum body size in bytes worth compressing.
+     * @param streamThreshold The body size in bytes from which on bodies are compressed on the fly instead of as a whole.
+     * @param level           The compression level from 0 (none) to 9 (best) or -1 for the default of the deflater.
+     * @param cacheSize       The maximum number of compressed bytes to cache. Zero or negative disables the cache.
+     * @param contentTypes    Comma separated content types to compress. A type ending with '/*' includes all its subtypes.
+     * @param dispatchers     The dispatchers to look up the next one from.
+     */
+    @Autowired
+    public CompressionDispatcher(@Value("${application.config.custom-server.compression.next:defaultDispatcher}") final String nextName,
+                                 @Value("${application.config.custom-server.compression.min-size:1024}") final long minSize,
+                                 @Value("${application.config.custom-server.compression.stream-threshold:1048576}")
+                                 final long streamThreshold,
+                                 @Value("${application.config.custom-server.compression.level:6}") final int level,
+                                 @Value("${application.config.custom-server.compression.cache-size:16777216}") final long cacheSize,
+                                 @Value("${application.config.custom-server.compression.content-types:"
+                                         + "text/*,application/json,application/javascript,application/xml,image/svg+xml}")
+                                 @Nonnull final String contentTypes,
+                                 @Nonnull final List<Dispatcher> dispatchers)
+    {
+        this.next = dispatchers.stream()
+                .filter(d -> d.getName().equals(nextName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(
+                        "No such dispatcher " + nextName + ". Make sure to fix the compression config."));
+        this.minSize = minSize;
+        this.streamThreshold = streamThreshold;
+        this.level = level;
+        this.contentTypes = List.of(contentTypes.trim().toLowerCase().split("\\s*,\\s*"));
+        this.cache = new CompressionCache(cacheSize);
+    }
+
+    @Nonnull
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Nonnull
+    @Override
+    public Response handle(@Nonnull final Request request) throws Exception
+    {
+        final Response response = next.handle(request);
+        if (response.getCode() == HttpCode.NOT_MODIFIED)
+        {
+            return notModified(request, response);
+        }
+
+        if (!isCompressible(request, response))
+        {
+            return response;
+        }
+
+        varyByAcceptEncoding(response);
+        final ContentCoding coding = negotiate(request.getRequestHeaders().getHeader(HeaderNames.ACCEPT_ENCODING));
+        if (coding == null)
+        {
+            return response;
+        }
+
+        final ResponseBody body = response.getResponseBody();
+        if (body.getLength() < 0 || body.getLength() >= streamThreshold)
+        {
+            LOG.debug("Compressing body of length {} on the fly with {}.", body.getLength(), coding);
+            return rebuild(response, coding, new StreamResponseBody(new DeflatingChannel(body, coding, level), -1));
+        }
+
+        final byte[] content;
+        try (body)
+        {
+            content = response.getBody() != null ? response.getBody() : readFully(body);
+        }
+
+        final byte[] compressed = compress(request, content, coding);
+        if (compressed.length >= content.length)
+        {
+            LOG.debug("Sending body of length {} uncompressed as {} does not shrink it.", content.length, coding);
+            return rebuild(response, null, content);
+        }
+
+        return rebuild(response, coding, compressed);
+    }
+
+    /**
+     * @param acceptEncoding The value of the Accept-Encoding header or null if none was given.
+     * @return The coding of the highest quality acceptable to the client (gzip if tied) or null to send the body as it is.
+     */
+    @Nullable
+    static ContentCoding negotiate(@Nullable final String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return null;
+        }
+
+        final ContentCoding[] codings = ContentCoding.values();
+        final double[] qualities = new double[codings.length];
+        Arrays.fill(qualities, -1);
+        double wildcard = 0;
+        for (final String element : acceptEncoding.toLowerCase().split(","))
+        {
+            final String[] parts = element.split(";");
+            final String name = parts[0].trim();
+            final double quality = quality(parts);
+            final ContentCoding coding = ContentCoding.from(name);
+            if (coding != null)
+            {
+                qualities[coding.ordinal()] = quality;
+            }
+            else if ("*".equals(name))
+            {
+                wildcard = quality;
+            }
+        }
+
+        ContentCoding best = null;
+        double bestQuality = 0;
+        for (final ContentCoding coding : codings)
+        {
+            final double quality = qualities[coding.ordinal()] < 0 ? wildcard : qualities[coding.ordinal()];
+            if (quality > bestQuality)
+            {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+
+        return best;
+    }
+
+    private static double quality(@Nonnull final String[] parts)
+    {
+        for (int i = 1; i < parts.length; i++)
+        {
+            final String parameter = parts[i].trim();
+            if (parameter.startsWith("q="))
+            {
+                try
+                {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    /**
+     * Adds the Vary header and the weak ETag to a 304 of a compressible resource as the 200 it validates would have them.
+     */
+    @Nonnull
+    private Response notModified(@Nonnull final Request request, @Nonnull final Response response)
+    {
+        if (request.getRequestLine().getMethod() == Method.HEAD || response.getHeaders().containsKey("Content-Encoding")
+                || !hasCompressibleType(request, response))
+        {
+            return response;
+        }
+
+        varyByAcceptEncoding(response);
+        final String eTag = response.getHeaders().get("ETag");
+        if (eTag != null && negotiate(request.getRequestHeaders().getHeader(HeaderNames.ACCEPT_ENCODING)) != null)
+        {
+            response.setHeader("ETag", weak(eTag));
+        }
+
+        return response;
+    }
+
+    private static void varyByAcceptEncoding(@Nonnull final Response response)
+    {
+        final String vary = response.getHeaders().get("Vary");
+        response.setHeader("Vary", vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding");
+    }
+
+    /**
+     * @return The weak form of the tag: a compressed variant is not byte for byte the resource the tag was issued for, but semantically
+     * equivalent.
+     */
+    @Nonnull
+    private static String weak(@Nonnull final String eTag)
+    {
+        return eTag.startsWith("W/") ? eTag : "W/" + eTag;
+    }
+
+    private boolean isCompressible(@Nonnull final Request request, @Nonnull final Response response)
+    {
+        final long length = response.getResponseBody().getLength();
+        if (response.getCode() != HttpCode.OK || request.getRequestLine().getMethod() == Method.HEAD
+                || response.getHeaders().containsKey("Content-Encoding") || (length >= 0 && length < minSize))
+        {
+            return false;
+        }
+
+        return hasCompressibleType(request, response);
+    }
+
+    private boolean hasCompressibleType(@Nonnull final Request request, @Nonnull final Response response)
+    {
+        String contentType = response.getHeaders().get("Content-Type");
+        if (contentType == null)
+        {
+            contentType = URLConnection.guessContentTypeFromName(request.getRequestLine().getUri().getPath());
+        }
+
+        return contentType != null && isCompressible(contentType);
+    }
+
+    private boolean isCompressible(@Nonnull final String contentType)
+    {
+        final String mediaType = contentType.split(";")[0].trim().toLowerCase();
+        for (final String compressible : contentTypes)
+        {
+            if (compressible.endsWith("/*") ? mediaType.startsWith(compressible.substring(0, compressible.length() - 1))
+                    : mediaType.equals(compressible))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compresses the content or takes it from the cache if the same content has been compressed for the same GET request before.
+     */
+    @Nonnull
+    private byte[] compress(@Nonnull final Request request, @Nonnull final byte[] content, @Nonnull final ContentCoding coding)
+    {
+        if (request.getRequestLine().getMethod() != Method.GET)
+        {
+            return DeflatingChannel.compress(content, coding, level);
+        }
+
+        final String resource = request.getRequestLine().getUri().toString();
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] compressed = cache.get(resource, coding, content.length, crc.getValue());
+        if (compressed == null)
+        {
+            compressed = DeflatingChannel.compress(content, coding, level);
+            cache.put(resource, coding, content.length, crc.getValue(), compressed);
+            LOG.debug("Compressed {} from {} to {} bytes with {}.", resource, content.length, compressed.length, coding);
+        }
+
+        return compressed;
+    }
+
+    @Nonnull
+    private static byte[] readFully(@Nonnull final ResponseBody body) throws IOException
+    {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream((int) body.getLength());
+        final WritableByteChannel channel = Channels.newChannel(content);
+        while (!body.writeTo(channel))
+        {
+            // the stream takes any bytes offered, so this only repeats if the body hands them out piece by piece
+        }
+
+        return content.toByteArray();
+    }
+
+    @Nonnull
+    private static Response rebuild(@Nonnull final Response response, @Nullable final ContentCoding coding, @Nonnull final byte[] body)
+    {
+        return builder(response, coding).contentLength(body.length).body(body).build();
+    }
+
+    @Nonnull
+    private static Response rebuild(@Nonnull final Response response, @Nonnull final ContentCoding coding, @Nonnull final ResponseBody body)
+    {
+        return builder(response, coding).body(body).build();
+    }
+
+    /**
+     * @return A builder copying the response apart from the body and its length.
+     */
+    @Nonnull
+    private static Response.Builder builder(@Nonnull final Response response, @Nullable final ContentCoding coding)
+    {
+        final Response.Builder builder = new Response.Builder()
+                .version(response.getVersion())
+                .encoding(response.getEncoding().name())
+                .code(response.getCode());
+        for (final Map.Entry<String, String> header : response.getHeaders().entrySet())
+        {
+            // byte ranges refer to the uncompressed resource, so they are not offered for a compressed variant
+            if (coding == null || !"Accept-Ranges".equals(header.getKey()))
+            {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+        }
+
+        if (coding != null)
+        {
+            builder.addHeader("Content-Encoding", coding.name());
+            final String eTag = response.getHeaders().get("ETag");
+            if (eTag != null)
+            {
+                builder.addHeader("ETag", weak(eTag));
+            }
+        }
+
+        return builder;
+    }
+
+    /**
+     * @return The number of bytes held by the cache of compressed bodies.
+     */
+    long getCacheSize()
+    {
+        return cache.getSize();
+    }
+
+    /**
+     * @return The number of compressed bodies taken from the cache.
+     */
+    long getCacheHits()
+    {
+        return cache.getHits();
+    }
+}
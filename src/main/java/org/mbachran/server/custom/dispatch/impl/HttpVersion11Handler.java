@@ -2,6 +2,7 @@ package org.mbachran.server.custom.dispatch.impl;
 
 import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.HttpVersion;
+import org.mbachran.server.custom.request.api.HeaderNames;
 import org.mbachran.server.custom.request.api.Request;
 import org.mbachran.server.custom.response.Response;
 import org.mbachran.server.custom.util.Delimiters;
@@ -58,7 +59,7 @@ public class HttpVersion11Handler implements HttpVersionHandler
     @Override
     public Response handle(@Nonnull final Request request) throws Exception
     {
-        final String contentType = request.getRequestHeaders().getHeader("content-type");
+        final String contentType = request.getRequestHeaders().getHeader(HeaderNames.CONTENT_TYPE);
         final String parameterFreeContentType = contentType == null ? "*" : contentType.split(Delimiters.SEMI_COLON)[0];
         final ContentTypeHandler contentTypeHandler = contentTypeHandlers.get(parameterFreeContentType.trim());
         if (contentTypeHandler == null)
@@ -18,11 +18,15 @@ import java.nio.ByteBuffer;
  * - Check via {@link #getFailure()} whether a failure has been detected as soon as parsing is done
  * - {@link #retrieve()} the request if there was no failure.
  * - If there was a failure it is the responsibility of the client what to do with it.
+ *
+ * Pipelining: the parser consumes the buffer from its position but never beyond the end of its request. If parsing is done the buffer's
+ * position points to the start of the next request. A new parser has to be used for the remaining bytes. The position is undefined if a
+ * failure was detected as the request boundaries are not reliable anymore.
  */
 public interface RequestParser extends AutoCloseable
 {
     /**
-     * @param buffer The {@link ByteBuffer} holding the next bytes from the request.
+     * @param buffer The {@link ByteBuffer} holding the next bytes from the request starting at its position.
      * @return true is the {@link RequestParser} detected it has all data for the Request it tries to construct from the "stream".
      */
     boolean parse(@Nonnull ByteBuffer buffer);
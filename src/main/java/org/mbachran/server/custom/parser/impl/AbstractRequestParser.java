@@ -0,0 +1,166 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.parser.api.RequestParser;
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestBody;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+import org.mbachran.server.custom.request.impl.DefaultRequest;
+import org.mbachran.server.custom.request.impl.DefaultRequestBody;
+import org.mbachran.server.custom.request.impl.DefaultRequestLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+
+/**
+ * Base of the {@link RequestParser}s holding the parsed parts of the request and delegating body parsing to a {@link BodyParser}
+ * selected by the transfer encoding header which defaults to identity.
+ *
+ * Implementations parse request line and headers their own way and call {@link #parseBody(ByteBuffer)} with the buffer positioned
+ * at the first byte behind the headers.
+ */
+abstract class AbstractRequestParser implements RequestParser
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractRequestParser.class);
+
+    /**
+     * The injected {@link BodyParser} per {@link TransferEncoding}s. Support depends on list injection and therefore on the classpath.
+     *
+     * Only identity and chunked are supported so far.
+     */
+    private final EnumMap<TransferEncoding, BodyParser> bodyParsers;
+
+    /**
+     * The limits to enforce on request line and headers. The body parsers enforce the body limit.
+     */
+    protected final RequestLimits limits;
+
+    /**
+     * The {@link BodyParser} to delegate body parsing to selected based on the transfer encoding header which defaults to identity.
+     */
+    private BodyParser.Parser bodyParser;
+
+    /**
+     * The {@link org.mbachran.server.custom.request.api.RequestLine} build during parsing to factor the {@link Request} from on retrieval.
+     * Cannot be null if the parser ever ends.
+     */
+    protected DefaultRequestLine requestLine;
+
+    /**
+     * The {@link org.mbachran.server.custom.request.api.RequestHeaders} build during parsing to factor the {@link Request} from on retrieval.
+     * Cannot be null if the parser ever ends but might be empty as no headers might be given.
+     */
+    protected RequestHeaders headers;
+
+    /**
+     * The {@link org.mbachran.server.custom.request.api.RequestBody} build during parsing to factor the {@link Request} from on retrieval.
+     * If null on retrieval an empty body will be added to the {@link Request}.
+     */
+    private RequestBody body;
+
+    /**
+     * Is set during parsing is the request is not OK, the parser does not support a certain aspect yet etc.
+     * If set clients must use this to create a corresponding Response (namely the Connection).
+     */
+    protected HttpCode failure;
+
+    AbstractRequestParser(@Nonnull final EnumMap<TransferEncoding, BodyParser> bodyParsers, @Nonnull final RequestLimits limits)
+    {
+        this.bodyParsers = bodyParsers;
+        this.limits = limits;
+    }
+
+    @Override
+    public HttpCode getFailure()
+    {
+        return failure;
+    }
+
+    @Nonnull
+    @Override
+    public Request retrieve()
+    {
+        final RequestBody body = this.body == null ? new DefaultRequestBody() : this.body;
+        return new DefaultRequest(this.requestLine, this.headers, body);
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        if (bodyParser != null) bodyParser.close();
+    }
+
+    /**
+     * Parses the body once request line and headers are complete.
+     *
+     * @param buffer The buffer positioned at the next byte of the body. Bytes behind the body are left for the next request.
+     * @return True if the body (and thereby the request) is complete or parsing failed.
+     */
+    protected boolean parseBody(@Nonnull final ByteBuffer buffer)
+    {
+        boolean parsingDone;
+        if (bodyParser == null)
+        {
+            final TransferEncoding transferEncoding = determineTransferEncoding();
+            if (transferEncoding == TransferEncoding.identity)
+            {
+                final String contentLength = headers.getHeader(HeaderNames.CONTENT_LENGTH);
+                if (contentLength == null || "0".equals(contentLength))
+                {
+                    // we could validate here whether there is no disallowed trailing body
+                    // e.g. GET should come here
+                    return true;
+                }
+            }
+
+            this.bodyParser = selectBodyParser(transferEncoding);
+            if (bodyParser == null)
+            {
+                return true;
+            }
+        }
+
+        parsingDone = bodyParser.parse(buffer);
+        if (parsingDone)
+        {
+            failure = bodyParser.getFailure();
+            body = bodyParser.retrieve();
+        }
+
+        return parsingDone;
+    }
+
+    private BodyParser.Parser selectBodyParser(final TransferEncoding transferEncoding)
+    {
+        final BodyParser bodyParser = bodyParsers.get(transferEncoding);
+        if (bodyParser == null)
+        {
+            LOG.error("Unsupported transfer encoding: " + headers.getHeader(HeaderNames.TRANSFER_ENCODING));
+            failure = HttpCode.BAD_REQUEST;
+            return null;
+        }
+        else
+        {
+            return bodyParser.create(headers);
+        }
+    }
+
+    private TransferEncoding determineTransferEncoding()
+    {
+        final String transferEncodingHeader = headers.getHeader(HeaderNames.TRANSFER_ENCODING);
+        final TransferEncoding transferEncoding;
+        if (transferEncodingHeader == null)
+        {
+            transferEncoding = TransferEncoding.identity;
+        }
+        else
+        {
+            transferEncoding = TransferEncoding.from(transferEncodingHeader.trim().toLowerCase());
+        }
+        return transferEncoding;
+    }
+}
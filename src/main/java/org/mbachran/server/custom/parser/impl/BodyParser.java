@@ -33,6 +33,9 @@ public interface BodyParser
     interface Parser extends AutoCloseable
     {
         /**
+         * Reads from the position of the buffer and never beyond the end of the body. Once done the position of the buffer points to the
+         * first byte behind the body which is the start of a pipelined request if the buffer has remaining bytes.
+         *
          * @param buffer The {@link ByteBuffer} holding the next bytes from the body.
          * @return true is the {@link BodyParser} detected it has all data for the body.
          */
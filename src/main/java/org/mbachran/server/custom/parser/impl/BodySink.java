@@ -0,0 +1,212 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.mbachran.server.custom.request.api.RequestBody;
+import org.mbachran.server.custom.request.impl.DefaultRequestBody;
+import org.mbachran.server.custom.request.impl.FileRequestBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects the bytes of a request body for the {@link BodyParser}s.
+ * Bodies are collected in memory below the spool threshold. From the threshold on they are spooled to a temporary file so the heap does
+ * not grow with the body size. The file is deleted on {@link #close()} which the parsers do once the request has been handled.
+ * The bytes are copied from the read buffer into the body array (or written to the file). The array starts small and grows as the bytes
+ * arrive, so a large Content-Length does not allocate memory the client never sends. If the expected size is known up front (see
+ * {@link #expect(long)}) the array does not grow beyond it and is handed over as the body without a final copy.
+ *
+ * Stateful and not thread safe.
+ */
+class BodySink implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BodySink.class);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /**
+     * The largest array the VM reliably allocates.
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final long spoolThreshold;
+
+    /**
+     * The bytes collected in memory (the first {@link #size} of them). Null once spooling started.
+     */
+    private byte[] memory = EMPTY;
+
+    /**
+     * The temporary file spooled to. Null unless the threshold has been exceeded.
+     */
+    private Path file;
+
+    /**
+     * The open channel to the {@link #file} while collecting.
+     */
+    private FileChannel fileChannel;
+
+    private long size;
+
+    /**
+     * The total number of bytes announced, -1 if unknown.
+     */
+    private long expected = -1;
+
+    /**
+     * @param spoolThreshold The number of bytes from which on the body is spooled to a file. Limited to the maximum size of an array.
+     */
+    BodySink(final long spoolThreshold)
+    {
+        this.spoolThreshold = Math.min(spoolThreshold, MAX_CAPACITY);
+    }
+
+    /**
+     * Announces the total number of bytes, so the memory does not grow beyond. Nothing is allocated up front.
+     *
+     * @param length The total number of bytes expected.
+     */
+    void expect(final long length)
+    {
+        expected = length;
+    }
+
+    /**
+     * Consumes the given number of bytes from the position of the buffer.
+     *
+     * @param buffer The buffer to read from. Its position is advanced by length.
+     * @param length The number of bytes to consume.
+     * @throws IOException If spooling fails.
+     */
+    void write(@Nonnull final ByteBuffer buffer, final int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return;
+        }
+
+        if (memory != null && size + length >= spoolThreshold)
+        {
+            spool();
+        }
+
+        if (memory != null)
+        {
+            if (size + length > memory.length)
+            {
+                memory = Arrays.copyOf(memory, capacityFor(size + length));
+            }
+
+            buffer.get(memory, (int) size, length);
+        }
+        else
+        {
+            final ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + length);
+            while (slice.hasRemaining())
+            {
+                fileChannel.write(slice);
+            }
+
+            buffer.position(buffer.position() + length);
+        }
+
+        size += length;
+    }
+
+    /**
+     * Doubles the memory, starting small, but neither beyond the bytes expected nor the spool threshold.
+     *
+     * @param required The number of bytes to hold, below the spool threshold.
+     */
+    private int capacityFor(final long required)
+    {
+        long capacity = Math.max(required, Math.max(INITIAL_CAPACITY, memory.length * 2L));
+        if (expected >= required)
+        {
+            capacity = Math.min(capacity, expected);
+        }
+
+        return (int) Math.min(capacity, spoolThreshold);
+    }
+
+    /**
+     * @return The number of bytes the memory can hold without growing, 0 once spooling started.
+     */
+    int capacity()
+    {
+        return memory == null ? 0 : memory.length;
+    }
+
+    /**
+     * @return The number of bytes collected.
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * Ends collection.
+     *
+     * @return The collected body either held in memory or backed by the spool file.
+     * @throws IOException If the spool file cannot be completed.
+     */
+    @Nonnull
+    RequestBody toRequestBody() throws IOException
+    {
+        if (memory != null)
+        {
+            return new DefaultRequestBody(memory.length == size ? memory : Arrays.copyOf(memory, (int) size));
+        }
+
+        fileChannel.close();
+        return new FileRequestBody(file, size);
+    }
+
+    /**
+     * Deletes the spool file if any. Never fails.
+     */
+    @Override
+    public void close()
+    {
+        memory = null;
+        if (file != null)
+        {
+            try
+            {
+                fileChannel.close();
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed deleting spooled body {}: {}", file, e.getMessage());
+            }
+
+            file = null;
+        }
+    }
+
+    private void spool() throws IOException
+    {
+        file = Files.createTempFile("request-body-", ".tmp");
+        LOG.debug("Spooling body of at least {} bytes to {}.", spoolThreshold, file);
+        fileChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+        final ByteBuffer collected = ByteBuffer.wrap(memory, 0, (int) size);
+        while (collected.hasRemaining())
+        {
+            fileChannel.write(collected);
+        }
+
+        memory = null;
+    }
+}
@@ -0,0 +1,451 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.HttpVersion;
+import org.mbachran.server.custom.parser.api.RequestParser;
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.Method;
+import org.mbachran.server.custom.request.impl.IndexedRequestHeaders;
+import org.mbachran.server.custom.request.impl.DefaultRequestLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mbachran.server.custom.util.Delimiters.CR;
+import static org.mbachran.server.custom.util.Delimiters.LF;
+
+/**
+ * {@link RequestParser} parsing request line and headers by a state machine running over the bytes of the buffer.
+ * Each byte is looked at once: parsing resumes at the state the last buffer ended in, nothing is decoded or searched again.
+ * Methods, versions and standard header names are resolved from the bytes to their constants (see {@link HttpTokens} and
+ * {@link HeaderNames}). The header block is collected as is together with an index of the
+ * offsets of names and values, which makes up the {@link IndexedRequestHeaders}. So apart from the URI no objects are created per
+ * header unless it is read.
+ * Body parsing is delegated to a {@link BodyParser} like the {@link DefaultRequestParser} does.
+ * <p>
+ * Behaves like the {@link DefaultRequestParser} apart from being stricter on line endings (CR must be followed by LF) and ignoring empty
+ * lines in front of the request line (RFC 7230 3.5).
+ * <p>
+ * The parser is stateful and expected to be created per request.
+ */
+public class ByteRequestParser extends AbstractRequestParser
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ByteRequestParser.class);
+
+    private static final byte SP = ' ';
+
+    private static final byte HT = '\t';
+
+    private static final byte COLON = ':';
+
+    /**
+     * Collects the bytes of the element (method, URI, version) currently parsed. Collects the whole header block once the request line
+     * is complete and is handed over to the {@link IndexedRequestHeaders} then.
+     */
+    private byte[] scratch = new byte[128];
+
+    /**
+     * The number of bytes within the {@link #scratch}.
+     */
+    private int scratchLength;
+
+    private State state = State.Method;
+
+    /**
+     * The number of bytes of the request line and of the header block received so far to enforce the {@link RequestLimits}.
+     */
+    private int requestLineLength;
+
+    private int headerBytes;
+
+    private Method method;
+
+    private URI uri;
+
+    /**
+     * The offsets of names and values of the headers within the {@link #scratch} (see {@link IndexedRequestHeaders}).
+     */
+    private int[] index = new int[16 * IndexedRequestHeaders.INDEX_ENTRY_SIZE];
+
+    /**
+     * The {@link HeaderNames} constant per header within the {@link #index} (null for non standard names).
+     */
+    private String[] names = new String[16];
+
+    private int headerCount;
+
+    /**
+     * True while the value of the last header line is collected. Added to the {@link #index} once the next line shows whether the value
+     * continues.
+     */
+    private boolean headerPending;
+
+    private int nameStart;
+
+    private int nameEnd;
+
+    /**
+     * The start of the value of the pending header or -1 as long as only white space has been seen.
+     */
+    private int valueStart;
+
+    private int valueEnd;
+
+    ByteRequestParser(@Nonnull final EnumMap<TransferEncoding, BodyParser> bodyParsers, @Nonnull final RequestLimits limits)
+    {
+        super(bodyParsers, limits);
+    }
+
+    private enum State
+    {
+        Method, Uri, Version, RequestLineEnd, LineStart, Name, Value, ValueEnd, HeadersEnd, Body
+    }
+
+    @Override
+    public boolean parse(@Nonnull final ByteBuffer buffer)
+    {
+        if (state != State.Body)
+        {
+            parseHead(buffer);
+            if (failure != null)
+            {
+                return true;
+            }
+
+            if (state != State.Body)
+            {
+                return false;
+            }
+        }
+
+        return parseBody(buffer) || failure != null;
+    }
+
+    /**
+     * Runs the state machine over the bytes of request line and headers. Stops behind the empty line ending the headers.
+     *
+     * @param buffer The buffer holding the next bytes. Its position is advanced by the bytes consumed.
+     */
+    private void parseHead(@Nonnull final ByteBuffer buffer)
+    {
+        final int limit = buffer.limit();
+        int position = buffer.position();
+        while (position < limit && state != State.Body && failure == null)
+        {
+            final byte b = buffer.get(position++);
+            if (exceedsLimits())
+            {
+                break;
+            }
+
+            switch (state)
+            {
+                case Method:
+                    parseMethod(b);
+                    break;
+                case Uri:
+                    parseUri(b);
+                    break;
+                case Version:
+                    parseVersion(b);
+                    break;
+                case RequestLineEnd:
+                    expectLf(b, State.LineStart);
+                    break;
+                case LineStart:
+                    parseLineStart(b);
+                    break;
+                case Name:
+                    parseName(b);
+                    break;
+                case Value:
+                    parseValue(b);
+                    break;
+                case ValueEnd:
+                    if (expectLf(b, State.LineStart))
+                    {
+                        append(b);
+                    }
+                    break;
+                case HeadersEnd:
+                    if (expectLf(b, State.Body))
+                    {
+                        headers = new IndexedRequestHeaders(scratch, index, names, headerCount);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+
+        buffer.position(position);
+    }
+
+    /**
+     * Counts the byte about to be parsed against the {@link RequestLimits}. Sets the failure if a limit is exceeded.
+     *
+     * @return True if a limit is exceeded.
+     */
+    private boolean exceedsLimits()
+    {
+        if (state.compareTo(State.RequestLineEnd) < 0)
+        {
+            if (limits.exceedsRequestLine(++requestLineLength))
+            {
+                LOG.info("Rejecting request line exceeding {} bytes.", requestLineLength - 1);
+                failure = HttpCode.URI_TOO_LONG;
+            }
+        }
+        else if (state.compareTo(State.LineStart) >= 0 && limits.exceedsHeaderBytes(++headerBytes))
+        {
+            LOG.info("Rejecting headers exceeding {} bytes.", headerBytes - 1);
+            failure = HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+        }
+
+        return failure != null;
+    }
+
+    private void parseMethod(final byte b)
+    {
+        if (b == SP)
+        {
+            method = HttpTokens.METHODS.get(scratch, 0, scratchLength);
+            if (method == null)
+            {
+                LOG.info("Retrieved invalid method: {}", new String(scratch, 0, scratchLength, ISO_8859_1));
+                failure = HttpCode.BAD_REQUEST;
+            }
+            else
+            {
+                next(State.Uri);
+            }
+        }
+        else if (b == CR || b == LF)
+        {
+            if (scratchLength != 0)
+            {
+                LOG.info("Retrieved invalid request line: {}", new String(scratch, 0, scratchLength, ISO_8859_1));
+                failure = HttpCode.BAD_REQUEST;
+            }
+        }
+        else if (scratchLength == HttpTokens.MAX_METHOD_LENGTH)
+        {
+            LOG.info("Retrieved invalid method starting with: {}", new String(scratch, 0, scratchLength, ISO_8859_1));
+            failure = HttpCode.BAD_REQUEST;
+        }
+        else
+        {
+            append(b);
+        }
+    }
+
+    private void parseUri(final byte b)
+    {
+        if (b == SP)
+        {
+            final String uriStr = new String(scratch, 0, scratchLength, UTF_8);
+            try
+            {
+                uri = new URI(uriStr);
+                next(State.Version);
+            }
+            catch (URISyntaxException e)
+            {
+                LOG.info("Invalid uri {} in request line: {}", uriStr, e.getReason());
+                failure = HttpCode.BAD_REQUEST;
+            }
+        }
+        else if (b == CR || b == LF)
+        {
+            LOG.info("Retrieved request line without version for uri: {}", new String(scratch, 0, scratchLength, UTF_8));
+            failure = HttpCode.BAD_REQUEST;
+        }
+        else
+        {
+            append(b);
+        }
+    }
+
+    private void parseVersion(final byte b)
+    {
+        if (b == CR)
+        {
+            final HttpVersion httpVersion = HttpTokens.VERSIONS.get(scratch, 0, scratchLength);
+            if (httpVersion == null)
+            {
+                LOG.info("Retrieved invalid HTTP version: {}", new String(scratch, 0, scratchLength, ISO_8859_1));
+                failure = HttpCode.BAD_REQUEST;
+            }
+            else
+            {
+                requestLine = new DefaultRequestLine(method, uri, httpVersion);
+                next(State.RequestLineEnd);
+            }
+        }
+        else if (scratchLength == HttpTokens.MAX_VERSION_LENGTH)
+        {
+            LOG.info("Retrieved invalid HTTP version starting with: {}", new String(scratch, 0, scratchLength, ISO_8859_1));
+            failure = HttpCode.BAD_REQUEST;
+        }
+        else
+        {
+            append(b);
+        }
+    }
+
+    private void parseLineStart(final byte b)
+    {
+        if (b == SP || b == HT)
+        {
+            if (!headerPending)
+            {
+                LOG.info("Retrieved continuation line without header.");
+                failure = HttpCode.BAD_REQUEST;
+                return;
+            }
+
+            // multi line value: continue collecting the value of the pending header
+            state = State.Value;
+            parseValue(b);
+            return;
+        }
+
+        addPendingHeader();
+        if (b == CR)
+        {
+            state = State.HeadersEnd;
+        }
+        else if (limits.exceedsHeaderCount(headerCount + 1))
+        {
+            LOG.info("Rejecting more than {} headers.", headerCount);
+            failure = HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+        }
+        else
+        {
+            nameStart = scratchLength;
+            state = State.Name;
+            parseName(b);
+        }
+    }
+
+    private void parseName(final byte b)
+    {
+        if (b == COLON)
+        {
+            nameEnd = scratchLength;
+            while (nameEnd > nameStart && (scratch[nameEnd - 1] == SP || scratch[nameEnd - 1] == HT))
+            {
+                nameEnd--;
+            }
+
+            if (nameEnd == nameStart)
+            {
+                LOG.info("Retrieved header line without name.");
+                failure = HttpCode.BAD_REQUEST;
+                return;
+            }
+
+            append(b);
+            valueStart = -1;
+            valueEnd = scratchLength;
+            headerPending = true;
+            state = State.Value;
+        }
+        else if (b == CR || b == LF)
+        {
+            LOG.info("Retrieved header line without colon: {}", new String(scratch, nameStart, scratchLength - nameStart, ISO_8859_1));
+            failure = HttpCode.BAD_REQUEST;
+        }
+        else
+        {
+            append(b);
+        }
+    }
+
+    private void parseValue(final byte b)
+    {
+        append(b);
+        if (b == CR)
+        {
+            state = State.ValueEnd;
+        }
+        else if (b != SP && b != HT)
+        {
+            // leading and trailing white space is left out of the value so it does not need to be trimmed
+            if (valueStart == -1)
+            {
+                valueStart = scratchLength - 1;
+            }
+
+            valueEnd = scratchLength;
+        }
+    }
+
+    /**
+     * @param b    The byte read.
+     * @param next The state to switch to if the byte is a LF.
+     * @return True if the byte was a LF.
+     */
+    private boolean expectLf(final byte b, @Nonnull final State next)
+    {
+        if (b != LF)
+        {
+            LOG.info("Retrieved CR not followed by LF.");
+            failure = HttpCode.BAD_REQUEST;
+            return false;
+        }
+
+        state = next;
+        return true;
+    }
+
+    /**
+     * Adds the header whose value has been collected completely (if any) to the {@link #index}.
+     */
+    private void addPendingHeader()
+    {
+        if (!headerPending)
+        {
+            return;
+        }
+
+        final int offset = headerCount * IndexedRequestHeaders.INDEX_ENTRY_SIZE;
+        if (offset == index.length)
+        {
+            index = Arrays.copyOf(index, index.length * 2);
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+
+        index[offset] = nameStart;
+        index[offset + 1] = nameEnd;
+        index[offset + 2] = valueStart == -1 ? valueEnd : valueStart;
+        index[offset + 3] = valueEnd;
+        names[headerCount] = HeaderNames.canonical(scratch, nameStart, nameEnd);
+        headerCount++;
+        headerPending = false;
+    }
+
+    private void next(@Nonnull final State state)
+    {
+        this.state = state;
+        scratchLength = 0;
+    }
+
+    private void append(final byte b)
+    {
+        if (scratchLength == scratch.length)
+        {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+
+        scratch[scratchLength++] = b;
+    }
+}
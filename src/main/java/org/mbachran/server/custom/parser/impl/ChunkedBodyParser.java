@@ -4,229 +4,365 @@ import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.request.api.RequestBody;
 import org.mbachran.server.custom.request.api.RequestHeaders;
 import org.mbachran.server.custom.request.impl.DefaultRequestBody;
-import org.mbachran.server.custom.util.ByteStreamWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
-import static org.mbachran.server.custom.util.Delimiters.CR_LF;
-import static org.mbachran.server.custom.util.Delimiters.SEMI_COLON;
+import static org.mbachran.server.custom.util.Delimiters.CR;
+import static org.mbachran.server.custom.util.Delimiters.LF;
 
 /**
- * Parses transfer encoding chunked.
+ * Parses transfer encoding chunked (RFC 7230 4.1).
  *
- * Ignores (only logs) extensions and trailers.
- * Invalid request (format) behavior must be investigated more deeply. Therefore currently never a failure is returned.
+ * Chunk extensions and trailer fields are accepted but ignored. Malformed framing (invalid or oversized chunk sizes, missing CR LF,
+ * trailer lines without a field name or overlong extension and trailer lines) is reported as {@link HttpCode#BAD_REQUEST}. A chunk that
+ * would make the body exceed the limit is rejected with {@link HttpCode#PAYLOAD_TOO_LARGE} before its data is read.
+ * Bodies beyond the spool threshold are spooled to a temporary file (see {@link BodySink}).
  */
 @Component
 public class ChunkedBodyParser implements BodyParser
 {
     private static final Logger LOG = LoggerFactory.getLogger(ChunkedBodyParser.class);
 
+    /**
+     * The maximum number of bytes of a chunk extension or a trailer line. Both are skipped but must not keep the parser busy forever.
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The maximum number of hex digits of a chunk size so it fits into a long.
+     */
+    private static final int MAX_SIZE_DIGITS = 15;
+
     @Override
     public TransferEncoding getTransferEncoding()
     {
         return TransferEncoding.chunked;
     }
 
+    private final long spoolThreshold;
+
+    private final RequestLimits limits;
+
+    /**
+     * @param spoolThreshold The body size in bytes from which on bodies are spooled to a temporary file instead of being held in memory.
+     * @param limits         The limits of which the body size is enforced.
+     */
+    @Autowired
+    public ChunkedBodyParser(@Value("${application.config.custom-server.request.spool-threshold:1048576}") final long spoolThreshold,
+            @Nonnull final RequestLimits limits)
+    {
+        this.spoolThreshold = spoolThreshold;
+        this.limits = limits;
+    }
+
     @Override
     public Parser create(@Nonnull RequestHeaders headers)
     {
-        return new ChunkedParser(headers);
+        return new ChunkedParser(headers, new BodySink(spoolThreshold));
     }
 
     /**
-     * Switches between chunk-count, chunk-data and chunk-trailer parsing.
-     * For count and trailer a StringBuilder is used (unfortunately as this makes it too complex).
-     * For the data one stream is used to collect the chunk data which is then concatenated to the full body.
-     * Read positioning it too complex especially as binary data should not be damaged by char conversion and String and byte array length might vary.
+     * The states of the {@link ChunkedParser} while running over the framing.
+     */
+    private enum State
+    {
+        Size, SizeWhiteSpace, Extension, SizeLf, Data, DataCr, DataLf, TrailerStart, Trailer, TrailerLf, EndLf, Done
+    }
+
+    /**
+     * Decodes the chunk framing by a state machine running over the bytes of the buffer, so only a few counters are kept for the framing
+     * however the body is split into reads. The chunk data is passed on to a {@link BodySink} right from the read buffer.
      */
     class ChunkedParser implements Parser
     {
         /**
-         * The char based parsing for count and trailer.
-         * Note that this can contain besides the hexadecimal count the extension and is also used for the trailer.
+         * Collects the full body.
          */
-        private final StringBuilder hexBuffer = new StringBuilder();
+        private final BodySink bodySink;
+
+        private State state = State.Size;
 
         /**
-         * The stream collecting the full body.
+         * The size of the current chunk.
          */
-        private final ByteArrayOutputStream bodyCollectionBuffer = new ByteArrayOutputStream();
+        private long chunkSize;
 
         /**
-         * The stream collecting the actual chunk.
+         * The number of hex digits of the current chunk size.
          */
-        private final ByteArrayOutputStream chunkCollectionBuffer = new ByteArrayOutputStream();
+        private int sizeDigits;
 
         /**
-         * Helper class for writing to {@link #chunkCollectionBuffer}.
+         * The number of bytes of the current chunk passed on to the {@link #bodySink} so far.
          */
-        private final ByteStreamWriter chunkCollectionBufferWriter = new ByteStreamWriter(chunkCollectionBuffer, StandardCharsets.UTF_8);
+        private long chunkBytesRead;
 
         /**
-         * The current chunk size. Used for switching the three states:
-         * -1 = count
-         *  0 = trailer
-         *  positive integer = body
+         * The number of bytes of the current extension or trailer line.
          */
-        private int currentChunkSize = -1;
+        private int lineLength;
 
         /**
-         * We still have to see how we can detect failures during parsing (instead of hanging or similar).
+         * Whether the current trailer line has a colon separating name and value.
          */
-        @SuppressWarnings("unused")
-        private HttpCode failure;
+        private boolean trailerColon;
 
         /**
-         * The final bytes representing the full body as collected by bodyCollectionBuffer.
+         * Set if the framing is malformed, the body exceeds the limit or cannot be spooled.
          */
-        private byte[] bodyBytes;
+        private HttpCode failure;
 
         /**
-         * The offset of the StringBuilder used for char based collection ({@link #hexBuffer}).
+         * The full body as collected by the {@link #bodySink}.
          */
-        private int dataOffset;
+        private RequestBody body;
 
-        ChunkedParser(@Nonnull final RequestHeaders headers)
+        ChunkedParser(@Nonnull final RequestHeaders headers, @Nonnull final BodySink bodySink)
         {
             // headers are not used yet
+            this.bodySink = bodySink;
         }
 
         @Override
         public boolean parse(@Nonnull final ByteBuffer buffer)
         {
-            boolean parsingDone = false;
-            boolean reading = true;
-            final int previousBufferLength = hexBuffer.length();
-            hexBuffer.append(StandardCharsets.UTF_8.decode(buffer).toString());
-            buffer.rewind();
-            while (reading)
+            try
             {
-                if (currentChunkSize == -1)
+                while (buffer.hasRemaining() && state != State.Done && failure == null)
                 {
-                    // next to read is a chunk size
-                    final int hexEnd = hexBuffer.indexOf(CR_LF, dataOffset);
-                    if (hexEnd != -1)
+                    if (state == State.Data)
                     {
-                        final String hexString = hexBuffer.substring(dataOffset, hexEnd);
-
-                        // let's simply ignore the extension for now:
-                        final String[] hexAndExtension = hexString.split(SEMI_COLON);
-                        if (hexAndExtension.length > 1)
-                        {
-                            LOG.debug("Ignoring extension: {}", hexAndExtension[1]);
-                        }
-
-                        currentChunkSize = Integer.parseInt(hexAndExtension[0], 16);
-                        final int readBefore = dataOffset < previousBufferLength ? previousBufferLength - dataOffset : 0;
-                        dataOffset += hexString.length() + CR_LF.length();
-                        if (currentChunkSize == 0)
-                        {
-                            LOG.debug("Last chunk finished by zero: {}.", currentChunkSize);
-                        }
-                        else
+                        final int length = (int) Math.min(buffer.remaining(), chunkSize - chunkBytesRead);
+                        bodySink.write(buffer, length);
+                        chunkBytesRead += length;
+                        if (chunkBytesRead == chunkSize)
                         {
-                            LOG.debug("Next chunk size is {}. Data offset is {}.", currentChunkSize, dataOffset);
-                            final byte[] hexBytes = hexString.getBytes(StandardCharsets.UTF_8);
-                            buffer.position(buffer.position() + hexBytes.length + CR_LF.length() - readBefore);
-                            if (!buffer.hasRemaining())
-                            {
-                                reading = false;
-                            }
+                            state = State.DataCr;
                         }
                     }
                     else
                     {
-                        // need for data to have the complete hex value
-                        reading = false;
+                        parseFraming(buffer.get());
                     }
                 }
-                else if (currentChunkSize == 0)
+
+                if (state == State.Done)
                 {
-                    // read the trailer if given after we found the zero after the last chunk or read just the final CR LF
-                    final int end = hexBuffer.indexOf(CR_LF, dataOffset);
-                    if (end != -1)
+                    body = bodySink.toRequestBody();
+                    return true;
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.error("Failed collecting body.", e);
+                failure = HttpCode.INTERNAL_SERVER_ERROR;
+            }
+
+            return failure != null;
+        }
+
+        private void parseFraming(final byte b)
+        {
+            switch (state)
+            {
+                case Size:
+                    parseSize(b);
+                    break;
+                case SizeWhiteSpace:
+                    if (b == ';')
+                    {
+                        startLine(State.Extension);
+                    }
+                    else if (b == CR)
+                    {
+                        state = State.SizeLf;
+                    }
+                    else if (b != ' ' && b != '\t')
                     {
-                        final String trailer = hexBuffer.substring(dataOffset, end);
-                        if (!trailer.isEmpty())
+                        fail("Invalid character behind chunk size: " + (char) b);
+                    }
+                    break;
+                case Extension:
+                    if (b == CR)
+                    {
+                        state = State.SizeLf;
+                    }
+                    else
+                    {
+                        countLine();
+                    }
+                    break;
+                case SizeLf:
+                    if (expect(b, LF))
+                    {
+                        if (limits.exceedsBodySize(bodySink.size() + chunkSize))
                         {
-                            LOG.debug("Ignoring trailer: {}", trailer);
+                            LOG.info("Rejecting chunk of {} bytes as the body would exceed the limit.", chunkSize);
+                            failure = HttpCode.PAYLOAD_TOO_LARGE;
+                            return;
                         }
 
-                        if (hexBuffer.length() > end + CR_LF.length())
+                        chunkBytesRead = 0;
+                        state = chunkSize == 0 ? State.TrailerStart : State.Data;
+                    }
+                    break;
+                case DataCr:
+                    if (expect(b, CR))
+                    {
+                        state = State.DataLf;
+                    }
+                    break;
+                case DataLf:
+                    if (expect(b, LF))
+                    {
+                        chunkSize = 0;
+                        sizeDigits = 0;
+                        state = State.Size;
+                    }
+                    break;
+                case TrailerStart:
+                    if (b == CR)
+                    {
+                        state = State.EndLf;
+                    }
+                    else if (b == ':')
+                    {
+                        fail("Trailer field without name.");
+                    }
+                    else
+                    {
+                        startLine(State.Trailer);
+                        countLine();
+                    }
+                    break;
+                case Trailer:
+                    if (b == CR)
+                    {
+                        if (trailerColon)
                         {
-                            LOG.warn("Received data after trailer of chunked transfer: {}", hexBuffer.substring(end, hexBuffer.length()));
+                            state = State.TrailerLf;
+                        }
+                        else
+                        {
+                            fail("Trailer line without colon.");
                         }
-
-                        bodyBytes = bodyCollectionBuffer.toByteArray();
-                        reading = false;
-                        parsingDone = true;
                     }
                     else
                     {
-                        // wait for more data
-                        reading = false;
+                        trailerColon |= b == ':';
+                        countLine();
                     }
-                }
-                else
-                {
-                    final int lengthToRead = Math.min(buffer.remaining(), currentChunkSize - chunkCollectionBuffer.size() + CR_LF.length());
-                    final int positionBeforeRead = buffer.position();
-                    chunkCollectionBufferWriter.write(buffer, positionBeforeRead, lengthToRead);
-                    LOG.debug("Added {} bytes to chunk.", lengthToRead);
-
-                    if (chunkCollectionBuffer.size() >= currentChunkSize + CR_LF.length())
+                    break;
+                case TrailerLf:
+                    if (expect(b, LF))
                     {
-                        // ... but do not include the CR LF into the body:
-                        final byte[] chunkBytes = chunkCollectionBuffer.toByteArray();
-                        bodyCollectionBuffer.write(chunkBytes, 0, currentChunkSize);
-                        LOG.debug("Added {} chunk bytes to body now of size {}.", currentChunkSize, bodyCollectionBuffer.size());
-                        chunkCollectionBuffer.reset();
-                        currentChunkSize = -1;
+                        state = State.TrailerStart;
                     }
-
-                    //use the char not hte byte length for data offset update:
-                    final byte[] readBytes = new byte[lengthToRead];
-                    buffer.asReadOnlyBuffer().position(positionBeforeRead).get(readBytes);
-                    dataOffset += new String(readBytes, StandardCharsets.UTF_8).length();
-
-                    if (!buffer.hasRemaining())
+                    break;
+                case EndLf:
+                    if (expect(b, LF))
                     {
-                        reading = false;
+                        state = State.Done;
                     }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+
+        private void parseSize(final byte b)
+        {
+            final int digit = Character.digit(b, 16);
+            if (digit != -1)
+            {
+                if (++sizeDigits > MAX_SIZE_DIGITS)
+                {
+                    fail("Chunk size exceeds " + MAX_SIZE_DIGITS + " hex digits.");
+                    return;
                 }
+
+                chunkSize = (chunkSize << 4) | digit;
             }
+            else if (sizeDigits == 0)
+            {
+                fail("Missing chunk size.");
+            }
+            else if (b == ';')
+            {
+                startLine(State.Extension);
+            }
+            else if (b == ' ' || b == '\t')
+            {
+                state = State.SizeWhiteSpace;
+            }
+            else if (b == CR)
+            {
+                state = State.SizeLf;
+            }
+            else
+            {
+                fail("Invalid character in chunk size: " + (char) b);
+            }
+        }
+
+        private void startLine(@Nonnull final State state)
+        {
+            this.state = state;
+            lineLength = 0;
+            trailerColon = false;
+        }
 
-            return parsingDone;
+        private void countLine()
+        {
+            if (++lineLength > MAX_LINE_LENGTH)
+            {
+                fail("Chunk extension or trailer line exceeds " + MAX_LINE_LENGTH + " bytes.");
+            }
+        }
+
+        private boolean expect(final byte b, final byte expected)
+        {
+            if (b != expected)
+            {
+                fail("Missing " + (expected == CR ? "CR" : "LF") + " in chunk framing (state " + state + ").");
+                return false;
+            }
+
+            return true;
+        }
+
+        private void fail(@Nonnull final String reason)
+        {
+            LOG.info("Malformed chunked body: {}", reason);
+            failure = HttpCode.BAD_REQUEST;
         }
 
         @Nullable
         @Override
         public HttpCode getFailure()
         {
-            return null;
+            return failure;
         }
 
         @Nonnull
         @Override
         public RequestBody retrieve()
         {
-            return bodyBytes == null ? new DefaultRequestBody() : new DefaultRequestBody(bodyBytes);
+            return body == null ? new DefaultRequestBody() : body;
         }
 
         @Override
-        public void close() throws IOException
+        public void close()
         {
-            chunkCollectionBuffer.close();
-            bodyCollectionBuffer.close();
+            bodySink.close();
         }
     }
 }
@@ -4,11 +4,7 @@ import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.HttpVersion;
 import org.mbachran.server.custom.parser.api.RequestParser;
 import org.mbachran.server.custom.request.api.Method;
-import org.mbachran.server.custom.request.api.Request;
-import org.mbachran.server.custom.request.api.RequestBody;
 import org.mbachran.server.custom.request.api.RequestHeaders;
-import org.mbachran.server.custom.request.impl.DefaultRequest;
-import org.mbachran.server.custom.request.impl.DefaultRequestBody;
 import org.mbachran.server.custom.request.impl.DefaultRequestHeaders;
 import org.mbachran.server.custom.request.impl.DefaultRequestLine;
 import org.slf4j.Logger;
@@ -38,64 +34,38 @@ import static org.mbachran.server.custom.util.Delimiters.*;
  * - the same header name appearing multiple times (concatenating values by comma)
  * - multi line header values (keeping the leading SP/HT within the concatenation)
  */
-public class DefaultRequestParser implements RequestParser
+public class DefaultRequestParser extends AbstractRequestParser
 {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultRequestParser.class);
 
-    /**
-     * The injected {@link BodyParser} per {@link TransferEncoding}s. Support depends on list injection and therefore on the classpath.
-     *
-     * Only identity and chunked are supported so far.
-     */
-    private final EnumMap<TransferEncoding, BodyParser> bodyParsers;
-
     /**
      * Used for simple parsing of request line and headers. Is never used to damage part of the body.
      */
     private final StringBuilder requestBuffer = new StringBuilder();
 
-    /**
-     * The {@link BodyParser} to delegate body parsing to selected based on the transfer encoding header which defaults to identity.
-     */
-    private BodyParser.Parser bodyParser;
-
     /**
      * Position within the {@link #requestBuffer} while going ahead with parsing.
      */
     private int parseOffset = 0;
 
     /**
-     * {@link Mode} for the state machine switching between request line, headers and body.
+     * The number of bytes decoded into the {@link #requestBuffer} so far. Used to map the end of the headers back to a buffer position.
      */
-    private Mode mode = Mode.RequestLine;
+    private int decodedBytes = 0;
 
     /**
-     * The {@link org.mbachran.server.custom.request.api.RequestLine} build during parsing to factor the {@link Request} from on retrieval.
-     * Cannot be null if the parser ever ends.
-     */
-    private DefaultRequestLine requestLine;
-
-    /**
-     * The {@link org.mbachran.server.custom.request.api.RequestHeaders} build during parsing to factor the {@link Request} from on retrieval.
-     * Cannot be null if the parser ever ends but might be empty as no headers might be given.
-     */
-    private RequestHeaders headers;
-
-    /**
-     * The {@link org.mbachran.server.custom.request.api.RequestBody} build during parsing to factor the {@link Request} from on retrieval.
-     * If null on retrieval an empty body will be added to the {@link Request}.
+     * {@link Mode} for the state machine switching between request line, headers and body.
      */
-    private RequestBody body;
+    private Mode mode = Mode.RequestLine;
 
     /**
-     * Is set during parsing is the request is not OK, the parser does not support a certain aspect yet etc.
-     * If set clients must use this to create a corresponding Response (namely the Connection).
+     * Set once the buffer has been positioned behind the headers for body parsing.
      */
-    private HttpCode failure;
+    private boolean bodyStarted;
 
-    DefaultRequestParser(@Nonnull final EnumMap<TransferEncoding, BodyParser> bodyParsers)
+    DefaultRequestParser(@Nonnull final EnumMap<TransferEncoding, BodyParser> bodyParsers, @Nonnull final RequestLimits limits)
     {
-        this.bodyParsers = bodyParsers;
+        super(bodyParsers, limits);
     }
 
     private enum Mode
@@ -103,26 +73,6 @@ public class DefaultRequestParser implements RequestParser
         RequestLine, Headers, Body
     }
 
-    @Override
-    public HttpCode getFailure()
-    {
-        return failure;
-    }
-
-    @Nonnull
-    @Override
-    public Request retrieve()
-    {
-        final RequestBody body = this.body == null ? new DefaultRequestBody() : this.body;
-        return new DefaultRequest(this.requestLine, this.headers, body);
-    }
-
-    @Override
-    public void close() throws Exception
-    {
-        if (bodyParser != null) bodyParser.close();
-    }
-
     @Override
     public boolean parse(@Nonnull final ByteBuffer buffer)
     {
@@ -158,11 +108,16 @@ public class DefaultRequestParser implements RequestParser
 
     private boolean parseRequestLine(@Nonnull final ByteBuffer buffer)
     {
-        requestBuffer.append(StandardCharsets.UTF_8.decode(buffer).toString());
+        decode(buffer);
 
         boolean remaining = false;
         final int firstLineEnd = requestBuffer.indexOf(CR_LF);
-        if (firstLineEnd != -1)
+        if (limits.exceedsRequestLine(firstLineEnd == -1 ? decodedBytes : firstLineEnd))
+        {
+            LOG.info("Rejecting request line exceeding the limit.");
+            failure = HttpCode.URI_TOO_LONG;
+        }
+        else if (firstLineEnd != -1)
         {
             final String firstLine = requestBuffer.substring(parseOffset, firstLineEnd);
             final String[] firstLineSegments = firstLine.split(SP);
@@ -173,8 +128,14 @@ public class DefaultRequestParser implements RequestParser
             }
             else
             {
-                final HttpVersion httpVersion = HttpVersion.from(firstLineSegments[2]);
-                if (httpVersion == null)
+                final Method method = HttpTokens.METHODS.get(firstLineSegments[0]);
+                final HttpVersion httpVersion = HttpTokens.VERSIONS.get(firstLineSegments[2]);
+                if (method == null)
+                {
+                    LOG.info("Retrieved invalid method: {}", firstLineSegments[0]);
+                    failure = HttpCode.BAD_REQUEST;
+                }
+                else if (httpVersion == null)
                 {
                     LOG.info("Retrieved invalid HTTP version: {}", firstLineSegments[2]);
                     failure = HttpCode.BAD_REQUEST;
@@ -185,7 +146,7 @@ public class DefaultRequestParser implements RequestParser
                     try
                     {
                         final URI uri = new URI(uriStr);
-                        requestLine = new DefaultRequestLine(Method.valueOf(firstLineSegments[0]), uri, httpVersion);
+                        requestLine = new DefaultRequestLine(method, uri, httpVersion);
 
                         parseOffset = firstLineEnd + CR_LF.length();
                         // handling already read second CR_LF indicating there are no headers
@@ -217,16 +178,23 @@ public class DefaultRequestParser implements RequestParser
 
     private boolean parseHeaders(@Nonnull ByteBuffer buffer)
     {
-        requestBuffer.append(StandardCharsets.UTF_8.decode(buffer).toString());
+        decode(buffer);
 
         boolean remaining = false;
 
         // lazy parsing: do not consume headers before all are retrieved
         final int headersEnd = requestBuffer.indexOf(EMPTY_LINE);
-        if (headersEnd != -1)
+        final int headerLength = (headersEnd == -1 ? requestBuffer.length() : headersEnd + EMPTY_LINE.length()) - parseOffset;
+        if (limits.exceedsHeaderBytes(headerLength))
+        {
+            LOG.info("Rejecting headers exceeding the limit.");
+            failure = HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+        }
+        else if (headersEnd != -1)
         {
             // handling second CR_LF was read after we switched to headers
-            if (requestBuffer.length() == parseOffset + CR_LF.length() && requestBuffer.substring(parseOffset, parseOffset + CR_LF.length()).equals(
+            // (bytes of a pipelined request might follow)
+            if (requestBuffer.length() >= parseOffset + CR_LF.length() && requestBuffer.substring(parseOffset, parseOffset + CR_LF.length()).equals(
                     CR_LF))
             {
                 parseOffset = parseOffset + CR_LF.length();
@@ -240,8 +208,10 @@ public class DefaultRequestParser implements RequestParser
                 final RequestHeaders.Builder builder = new DefaultRequestHeaders.DefaultBuilder();
 
                 // look ahead for multi line header values
+                int headerCount = 0;
                 for (int i = 0; i < headerLines.length; i++)
                 {
+                    headerCount++;
                     final String headerLine = headerLines[i];
                     final int nameEnd = headerLine.indexOf(COLON);
                     final String name = headerLine.substring(0, nameEnd);
@@ -269,6 +239,11 @@ public class DefaultRequestParser implements RequestParser
                 headers = builder.build();
                 parseOffset = headersEnd + EMPTY_LINE.length();
                 mode = Mode.Body;
+                if (limits.exceedsHeaderCount(headerCount))
+                {
+                    LOG.info("Rejecting {} headers exceeding the limit.", headerCount);
+                    failure = HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+                }
             }
 
             remaining = true;
@@ -277,81 +252,28 @@ public class DefaultRequestParser implements RequestParser
         return remaining;
     }
 
-    private boolean parseBody(@Nonnull final ByteBuffer buffer)
+    @Override
+    protected boolean parseBody(@Nonnull final ByteBuffer buffer)
     {
-        boolean parsingDone = false;
-        if (bodyParser == null)
-        {
-            final TransferEncoding transferEncoding = determineTransferEncoding();
-            if (transferEncoding == TransferEncoding.identity)
-            {
-                final String contentLength = headers.getHeader("content-length");
-                if (contentLength == null || Integer.valueOf(contentLength) == 0)
-                {
-                    // we could validate here whether there is no disallowed trailing body
-                    // e.g. GET should come here
-                    return true;
-                }
-            }
-
-            this.bodyParser = selectBodyParser(transferEncoding);
-            if (bodyParser == null)
-            {
-                return true;
-            }
-
-            // we just switched to body parsing and might have a left over from the last read buffer
-            final int carryForwardLength = requestBuffer.substring(parseOffset, requestBuffer.length()).getBytes(StandardCharsets.UTF_8).length;
-            if (carryForwardLength > 0)
-            {
-                final int carryForwardStart = buffer.limit() - carryForwardLength;
-                final byte[] carryForwardBytes = new byte[carryForwardLength];
-                buffer.position(carryForwardStart);
-                buffer.get(carryForwardBytes);
-                parsingDone = bodyParser.parse(ByteBuffer.wrap(carryForwardBytes));
-            }
-        }
-        else
-        {
-            parsingDone = bodyParser.parse(buffer);
-        }
-
-        if (parsingDone)
+        if (!bodyStarted)
         {
-            failure = bodyParser.getFailure();
-            body = bodyParser.retrieve();
+            // we just switched to body parsing: everything behind the headers is left over within the last read buffer
+            final int headerBytes = requestBuffer.substring(0, parseOffset).getBytes(StandardCharsets.UTF_8).length;
+            buffer.position(buffer.limit() - (decodedBytes - headerBytes));
+            bodyStarted = true;
         }
 
-        return parsingDone;
-    }
-
-    private BodyParser.Parser selectBodyParser(final TransferEncoding transferEncoding)
-    {
-        final BodyParser bodyParser = bodyParsers.get(transferEncoding);
-        if (bodyParser == null)
-        {
-            LOG.error("Unsupported transfer encoding: " + headers.getHeader("transfer-encoding"));
-            failure = HttpCode.BAD_REQUEST;
-            return null;
-        }
-        else
-        {
-            return bodyParser.create(headers);
-        }
+        return super.parseBody(buffer);
     }
 
-    private TransferEncoding determineTransferEncoding()
+    /**
+     * Appends the remaining bytes of the buffer to the {@link #requestBuffer} consuming them.
+     *
+     * @param buffer The buffer holding the next bytes of the request line or headers.
+     */
+    private void decode(@Nonnull final ByteBuffer buffer)
     {
-        final String transferEncodingHeader = headers.getHeader("transfer-encoding");
-        final TransferEncoding transferEncoding;
-        if (transferEncodingHeader == null)
-        {
-            transferEncoding = TransferEncoding.identity;
-        }
-        else
-        {
-            transferEncoding = TransferEncoding.from(transferEncodingHeader.trim().toLowerCase());
-        }
-        return transferEncoding;
+        decodedBytes += buffer.remaining();
+        requestBuffer.append(StandardCharsets.UTF_8.decode(buffer).toString());
     }
 }
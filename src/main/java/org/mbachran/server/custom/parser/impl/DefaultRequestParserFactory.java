@@ -3,6 +3,7 @@ package org.mbachran.server.custom.parser.impl;
 import org.mbachran.server.custom.parser.api.RequestParser;
 import org.mbachran.server.custom.parser.api.RequestParserFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
@@ -10,8 +11,8 @@ import java.util.EnumMap;
 import java.util.List;
 
 /**
- * The default factory not providing any dynamic mechanism so far to select various parser implementations but always delivering
- * {@link DefaultRequestParser}.
+ * The default factory delivering the {@link DefaultRequestParser} ('string') or the {@link ByteRequestParser} ('byte') as configured by
+ * 'application.config.custom-server.request.parser'.
  *
  * {@link BodyParser}s are injected mapped by {@link TransferEncoding}.
  */
@@ -20,16 +21,38 @@ public class DefaultRequestParserFactory implements RequestParserFactory
 {
     private final EnumMap<TransferEncoding, BodyParser> bodyParsers = new EnumMap<>(TransferEncoding.class);
 
+    private final RequestLimits limits;
+
+    private final boolean byteParser;
+
+    /**
+     * @param bodyParsers The available body parsers.
+     * @param limits      The limits the parsers enforce on request line and headers.
+     * @param parser      'string' for the {@link DefaultRequestParser} or 'byte' for the {@link ByteRequestParser}.
+     */
     @Autowired
-    public DefaultRequestParserFactory(@Nonnull final List<BodyParser> bodyParsers)
+    public DefaultRequestParserFactory(@Nonnull final List<BodyParser> bodyParsers, @Nonnull final RequestLimits limits,
+                                       @Nonnull @Value("${application.config.custom-server.request.parser:string}") final String parser)
     {
         bodyParsers.forEach(p -> this.bodyParsers.put(p.getTransferEncoding(), p));
+        this.limits = limits;
+        switch (parser)
+        {
+            case "string":
+                byteParser = false;
+                break;
+            case "byte":
+                byteParser = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request parser '" + parser + "', expected 'string' or 'byte'.");
+        }
     }
 
     @Nonnull
     @Override
     public RequestParser create()
     {
-        return new DefaultRequestParser(bodyParsers);
+        return byteParser ? new ByteRequestParser(bodyParsers, limits) : new DefaultRequestParser(bodyParsers, limits);
     }
 }
@@ -0,0 +1,53 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.mbachran.server.custom.HttpVersion;
+import org.mbachran.server.custom.request.api.Method;
+import org.mbachran.server.custom.util.TokenTable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link TokenTable}s resolving methods and HTTP versions of the request line to their enums. Both are case sensitive as required by
+ * RFC 7230.
+ */
+final class HttpTokens
+{
+    static final TokenTable<Method> METHODS;
+
+    static final TokenTable<HttpVersion> VERSIONS;
+
+    /**
+     * The length of the longest method. Longer tokens can be rejected before they are complete.
+     */
+    static final int MAX_METHOD_LENGTH;
+
+    /**
+     * The length of the longest version. Longer tokens can be rejected before they are complete.
+     */
+    static final int MAX_VERSION_LENGTH;
+
+    static
+    {
+        final Map<String, Method> methods = new HashMap<>();
+        for (final Method method : Method.values())
+        {
+            methods.put(method.name(), method);
+        }
+
+        final Map<String, HttpVersion> versions = new HashMap<>();
+        for (final HttpVersion version : HttpVersion.values())
+        {
+            versions.put(version.getValue(), version);
+        }
+
+        METHODS = new TokenTable<>(methods, false);
+        VERSIONS = new TokenTable<>(versions, false);
+        MAX_METHOD_LENGTH = methods.keySet().stream().mapToInt(String::length).max().orElse(0);
+        MAX_VERSION_LENGTH = versions.keySet().stream().mapToInt(String::length).max().orElse(0);
+    }
+
+    private HttpTokens()
+    {
+    }
+}
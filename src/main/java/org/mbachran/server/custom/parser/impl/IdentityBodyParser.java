@@ -1,30 +1,48 @@
 package org.mbachran.server.custom.parser.impl;
 
 import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.request.api.HeaderNames;
 import org.mbachran.server.custom.request.api.RequestBody;
 import org.mbachran.server.custom.request.api.RequestHeaders;
 import org.mbachran.server.custom.request.impl.DefaultRequestBody;
-import org.mbachran.server.custom.util.ByteStreamWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Parses transfer encoding identity (and therefore is the default pick).
  *
  * It requires content length header to be present if called.
+ * Bodies beyond the spool threshold are spooled to a temporary file (see {@link BodySink}).
  */
 @Component
 public class IdentityBodyParser implements BodyParser
 {
     private static final Logger LOG = LoggerFactory.getLogger(IdentityBodyParser.class);
 
+    private final long spoolThreshold;
+
+    private final RequestLimits limits;
+
+    /**
+     * @param spoolThreshold The body size in bytes from which on bodies are spooled to a temporary file instead of being held in memory.
+     * @param limits         The limits of which the body size is enforced.
+     */
+    @Autowired
+    public IdentityBodyParser(@Value("${application.config.custom-server.request.spool-threshold:1048576}") final long spoolThreshold,
+            @Nonnull final RequestLimits limits)
+    {
+        this.spoolThreshold = spoolThreshold;
+        this.limits = limits;
+    }
+
     @Override
     public TransferEncoding getTransferEncoding()
     {
@@ -34,7 +52,7 @@ public class IdentityBodyParser implements BodyParser
     @Override
     public Parser create(@Nonnull final RequestHeaders headers)
     {
-        return new IdentityParser(headers);
+        return new IdentityParser(headers, new BodySink(spoolThreshold));
     }
 
     /**
@@ -43,14 +61,9 @@ public class IdentityBodyParser implements BodyParser
     class IdentityParser implements Parser
     {
         /**
-         * The stream to collect bytes in.
-         */
-        private final ByteArrayOutputStream bodyCollectionBuffer = new ByteArrayOutputStream();
-
-        /**
-         * Helper class to write to {@link #bodyCollectionBuffer}.
+         * Collects the bytes of the body.
          */
-        private final ByteStreamWriter bodyCollectionBufferWriter = new ByteStreamWriter(bodyCollectionBuffer, StandardCharsets.UTF_8);
+        private final BodySink bodySink;
 
         /**
          * Currently this parser only uses the content length header.
@@ -58,34 +71,62 @@ public class IdentityBodyParser implements BodyParser
         private final RequestHeaders headers;
 
         /**
-         * Set if the content length header is missing or the body size exceeds the content length (only if the garbage data is received
-         * within the same buffer).
+         * Set if the content length header is missing, invalid or exceeds the limit or if the body cannot be spooled.
          */
         private HttpCode failure;
 
         /**
-         * The collected bytes for the body. If null on retrieval an empty {@link RequestBody} is created for factoring the
+         * The collected body. If null on retrieval an empty {@link RequestBody} is created for factoring the
          * {@link org.mbachran.server.custom.request.api.Request}
          */
-        private byte[] bodyBytes;
+        private RequestBody body;
 
-        IdentityParser(@Nonnull final RequestHeaders headers)
+        IdentityParser(@Nonnull final RequestHeaders headers, @Nonnull final BodySink bodySink)
         {
             this.headers = headers;
+            this.bodySink = bodySink;
         }
 
         @Override
         public boolean parse(@Nonnull ByteBuffer buffer)
         {
-            boolean parsingDone = false;
-            final int contentLength = getRequireContentLength();
-            if (contentLength != -1)
+            final long contentLength = getRequireContentLength();
+            if (contentLength == -1)
+            {
+                return true;
+            }
+
+            if (limits.exceedsBodySize(contentLength))
             {
-                bodyCollectionBufferWriter.write(buffer);
-                parsingDone = validateBodyLength(contentLength);
+                LOG.info("Rejecting body of {} bytes exceeding the limit.", contentLength);
+                failure = HttpCode.PAYLOAD_TOO_LARGE;
+                return true;
             }
 
-            return parsingDone;
+            try
+            {
+                if (bodySink.size() == 0)
+                {
+                    bodySink.expect(contentLength);
+                }
+
+                // anything beyond the content length belongs to the next (pipelined) request
+                final int lengthToRead = (int) Math.min(buffer.remaining(), contentLength - bodySink.size());
+                bodySink.write(buffer, lengthToRead);
+                if (bodySink.size() == contentLength)
+                {
+                    body = bodySink.toRequestBody();
+                    return true;
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.error("Failed collecting body.", e);
+                failure = HttpCode.INTERNAL_SERVER_ERROR;
+                return true;
+            }
+
+            return false;
         }
 
         @Nullable
@@ -99,55 +140,44 @@ public class IdentityBodyParser implements BodyParser
         @Override
         public RequestBody retrieve()
         {
-            return bodyBytes == null ? new DefaultRequestBody() : new DefaultRequestBody(bodyBytes);
-        }
-
-        /**
-         * @param contentLength The content length from the header.
-         * @return True if the length was reached by the body, false if either trailing bytes wre detected or parsing is not yet done.
-         */
-        private boolean validateBodyLength(final int contentLength)
-        {
-            boolean parsingDone = false;
-            if (bodyCollectionBuffer.size() == contentLength)
-            {
-                bodyBytes = bodyCollectionBuffer.toByteArray();
-                parsingDone = true;
-            }
-            else if (bodyCollectionBuffer.size() > contentLength)
-            {
-                LOG.info("Body is longer than given content length. Rejecting as bad request.");
-                failure = HttpCode.BAD_REQUEST; // for now the behavior if we receive more data than specified by the header
-            }
-
-            return parsingDone;
+            return body == null ? new DefaultRequestBody() : body;
         }
 
         /**
          * @return The length or -1 if there was a failure.
          */
-        private int getRequireContentLength()
+        private long getRequireContentLength()
         {
-            final int contentLength;
-            final String contentLengthStr = headers.getHeader("content-length");
+            final String contentLengthStr = headers.getHeader(HeaderNames.CONTENT_LENGTH);
             if (contentLengthStr == null)
             {
                 LOG.info("Length header is missing but required by this server.");
                 failure = HttpCode.LENGTH_REQUIRED;
-                contentLength = -1;
+                return -1;
+            }
+
+            try
+            {
+                final long contentLength = Long.parseLong(contentLengthStr.trim());
+                if (contentLength >= 0)
+                {
+                    return contentLength;
+                }
             }
-            else
+            catch (NumberFormatException e)
             {
-                contentLength = Integer.valueOf(contentLengthStr);
+                // handled below
             }
 
-            return contentLength;
+            LOG.info("Invalid length header: {}", contentLengthStr);
+            failure = HttpCode.BAD_REQUEST;
+            return -1;
         }
 
         @Override
-        public void close() throws Exception
+        public void close()
         {
-            bodyCollectionBuffer.close();
+            bodySink.close();
         }
     }
 }
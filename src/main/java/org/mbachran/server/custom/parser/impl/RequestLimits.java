@@ -0,0 +1,90 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The limits the parsers enforce while receiving a request so a single client cannot make the server buffer without bounds.
+ * - request line length: answered with {@link org.mbachran.server.custom.HttpCode#URI_TOO_LONG}
+ * - header bytes and header count: answered with {@link org.mbachran.server.custom.HttpCode#REQUEST_HEADER_FIELDS_TOO_LARGE}
+ * - body size: answered with {@link org.mbachran.server.custom.HttpCode#PAYLOAD_TOO_LARGE} as soon as the announced length (content length
+ * or chunk size) exceeds it
+ *
+ * Zero or negative values disable a limit.
+ */
+@Component
+public class RequestLimits
+{
+    /**
+     * Limits nothing.
+     */
+    public static final RequestLimits UNLIMITED = new RequestLimits(0, 0, 0, 0);
+
+    private final int maxRequestLineLength;
+
+    private final int maxHeaderBytes;
+
+    private final int maxHeaderCount;
+
+    private final long maxBodySize;
+
+    /**
+     * @param maxRequestLineLength The maximum number of bytes of the request line excluding the CR LF.
+     * @param maxHeaderBytes       The maximum number of bytes of all header lines including their CR LF.
+     * @param maxHeaderCount       The maximum number of header lines (not counting continuation lines).
+     * @param maxBodySize          The maximum number of bytes of the body (after removing any chunk framing).
+     */
+    @Autowired
+    public RequestLimits(@Value("${application.config.custom-server.request.max-request-line-length:8192}") final int maxRequestLineLength,
+                         @Value("${application.config.custom-server.request.max-header-bytes:65536}") final int maxHeaderBytes,
+                         @Value("${application.config.custom-server.request.max-header-count:100}") final int maxHeaderCount,
+                         @Value("${application.config.custom-server.request.max-body-size:104857600}") final long maxBodySize)
+    {
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * @param length The length of the request line received so far.
+     * @return True if the request line is too long.
+     */
+    public boolean exceedsRequestLine(final long length)
+    {
+        return exceeds(length, maxRequestLineLength);
+    }
+
+    /**
+     * @param bytes The number of header bytes received so far.
+     * @return True if the headers are too large.
+     */
+    public boolean exceedsHeaderBytes(final long bytes)
+    {
+        return exceeds(bytes, maxHeaderBytes);
+    }
+
+    /**
+     * @param count The number of headers received so far.
+     * @return True if there are too many headers.
+     */
+    public boolean exceedsHeaderCount(final int count)
+    {
+        return exceeds(count, maxHeaderCount);
+    }
+
+    /**
+     * @param size The size of the body announced so far.
+     * @return True if the body is too large.
+     */
+    public boolean exceedsBodySize(final long size)
+    {
+        return exceeds(size, maxBodySize);
+    }
+
+    private static boolean exceeds(final long value, final long limit)
+    {
+        return limit > 0 && value > limit;
+    }
+}
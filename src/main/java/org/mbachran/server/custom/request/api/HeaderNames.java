@@ -0,0 +1,102 @@
+package org.mbachran.server.custom.request.api;
+
+import org.mbachran.server.custom.util.TokenTable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical (lower case) names of the standard request headers.
+ *
+ * Parsers resolve header names to these constants right from the bytes read (see {@link #canonical(byte[], int, int)}) so repeated
+ * names do not create new Strings, and {@link RequestHeaders} can compare known names by identity. As String literals are interned,
+ * looking up a header by a literal like "content-length" hits the constant as well.
+ */
+public final class HeaderNames
+{
+    public static final String ACCEPT = "accept";
+    public static final String ACCEPT_CHARSET = "accept-charset";
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String ACCEPT_LANGUAGE = "accept-language";
+    public static final String AUTHORIZATION = "authorization";
+    public static final String CACHE_CONTROL = "cache-control";
+    public static final String CONNECTION = "connection";
+    public static final String CONTENT_ENCODING = "content-encoding";
+    public static final String CONTENT_LENGTH = "content-length";
+    public static final String CONTENT_TYPE = "content-type";
+    public static final String COOKIE = "cookie";
+    public static final String DATE = "date";
+    public static final String DNT = "dnt";
+    public static final String EXPECT = "expect";
+    public static final String FORWARDED = "forwarded";
+    public static final String HOST = "host";
+    public static final String IF_MATCH = "if-match";
+    public static final String IF_MODIFIED_SINCE = "if-modified-since";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String IF_RANGE = "if-range";
+    public static final String IF_UNMODIFIED_SINCE = "if-unmodified-since";
+    public static final String KEEP_ALIVE = "keep-alive";
+    public static final String ORIGIN = "origin";
+    public static final String PRAGMA = "pragma";
+    public static final String RANGE = "range";
+    public static final String REFERER = "referer";
+    public static final String SEC_FETCH_DEST = "sec-fetch-dest";
+    public static final String SEC_FETCH_MODE = "sec-fetch-mode";
+    public static final String SEC_FETCH_SITE = "sec-fetch-site";
+    public static final String SEC_FETCH_USER = "sec-fetch-user";
+    public static final String TE = "te";
+    public static final String TRAILER = "trailer";
+    public static final String TRANSFER_ENCODING = "transfer-encoding";
+    public static final String UPGRADE = "upgrade";
+    public static final String UPGRADE_INSECURE_REQUESTS = "upgrade-insecure-requests";
+    public static final String USER_AGENT = "user-agent";
+    public static final String VIA = "via";
+    public static final String X_FORWARDED_FOR = "x-forwarded-for";
+    public static final String X_REQUESTED_WITH = "x-requested-with";
+
+    private static final TokenTable<String> TABLE = createTable();
+
+    private HeaderNames()
+    {
+    }
+
+    /**
+     * @param bytes The bytes holding the header name.
+     * @param start The start of the name.
+     * @param end   The end of the name (exclusive).
+     * @return The constant for the name (ignoring case) or null if it is not a standard header.
+     */
+    @Nullable
+    public static String canonical(@Nonnull final byte[] bytes, final int start, final int end)
+    {
+        return TABLE.get(bytes, start, end);
+    }
+
+    /**
+     * @param name The header name.
+     * @return The constant for the name (ignoring case) or null if it is not a standard header.
+     */
+    @Nullable
+    public static String canonical(@Nonnull final String name)
+    {
+        return TABLE.get(name);
+    }
+
+    @Nonnull
+    private static TokenTable<String> createTable()
+    {
+        final Map<String, String> names = new HashMap<>();
+        for (final String name : new String[]{ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE, AUTHORIZATION, CACHE_CONTROL,
+                CONNECTION, CONTENT_ENCODING, CONTENT_LENGTH, CONTENT_TYPE, COOKIE, DATE, DNT, EXPECT, FORWARDED, HOST, IF_MATCH,
+                IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, IF_UNMODIFIED_SINCE, KEEP_ALIVE, ORIGIN, PRAGMA, RANGE, REFERER, SEC_FETCH_DEST,
+                SEC_FETCH_MODE, SEC_FETCH_SITE, SEC_FETCH_USER, TE, TRAILER, TRANSFER_ENCODING, UPGRADE, UPGRADE_INSECURE_REQUESTS,
+                USER_AGENT, VIA, X_FORWARDED_FOR, X_REQUESTED_WITH})
+        {
+            names.put(name, name);
+        }
+
+        return new TokenTable<>(names, true);
+    }
+}
@@ -1,19 +1,59 @@
 package org.mbachran.server.custom.request.api;
 
 import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * The body a {@link Request}. Empty bodies are represented by an empty byte array contained.
  * NOTE that giving out the byte array of the {@link RequestBody} directly by reference violates the immutable contract of the whoel
  * {@link Request} in principal. Manipulating the array is not allowed. Maybe this contract can be changed to
  * {@link ByteBuffer#asReadOnlyBuffer()}?
+ *
+ * Large bodies might not be held in memory but spooled to a file. Handlers should prefer {@link #getChannel()} or
+ * {@link #getInputStream()} over {@link #getContent()} unless the body is known to be small. The body is only available while the request
+ * is being handled.
  */
 public interface RequestBody
 {
     /**
+     * Loads the full body into memory if it is not held there already.
+     *
      * @return The body content. Never null. Empty array for empty body.
+     * @throws java.io.UncheckedIOException If the body has been spooled and cannot be read.
      */
     @Nonnull
     byte[] getContent();
+
+    /**
+     * @return The body length in bytes.
+     */
+    default long getLength()
+    {
+        return getContent().length;
+    }
+
+    /**
+     * @return A new stream reading the body from the start. To be closed by the caller.
+     * @throws IOException If the body has been spooled and cannot be opened.
+     */
+    @Nonnull
+    default InputStream getInputStream() throws IOException
+    {
+        return new ByteArrayInputStream(getContent());
+    }
+
+    /**
+     * @return A new channel reading the body from the start. To be closed by the caller.
+     * @throws IOException If the body has been spooled and cannot be opened.
+     */
+    @Nonnull
+    default ReadableByteChannel getChannel() throws IOException
+    {
+        return Channels.newChannel(getInputStream());
+    }
 }
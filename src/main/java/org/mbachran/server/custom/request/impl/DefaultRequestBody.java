@@ -32,4 +32,10 @@ public class DefaultRequestBody implements RequestBody
     {
         return body;
     }
+
+    @Override
+    public long getLength()
+    {
+        return body.length;
+    }
 }
@@ -1,5 +1,6 @@
 package org.mbachran.server.custom.request.impl;
 
+import org.mbachran.server.custom.request.api.HeaderNames;
 import org.mbachran.server.custom.request.api.RequestHeaders;
 
 import javax.annotation.Nonnull;
@@ -29,7 +30,8 @@ public class DefaultRequestHeaders implements RequestHeaders
         private final Map<String, String> headers = new HashMap<>();
 
         /**
-         * Converts the header name to lower case and trims it. Value is trimmed as well.
+         * Converts the header name to lower case (using the {@link HeaderNames} constant for standard names) and trims it.
+         * Value is trimmed as well.
          * If a header already exists the values are concatenated separated by comma.
          * Null values will not lead to ,, concatenations.
          *
@@ -41,7 +43,9 @@ public class DefaultRequestHeaders implements RequestHeaders
         @SuppressWarnings("UnusedReturnValue")
         public Builder addHeader(@Nonnull final String headerName, @Nullable final String headerValue)
         {
-            final String effectiveName = headerName.toLowerCase().trim();
+            final String trimmedName = headerName.trim();
+            final String canonicalName = HeaderNames.canonical(trimmedName);
+            final String effectiveName = canonicalName != null ? canonicalName : trimmedName.toLowerCase();
             final String existingValue = headers.get(effectiveName);
             final String effectiveValue;
             if (existingValue == null)
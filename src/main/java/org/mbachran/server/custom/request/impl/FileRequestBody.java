@@ -0,0 +1,71 @@
+package org.mbachran.server.custom.request.impl;
+
+import org.mbachran.server.custom.request.api.RequestBody;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * {@link RequestBody} spooled to a (temporary) file. The file is owned by whoever created the body and is deleted once the request has
+ * been handled.
+ */
+public class FileRequestBody implements RequestBody
+{
+    private final Path file;
+
+    private final long length;
+
+    /**
+     * @param file   The file holding the body.
+     * @param length The body length in bytes.
+     */
+    public FileRequestBody(@Nonnull final Path file, final long length)
+    {
+        this.file = Objects.requireNonNull(file);
+        this.length = length;
+    }
+
+    /**
+     * Reads the whole file. Avoid for large bodies.
+     */
+    @Nonnull
+    @Override
+    public byte[] getContent()
+    {
+        try
+        {
+            return Files.readAllBytes(file);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed reading spooled body.", e);
+        }
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Nonnull
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return Files.newInputStream(file);
+    }
+
+    @Nonnull
+    @Override
+    public ReadableByteChannel getChannel() throws IOException
+    {
+        return FileChannel.open(file);
+    }
+}
@@ -0,0 +1,203 @@
+package org.mbachran.server.custom.request.impl;
+
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * {@link RequestHeaders} keeping the raw header block as received and an index of the offsets of the names and values within.
+ * Standard names are resolved to the {@link HeaderNames} constants while parsing, so looking them up compares by identity. Other names are
+ * compared case insensitive on the bytes. A value String is only created for headers actually read (and cached then).
+ * Most requests carry far more headers than handlers read, so this saves creating and hashing Strings per header and request.
+ *
+ * Like the {@link DefaultRequestHeaders} values of headers given multiple times are concatenated by comma, and multi line values are
+ * unfolded (keeping the leading SP/HT of the continuation lines). Not thread safe as the cache is filled on lookup.
+ */
+public class IndexedRequestHeaders implements RequestHeaders
+{
+    /**
+     * The number of ints per header within the index: name start, name end, value start and value end.
+     */
+    public static final int INDEX_ENTRY_SIZE = 4;
+
+    private static final byte CR = '\r';
+
+    private static final byte LF = '\n';
+
+    private final byte[] block;
+
+    private final int[] index;
+
+    /**
+     * The {@link HeaderNames} constant per header or null if the name is not a standard one.
+     */
+    private final String[] names;
+
+    private final int count;
+
+    /**
+     * The values read so far per header. Lazily created with the first lookup.
+     */
+    private String[] values;
+
+    /**
+     * @param block The bytes the headers have been received as. Must not be changed afterwards.
+     * @param index The offsets within the block per header ({@link #INDEX_ENTRY_SIZE} ints each, ends exclusive). Values are expected to be
+     *              trimmed. Multi line values span the CR LF of the folded lines. Must not be changed afterwards.
+     * @param names The {@link HeaderNames} constant per header or null if the name is not a standard one. Must not be changed afterwards.
+     * @param count The number of headers within the index.
+     */
+    public IndexedRequestHeaders(@Nonnull final byte[] block, @Nonnull final int[] index, @Nonnull final String[] names, final int count)
+    {
+        this.block = Objects.requireNonNull(block);
+        this.index = Objects.requireNonNull(index);
+        this.names = Objects.requireNonNull(names);
+        this.count = count;
+    }
+
+    @Nullable
+    @Override
+    public String getHeader(@Nonnull final String name)
+    {
+        // a standard name can only match headers resolved to the same constant, any other name only headers that were not resolved
+        final String canonical = HeaderNames.canonical(name);
+        int first = -1;
+        StringBuilder joined = null;
+        for (int i = 0; i < count; i++)
+        {
+            if (canonical != null ? names[i] == canonical : names[i] == null && nameEquals(i, name))
+            {
+                if (first == -1)
+                {
+                    first = i;
+                }
+                else
+                {
+                    if (joined == null)
+                    {
+                        joined = new StringBuilder(value(first));
+                    }
+
+                    joined.append(',').append(value(i));
+                }
+            }
+        }
+
+        if (first == -1)
+        {
+            return null;
+        }
+
+        return joined == null ? value(first) : joined.toString();
+    }
+
+    /**
+     * @return The number of header lines received.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    private boolean nameEquals(final int header, @Nonnull final String name)
+    {
+        final int start = index[header * INDEX_ENTRY_SIZE];
+        final int end = index[header * INDEX_ENTRY_SIZE + 1];
+        if (end - start != name.length())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            final int b = block[start + i] & 0xff;
+            final char c = name.charAt(i);
+            if (b != c && toLowerCase(b) != toLowerCase(c))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Nonnull
+    private String value(final int header)
+    {
+        if (values == null)
+        {
+            values = new String[count];
+        }
+
+        String value = values[header];
+        if (value == null)
+        {
+            value = decode(index[header * INDEX_ENTRY_SIZE + 2], index[header * INDEX_ENTRY_SIZE + 3]);
+            values[header] = value;
+        }
+
+        return value;
+    }
+
+    /**
+     * @return The value between start and end unfolding multi line values by dropping the CR LF.
+     */
+    @Nonnull
+    private String decode(final int start, final int end)
+    {
+        int folded = 0;
+        for (int i = start; i < end; i++)
+        {
+            if (block[i] == CR || block[i] == LF)
+            {
+                folded++;
+            }
+        }
+
+        if (folded == 0)
+        {
+            return new String(block, start, end - start, UTF_8);
+        }
+
+        final byte[] unfolded = new byte[end - start - folded];
+        int length = 0;
+        for (int i = start; i < end; i++)
+        {
+            if (block[i] != CR && block[i] != LF)
+            {
+                unfolded[length++] = block[i];
+            }
+        }
+
+        return new String(unfolded, UTF_8);
+    }
+
+    private static int toLowerCase(final int c)
+    {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    @Override
+    @Nonnull
+    public String toString()
+    {
+        final StringJoiner headers = new StringJoiner(", ", "{", "}");
+        for (int i = 0; i < count; i++)
+        {
+            final int nameStart = index[i * INDEX_ENTRY_SIZE];
+            final String name = new String(block, nameStart, index[i * INDEX_ENTRY_SIZE + 1] - nameStart, ISO_8859_1);
+            headers.add(name + "=" + decode(index[i * INDEX_ENTRY_SIZE + 2], index[i * INDEX_ENTRY_SIZE + 3]));
+        }
+
+        return new StringJoiner(", ", IndexedRequestHeaders.class.getSimpleName() + "[", "]")
+                .add("headers=" + headers)
+                .toString();
+    }
+}
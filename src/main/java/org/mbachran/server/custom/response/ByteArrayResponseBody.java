@@ -0,0 +1,61 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * {@link ResponseBody} held in memory as byte array. The array is wrapped but not copied for writing.
+ */
+public class ByteArrayResponseBody implements ResponseBody
+{
+    private final byte[] content;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param content The body bytes. Must not be modified afterwards.
+     */
+    public ByteArrayResponseBody(@Nonnull final byte[] content)
+    {
+        this.content = Objects.requireNonNull(content);
+        this.buffer = ByteBuffer.wrap(content);
+    }
+
+    /**
+     * @return The body bytes as given on construction.
+     */
+    @Nonnull
+    public byte[] getContent()
+    {
+        return content;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return content.length;
+    }
+
+    @Nonnull
+    @Override
+    public ByteBuffer asByteBuffer()
+    {
+        return buffer;
+    }
+
+    @Override
+    public boolean writeTo(@Nonnull final WritableByteChannel channel) throws IOException
+    {
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public void close()
+    {
+        // nothing held
+    }
+}
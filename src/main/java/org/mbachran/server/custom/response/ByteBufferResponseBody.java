@@ -0,0 +1,54 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * {@link ResponseBody} of the remaining bytes of a {@link ByteBuffer}, like a slice of a {@link java.nio.MappedByteBuffer}.
+ * As it exposes itself as buffer it is written along with the head by a gathering write. A mapped file is thereby written right from
+ * the page cache of the OS without being copied onto the heap.
+ */
+public class ByteBufferResponseBody implements ResponseBody
+{
+    private final ByteBuffer buffer;
+
+    private final long length;
+
+    /**
+     * @param buffer The body between position and limit. Must not be shared, as writing moves its position.
+     */
+    public ByteBufferResponseBody(@Nonnull final ByteBuffer buffer)
+    {
+        this.buffer = Objects.requireNonNull(buffer);
+        this.length = buffer.remaining();
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Nonnull
+    @Override
+    public ByteBuffer asByteBuffer()
+    {
+        return buffer;
+    }
+
+    @Override
+    public boolean writeTo(@Nonnull final WritableByteChannel channel) throws IOException
+    {
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public void close()
+    {
+        // a mapping is released by the GC once no buffer refers to it anymore
+    }
+}
@@ -0,0 +1,85 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * {@link ResponseBody} written as a sequence of parts of any kind, like the delimiters and file ranges of a multipart/byteranges body.
+ * Each part is written by its own {@link ResponseBody#writeTo(WritableByteChannel)}, so file ranges are still transferred without
+ * passing the heap.
+ *
+ * Owns the parts and closes all of them on {@link #close()}.
+ */
+public class CompositeResponseBody implements ResponseBody
+{
+    private final List<ResponseBody> parts;
+
+    private final long length;
+
+    /**
+     * The index of the part written next.
+     */
+    private int current;
+
+    /**
+     * @param parts The parts to write in order. All of them must be of known length.
+     */
+    public CompositeResponseBody(@Nonnull final List<ResponseBody> parts)
+    {
+        this.parts = List.copyOf(parts);
+        long sum = 0;
+        for (final ResponseBody part : this.parts)
+        {
+            if (part.getLength() < 0)
+            {
+                throw new IllegalArgumentException("Parts must be of known length.");
+            }
+
+            sum += part.getLength();
+        }
+
+        this.length = sum;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer asByteBuffer()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean writeTo(@Nonnull final WritableByteChannel channel) throws IOException
+    {
+        while (current < parts.size())
+        {
+            if (!parts.get(current).writeTo(channel))
+            {
+                return false;
+            }
+
+            current++;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        for (final ResponseBody part : parts)
+        {
+            part.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nullable;
+
+/**
+ * Enum for the HTTP content codings the server can compress response bodies with (RFC 7230 4.2).
+ * Enum names directly match the expected trimmed lower case values of Accept-Encoding and Content-Encoding.
+ */
+public enum ContentCoding
+{
+    /**
+     * Deflate data within the gzip file format (RFC 1952).
+     */
+    gzip,
+
+    /**
+     * Deflate data within the zlib format (RFC 1950), not raw deflate despite the name.
+     */
+    deflate;
+
+    /**
+     * @param value The lower case coding as given in a header. 'x-gzip' is taken as gzip as demanded by RFC 7230.
+     * @return The {@link ContentCoding} or null if the value is none of them.
+     */
+    @Nullable
+    public static ContentCoding from(@Nullable final String value)
+    {
+        if ("x-gzip".equals(value))
+        {
+            return gzip;
+        }
+
+        for (final ContentCoding contentCoding : values())
+        {
+            if (contentCoding.name().equals(value))
+            {
+                return contentCoding;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,228 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Channel reading the compressed bytes of a {@link ResponseBody}. The body is pulled piece by piece via
+ * {@link ResponseBody#writeTo(WritableByteChannel)} and compressed on the fly, so it works for any kind of body (bytes, files, streams)
+ * and holds no more than one buffer of uncompressed bytes at a time.
+ *
+ * Wrapped into a {@link StreamResponseBody} of unknown length it makes a compressed body that is sent chunked. Closing the channel
+ * closes the source body and releases the native memory of the {@link Deflater}.
+ */
+public class DeflatingChannel implements ReadableByteChannel
+{
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Magic, method deflate, no flags, no modification time, no extra flags and OS unknown (RFC 1952 2.3).
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final ResponseBody source;
+
+    private final ContentCoding coding;
+
+    private final Deflater deflater;
+
+    /**
+     * The checksum of the uncompressed bytes for the gzip trailer.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Receives the uncompressed bytes from the source. In write mode while being filled, in read mode while the deflater consumes it.
+     */
+    private final ByteBuffer input;
+
+    /**
+     * Header and trailer of the gzip format still to be returned. In read mode.
+     */
+    private ByteBuffer framing;
+
+    private boolean sourceDone;
+
+    private boolean trailerAdded;
+
+    private boolean open = true;
+
+    /**
+     * @param source The body to compress. Owned by the channel from now on.
+     * @param coding The coding to compress with.
+     * @param level  The compression level from 0 (none) to 9 (best) or -1 for the default of the {@link Deflater}.
+     */
+    public DeflatingChannel(@Nonnull final ResponseBody source, @Nonnull final ContentCoding coding, final int level)
+    {
+        this(source, coding, level, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param source     The body to compress. Owned by the channel from now on.
+     * @param coding     The coding to compress with.
+     * @param level      The compression level from 0 (none) to 9 (best) or -1 for the default of the {@link Deflater}.
+     * @param bufferSize The maximum number of uncompressed bytes pulled from the source at once.
+     */
+    public DeflatingChannel(@Nonnull final ResponseBody source, @Nonnull final ContentCoding coding, final int level, final int bufferSize)
+    {
+        this.source = Objects.requireNonNull(source);
+        this.coding = Objects.requireNonNull(coding);
+        this.deflater = new Deflater(level, coding == ContentCoding.gzip);
+        this.input = ByteBuffer.allocate(bufferSize).limit(0);
+        this.framing = ByteBuffer.wrap(coding == ContentCoding.gzip ? GZIP_HEADER : new byte[0]);
+    }
+
+    /**
+     * Compresses a body completely.
+     *
+     * @param content The uncompressed bytes.
+     * @param coding  The coding to compress with.
+     * @param level   The compression level from 0 (none) to 9 (best) or -1 for the default of the {@link Deflater}.
+     * @return The compressed bytes.
+     */
+    @Nonnull
+    public static byte[] compress(@Nonnull final byte[] content, @Nonnull final ContentCoding coding, final int level)
+    {
+        // deflate hardly ever shrinks text below a fourth, so this spares most of the growing
+        ByteBuffer compressed = ByteBuffer.allocate(Math.max(64, content.length / 4));
+        try (final DeflatingChannel channel = new DeflatingChannel(new ByteArrayResponseBody(content), coding, level,
+                Math.max(1, Math.min(content.length, 65536))))
+        {
+            while (channel.read(compressed) != -1)
+            {
+                if (!compressed.hasRemaining())
+                {
+                    compressed = ByteBuffer.allocate(compressed.capacity() * 2).put(compressed.flip());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Compressing bytes held in memory failed.", e);
+        }
+
+        final byte[] bytes = new byte[compressed.flip().remaining()];
+        compressed.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public int read(@Nonnull final ByteBuffer dst) throws IOException
+    {
+        if (!open)
+        {
+            throw new ClosedChannelException();
+        }
+
+        while (dst.hasRemaining())
+        {
+            if (framing.hasRemaining())
+            {
+                return transferFraming(dst);
+            }
+
+            if (deflater.finished())
+            {
+                if (coding == ContentCoding.gzip && !trailerAdded)
+                {
+                    trailerAdded = true;
+                    framing = ByteBuffer.allocate(GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                            .putInt((int) crc.getValue())
+                            .putInt((int) deflater.getBytesRead())
+                            .flip();
+                    continue;
+                }
+
+                return -1;
+            }
+
+            if (deflater.needsInput() && !sourceDone)
+            {
+                pull();
+                continue;
+            }
+
+            final int compressed = deflater.deflate(dst);
+            if (compressed > 0)
+            {
+                return compressed;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Pulls the next uncompressed bytes from the source and hands them to the deflater.
+     */
+    private void pull() throws IOException
+    {
+        input.clear();
+        sourceDone = source.writeTo(new WritableByteChannel()
+        {
+            @Override
+            public int write(@Nonnull final ByteBuffer src)
+            {
+                final int length = Math.min(src.remaining(), input.remaining());
+                input.put(src.slice().limit(length));
+                src.position(src.position() + length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+                // nothing held
+            }
+        });
+
+        input.flip();
+        crc.update(input.duplicate());
+        deflater.setInput(input);
+        if (sourceDone)
+        {
+            deflater.finish();
+        }
+    }
+
+    private int transferFraming(@Nonnull final ByteBuffer dst)
+    {
+        final int length = Math.min(framing.remaining(), dst.remaining());
+        dst.put(framing.slice().limit(length));
+        framing.position(framing.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        if (open)
+        {
+            open = false;
+            deflater.end();
+            source.close();
+        }
+    }
+}
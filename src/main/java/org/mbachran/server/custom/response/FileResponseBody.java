@@ -0,0 +1,108 @@
+package org.mbachran.server.custom.response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * {@link ResponseBody} streamed from a file via {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * The bytes do not pass the heap: the JDK uses sendfile on Linux if the target is a socket. Transfers the whole file or a range of it.
+ *
+ * Owns the channel and closes it on {@link #close()}.
+ */
+public class FileResponseBody implements ResponseBody
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FileResponseBody.class);
+
+    private final FileChannel fileChannel;
+
+    private final long length;
+
+    /**
+     * The position within the file after the last byte to transfer.
+     */
+    private final long end;
+
+    /**
+     * The position within the file of the next byte to transfer.
+     */
+    private long position;
+
+    /**
+     * @param fileChannel The opened file to transfer from the start.
+     * @param length      The number of bytes to transfer. Usually the size of the file as determined when opened.
+     */
+    public FileResponseBody(@Nonnull final FileChannel fileChannel, final long length)
+    {
+        this(fileChannel, 0, length);
+    }
+
+    /**
+     * @param fileChannel The opened file to transfer a range of.
+     * @param offset      The position within the file of the first byte to transfer.
+     * @param length      The number of bytes to transfer.
+     */
+    public FileResponseBody(@Nonnull final FileChannel fileChannel, final long offset, final long length)
+    {
+        this.fileChannel = Objects.requireNonNull(fileChannel);
+        this.length = length;
+        this.end = offset + length;
+        this.position = offset;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer asByteBuffer()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean writeTo(@Nonnull final WritableByteChannel channel) throws IOException
+    {
+        while (position < end)
+        {
+            final long transferred = fileChannel.transferTo(position, end - position, channel);
+            if (transferred <= 0)
+            {
+                // the socket does not accept more for now (or the file has been truncated meanwhile)
+                if (position >= fileChannel.size())
+                {
+                    throw new IOException("File has been truncated while being transferred.");
+                }
+
+                return false;
+            }
+
+            position += transferred;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            fileChannel.close();
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed closing file: " + e.getMessage());
+        }
+    }
+}
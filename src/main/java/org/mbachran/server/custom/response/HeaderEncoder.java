@@ -0,0 +1,185 @@
+package org.mbachran.server.custom.response;
+
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.HttpVersion;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.mbachran.server.custom.util.Delimiters.COLON;
+import static org.mbachran.server.custom.util.Delimiters.CR_LF;
+import static org.mbachran.server.custom.util.Delimiters.SP;
+
+/**
+ * Encodes status line and headers of {@link Response}s into a reusable buffer avoiding allocations per response.
+ * - status lines are pre-encoded for every {@link HttpVersion} and {@link HttpCode} combination
+ * - common header names are pre-encoded
+ * - other names and the values are copied char by char as long as they are ASCII which is the rule for HTTP headers
+ * - the Content-Length is written digit by digit from the number, after all other headers
+ *
+ * Each encoded head is handed out as a slice of the internal buffer. Slices stay valid until {@link #reset()} is called even if the buffer
+ * had to grow meanwhile. Hence all heads of a pipelined batch can be encoded before they are written together.
+ *
+ * Stateful and not thread safe: meant to be held per connection.
+ */
+public class HeaderEncoder
+{
+    private static final byte[][][] STATUS_LINES = new byte[HttpVersion.values().length][HttpCode.values().length][];
+
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+    private static final byte[] HEADER_DELIMITER = (COLON + SP).getBytes(US_ASCII);
+
+    private static final byte[] LINE_END = CR_LF.getBytes(US_ASCII);
+
+    private static final byte[] CONTENT_LENGTH = ("Content-Length" + COLON + SP).getBytes(US_ASCII);
+
+    /**
+     * The number of digits of the largest long value.
+     */
+    private static final int MAX_DIGITS = 19;
+
+    static
+    {
+        for (final HttpVersion version : HttpVersion.values())
+        {
+            for (final HttpCode code : HttpCode.values())
+            {
+                final String statusLine = version.getValue() + SP + code.getCode() + SP + code.getReasonPhrase() + CR_LF;
+                STATUS_LINES[version.ordinal()][code.ordinal()] = statusLine.getBytes(US_ASCII);
+            }
+        }
+
+        for (final String name : new String[]{"Accept-Ranges", "Allow", "Cache-Control", "Connection", "Content-Encoding", "Content-Range",
+                "Content-Type", "Date", "ETag", "Keep-Alive", "Last-Modified", "Location", "Retry-After", "Server", "Transfer-Encoding", "Vary"})
+        {
+            HEADER_NAMES.put(name, name.getBytes(US_ASCII));
+        }
+    }
+
+    private ByteBuffer buffer;
+
+    /**
+     * @param initialCapacity The initial size of the buffer. Grows on demand.
+     */
+    public HeaderEncoder(final int initialCapacity)
+    {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Makes the whole buffer available again. Slices handed out before must not be used anymore.
+     */
+    public void reset()
+    {
+        buffer.clear();
+    }
+
+    /**
+     * @param version       The version of the status line.
+     * @param code          The code of the status line.
+     * @param headers       The headers to encode.
+     * @param contentLength The value of the Content-Length header, not written if negative.
+     * @param encoding      The encoding to fall back to for non-ASCII header names or values.
+     * @return A slice holding status line and headers terminated by the empty line.
+     */
+    @Nonnull
+    ByteBuffer encode(@Nonnull final HttpVersion version,
+                      @Nonnull final HttpCode code,
+                      @Nonnull final Map<String, String> headers,
+                      final long contentLength,
+                      @Nonnull final Charset encoding)
+    {
+        final int start = buffer.position();
+        put(STATUS_LINES[version.ordinal()][code.ordinal()]);
+        for (final Map.Entry<String, String> header : headers.entrySet())
+        {
+            final byte[] name = HEADER_NAMES.get(header.getKey());
+            if (name == null)
+            {
+                put(header.getKey(), encoding);
+            }
+            else
+            {
+                put(name);
+            }
+
+            put(HEADER_DELIMITER);
+            put(header.getValue(), encoding);
+            put(LINE_END);
+        }
+
+        if (contentLength >= 0)
+        {
+            put(CONTENT_LENGTH);
+            putDigits(contentLength);
+            put(LINE_END);
+        }
+
+        put(LINE_END);
+        final int end = buffer.position();
+        return buffer.duplicate().position(start).limit(end).slice();
+    }
+
+    private void put(@Nonnull final byte[] bytes)
+    {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Copies ASCII chars without allocation and falls back to the encoding for anything else.
+     */
+    private void put(@Nonnull final String value, @Nonnull final Charset encoding)
+    {
+        final int length = value.length();
+        ensureRemaining(length);
+        final int start = buffer.position();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (c >= 0x80)
+            {
+                buffer.position(start);
+                put(value.getBytes(encoding));
+                return;
+            }
+
+            buffer.put((byte) c);
+        }
+    }
+
+    /**
+     * Writes the decimal digits of the value without creating a String.
+     */
+    private void putDigits(final long value)
+    {
+        ensureRemaining(MAX_DIGITS);
+        long divisor = 1;
+        while (divisor <= value / 10)
+        {
+            divisor *= 10;
+        }
+
+        for (; divisor > 0; divisor /= 10)
+        {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void ensureRemaining(final int length)
+    {
+        if (buffer.remaining() < length)
+        {
+            // earlier slices keep referring to the old buffer
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
@@ -2,12 +2,9 @@ package org.mbachran.server.custom.response;
 
 import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.HttpVersion;
-import org.mbachran.server.custom.util.ByteStreamWriter;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -15,67 +12,143 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
-import static org.mbachran.server.custom.util.Delimiters.*;
-
 /**
  * The response object to return to the client. Very simple version with a default serialization to a {@link ByteBuffer}.
  * Originally designed as immutable this contracted has been removed to allow header manipulation after the {@link Response} has been build by
  * its {@link Builder}.
  *
- * The response does not support varying the transfer encoding or anything on the body but plainly returns the byte array.
+ * The body is either a plain byte array or any other {@link ResponseBody} like a file that is transferred without passing the heap or a
+ * stream. Bodies of unknown length are sent chunked (see {@link #useChunkedTransferEncoding()}).
+ *
+ * The Content-Length is kept as number apart from the other headers and written as digits by the {@link HeaderEncoder}, so no String is
+ * created for it per response. Setting it as header is supported as well and stores the parsed number.
  *
  * The Builder defaults to {@link HttpVersion#HTTP_1_1}, utf-8 and {@link HttpCode#OK} if not explicitly set.
  */
 public class Response
 {
+    /**
+     * Initial capacity for encoding a head if no {@link HeaderEncoder} is given.
+     */
+    private static final int HEAD_CAPACITY = 256;
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
     private final HttpVersion version;
 
     private final Charset encoding;
 
     private final HttpCode code;
 
-    private final byte[] body;
+    private final ResponseBody body;
 
     private final Map<String, String> headers;
 
+    /**
+     * The value of the Content-Length header, -1 if the header is not sent.
+     */
+    private long contentLength;
+
     private Response(@Nonnull final HttpVersion version,
                      @Nonnull final Charset encoding,
                      @Nonnull final HttpCode code,
                      @Nonnull final Map<String, String> headers,
-                     @Nonnull final byte[] body)
+                     final long contentLength,
+                     @Nonnull final ResponseBody body)
     {
         this.version = Objects.requireNonNull(version);
         this.encoding = Objects.requireNonNull(encoding);
         this.code = Objects.requireNonNull(code);
         this.body = Objects.requireNonNull(body);
         this.headers = Objects.requireNonNull(headers);
+        this.contentLength = contentLength;
     }
 
     /**
      * Default "serialization" concatenating status line, headers and body by CRLFs with an empty line in front of the body (or as terminator).
      * Both headers and body are optional.
      *
+     * Copies the body. Prefer {@link #toByteBuffers()} for writing to a channel.
+     *
      * @return The full response serialized into a {@link ByteBuffer}.
-     * @throws IOException If writing to the stream used for concatenation fails.
+     * @throws IllegalStateException If the body is not held in memory.
      */
     @Nonnull
-    public ByteBuffer toByteBuffer() throws IOException
+    public ByteBuffer toByteBuffer()
     {
-        final ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
-        final ByteStreamWriter writer = new ByteStreamWriter(stream, encoding);
-        writer.write(version.getValue()).write(SP).write(code.getCode()).write(SP).write(code.getReasonPhrase()).write(CR_LF);
-        for (final Map.Entry<String, String> header : headers.entrySet())
+        final ByteBuffer head = encodeHead(new HeaderEncoder(HEAD_CAPACITY));
+        final ByteBuffer content = requireByteBuffer().duplicate();
+        final ByteBuffer buffer = ByteBuffer.allocate(head.remaining() + content.remaining());
+        buffer.put(head).put(content);
+        return buffer.flip();
+    }
+
+    /**
+     * Serialization for gathering writes via {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}.
+     * Only status line and headers are encoded. The body is wrapped without being copied.
+     *
+     * @return The encoded head followed by the body if there is one.
+     * @throws IllegalStateException If the body is not held in memory.
+     */
+    @Nonnull
+    public ByteBuffer[] toByteBuffers()
+    {
+        return toByteBuffers(new HeaderEncoder(HEAD_CAPACITY));
+    }
+
+    /**
+     * Same as {@link #toByteBuffers()} but encoding the head into the buffer of the given encoder instead of allocating one.
+     *
+     * @param headerEncoder The encoder to use. The returned head is only valid until the encoder is reset.
+     * @return The encoded head followed by the body if there is one.
+     * @throws IllegalStateException If the body is not held in memory.
+     */
+    @Nonnull
+    public ByteBuffer[] toByteBuffers(@Nonnull final HeaderEncoder headerEncoder)
+    {
+        final ByteBuffer content = requireByteBuffer();
+        final ByteBuffer head = encodeHead(headerEncoder);
+        return content.hasRemaining() ? new ByteBuffer[]{head, content} : new ByteBuffer[]{head};
+    }
+
+    /**
+     * @param headerEncoder The encoder to use. The returned head is only valid until the encoder is reset.
+     * @return Status line and headers terminated by the empty line. The body has to be written separately.
+     */
+    @Nonnull
+    public ByteBuffer encodeHead(@Nonnull final HeaderEncoder headerEncoder)
+    {
+        return headerEncoder.encode(version, code, headers, contentLength, encoding);
+    }
+
+    @Nonnull
+    private ByteBuffer requireByteBuffer()
+    {
+        final ByteBuffer content = body.asByteBuffer();
+        if (content == null)
         {
-            writer.write(header.getKey()).write(COLON).write(SP).write(header.getValue()).write(CR_LF);
+            throw new IllegalStateException("Body is not held in memory and must be written via ResponseBody.writeTo.");
         }
 
-        writer.write(CR_LF);
-        if (body.length > 0)
+        return content;
+    }
+
+    /**
+     * Frames a {@link StreamResponseBody} of unknown length as chunks and sets the corresponding header.
+     * Applied by the connection for HTTP/1.1 clients as the decision depends on the version of the request.
+     *
+     * @throws IllegalStateException If the body is not a stream of unknown length.
+     */
+    public void useChunkedTransferEncoding()
+    {
+        if (!(body instanceof StreamResponseBody))
         {
-            writer.write(body);
+            throw new IllegalStateException("Only stream bodies can be sent chunked.");
         }
 
-        return ByteBuffer.wrap(stream.toByteArray());
+        ((StreamResponseBody) body).useChunkedEncoding();
+        contentLength = -1;
+        headers.put("Transfer-Encoding", "chunked");
     }
 
     /**
@@ -87,6 +160,12 @@ public class Response
     public void setHeader(@Nonnull final String name, @Nullable final String value)
     {
         Objects.requireNonNull(name);
+        if (CONTENT_LENGTH.equals(name))
+        {
+            contentLength = value == null ? -1 : Long.parseLong(value);
+            return;
+        }
+
         headers.put(name, value);
     }
 
@@ -97,6 +176,12 @@ public class Response
     public void removeHeader(@Nonnull final String name)
     {
         Objects.requireNonNull(name);
+        if (CONTENT_LENGTH.equals(name))
+        {
+            contentLength = -1;
+            return;
+        }
+
         headers.remove(name);
     }
 
@@ -123,7 +208,7 @@ public class Response
         final byte[] body = null == message ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
         return new Builder()
                 .code(code)
-                .addHeader("Content-Length", String.valueOf(body.length))
+                .contentLength(body.length)
                 .body(body)
                 .build();
     }
@@ -139,10 +224,12 @@ public class Response
 
         private HttpCode code = HttpCode.OK;
 
-        private byte[] body = null;
+        private ResponseBody body = null;
 
         private final Map<String, String> headers = new HashMap<>();
 
+        private long contentLength = -1;
+
         /**
          * @param version The {@link HttpVersion} to use.
          * @return This {@link Builder}.
@@ -182,6 +269,18 @@ public class Response
          */
         @Nonnull
         public Builder body(@Nullable final byte[] body)
+        {
+            this.body = body == null ? null : new ByteArrayResponseBody(body);
+            return this;
+        }
+
+        /**
+         * @param body The body content of any kind like a file or stream. If the length is known the Content-Length header is set on build
+         *             unless given explicitly. A body of unknown length is sent chunked or close-delimited depending on the client's version.
+         * @return This {@link Builder}.
+         */
+        @Nonnull
+        public Builder body(@Nullable final ResponseBody body)
         {
             this.body = body;
             return this;
@@ -196,17 +295,39 @@ public class Response
         public Builder addHeader(@Nonnull final String name, @Nullable final String value)
         {
             Objects.requireNonNull(name);
+            if (CONTENT_LENGTH.equals(name))
+            {
+                return contentLength(value == null ? -1 : Long.parseLong(value));
+            }
+
             this.headers.put(name, value);
             return this;
         }
 
+        /**
+         * @param contentLength The value of the Content-Length header, -1 to not send the header.
+         * @return This {@link Builder}.
+         */
+        @Nonnull
+        public Builder contentLength(final long contentLength)
+        {
+            this.contentLength = contentLength;
+            return this;
+        }
+
         /**
          * @return The built {@link Response}.
          */
         @Nonnull
         public Response build()
         {
-            return new Response(version, encoding, code, headers, body == null ? new byte[0] : body);
+            if (contentLength < 0 && body != null && body.asByteBuffer() == null && body.getLength() >= 0)
+            {
+                contentLength = body.getLength();
+            }
+
+            return new Response(version, encoding, code, headers, contentLength,
+                    body == null ? new ByteArrayResponseBody(new byte[0]) : body);
         }
     }
 
@@ -225,13 +346,34 @@ public class Response
         return code;
     }
 
+    /**
+     * @return The body bytes or null if the body is not held in memory as byte array.
+     */
+    @Nullable
     public byte[] getBody()
+    {
+        return body instanceof ByteArrayResponseBody ? ((ByteArrayResponseBody) body).getContent() : null;
+    }
+
+    /**
+     * @return The body of any kind. Empty if none was given.
+     */
+    @Nonnull
+    public ResponseBody getResponseBody()
     {
         return body;
     }
 
     /**
-     * @return unmodifiable map
+     * @return The value of the Content-Length header, -1 if the header is not sent.
+     */
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    /**
+     * @return unmodifiable map, without the Content-Length (see {@link #getContentLength()})
      */
     public Map<String, String> getHeaders()
     {
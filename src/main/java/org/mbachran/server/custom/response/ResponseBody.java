@@ -0,0 +1,43 @@
+package org.mbachran.server.custom.response;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The body of a {@link Response}. Stateful as it keeps track of how much of it has been written already.
+ *
+ * Bodies held in memory expose themselves as {@link ByteBuffer} so they can be written along with the head by a gathering write.
+ * Others (like files) are written by {@link #writeTo(WritableByteChannel)} which might be called several times for non-blocking channels.
+ *
+ * Must be closed by whoever writes it, also if writing never started or failed.
+ */
+public interface ResponseBody extends AutoCloseable
+{
+    /**
+     * @return The length in bytes or -1 if unknown before the body has been written (streams only).
+     */
+    long getLength();
+
+    /**
+     * @return The body as buffer to write from (position and limit are adjusted by writing) or null if the body is not held in memory.
+     */
+    @Nullable
+    ByteBuffer asByteBuffer();
+
+    /**
+     * Writes as much of the remaining body as the channel accepts.
+     *
+     * @param channel The channel to write to.
+     * @return True if the body has been written completely.
+     * @throws IOException If reading the source of the body or writing fails.
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Releases any resources held by the body. Never fails.
+     */
+    @Override
+    void close();
+}
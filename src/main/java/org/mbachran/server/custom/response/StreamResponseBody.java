@@ -0,0 +1,251 @@
+package org.mbachran.server.custom.response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.mbachran.server.custom.util.Delimiters.CR;
+import static org.mbachran.server.custom.util.Delimiters.CR_LF;
+import static org.mbachran.server.custom.util.Delimiters.LF;
+
+/**
+ * {@link ResponseBody} pulled from a stream or channel piece by piece while being written. Only one buffer of bytes is held at a time
+ * so neither heap nor time to first byte grow with the size of the body.
+ *
+ * The length might be unknown (-1). Such a body is sent with 'Transfer-Encoding: chunked' to HTTP/1.1 clients (see
+ * {@link Response#useChunkedTransferEncoding()}) and delimited by closing the connection for HTTP/1.0 clients.
+ * Handlers producing content on the fly can pass their own {@link ReadableByteChannel} implementation.
+ *
+ * The source is read with blocking semantics and closed on {@link #close()}. A read returning zero bytes is retried after a pause that
+ * grows up to {@link #MAX_PAUSE_NANOS} instead of spinning. Reading happens within the thread writing the body, which is never a selector
+ * loop (see {@link org.mbachran.server.custom.connection.impl.SelectorConnection}).
+ */
+public class StreamResponseBody implements ResponseBody
+{
+    private static final Logger LOG = LoggerFactory.getLogger(StreamResponseBody.class);
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final long MIN_PAUSE_NANOS = 50_000L;
+
+    private static final long MAX_PAUSE_NANOS = 10_000_000L;
+
+    /**
+     * Room in front of the data of a chunk for up to 8 hex digits of the chunk size and the CRLF.
+     */
+    private static final int CHUNK_HEADER_ROOM = 10;
+
+    private static final byte[] CRLF_BYTES = CR_LF.getBytes(US_ASCII);
+
+    private static final byte[] LAST_CHUNK = ("0" + CR_LF + CR_LF).getBytes(US_ASCII);
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(US_ASCII);
+
+    private final ReadableByteChannel source;
+
+    private final long length;
+
+    /**
+     * Holds the bytes (including any chunk framing) read from the source but not yet written. In read mode between calls.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Whether to frame the bytes as chunks.
+     */
+    private boolean chunked;
+
+    /**
+     * The number of bytes read from the source so far.
+     */
+    private long transferred;
+
+    /**
+     * Set as soon as the last bytes have been put into the {@link #buffer}.
+     */
+    private boolean complete;
+
+    /**
+     * @param source The stream to read the body from.
+     * @param length The number of bytes to send or -1 if unknown.
+     */
+    public StreamResponseBody(@Nonnull final InputStream source, final long length)
+    {
+        this(Channels.newChannel(source), length);
+    }
+
+    /**
+     * @param source The channel to read the body from.
+     * @param length The number of bytes to send or -1 if unknown.
+     */
+    public StreamResponseBody(@Nonnull final ReadableByteChannel source, final long length)
+    {
+        this(source, length, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param source     The channel to read the body from.
+     * @param length     The number of bytes to send or -1 if unknown.
+     * @param bufferSize The maximum number of bytes read from the source at once. Also the maximum chunk size.
+     */
+    public StreamResponseBody(@Nonnull final ReadableByteChannel source, final long length, final int bufferSize)
+    {
+        this.source = Objects.requireNonNull(source);
+        this.length = length;
+        this.buffer = ByteBuffer.allocate(CHUNK_HEADER_ROOM + bufferSize + CRLF_BYTES.length).limit(0);
+        this.complete = length == 0;
+    }
+
+    /**
+     * Frames the body as chunks. Only allowed for bodies of unknown length before writing started.
+     */
+    void useChunkedEncoding()
+    {
+        if (length >= 0 || transferred > 0)
+        {
+            throw new IllegalStateException("Chunked encoding is only used for bodies of unknown length before writing started.");
+        }
+
+        chunked = true;
+    }
+
+    /**
+     * @return True if the body is framed as chunks.
+     */
+    public boolean isChunked()
+    {
+        return chunked;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer asByteBuffer()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean writeTo(@Nonnull final WritableByteChannel channel) throws IOException
+    {
+        while (true)
+        {
+            if (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                {
+                    return false;
+                }
+            }
+
+            if (complete)
+            {
+                return true;
+            }
+
+            fill();
+        }
+    }
+
+    /**
+     * Reads the next bytes from the source into the {@link #buffer} and frames them if chunked.
+     *
+     * @throws IOException If reading fails, the source ends before the given length or the thread is interrupted while waiting.
+     */
+    private void fill() throws IOException
+    {
+        final int dataStart = chunked ? CHUNK_HEADER_ROOM : 0;
+        final int dataEnd = buffer.capacity() - CRLF_BYTES.length;
+        buffer.clear().position(dataStart);
+        buffer.limit(length < 0 ? dataEnd : (int) Math.min(dataEnd, dataStart + length - transferred));
+
+        int numBytesRead = source.read(buffer);
+        long pauseNanos = MIN_PAUSE_NANOS;
+        while (numBytesRead == 0)
+        {
+            // a non-blocking source has nothing for now
+            LockSupport.parkNanos(pauseNanos);
+            if (Thread.interrupted())
+            {
+                throw new InterruptedIOException("Interrupted while waiting for the body source.");
+            }
+
+            pauseNanos = Math.min(pauseNanos * 2, MAX_PAUSE_NANOS);
+            numBytesRead = source.read(buffer);
+        }
+
+        if (numBytesRead == -1)
+        {
+            if (length >= 0)
+            {
+                throw new IOException("Body source ended after " + transferred + " of " + length + " bytes.");
+            }
+
+            buffer.clear();
+            if (chunked)
+            {
+                buffer.put(LAST_CHUNK);
+            }
+
+            buffer.flip();
+            complete = true;
+            return;
+        }
+
+        transferred += numBytesRead;
+        if (chunked)
+        {
+            buffer.limit(buffer.capacity()).put(CRLF_BYTES);
+            final int end = buffer.position();
+
+            // size in hex followed by CRLF right in front of the data
+            int start = dataStart - CRLF_BYTES.length;
+            buffer.put(start, CR).put(start + 1, LF);
+            int remaining = numBytesRead;
+            do
+            {
+                buffer.put(--start, HEX_DIGITS[remaining & 0xf]);
+                remaining >>>= 4;
+            }
+            while (remaining != 0);
+
+            buffer.limit(end).position(start);
+        }
+        else
+        {
+            buffer.flip();
+            complete = length >= 0 && transferred == length;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            source.close();
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed closing body source: " + e.getMessage());
+        }
+    }
+}
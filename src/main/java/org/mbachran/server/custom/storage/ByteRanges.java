@@ -0,0 +1,152 @@
+package org.mbachran.server.custom.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of the Range header of GET requests (RFC 7233) resolving the byte ranges against the size of the resource:
+ * - 'bytes=0-99': the first 100 bytes
+ * - 'bytes=100-': all from offset 100 on
+ * - 'bytes=-100': the last 100 bytes
+ * - several of them separated by commas
+ *
+ * Last positions beyond the end are cut to the size. Ranges starting beyond the end are not satisfiable and left out.
+ * Ranges are neither sorted nor coalesced but their number is limited, so a request cannot make the resource be sent over and over.
+ */
+final class ByteRanges
+{
+    /**
+     * Requests of more ranges are answered with the full resource.
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * An inclusive range of bytes within the resource.
+     */
+    static final class Range
+    {
+        private final long first;
+
+        private final long last;
+
+        Range(final long first, final long last)
+        {
+            this.first = first;
+            this.last = last;
+        }
+
+        long getFirst()
+        {
+            return first;
+        }
+
+        long getLast()
+        {
+            return last;
+        }
+
+        long getLength()
+        {
+            return last - first + 1;
+        }
+
+        /**
+         * @return The value of the Content-Range header for this range.
+         */
+        @Nonnull
+        String toContentRange(final long size)
+        {
+            return "bytes " + first + "-" + last + "/" + size;
+        }
+    }
+
+    private ByteRanges()
+    {
+        // static only
+    }
+
+    /**
+     * @param header The value of the Range header.
+     * @param size   The size of the resource.
+     * @return The satisfiable ranges in requested order, empty if none is satisfiable or null if the header is to be ignored as it is
+     * missing, malformed, of another unit than bytes or asks for too many ranges.
+     */
+    @Nullable
+    static List<Range> parse(@Nullable final String header, final long size)
+    {
+        if (header == null || !header.trim().regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length()))
+        {
+            return null;
+        }
+
+        final String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES)
+        {
+            return null;
+        }
+
+        final List<Range> ranges = new ArrayList<>();
+        boolean anySpec = false;
+        for (final String untrimmed : specs)
+        {
+            final String spec = untrimmed.trim();
+            if (spec.isEmpty())
+            {
+                // empty list elements are allowed
+                continue;
+            }
+
+            anySpec = true;
+            final int dash = spec.indexOf('-');
+            final long first = dash > 0 ? parsePosition(spec.substring(0, dash)) : 0;
+            final long last = dash >= 0 && dash < spec.length() - 1 ? parsePosition(spec.substring(dash + 1)) : Long.MAX_VALUE;
+            if (dash == -1 || first < 0 || last < 0 || (dash == 0 && last == Long.MAX_VALUE) || first > last)
+            {
+                return null;
+            }
+
+            if (dash == 0)
+            {
+                // suffix: the last bytes
+                if (last > 0 && size > 0)
+                {
+                    ranges.add(new Range(Math.max(0, size - last), size - 1));
+                }
+            }
+            else if (first < size)
+            {
+                ranges.add(new Range(first, Math.min(last, size - 1)));
+            }
+        }
+
+        return anySpec ? ranges : null;
+    }
+
+    /**
+     * @return The position or -1 if not a plain non-negative decimal number.
+     */
+    private static long parsePosition(@Nonnull final String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9')
+            {
+                return -1;
+            }
+        }
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            // too large
+            return -1;
+        }
+    }
+}
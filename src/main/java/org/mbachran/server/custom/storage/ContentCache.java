@@ -0,0 +1,344 @@
+package org.mbachran.server.custom.storage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of file contents bounded by the sum of their sizes, keyed by the resolved path. Used by the {@link FilePersistence} to serve
+ * the hot set of small resources without touching the file system.
+ *
+ * The eviction policy is W-TinyLFU:
+ * - new entries enter a small LRU window (1% of the budget) so bursts of new resources get a chance to prove themselves
+ * - entries evicted from the window are only admitted to the main region if they have been accessed more often recently than the
+ * entry they would replace (estimated by a {@link FrequencySketch}), so a scan over many files once does not flush the hot set
+ * - the main region is a segmented LRU: entries hit again while on probation are promoted to the protected segment (80% of it)
+ *
+ * Contents are shared and must not be modified. The persistence invalidates entries on writes. Loads that raced with a write are
+ * not cached (see {@link #stamp()}). Thread safe. Hit rate, evictions and resident bytes are exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=ContentCache", description = "Cache of file contents")
+public class ContentCache
+{
+    private static final int WINDOW_PERCENT = 1;
+
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * The size of resources assumed on average to dimension the {@link FrequencySketch}.
+     */
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+
+    private enum Region
+    {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static class Entry
+    {
+        private final Path path;
+
+        private final byte[] content;
+
+        private Region region = Region.WINDOW;
+
+        private Entry(@Nonnull final Path path, @Nonnull final byte[] content)
+        {
+            this.path = path;
+            this.content = content;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final long maxEntrySize;
+
+    private final long windowMaxBytes;
+
+    private final long protectedMaxBytes;
+
+    private final FrequencySketch sketch;
+
+    private final Map<Path, Entry> entries = new HashMap<>();
+
+    /**
+     * Per region in LRU order (eldest first).
+     */
+    private final Map<Region, LinkedHashMap<Path, Entry>> regions = new EnumMap<>(Region.class);
+
+    private final long[] regionBytes = new long[Region.values().length];
+
+    /**
+     * Counts the invalidations so loads can tell whether a write happened meanwhile.
+     */
+    private long invalidations;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param maxBytes     The maximum sum of the sizes of the cached contents. Zero or negative disables the cache.
+     * @param maxEntrySize The maximum size of a content to cache.
+     */
+    @Autowired
+    public ContentCache(@Value("${application.config.custom-server.storage.cache.max-bytes:33554432}") final long maxBytes,
+                        @Value("${application.config.custom-server.storage.cache.max-entry-size:1048576}") final long maxEntrySize)
+    {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntrySize = Math.min(maxEntrySize, this.maxBytes);
+        this.windowMaxBytes = this.maxBytes * WINDOW_PERCENT / 100;
+        this.protectedMaxBytes = (this.maxBytes - windowMaxBytes) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maxBytes / AVERAGE_ENTRY_SIZE));
+        for (final Region region : Region.values())
+        {
+            regions.put(region, new LinkedHashMap<>(16, 0.75f, true));
+        }
+    }
+
+    /**
+     * @param path The resolved path of the file.
+     * @return The content of the file or null if it is not cached. Must not be modified.
+     */
+    @Nullable
+    public synchronized byte[] get(@Nonnull final Path path)
+    {
+        if (maxBytes == 0)
+        {
+            return null;
+        }
+
+        sketch.increment(path);
+        final Entry entry = entries.get(path);
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        if (entry.region == Region.PROBATION)
+        {
+            move(entry, Region.PROTECTED);
+            while (regionBytes[Region.PROTECTED.ordinal()] > protectedMaxBytes)
+            {
+                move(eldest(Region.PROTECTED), Region.PROBATION);
+            }
+        }
+        else
+        {
+            // access ordered, so the lookup makes it the most recently used one of its region
+            regions.get(entry.region).get(path);
+        }
+
+        return entry.content;
+    }
+
+    /**
+     * @param path The resolved path of the file.
+     * @return True if the content of the file is cached. Does not count as access.
+     */
+    public synchronized boolean contains(@Nonnull final Path path)
+    {
+        return entries.containsKey(path);
+    }
+
+    /**
+     * To be taken before loading a content from the file system and handed to {@link #put(Path, byte[], long)} afterwards.
+     *
+     * @return The current state of invalidations.
+     */
+    public synchronized long stamp()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Offers a content loaded from the file system. It is dropped if it is too large or any invalidation happened since the stamp was
+     * taken, as the content might be outdated already.
+     *
+     * @param path    The resolved path of the file.
+     * @param content The content of the file. Must not be modified afterwards.
+     * @param stamp   The {@link #stamp()} taken before loading.
+     */
+    public synchronized void put(@Nonnull final Path path, @Nonnull final byte[] content, final long stamp)
+    {
+        if (maxBytes == 0 || content.length > maxEntrySize || stamp != invalidations || entries.containsKey(path))
+        {
+            return;
+        }
+
+        final Entry entry = new Entry(path, content);
+        entries.put(path, entry);
+        regions.get(Region.WINDOW).put(path, entry);
+        regionBytes[Region.WINDOW.ordinal()] += content.length;
+        while (regionBytes[Region.WINDOW.ordinal()] > windowMaxBytes)
+        {
+            admit(eldest(Region.WINDOW));
+        }
+    }
+
+    /**
+     * Drops the content of the file if cached, to be called once the file has been written or deleted.
+     *
+     * @param path The resolved path of the file.
+     */
+    public synchronized void invalidate(@Nonnull final Path path)
+    {
+        invalidations++;
+        final Entry entry = entries.remove(path);
+        if (entry != null)
+        {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Drops the contents of the file and all files below it, to be called if a file or directory has been changed by others.
+     *
+     * @param path The resolved path of the file or directory.
+     */
+    public synchronized void invalidateTree(@Nonnull final Path path)
+    {
+        invalidations++;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext())
+        {
+            final Entry entry = iterator.next();
+            if (entry.path.startsWith(path))
+            {
+                iterator.remove();
+                unlink(entry);
+            }
+        }
+    }
+
+    /**
+     * Moves the candidate evicted from the window to the main region if there is room or it is accessed more often than each of the
+     * victims that have to make room for it. The victims are only evicted once the candidate is admitted, otherwise the candidate is.
+     */
+    private void admit(@Nonnull final Entry candidate)
+    {
+        final long mainMaxBytes = maxBytes - windowMaxBytes;
+        final int candidateFrequency = sketch.frequency(candidate.path);
+        final Iterator<Entry> probation = regions.get(Region.PROBATION).values().iterator();
+        final Iterator<Entry> protect = regions.get(Region.PROTECTED).values().iterator();
+        final List<Entry> victims = new ArrayList<>();
+        long freed = 0;
+        while (mainBytes() - freed + candidate.content.length > mainMaxBytes)
+        {
+            if (!probation.hasNext() && !protect.hasNext())
+            {
+                evict(candidate);
+                return;
+            }
+
+            final Entry victim = probation.hasNext() ? probation.next() : protect.next();
+            if (candidateFrequency <= sketch.frequency(victim.path))
+            {
+                evict(candidate);
+                return;
+            }
+
+            victims.add(victim);
+            freed += victim.content.length;
+        }
+
+        for (final Entry victim : victims)
+        {
+            evict(victim);
+        }
+
+        move(candidate, Region.PROBATION);
+    }
+
+    private long mainBytes()
+    {
+        return regionBytes[Region.PROBATION.ordinal()] + regionBytes[Region.PROTECTED.ordinal()];
+    }
+
+    @Nonnull
+    private Entry eldest(@Nonnull final Region region)
+    {
+        return regions.get(region).values().iterator().next();
+    }
+
+    private void move(@Nonnull final Entry entry, @Nonnull final Region region)
+    {
+        unlink(entry);
+        entry.region = region;
+        regions.get(region).put(entry.path, entry);
+        regionBytes[region.ordinal()] += entry.content.length;
+    }
+
+    private void evict(@Nonnull final Entry entry)
+    {
+        entries.remove(entry.path);
+        unlink(entry);
+        evictions++;
+    }
+
+    private void unlink(@Nonnull final Entry entry)
+    {
+        regions.get(entry.region).remove(entry.path);
+        regionBytes[entry.region.ordinal()] -= entry.content.length;
+    }
+
+    @ManagedAttribute(description = "The maximum sum of the sizes of the cached contents.")
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    @ManagedAttribute(description = "The sum of the sizes of the cached contents.")
+    public synchronized long getResidentBytes()
+    {
+        return regionBytes[Region.WINDOW.ordinal()] + mainBytes();
+    }
+
+    @ManagedAttribute(description = "The number of cached contents.")
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "The number of reads served from the cache.")
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    @ManagedAttribute(description = "The number of reads that had to load from the file system.")
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @ManagedAttribute(description = "The share of reads served from the cache.")
+    public synchronized double getHitRate()
+    {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @ManagedAttribute(description = "The number of contents evicted or not admitted by the eviction policy.")
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+}
@@ -0,0 +1,486 @@
+package org.mbachran.server.custom.storage;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.mbachran.server.custom.util.SurvivingRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes files of the storage with the configured durability:
+ * - none: the file is overwritten in place. A crash (or a concurrent reader) can see it half written. Callers replace files that
+ * may be mapped nevertheless (see {@link #replace(Path, ContentWriter)}).
+ * - atomic: the content is written to a hidden temporary sibling which is renamed onto the file (atomic move), so the file is either
+ * the former or the new one as a whole. Without a crash of the operating system the new file is not lost.
+ * - synced: atomic and forced to the disk before the write returns: the temporary file before the rename and the directory after it.
+ *
+ * Forcing is done by group commit: a single thread forces the files and directories of all writes pending within a bounded window
+ * (or up to a maximum batch) at once, so concurrent PUT and POST requests share a batch instead of queuing up for a force each.
+ * A path requested by several writes of a batch (like the journal of a JSON document or a common directory) is forced once.
+ *
+ * Temporary files left by a crash are removed by {@link #removeTemporaryFiles(Path)} on start. Thread safe. The counters are
+ * exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=DurableWrites", description = "Durability of the storage writes")
+public class DurableWrites
+{
+    private static final Logger LOG = LoggerFactory.getLogger(DurableWrites.class);
+
+    private static final String TEMPORARY_PREFIX = ".";
+
+    private static final String TEMPORARY_SUFFIX = ".writing";
+
+    /**
+     * The durability of writes, ordered by increasing safety and cost.
+     */
+    enum Mode
+    {
+        none,
+        atomic,
+        synced
+    }
+
+    /**
+     * Writes the content of a file.
+     */
+    @FunctionalInterface
+    interface ContentWriter
+    {
+        /**
+         * @param channel The channel of the (temporary) file, empty and positioned at its start.
+         */
+        void write(@Nonnull FileChannel channel) throws IOException;
+    }
+
+    /**
+     * The paths a write waits to be forced for.
+     */
+    private static class Commit
+    {
+        private final Path[] paths;
+
+        private final CompletableFuture<Void> forced = new CompletableFuture<>();
+
+        private Commit(@Nonnull final Path[] paths)
+        {
+            this.paths = paths;
+        }
+    }
+
+    private final Mode mode;
+
+    private final long windowNanos;
+
+    private final int maxBatch;
+
+    private final BlockingQueue<Commit> pending = new LinkedBlockingQueue<>();
+
+    private ExecutorService syncer;
+
+    private boolean closed;
+
+    private long commits;
+
+    private long batches;
+
+    private long forces;
+
+    /**
+     * @param mode     'none', 'atomic' or 'synced'.
+     * @param window   The milliseconds a batch of forces waits for further writes to join once the first one is pending.
+     * @param maxBatch The number of writes after which a batch is forced without waiting for the window to end.
+     */
+    @Autowired
+    public DurableWrites(@Value("${application.config.custom-server.storage.durability.mode:atomic}") @Nonnull final String mode,
+                         @Value("${application.config.custom-server.storage.durability.group-commit-window:2}") final long window,
+                         @Value("${application.config.custom-server.storage.durability.group-commit-max-batch:64}") final int maxBatch)
+    {
+        try
+        {
+            this.mode = Mode.valueOf(mode.trim().toLowerCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown durability mode '" + mode + "'. Use 'none', 'atomic' or 'synced'.");
+        }
+
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, window));
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Writes the file with the configured durability. The parent directory must exist.
+     *
+     * @param path   The resolved path.
+     * @param writer Writes the content.
+     * @throws IOException If writing fails. The file is unchanged then unless written in place.
+     */
+    void write(@Nonnull final Path path, @Nonnull final ContentWriter writer) throws IOException
+    {
+        write(path, writer, mode);
+    }
+
+    void write(@Nonnull final Path path, @Nonnull final byte[] content) throws IOException
+    {
+        write(path, channel -> writeFully(channel, content), mode);
+    }
+
+    /**
+     * Writes the file at least atomically, for files that must never be seen half written (like compacted JSON documents whose
+     * journal is deleted afterwards) or truncated in place (like files that may be mapped, see {@link MappedFiles}).
+     *
+     * @param path   The resolved path.
+     * @param writer Writes the content.
+     * @throws IOException If writing fails. The file is unchanged then.
+     */
+    void replace(@Nonnull final Path path, @Nonnull final ContentWriter writer) throws IOException
+    {
+        write(path, writer, mode == Mode.none ? Mode.atomic : mode);
+    }
+
+    void replace(@Nonnull final Path path, @Nonnull final byte[] content) throws IOException
+    {
+        replace(path, channel -> writeFully(channel, content));
+    }
+
+    /**
+     * Deletes the file, in synced mode the deletion is forced to the disk before returning.
+     *
+     * @param path The resolved path.
+     * @throws IOException If the file does not exist or cannot be deleted.
+     */
+    void delete(@Nonnull final Path path) throws IOException
+    {
+        Files.delete(path);
+        sync(path.getParent());
+    }
+
+    /**
+     * Forces the files or directories to the disk by group commit if in synced mode, does nothing otherwise. Paths that do not exist
+     * anymore are skipped, as whoever deleted or replaced them is responsible for their durability.
+     *
+     * @param paths The resolved paths.
+     * @throws IOException If forcing fails or is interrupted.
+     */
+    void sync(@Nonnull final Path... paths) throws IOException
+    {
+        if (mode != Mode.synced || paths.length == 0)
+        {
+            return;
+        }
+
+        final Commit commit = new Commit(paths);
+        enqueue(commit);
+        try
+        {
+            commit.forced.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while forcing " + paths[0]);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException("Failed forcing " + paths[0], e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the temporary files below the root that were left by writes interrupted by a crash.
+     *
+     * @param root The root of the storage.
+     * @throws IOException If the tree cannot be walked.
+     */
+    void removeTemporaryFiles(@Nonnull final Path root) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException
+            {
+                if (isTemporary(file))
+                {
+                    LOG.info("Removing {} left by an interrupted write.", file);
+                    Files.deleteIfExists(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param path A path below the root.
+     * @return True if the path is of a temporary file written before being moved over its target.
+     */
+    static boolean isTemporary(@Nonnull final Path path)
+    {
+        final Path name = path.getFileName();
+        return name != null && name.toString().startsWith(TEMPORARY_PREFIX) && name.toString().endsWith(TEMPORARY_SUFFIX);
+    }
+
+    /**
+     * Stops forcing, writes still waiting fail.
+     */
+    @PreDestroy
+    synchronized void close()
+    {
+        closed = true;
+        if (syncer != null)
+        {
+            syncer.shutdownNow();
+            syncer = null;
+        }
+
+        Commit commit;
+        while ((commit = pending.poll()) != null)
+        {
+            commit.forced.completeExceptionally(new IOException("Closed before forcing " + commit.paths[0]));
+        }
+    }
+
+    private void write(@Nonnull final Path path, @Nonnull final ContentWriter writer, @Nonnull final Mode mode) throws IOException
+    {
+        if (mode == Mode.none)
+        {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                writer.write(channel);
+            }
+
+            return;
+        }
+
+        // created by the server's own rights (unlike a temp file of the JDK), as the file it becomes
+        final Path temporary = path.resolveSibling(TEMPORARY_PREFIX + path.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMPORARY_SUFFIX);
+        boolean moved = false;
+        try
+        {
+            try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                writer.write(channel);
+            }
+
+            if (mode == Mode.synced)
+            {
+                sync(temporary);
+            }
+
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+            if (mode == Mode.synced)
+            {
+                sync(path.getParent());
+            }
+        }
+        finally
+        {
+            if (!moved)
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    static void writeFully(@Nonnull final FileChannel channel, @Nonnull final byte[] content) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    private synchronized void enqueue(@Nonnull final Commit commit) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Closed, not forcing " + commit.paths[0]);
+        }
+
+        if (syncer == null)
+        {
+            final BasicThreadFactory factory = new BasicThreadFactory.Builder().namingPattern("storage-syncer-%d").daemon(true).build();
+            syncer = Executors.newSingleThreadExecutor(factory);
+            syncer.submit(new SurvivingRunnable(this::forceBatch));
+        }
+
+        commits++;
+        pending.add(commit);
+    }
+
+    /**
+     * Waits for the first pending write, collects the writes joining within the window and forces the paths of all of them.
+     *
+     * @return 0 to keep forcing.
+     */
+    private long forceBatch() throws InterruptedException
+    {
+        final List<Commit> batch = new ArrayList<>();
+        batch.add(pending.take());
+        final long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch)
+        {
+            final long remaining = deadline - System.nanoTime();
+            final Commit next;
+            try
+            {
+                next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+            }
+            catch (InterruptedException e)
+            {
+                // closing, the writes collected so far must not wait forever
+                batch.forEach(commit -> commit.forced.completeExceptionally(new IOException("Closed before forcing " + commit.paths[0])));
+                throw e;
+            }
+
+            if (next == null)
+            {
+                break;
+            }
+
+            batch.add(next);
+        }
+
+        final Set<Path> paths = new LinkedHashSet<>();
+        for (final Commit commit : batch)
+        {
+            paths.addAll(List.of(commit.paths));
+        }
+
+        final Map<Path, IOException> failures = new HashMap<>();
+        for (final Path path : paths)
+        {
+            try
+            {
+                force(path);
+            }
+            catch (IOException e)
+            {
+                failures.put(path, e);
+            }
+        }
+
+        synchronized (this)
+        {
+            batches++;
+            forces += paths.size();
+        }
+
+        LOG.debug("Forced {} paths of {} writes.", paths.size(), batch.size());
+        for (final Commit commit : batch)
+        {
+            IOException failure = null;
+            for (final Path path : commit.paths)
+            {
+                failure = failure == null ? failures.get(path) : failure;
+            }
+
+            if (failure == null)
+            {
+                commit.forced.complete(null);
+            }
+            else
+            {
+                commit.forced.completeExceptionally(failure);
+            }
+        }
+
+        return 0;
+    }
+
+    private static void force(@Nonnull final Path path) throws IOException
+    {
+        final boolean directory = Files.isDirectory(path);
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (NoSuchFileException e)
+        {
+            LOG.debug("Not forcing {} as it is gone.", path);
+        }
+        catch (IOException e)
+        {
+            if (!directory)
+            {
+                throw e;
+            }
+
+            // some platforms cannot open directories, their entries are durable with the files then
+            LOG.debug("Cannot force directory {}: {}", path, e.getMessage());
+        }
+    }
+
+    @ManagedAttribute(description = "The durability of writes: none, atomic or synced.")
+    public String getMode()
+    {
+        return mode.name();
+    }
+
+    @ManagedAttribute(description = "The milliseconds a batch of forces waits for further writes to join.")
+    public long getGroupCommitWindow()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    @ManagedAttribute(description = "The number of writes that waited to be forced.")
+    public synchronized long getCommits()
+    {
+        return commits;
+    }
+
+    @ManagedAttribute(description = "The number of batches forced.")
+    public synchronized long getBatches()
+    {
+        return batches;
+    }
+
+    @ManagedAttribute(description = "The number of files and directories forced.")
+    public synchronized long getForces()
+    {
+        return forces;
+    }
+}
@@ -0,0 +1,111 @@
+package org.mbachran.server.custom.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.URLConnection;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * What is known about a path of the storage without reading the content: whether it is a file and if so its size, content type and
+ * validators. Immutable, cached by the {@link MetadataCache} or provided by the {@link JsonDocumentStore} for documents it holds.
+ */
+final class FileMetadata
+{
+    /**
+     * The metadata of paths that do not exist or are no files (like directories).
+     */
+    static final FileMetadata NO_FILE = new FileMetadata(false, -1, null, null, false);
+
+    private final boolean file;
+
+    private final long size;
+
+    private final String contentType;
+
+    private final ResourceValidators validators;
+
+    private final boolean inMemory;
+
+    private FileMetadata(final boolean file, final long size, @Nullable final String contentType,
+                         @Nullable final ResourceValidators validators, final boolean inMemory)
+    {
+        this.file = file;
+        this.size = size;
+        this.contentType = contentType;
+        this.validators = validators;
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * @param path       The resolved path.
+     * @param attributes The attributes as read from the file system.
+     * @return The metadata of the path.
+     */
+    @Nonnull
+    static FileMetadata of(@Nonnull final Path path, @Nonnull final BasicFileAttributes attributes)
+    {
+        if (!attributes.isRegularFile())
+        {
+            return NO_FILE;
+        }
+
+        return new FileMetadata(true, attributes.size(), guessContentType(path), new ResourceValidators(attributes), false);
+    }
+
+    /**
+     * @param path         The resolved path.
+     * @param size         The size of the current content held in memory.
+     * @param lastModified The time of the last modification in memory.
+     * @return The metadata of a file whose current content is held in memory only, not yet written to the file.
+     */
+    @Nonnull
+    static FileMetadata inMemory(@Nonnull final Path path, final long size, @Nonnull final FileTime lastModified)
+    {
+        return new FileMetadata(true, size, guessContentType(path), new ResourceValidators(size, lastModified), true);
+    }
+
+    @Nullable
+    private static String guessContentType(@Nonnull final Path path)
+    {
+        final Path fileName = path.getFileName();
+        return fileName == null ? null : URLConnection.guessContentTypeFromName(fileName.toString());
+    }
+
+    /**
+     * @return True if the path is a regular file. All other attributes are only available for files.
+     */
+    boolean isFile()
+    {
+        return file;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return The content type as guessed from the file name or null if unknown.
+     */
+    @Nullable
+    String getContentType()
+    {
+        return contentType;
+    }
+
+    ResourceValidators getValidators()
+    {
+        return validators;
+    }
+
+    /**
+     * @return True if the current content is held in memory only, so it must be read via {@link FilePersistence#readBinary(String)}
+     * and never be transferred or mapped from the file.
+     */
+    boolean isInMemory()
+    {
+        return inMemory;
+    }
+}
@@ -1,16 +1,23 @@
 package org.mbachran.server.custom.storage;
 
-import org.apache.commons.lang3.StringUtils;
-import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
+import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Simple file persistence that reads and writes to the static folder from the resources of its project.
@@ -26,12 +33,17 @@ import java.nio.file.Paths;
  * - binary data without damaging it by any encoding conversion.
  * - test aka Strings
  *
- * There is a special method to create or update JSON files. This will perform a merge on the JSON trees like:
- * - colliding names will cause a value overwrite
- * - attributes of type {@link JSONObject} will cause a merge within the subtree
- * - arrays are not merged (no superset of the values) but overwritten
+ * There is a special method to create or update JSON files. This will perform a merge on the JSON trees (see {@link JsonDocumentStore}),
+ * which keeps hot documents in memory and appends the updates to a journal instead of rewriting the file each time.
  *
  * So in principal JSON files can be used as an attribute based tree like storage with multi value support per resource aka file.
+ *
+ * Contents read are kept in a {@link ContentCache} so the hot set of resources is served without touching the file system. All writes
+ * and deletes go through this persistence and invalidate the cached content. Large files can be mapped into memory instead
+ * (see {@link MappedFiles}). Existence, size and validators of files are served from the {@link MetadataCache}. Files changed by
+ * anyone else are noticed by its watch service, which invalidates all the caches as well.
+ *
+ * Writes are done with the configured durability (see {@link DurableWrites}): in place, atomically or forced to the disk.
  */
 @Component
 public class FilePersistence
@@ -40,8 +52,45 @@ public class FilePersistence
 
     private final String rootPath;
 
+    private final ContentCache contentCache;
+
+    private final MappedFiles mappedFiles;
+
+    private final MetadataCache metadataCache;
+
+    private final JsonDocumentStore jsonStore;
+
+    private final DurableWrites durableWrites;
+
     FilePersistence()
     {
+        this(new ContentCache(0, 0), new MappedFiles(0, 0), new MetadataCache(0, false), new DurableWrites("atomic", 0, 1));
+    }
+
+    private FilePersistence(@Nonnull final ContentCache contentCache, @Nonnull final MappedFiles mappedFiles,
+                            @Nonnull final MetadataCache metadataCache, @Nonnull final DurableWrites durableWrites)
+    {
+        this(contentCache, mappedFiles, metadataCache, new JsonDocumentStore(1, 1000, durableWrites), durableWrites);
+    }
+
+    /**
+     * @param contentCache  The cache to serve the contents of files from.
+     * @param mappedFiles   The mappings of large files.
+     * @param metadataCache The cache to serve the metadata of files from.
+     * @param jsonStore     The store to merge JSON documents with.
+     * @param durableWrites How to write files.
+     */
+    @Autowired
+    FilePersistence(@Nonnull final ContentCache contentCache, @Nonnull final MappedFiles mappedFiles,
+                    @Nonnull final MetadataCache metadataCache, @Nonnull final JsonDocumentStore jsonStore,
+                    @Nonnull final DurableWrites durableWrites)
+    {
+        this.contentCache = contentCache;
+        this.mappedFiles = mappedFiles;
+        this.metadataCache = metadataCache;
+        this.jsonStore = jsonStore;
+        this.durableWrites = durableWrites;
+        jsonStore.setWriteListener(this::invalidateCaches);
         final URL resource = getClass().getClassLoader().getResource(ROOT_RESOURCE);
         if (resource == null)
         {
@@ -58,6 +107,20 @@ public class FilePersistence
         }
     }
 
+    /**
+     * Removes temporary files and recovers JSON documents from the journals left by a crash and starts watching the root for
+     * changes by others, so they invalidate the caches.
+     *
+     * @throws IOException If recovering fails.
+     */
+    @PostConstruct
+    void start() throws IOException
+    {
+        durableWrites.removeTemporaryFiles(Path.of(rootPath));
+        jsonStore.recover(Path.of(rootPath));
+        metadataCache.watch(Path.of(rootPath), this::invalidateTree, this::invalidateContent);
+    }
+
     String getRootPath()
     {
         return rootPath;
@@ -65,102 +128,216 @@ public class FilePersistence
 
     String readText(final String relativeResourcePath) throws IOException
     {
-        return Files.readString(buildFullPath(relativeResourcePath));
+        return new String(readBinary(relativeResourcePath), UTF_8);
     }
 
+    /**
+     * @return The content of the file, served from the {@link ContentCache} if possible. Must not be modified.
+     */
     byte[] readBinary(final String relativeResourcePath) throws IOException
     {
-        return Files.readAllBytes(buildFullPath(relativeResourcePath));
+        final Path path = buildFullPath(relativeResourcePath);
+        final byte[] document = JsonDocumentStore.isDocument(path) ? jsonStore.read(path) : null;
+        if (document != null)
+        {
+            return document;
+        }
+
+        byte[] content = contentCache.get(path);
+        if (content == null)
+        {
+            final long stamp = contentCache.stamp();
+            content = Files.readAllBytes(path);
+            contentCache.put(path, content, stamp);
+        }
+
+        return content;
+    }
+
+    long size(final String relativeResourcePath) throws IOException
+    {
+        return metadata(relativeResourcePath).getSize();
+    }
+
+    /**
+     * @return The metadata of the file, served from the {@link JsonDocumentStore} for documents updated in memory only and from the
+     * {@link MetadataCache} if possible otherwise. Does not read the content.
+     * @throws NoSuchFileException If the resource does not exist or is not a file.
+     */
+    FileMetadata metadata(final String relativeResourcePath) throws IOException
+    {
+        final Path path = buildFullPath(relativeResourcePath);
+        final FileMetadata document = JsonDocumentStore.isDocument(path) ? jsonStore.metadata(path) : null;
+        if (document != null)
+        {
+            return document;
+        }
+
+        final FileMetadata metadata = metadataCache.get(path);
+        if (!metadata.isFile())
+        {
+            throw new NoSuchFileException(path.toString(), null, "No such file");
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @return True if the resource is a readable file (not a directory). Does not read the content.
+     */
+    boolean exists(final String relativeResourcePath)
+    {
+        try
+        {
+            return metadataCache.get(buildFullPath(relativeResourcePath)).isFile();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return The whole file as buffer of its own sharing a mapping kept by the {@link MappedFiles} or null if it cannot be mapped.
+     */
+    ByteBuffer map(final String relativeResourcePath) throws IOException
+    {
+        return mappedFiles.map(buildFullPath(relativeResourcePath));
+    }
+
+    FileChannel openChannel(final String relativeResourcePath) throws IOException
+    {
+        return FileChannel.open(buildFullPath(relativeResourcePath), StandardOpenOption.READ);
     }
 
     void writeText(final String relativeResourcePath, final String content) throws IOException
     {
-        Files.writeString(buildFullPath(relativeResourcePath), content);
+        change(buildFullPath(relativeResourcePath), path -> write(path, content.getBytes(UTF_8)));
     }
 
     void writeBinary(final String relativeResourcePath, final byte[] content) throws IOException
     {
-        Files.write(buildFullPath(relativeResourcePath), content);
+        change(buildFullPath(relativeResourcePath), path -> write(path, content));
     }
 
-    public void delete(final String relativeResourcePath) throws IOException
+    void writeBinary(final String relativeResourcePath, final ReadableByteChannel content, final long length) throws IOException
     {
-        Files.delete(buildFullPath(relativeResourcePath));
+        change(buildFullPath(relativeResourcePath), path -> write(path, target -> transfer(target, content, length)));
     }
 
-    boolean createOrUpdateJson(final String relativeResourcePath, final String update) throws IOException
+    private void write(final Path path, final byte[] content) throws IOException
     {
-        final Path path = buildFullPath(relativeResourcePath);
-        createMissing(path);
-
-        final String content = Files.readString(path);
+        write(path, target -> DurableWrites.writeFully(target, content));
+    }
 
-        final boolean created;
-        final String updatedContent;
-        if (!StringUtils.isEmpty(content))
+    /**
+     * Files that may be mapped are always replaced by rename, as truncating them in place breaks the responses written from their
+     * mapping.
+     */
+    private void write(final Path path, final DurableWrites.ContentWriter writer) throws IOException
+    {
+        if (mappedFiles.isEnabled())
         {
-            final JSONObject target = fromJsonString(content);
-            final JSONObject source = fromJsonString(update);
-            merge(source, target);
-            updatedContent = toJsonString(target);
-            created = false;
+            durableWrites.replace(path, writer);
         }
         else
         {
-            updatedContent = update;
-            created = true;
+            durableWrites.write(path, writer);
+        }
+    }
+
+    private static void transfer(final FileChannel target, final ReadableByteChannel content, final long length) throws IOException
+    {
+        long position = 0;
+        while (position < length)
+        {
+            final long transferred = target.transferFrom(content, position, length - position);
+            if (transferred <= 0)
+            {
+                throw new IOException("Content ended after " + position + " of " + length + " bytes.");
+            }
+
+            position += transferred;
         }
+    }
 
-        Files.writeString(path, updatedContent);
-        return created;
+    public void delete(final String relativeResourcePath) throws IOException
+    {
+        change(buildFullPath(relativeResourcePath), path -> durableWrites.delete(path));
     }
 
-    private void merge(final JSONObject source, final JSONObject target)
+    /**
+     * @return True if the document has been created, false if it has been updated.
+     */
+    boolean createOrUpdateJson(final String relativeResourcePath, final String update) throws IOException
     {
-        for (final String name : source.keySet())
+        return jsonStore.merge(buildFullPath(relativeResourcePath), update);
+    }
+
+    /**
+     * A write or delete of a file.
+     */
+    @FunctionalInterface
+    private interface Change
+    {
+        void apply(Path path) throws IOException;
+    }
+
+    /**
+     * Applies the change and invalidates the caches. A JSON document held is locked meanwhile and dropped, so no merge of the former
+     * content is compacted over the change.
+     */
+    private void change(final Path path, final Change change) throws IOException
+    {
+        final JsonDocumentStore.Change invalidating = () ->
         {
-            final Object value = source.get(name);
-            if (value instanceof JSONObject)
+            try
             {
-                JSONObject nested = target.optJSONObject(name);
-                if (nested == null)
-                {
-                    nested = new JSONObject();
-                    target.put(name, nested);
-                }
-
-                merge((JSONObject) value, nested);
+                change.apply(path);
             }
-            else
+            finally
             {
-                target.put(name, source.get(name));
+                invalidateCaches(path);
             }
+        };
+
+        if (JsonDocumentStore.isDocument(path))
+        {
+            jsonStore.replace(path, invalidating);
+        }
+        else
+        {
+            invalidating.apply();
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void createMissing(Path path) throws IOException
+    private void invalidateCaches(final Path path)
     {
-        final File file = path.toFile();
-        if (!file.exists())
-        {
-            file.getParentFile().mkdirs();
-            file.createNewFile();
-        }
+        contentCache.invalidate(path);
+        mappedFiles.invalidate(path);
+        metadataCache.invalidate(path);
     }
 
-    private Path buildFullPath(final String relativeResourcePath)
+    /**
+     * Called by the {@link MetadataCache} for files changed shortly after this persistence changed them, which might have been others.
+     */
+    private void invalidateContent(final Path path)
     {
-        return Paths.get(rootPath, relativeResourcePath);
+        contentCache.invalidate(path);
+        mappedFiles.invalidate(path);
     }
 
-    private JSONObject fromJsonString(final String json)
+    /**
+     * Called by the {@link MetadataCache} for files or directories changed by others.
+     */
+    private void invalidateTree(final Path path)
     {
-        return new JSONObject(json);
+        contentCache.invalidateTree(path);
+        mappedFiles.invalidateTree(path);
     }
 
-    private String toJsonString(final JSONObject json)
+    private Path buildFullPath(final String relativeResourcePath)
     {
-        return json.toString();
+        return Paths.get(rootPath, relativeResourcePath).normalize();
     }
 }
@@ -0,0 +1,115 @@
+package org.mbachran.server.custom.storage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Count-min sketch estimating how often keys have been accessed recently, as used by the admission policy of TinyLFU.
+ *
+ * Each key is counted in one 4 bit counter per row (four rows, sixteen counters packed into a long), the estimate is the minimum of
+ * them. So the sketch takes a fixed few bytes per expected entry however many distinct keys pass by, at the cost of overestimating
+ * on collisions. Once as many increments as ten times the expected entries have been counted all counters are halved, so the
+ * frequencies of keys no longer accessed fade out.
+ *
+ * Not thread safe.
+ */
+class FrequencySketch
+{
+    private static final int ROWS = 4;
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedEntries The number of entries the cache is expected to hold.
+     */
+    FrequencySketch(final int expectedEntries)
+    {
+        final int entries = Math.max(16, Math.min(expectedEntries, 1 << 24));
+        this.table = new long[Integer.highestOneBit(entries - 1) << 1 >>> 2];
+        this.sampleSize = 10 * entries;
+    }
+
+    /**
+     * @return The estimated number of recent accesses of the key (at most 15).
+     */
+    int frequency(@Nonnull final Object key)
+    {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++)
+        {
+            final int index = index(hash, row);
+            final int shift = offset(hash, row) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xf));
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Counts an access of the key and ages all counters once the sample size is reached.
+     */
+    void increment(@Nonnull final Object key)
+    {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++)
+        {
+            final int index = index(hash, row);
+            final int shift = offset(hash, row) << 2;
+            if (((table[index] >>> shift) & 0xf) < MAX_COUNT)
+            {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        additions /= 2;
+    }
+
+    /**
+     * @return The long holding the counter of the row. Each row picks its long independently.
+     */
+    private int index(final int hash, final int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    /**
+     * @return The counter within the long, four counters (of 4 bits) per row so rows never share a counter.
+     */
+    private static int offset(final int hash, final int row)
+    {
+        return (row << 2) + ((hash >>> (row << 3)) & 3);
+    }
+
+    private static int spread(final int hashCode)
+    {
+        final int h = hashCode * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,22 +1,48 @@
 package org.mbachran.server.custom.storage;
 
 import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.request.api.HeaderNames;
 import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+import org.mbachran.server.custom.response.ByteArrayResponseBody;
+import org.mbachran.server.custom.response.ByteBufferResponseBody;
+import org.mbachran.server.custom.response.CompositeResponseBody;
+import org.mbachran.server.custom.response.FileResponseBody;
 import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.ResponseBody;
 import org.mbachran.server.custom.spi.NamedHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
  
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mbachran.server.custom.util.Delimiters.CR_LF;
 
 /**
  * Configured in (application.config.custom-server.spi.handler.get) handler for GET requests.
  * Uses {@link FilePersistence} as simple storage.
+ *
+ * Files of at least the configured transfer threshold are not read onto the heap. Depending on the large file mode they are
+ * - 'transfer': transferred by the connection directly from the file to the socket via a {@link FileResponseBody}
+ * - 'mapped': written from a mapping shared by all responses of the file (see {@link MappedFiles}), transferred if too large to map
+ *
+ * Responses carry ETag, Last-Modified (see {@link ResourceValidators}) and the content type as far as known. Conditional requests
+ * matching them are answered with 304 Not Modified based on the cached {@link FileMetadata} only, without reading the content.
+ *
+ * Range requests (see {@link ByteRanges}) are answered with 206 Partial Content, several ranges as multipart/byteranges. Each range is
+ * taken from the content in the same way as a full body: sliced from the heap or the mapping, or transferred from just that part of the
+ * file. An If-Range not matching the current validators makes the full resource be sent.
  */
 @Component
 public class GetFileHandler implements NamedHandler
@@ -25,29 +51,189 @@ public class GetFileHandler implements NamedHandler
 
     private final FilePersistence filePersistence;
 
+    private final long transferThreshold;
+
+    private final boolean mapped;
+
+    /**
+     * @param filePersistence   The storage to read from.
+     * @param transferThreshold The size in bytes from which on files are transferred instead of being read onto the heap.
+     * @param largeFileMode     'transfer' or 'mapped' for files of at least the transfer threshold.
+     */
     @Autowired
-    public GetFileHandler(@Nonnull final FilePersistence filePersistence)
+    public GetFileHandler(@Nonnull final FilePersistence filePersistence,
+                          @Value("${application.config.custom-server.storage.transfer-threshold:65536}") final long transferThreshold,
+                          @Value("${application.config.custom-server.storage.large-file-mode:transfer}")
+                          @Nonnull final String largeFileMode)
     {
         this.filePersistence = filePersistence;
+        this.transferThreshold = transferThreshold;
+        switch (largeFileMode)
+        {
+            case "transfer":
+                this.mapped = false;
+                break;
+            case "mapped":
+                this.mapped = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown large file mode '" + largeFileMode + "'. Use 'transfer' or 'mapped'.");
+        }
     }
 
     @Nonnull
     @Override
     public Response handle(@Nonnull final Request request)
     {
-        final byte[] body;
+        final String path = request.getRequestLine().getUri().getPath();
+        final RequestHeaders headers = request.getRequestHeaders();
         try
         {
-            body = filePersistence.readBinary(request.getRequestLine().getUri().getPath());
-            logContentInfo(body);
+            final FileMetadata metadata = filePersistence.metadata(path);
+            final ResourceValidators validators = metadata.getValidators();
+            if (validators.isNotModified(headers))
+            {
+                LOG.info("Resource not modified: {}", path);
+                return withValidators(new Response.Builder().code(HttpCode.NOT_MODIFIED), validators).build();
+            }
+
+            final Content content = open(path, metadata);
+            final List<ByteRanges.Range> ranges = validators.isRangeApplicable(headers)
+                    ? ByteRanges.parse(headers.getHeader(HeaderNames.RANGE), content.size) : null;
+            if (ranges == null)
+            {
+                return withContentType(withValidators(new Response.Builder(), validators), metadata.getContentType())
+                        .addHeader("Accept-Ranges", "bytes")
+                        .contentLength(content.size)
+                        .body(content.slice(0, content.size))
+                        .build();
+            }
+
+            return partial(metadata, content, ranges);
         }
         catch (IOException e)
         {
             LOG.warn("Failed reading resource: {}", e.getMessage());
             return Response.buildErrorResponse(HttpCode.NOT_FOUND);
         }
+    }
+
+    /**
+     * @return The content of the file to slice the body or its ranges from: read onto the heap, mapped or transferred from the file.
+     * Contents held in memory only (like JSON documents updated in memory) are never taken from the file.
+     */
+    @Nonnull
+    private Content open(@Nonnull final String path, @Nonnull final FileMetadata metadata) throws IOException
+    {
+        final long size = metadata.getSize();
+        if (size < transferThreshold || metadata.isInMemory())
+        {
+            final byte[] body = filePersistence.readBinary(path);
+            logContentInfo(body);
+            return new Content(body.length)
+            {
+                @Nonnull
+                @Override
+                ResponseBody slice(final long offset, final long length)
+                {
+                    return offset == 0 && length == body.length ? new ByteArrayResponseBody(body)
+                            : new ByteBufferResponseBody(ByteBuffer.wrap(body, (int) offset, (int) length));
+                }
+            };
+        }
+
+        final ByteBuffer mapping = mapped ? filePersistence.map(path) : null;
+        if (mapping != null)
+        {
+            LOG.info("Writing mapped body content of length: " + mapping.remaining());
+            return new Content(mapping.remaining())
+            {
+                @Nonnull
+                @Override
+                ResponseBody slice(final long offset, final long length)
+                {
+                    return new ByteBufferResponseBody(mapping.slice((int) offset, (int) length));
+                }
+            };
+        }
+
+        LOG.info("Transferring body content of length: " + size);
+        return new Content(size)
+        {
+            @Nonnull
+            @Override
+            ResponseBody slice(final long offset, final long length) throws IOException
+            {
+                return new FileResponseBody(filePersistence.openChannel(path), offset, length);
+            }
+        };
+    }
+
+    /**
+     * @return 206 with the single range as body or as multipart/byteranges for several ranges, 416 if none is satisfiable.
+     */
+    @Nonnull
+    private static Response partial(@Nonnull final FileMetadata metadata, @Nonnull final Content content,
+                                    @Nonnull final List<ByteRanges.Range> ranges) throws IOException
+    {
+        if (ranges.isEmpty())
+        {
+            LOG.info("Range not satisfiable for size {}", content.size);
+            final Response response = Response.buildErrorResponse(HttpCode.RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + content.size);
+            return response;
+        }
 
-        return new Response.Builder().addHeader("Content-Length", String.valueOf(body.length)).body(body).build();
+        final Response.Builder builder = withValidators(new Response.Builder().code(HttpCode.PARTIAL_CONTENT), metadata.getValidators());
+        final String contentType = metadata.getContentType();
+        if (ranges.size() == 1)
+        {
+            final ByteRanges.Range range = ranges.get(0);
+            return withContentType(builder, contentType)
+                    .addHeader("Content-Range", range.toContentRange(content.size))
+                    .contentLength(range.getLength())
+                    .body(content.slice(range.getFirst(), range.getLength()))
+                    .build();
+        }
+
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        final List<ResponseBody> parts = new ArrayList<>(2 * ranges.size() + 1);
+        try
+        {
+            for (final ByteRanges.Range range : ranges)
+            {
+                final String partHead = CR_LF + "--" + boundary + CR_LF
+                        + (contentType == null ? "" : "Content-Type: " + contentType + CR_LF)
+                        + "Content-Range: " + range.toContentRange(content.size) + CR_LF + CR_LF;
+                parts.add(new ByteArrayResponseBody(partHead.getBytes(US_ASCII)));
+                parts.add(content.slice(range.getFirst(), range.getLength()));
+            }
+
+            parts.add(new ByteArrayResponseBody((CR_LF + "--" + boundary + "--" + CR_LF).getBytes(US_ASCII)));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            parts.forEach(ResponseBody::close);
+            throw e;
+        }
+
+        final CompositeResponseBody body = new CompositeResponseBody(parts);
+        return builder.addHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .contentLength(body.getLength())
+                .body(body)
+                .build();
+    }
+
+    @Nonnull
+    private static Response.Builder withContentType(@Nonnull final Response.Builder builder, @Nullable final String contentType)
+    {
+        return contentType == null ? builder : builder.addHeader("Content-Type", contentType);
+    }
+
+    @Nonnull
+    private static Response.Builder withValidators(@Nonnull final Response.Builder builder, @Nonnull final ResourceValidators validators)
+    {
+        return builder.addHeader("ETag", validators.getETag()).addHeader("Last-Modified", validators.getLastModified());
     }
 
     private static void logContentInfo(@Nonnull final byte[] body)
@@ -68,4 +254,23 @@ public class GetFileHandler implements NamedHandler
     {
         return "file-storage-get";
     }
+
+    /**
+     * The content of a file of a known size to take the whole body or ranges from.
+     */
+    private abstract static class Content
+    {
+        private final long size;
+
+        private Content(final long size)
+        {
+            this.size = size;
+        }
+
+        /**
+         * @return A body of its own of the given range, so several ranges can be written one after the other.
+         */
+        @Nonnull
+        abstract ResponseBody slice(long offset, long length) throws IOException;
+    }
 }
@@ -10,7 +10,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
-import java.io.IOException;
  
 /**
  * Configured in (application.config.custom-server.spi.handler.head) handler for HEAD requests.
@@ -33,14 +32,10 @@ public class HeadFileHandler implements NamedHandler
     @Override
     public Response handle(@Nonnull final Request request)
     {
-        try
+        // validates the resource existence without reading it
+        if (!filePersistence.exists(request.getRequestLine().getUri().getPath()))
         {
-            // just to validate resource existence
-            filePersistence.readBinary(request.getRequestLine().getUri().getPath());
-        }
-        catch (IOException e)
-        {
-            LOG.warn("Failed reading resource: {}", e.getMessage());
+            LOG.warn("Resource not found: {}", request.getRequestLine().getUri());
             return Response.buildErrorResponse(HttpCode.NOT_FOUND);
         }
 
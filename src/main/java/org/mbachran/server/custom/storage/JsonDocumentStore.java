@@ -0,0 +1,798 @@
+package org.mbachran.server.custom.storage;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps hot JSON documents parsed in memory so POST merges do not read, parse, serialize and rewrite the whole file each time.
+ *
+ * A merge of an existing document is applied in memory and its delta appended as a line to the journal of the document, a hidden
+ * sibling file ('.name.json.journal'). Once the journal holds the configured number of deltas the document is compacted: written
+ * to its file as a whole (atomically whatever the durability, see {@link DurableWrites#replace(Path, byte[])}) and the journal
+ * deleted. Documents are compacted as well when evicted (the least recently used beyond the maximum number of documents) and on
+ * shutdown. Journals left by a crash are replayed into their documents by {@link #recover(Path)} on start. Replaying is safe even if
+ * the document already contains some of the deltas, as they are applied in order and the last value written wins.
+ * With synced durability a merge returns once its delta is forced to the disk, sharing the force with concurrent merges.
+ *
+ * The content of held documents is served from memory (see {@link #read(Path)}), so is their metadata while they have deltas in
+ * their journal only (see {@link #metadata(Path)}). The documents must not be changed by others while held, writes and deletes of
+ * the {@link FilePersistence} replace them (see {@link #replace(Path, Change)}).
+ *
+ * The merge is like:
+ * - colliding names will cause a value overwrite
+ * - attributes of type {@link JSONObject} will cause a merge within the subtree
+ * - arrays are not merged (no superset of the values) but overwritten
+ *
+ * Thread safe: documents are locked one by one, merges of different documents run in parallel. The store lock only guards the map
+ * of documents and is never held while waiting for a document, so compacting an evicted document does not block the others. A
+ * document acquired for the path of an evicted one is loaded once that one is compacted. The counters are exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=JsonDocumentStore", description = "JSON documents held in memory")
+public class JsonDocumentStore
+{
+    private static final Logger LOG = LoggerFactory.getLogger(JsonDocumentStore.class);
+
+    private static final String JOURNAL_PREFIX = ".";
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final String JSON_SUFFIX = ".json";
+
+    private static class Document
+    {
+        private final Path path;
+
+        private final Path journal;
+
+        private boolean loaded;
+
+        private boolean closed;
+
+        private JSONObject json;
+
+        /**
+         * The serialized json, null if outdated.
+         */
+        private byte[] content;
+
+        private FileChannel journalChannel;
+
+        private int journalEntries;
+
+        private FileTime lastModified;
+
+        /**
+         * The document evicted for the same path whose compaction must be done before this one is loaded, if any.
+         */
+        private Document predecessor;
+
+        /**
+         * Released once this document has been compacted after its eviction.
+         */
+        private final CountDownLatch evicted = new CountDownLatch(1);
+
+        private Document(@Nonnull final Path path, @Nullable final Document predecessor)
+        {
+            this.path = path;
+            this.journal = journalOf(path);
+            this.predecessor = predecessor;
+        }
+    }
+
+    private final int maxDocuments;
+
+    private final int compactAfter;
+
+    private final DurableWrites durableWrites;
+
+    /**
+     * In LRU order (eldest first).
+     */
+    private final Map<Path, Document> documents = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The documents dropped from {@link #documents} but still being compacted, the latest one per path.
+     */
+    private final Map<Path, Document> evicting = new HashMap<>();
+
+    private final AtomicLong merges = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private volatile Consumer<Path> writeListener = path -> {};
+
+    /**
+     * @param maxDocuments The maximum number of documents held in memory.
+     * @param compactAfter  The number of deltas in the journal of a document after which it is compacted.
+     * @param durableWrites How to write the documents and force their journals.
+     */
+    @Autowired
+    public JsonDocumentStore(@Value("${application.config.custom-server.storage.json.max-documents:64}") final int maxDocuments,
+                             @Value("${application.config.custom-server.storage.json.compact-after:1000}") final int compactAfter,
+                             @Nonnull final DurableWrites durableWrites)
+    {
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.compactAfter = Math.max(1, compactAfter);
+        this.durableWrites = durableWrites;
+    }
+
+    /**
+     * @param path The resolved path.
+     * @return True if the path is of a JSON document handled by this store.
+     */
+    static boolean isDocument(@Nonnull final Path path)
+    {
+        return path.toString().endsWith(JSON_SUFFIX);
+    }
+
+    /**
+     * @param path A path below the root.
+     * @return True if the path is of the journal of a JSON document.
+     */
+    static boolean isJournal(@Nonnull final Path path)
+    {
+        final Path name = path.getFileName();
+        return name != null && name.toString().startsWith(JOURNAL_PREFIX) && name.toString().endsWith(JSON_SUFFIX + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Merges the update into the document, creating the document with the update as content if it does not exist or is empty.
+     *
+     * @param path   The resolved path of the document.
+     * @param update The JSON object to merge.
+     * @return True if the document has been created.
+     * @throws IOException   If reading or writing the document or its journal fails.
+     * @throws JSONException If the update or the document is no JSON object.
+     */
+    boolean merge(@Nonnull final Path path, @Nonnull final String update) throws IOException
+    {
+        final JSONObject delta = new JSONObject(update);
+        while (true)
+        {
+            final Document document = acquire(path);
+            final Path[] appended;
+            synchronized (document)
+            {
+                if (document.closed)
+                {
+                    // evicted or replaced meanwhile
+                    continue;
+                }
+
+                load(document);
+                merges.incrementAndGet();
+                if (document.json == null)
+                {
+                    createFile(document.path, update);
+                    writeListener.accept(document.path);
+                    document.json = delta;
+                    document.content = update.getBytes(UTF_8);
+                    return true;
+                }
+
+                appended = append(document, delta);
+                merge(delta, document.json);
+                document.content = null;
+                document.lastModified = nextModification(document.lastModified);
+                if (document.journalEntries >= compactAfter)
+                {
+                    compactQuietly(document);
+                }
+            }
+
+            // waited for without holding the document, so concurrent merges of it share the force of the journal
+            durableWrites.sync(appended);
+            return false;
+        }
+    }
+
+    /**
+     * @param path The resolved path.
+     * @return The current content of the document if held, otherwise null. Must not be modified.
+     */
+    @Nullable
+    byte[] read(@Nonnull final Path path)
+    {
+        final Document document = held(path);
+        if (document == null)
+        {
+            return null;
+        }
+
+        synchronized (document)
+        {
+            return document.closed || document.json == null ? null : content(document);
+        }
+    }
+
+    /**
+     * @param path The resolved path.
+     * @return The metadata of the current content of the document if it is newer than its file, otherwise null.
+     */
+    @Nullable
+    FileMetadata metadata(@Nonnull final Path path)
+    {
+        final Document document = held(path);
+        if (document == null)
+        {
+            return null;
+        }
+
+        synchronized (document)
+        {
+            if (document.closed || document.journalEntries == 0)
+            {
+                return null;
+            }
+
+            return FileMetadata.inMemory(path, content(document).length, document.lastModified);
+        }
+    }
+
+    /**
+     * Changes the file of a document as a whole (like writing or deleting it) while the document is locked, so no merge or compaction
+     * of the former content interleaves. The document is dropped without compacting it and its journal deleted.
+     *
+     * @param path   The resolved path of the document.
+     * @param change Writes or deletes the file.
+     * @throws IOException If the change fails. The document is dropped nevertheless.
+     */
+    void replace(@Nonnull final Path path, @Nonnull final Change change) throws IOException
+    {
+        while (true)
+        {
+            final Document document = acquire(path);
+            synchronized (document)
+            {
+                if (document.closed)
+                {
+                    // evicted meanwhile
+                    continue;
+                }
+
+                awaitPredecessor(document);
+                try
+                {
+                    change.apply();
+                }
+                finally
+                {
+                    discard(document);
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * A change of the file of a document.
+     */
+    @FunctionalInterface
+    interface Change
+    {
+        void apply() throws IOException;
+    }
+
+    private void discard(@Nonnull final Document document)
+    {
+        document.closed = true;
+        closeJournal(document);
+        synchronized (this)
+        {
+            documents.remove(document.path, document);
+        }
+
+        try
+        {
+            Files.deleteIfExists(document.journal);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed deleting journal of {}: {}", document.path, e.getMessage());
+        }
+    }
+
+    /**
+     * @param writeListener Called with each document this store writes to its file (while the document is locked).
+     */
+    void setWriteListener(@Nonnull final Consumer<Path> writeListener)
+    {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Replays the journals found below the root into their documents, which are compacted then.
+     *
+     * @param root The root of the storage.
+     * @throws IOException If the tree cannot be walked or a document cannot be recovered.
+     */
+    void recover(@Nonnull final Path root) throws IOException
+    {
+        final List<Path> journals = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+            {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JSON_SUFFIX + JOURNAL_SUFFIX))
+                {
+                    journals.add(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        for (final Path journal : journals)
+        {
+            final String name = journal.getFileName().toString();
+            final Path path = journal.resolveSibling(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()));
+            LOG.info("Recovering {} from its journal.", path);
+            final Document document = new Document(path, null);
+            synchronized (document)
+            {
+                load(document);
+                compact(document);
+            }
+        }
+    }
+
+    /**
+     * Compacts all documents holding deltas in their journal.
+     */
+    @PreDestroy
+    void close()
+    {
+        final List<Document> closing;
+        synchronized (this)
+        {
+            closing = new ArrayList<>(documents.values());
+            documents.clear();
+        }
+
+        for (final Document document : closing)
+        {
+            synchronized (document)
+            {
+                compactQuietly(document);
+                document.closed = true;
+            }
+        }
+    }
+
+    /**
+     * @return The document held for the path, created (not loaded) if not held yet. Documents beyond the maximum are dropped and
+     * compacted after leaving the store lock, so a compaction never blocks the other documents.
+     */
+    @Nonnull
+    private Document acquire(@Nonnull final Path path)
+    {
+        final Document document;
+        final List<Document> victims = new ArrayList<>();
+        synchronized (this)
+        {
+            document = documents.computeIfAbsent(path, p -> new Document(p, evicting.get(p)));
+            final Iterator<Document> eldest = documents.values().iterator();
+            while (documents.size() > maxDocuments)
+            {
+                final Document victim = eldest.next();
+                eldest.remove();
+                evicting.put(victim.path, victim);
+                victims.add(victim);
+            }
+        }
+
+        for (final Document victim : victims)
+        {
+            evict(victim);
+        }
+
+        return document;
+    }
+
+    private void evict(@Nonnull final Document document)
+    {
+        try
+        {
+            synchronized (document)
+            {
+                awaitPredecessor(document);
+                compactQuietly(document);
+                document.closed = true;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                evicting.remove(document.path, document);
+            }
+
+            document.evicted.countDown();
+        }
+    }
+
+    /**
+     * Waits for the compaction of the document evicted before for the same path, which must not interleave with this one.
+     */
+    private static void awaitPredecessor(@Nonnull final Document document)
+    {
+        if (document.predecessor == null)
+        {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                document.predecessor.evicted.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        document.predecessor = null;
+    }
+
+    /**
+     * @return The document held for the path or, while it is compacted after its eviction, the evicted one (which reads wait for).
+     */
+    @Nullable
+    private synchronized Document held(@Nonnull final Path path)
+    {
+        final Document evicted = evicting.get(path);
+        return evicted != null ? evicted : documents.get(path);
+    }
+
+    /**
+     * Reads the document and replays its journal if not done yet. The json stays null if the document does not exist or is empty.
+     */
+    private void load(@Nonnull final Document document) throws IOException
+    {
+        if (document.loaded)
+        {
+            return;
+        }
+
+        awaitPredecessor(document);
+        String content = null;
+        try
+        {
+            content = Files.readString(document.path);
+            document.lastModified = Files.getLastModifiedTime(document.path);
+        }
+        catch (NoSuchFileException e)
+        {
+            document.lastModified = FileTime.from(Instant.now());
+        }
+
+        document.json = StringUtils.isEmpty(content) ? null : new JSONObject(content);
+        // as long as no delta is applied the content is the one of the file
+        document.content = StringUtils.isEmpty(content) ? null : content.getBytes(UTF_8);
+        document.journalEntries = replay(document);
+        document.loaded = true;
+        loads.incrementAndGet();
+    }
+
+    /**
+     * Applies the deltas of the journal. Only the last line may be torn (as left by a crash during an append), it is ignored and
+     * cut off the journal, so the next delta is appended on a line of its own.
+     *
+     * @return The number of deltas applied.
+     * @throws IOException If the journal cannot be read or a line other than the last one is no JSON object.
+     */
+    private static int replay(@Nonnull final Document document) throws IOException
+    {
+        final byte[] journal;
+        try
+        {
+            journal = Files.readAllBytes(document.journal);
+        }
+        catch (NoSuchFileException e)
+        {
+            return 0;
+        }
+
+        int entries = 0;
+        int start = 0;
+        while (start < journal.length)
+        {
+            int end = start;
+            while (end < journal.length && journal[end] != '\n')
+            {
+                end++;
+            }
+
+            JSONObject delta = null;
+            try
+            {
+                // a last line lacking its line break is incomplete, even if it parses
+                delta = end < journal.length ? new JSONObject(new String(journal, start, end - start, UTF_8)) : null;
+            }
+            catch (JSONException e)
+            {
+                if (end + 1 < journal.length)
+                {
+                    throw new IOException("Corrupt delta in line " + (entries + 1) + " of " + document.journal, e);
+                }
+            }
+
+            if (delta == null)
+            {
+                LOG.warn("Cutting off incomplete delta of {} at byte {}.", document.path, start);
+                try (final FileChannel channel = FileChannel.open(document.journal, StandardOpenOption.WRITE))
+                {
+                    channel.truncate(start);
+                }
+
+                break;
+            }
+
+            if (document.json == null)
+            {
+                document.json = new JSONObject();
+            }
+
+            merge(delta, document.json);
+            entries++;
+            start = end + 1;
+        }
+
+        if (entries > 0)
+        {
+            document.content = null;
+            document.lastModified = nextModification(document.lastModified);
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return The paths to force for the delta to be durable: the journal and its directory if the journal has been created.
+     */
+    @Nonnull
+    private static Path[] append(@Nonnull final Document document, @Nonnull final JSONObject delta) throws IOException
+    {
+        final boolean created = document.journalChannel == null && !Files.exists(document.journal);
+        if (document.journalChannel == null)
+        {
+            document.journalChannel = FileChannel.open(document.journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        final ByteBuffer line = ByteBuffer.wrap((delta.toString() + "\n").getBytes(UTF_8));
+        final long size = document.journalChannel.size();
+        try
+        {
+            while (line.hasRemaining())
+            {
+                document.journalChannel.write(line);
+            }
+        }
+        catch (IOException e)
+        {
+            cutOff(document, size);
+            throw e;
+        }
+
+        document.journalEntries++;
+        return created ? new Path[] {document.journal, document.journal.getParent()} : new Path[] {document.journal};
+    }
+
+    /**
+     * Cuts a partially appended delta off the journal, so it neither glues onto the next delta nor hides it from a replay. If that
+     * fails as well the document is reloaded on next use, which cuts the torn line off while replaying.
+     */
+    private static void cutOff(@Nonnull final Document document, final long size)
+    {
+        try
+        {
+            document.journalChannel.truncate(size);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Failed cutting off incomplete delta of " + document.path + ", reloading it.", e);
+            closeJournal(document);
+            document.loaded = false;
+        }
+    }
+
+    /**
+     * Writes the document as a whole and deletes its journal.
+     */
+    private void compact(@Nonnull final Document document) throws IOException
+    {
+        if (!document.loaded)
+        {
+            // the journal has not been replayed, it must be kept
+            return;
+        }
+
+        if (document.json != null && document.journalEntries > 0)
+        {
+            durableWrites.replace(document.path, content(document));
+            // the caches must not serve the former content once the journal is gone
+            writeListener.accept(document.path);
+            compactions.incrementAndGet();
+
+            LOG.debug("Compacted {} deltas into {}.", document.journalEntries, document.path);
+        }
+
+        closeJournal(document);
+        Files.deleteIfExists(document.journal);
+        document.journalEntries = 0;
+    }
+
+    private void compactQuietly(@Nonnull final Document document)
+    {
+        try
+        {
+            compact(document);
+        }
+        catch (IOException e)
+        {
+            // the journal is kept, so the deltas are recovered on next start
+            LOG.error("Failed compacting " + document.path, e);
+            closeJournal(document);
+        }
+    }
+
+    private static void closeJournal(@Nonnull final Document document)
+    {
+        if (document.journalChannel != null)
+        {
+            try
+            {
+                document.journalChannel.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed closing journal of {}: {}", document.path, e.getMessage());
+            }
+
+            document.journalChannel = null;
+        }
+    }
+
+    @Nonnull
+    private static byte[] content(@Nonnull final Document document)
+    {
+        if (document.content == null)
+        {
+            document.content = document.json.toString().getBytes(UTF_8);
+        }
+
+        return document.content;
+    }
+
+    /**
+     * @return Now, but at least a microsecond after the previous modification, so each change yields another ETag.
+     */
+    @Nonnull
+    private static FileTime nextModification(@Nullable final FileTime previous)
+    {
+        final Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        if (previous == null || now.isAfter(previous.toInstant()))
+        {
+            return FileTime.from(now);
+        }
+
+        return FileTime.from(previous.toInstant().plus(1, ChronoUnit.MICROS));
+    }
+
+    private void createFile(@Nonnull final Path path, @Nonnull final String content) throws IOException
+    {
+        Files.createDirectories(path.getParent());
+        durableWrites.write(path, content.getBytes(UTF_8));
+    }
+
+    private static void merge(@Nonnull final JSONObject source, @Nonnull final JSONObject target)
+    {
+        for (final String name : source.keySet())
+        {
+            final Object value = source.get(name);
+            if (value instanceof JSONObject)
+            {
+                JSONObject nested = target.optJSONObject(name);
+                if (nested == null)
+                {
+                    nested = new JSONObject();
+                    target.put(name, nested);
+                }
+
+                merge((JSONObject) value, nested);
+            }
+            else
+            {
+                target.put(name, source.get(name));
+            }
+        }
+    }
+
+    @Nonnull
+    private static Path journalOf(@Nonnull final Path path)
+    {
+        return path.resolveSibling(JOURNAL_PREFIX + path.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    @ManagedAttribute(description = "The maximum number of documents held in memory.")
+    public int getMaxDocuments()
+    {
+        return maxDocuments;
+    }
+
+    @ManagedAttribute(description = "The number of documents held in memory.")
+    public synchronized int getDocumentCount()
+    {
+        return documents.size();
+    }
+
+    @ManagedAttribute(description = "The number of merges.")
+    public long getMerges()
+    {
+        return merges.get();
+    }
+
+    @ManagedAttribute(description = "The number of documents read from their file (and journal).")
+    public long getLoads()
+    {
+        return loads.get();
+    }
+
+    @ManagedAttribute(description = "The number of documents written as a whole to fold their journal in.")
+    public long getCompactions()
+    {
+        return compactions.get();
+    }
+}
@@ -0,0 +1,273 @@
+package org.mbachran.server.custom.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps files mapped into memory read-only so concurrent responses of the same large file are all written from the page cache of the
+ * OS, without reading the file onto the heap or opening it per request.
+ *
+ * A mapping is checked against the size, modification time and file key of the file on each use and remapped if the file changed.
+ * The {@link FilePersistence} drops the mapping of files it writes. The lifetime of mappings is bounded: mappings not used for the
+ * idle timeout are dropped, and so are the least recently used ones if the sum of mapped bytes exceeds the limit. Java cannot unmap
+ * explicitly, the GC does so once the responses still writing from a dropped mapping are done.
+ *
+ * Files must not be truncated in place while mapped: copying from the mapping would fault (with an {@link InternalError}, not an
+ * {@link IOException}). So while mapping is enabled the {@link FilePersistence} replaces files by renaming a new one onto them, the
+ * mappings keep the former file then. Thread safe. The counters are exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=MappedFiles", description = "Files mapped into memory")
+public class MappedFiles
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFiles.class);
+
+    private static class Mapping
+    {
+        private final MappedByteBuffer buffer;
+
+        private final FileTime lastModified;
+
+        private final Object fileKey;
+
+        private long lastUsed;
+
+        private Mapping(@Nonnull final MappedByteBuffer buffer, @Nonnull final BasicFileAttributes attributes)
+        {
+            this.buffer = buffer;
+            this.lastModified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+        }
+
+        private boolean matches(@Nonnull final BasicFileAttributes attributes)
+        {
+            return buffer.capacity() == attributes.size() && lastModified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    private final long maxBytes;
+
+    private final long idleTimeoutNanos;
+
+    /**
+     * In LRU order (eldest first).
+     */
+    private final Map<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mappedBytes;
+
+    private long hits;
+
+    private long maps;
+
+    private long unmaps;
+
+    /**
+     * @param largeFileMode      The large file mode of the {@link GetFileHandler}. Files are only mapped in 'mapped' mode.
+     * @param maxBytes           The maximum sum of the sizes of the files kept mapped. Zero or negative disables mapping.
+     * @param idleTimeoutSeconds The time after which a mapping not used is dropped.
+     */
+    @Autowired
+    public MappedFiles(@Value("${application.config.custom-server.storage.large-file-mode:transfer}") final String largeFileMode,
+                       @Value("${application.config.custom-server.storage.mapped.max-bytes:268435456}") final long maxBytes,
+                       @Value("${application.config.custom-server.storage.mapped.idle-timeout:300}") final long idleTimeoutSeconds)
+    {
+        this("mapped".equals(largeFileMode) ? maxBytes : 0, idleTimeoutSeconds);
+    }
+
+    /**
+     * @param maxBytes           The maximum sum of the sizes of the files kept mapped. Zero or negative disables mapping.
+     * @param idleTimeoutSeconds The time after which a mapping not used is dropped.
+     */
+    MappedFiles(final long maxBytes, final long idleTimeoutSeconds)
+    {
+        this.maxBytes = maxBytes;
+        this.idleTimeoutNanos = idleTimeoutSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * @return True if files may be mapped (large file mode 'mapped' and a positive limit), so they must not be truncated in place.
+     */
+    public boolean isEnabled()
+    {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param path The resolved path of the file.
+     * @return The whole file as buffer of its own (sharing the mapping) or null if it cannot be mapped as it exceeds the limit.
+     * @throws IOException If the file does not exist or cannot be mapped.
+     */
+    @Nullable
+    public ByteBuffer map(@Nonnull final Path path) throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile())
+        {
+            throw new IOException("Not a file: " + path);
+        }
+
+        if (maxBytes <= 0 || attributes.size() > Math.min(maxBytes, Integer.MAX_VALUE))
+        {
+            return null;
+        }
+
+        final long now = System.nanoTime();
+        synchronized (this)
+        {
+            dropIdle(now);
+            final Mapping mapping = mappings.get(path);
+            if (mapping != null && mapping.matches(attributes))
+            {
+                hits++;
+                mapping.lastUsed = now;
+                return mapping.buffer.duplicate();
+            }
+        }
+
+        // mapping is done outside the lock as it involves the file system
+        final Mapping mapping;
+        try (final FileChannel channel = FileChannel.open(path))
+        {
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size()), attributes);
+        }
+
+        synchronized (this)
+        {
+            maps++;
+            mapping.lastUsed = now;
+            remove(path);
+            mappings.put(path, mapping);
+            mappedBytes += mapping.buffer.capacity();
+            final Iterator<Mapping> eldest = mappings.values().iterator();
+            while (mappedBytes > maxBytes)
+            {
+                drop(eldest);
+            }
+        }
+
+        LOG.debug("Mapped {} bytes of {}.", attributes.size(), path);
+        return mapping.buffer.duplicate();
+    }
+
+    /**
+     * Drops the mapping of the file if there is one, to be called once the file has been written or deleted.
+     *
+     * @param path The resolved path of the file.
+     */
+    public synchronized void invalidate(@Nonnull final Path path)
+    {
+        remove(path);
+    }
+
+    /**
+     * Drops the mappings of the file and all files below it, to be called if a file or directory has been changed by others.
+     *
+     * @param path The resolved path of the file or directory.
+     */
+    public synchronized void invalidateTree(@Nonnull final Path path)
+    {
+        final Iterator<Map.Entry<Path, Mapping>> iterator = mappings.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<Path, Mapping> entry = iterator.next();
+            if (entry.getKey().startsWith(path))
+            {
+                mappedBytes -= entry.getValue().buffer.capacity();
+                iterator.remove();
+                unmaps++;
+            }
+        }
+    }
+
+    private void dropIdle(final long now)
+    {
+        final Iterator<Mapping> eldest = mappings.values().iterator();
+        while (eldest.hasNext())
+        {
+            final Mapping mapping = eldest.next();
+            if (now - mapping.lastUsed < idleTimeoutNanos)
+            {
+                break;
+            }
+
+            mappedBytes -= mapping.buffer.capacity();
+            eldest.remove();
+            unmaps++;
+        }
+    }
+
+    private void drop(@Nonnull final Iterator<Mapping> eldest)
+    {
+        mappedBytes -= eldest.next().buffer.capacity();
+        eldest.remove();
+        unmaps++;
+    }
+
+    private void remove(@Nonnull final Path path)
+    {
+        final Mapping previous = mappings.remove(path);
+        if (previous != null)
+        {
+            mappedBytes -= previous.buffer.capacity();
+            unmaps++;
+        }
+    }
+
+    @ManagedAttribute(description = "The maximum sum of the sizes of the files kept mapped.")
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    @ManagedAttribute(description = "The sum of the sizes of the files kept mapped.")
+    public synchronized long getMappedBytes()
+    {
+        return mappedBytes;
+    }
+
+    @ManagedAttribute(description = "The number of files kept mapped.")
+    public synchronized int getMappedCount()
+    {
+        return mappings.size();
+    }
+
+    @ManagedAttribute(description = "The number of requests served from an existing mapping.")
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    @ManagedAttribute(description = "The number of files mapped (again).")
+    public synchronized long getMaps()
+    {
+        return maps;
+    }
+
+    @ManagedAttribute(description = "The number of mappings dropped as idle, outdated or to keep the limit.")
+    public synchronized long getUnmaps()
+    {
+        return unmaps;
+    }
+}
@@ -0,0 +1,442 @@
+package org.mbachran.server.custom.storage;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.mbachran.server.custom.util.SurvivingRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Cache of the {@link FileMetadata} of paths below the storage root, keyed by the resolved path. Paths that are no files are cached
+ * as well, so existence checks of HEAD and OPTIONS and the 404 decisions of GET are answered from memory.
+ *
+ * The cache is kept coherent by
+ * - the {@link FilePersistence} invalidating the paths it writes or deletes
+ * - a {@link WatchService} over the whole tree of the root (see {@link #watch(Path, Consumer, Consumer)}) invalidating paths changed by
+ * anyone else, along with all paths below them. If events got lost the whole cache is dropped.
+ *
+ * Events likely caused by the server itself do not invalidate the tree, as a tree invalidation scans all entries: the journals of JSON
+ * documents and the temporary files of writes are skipped (they are never cached). Paths the {@link FilePersistence} invalidated within
+ * the last second are invalidated once more, but only the path itself, so a change by others within that second is not missed.
+ *
+ * The watch service reports changes asynchronously (on some platforms by polling), so external changes become visible with a delay.
+ * The number of entries is limited, the least recently used ones are evicted. Loads that raced with an invalidation are not cached.
+ * Thread safe. The counters are exposed via JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.mbachran.server:type=MetadataCache", description = "Cache of file metadata")
+public class MetadataCache
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final long OWN_CHANGE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxEntries;
+
+    private final boolean watchEnabled;
+
+    /**
+     * In LRU order (eldest first).
+     */
+    private final Map<Path, FileMetadata> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The paths invalidated by the {@link FilePersistence} with the time of the invalidation, eldest first.
+     */
+    private final Map<Path, Long> ownChanges = new LinkedHashMap<>();
+
+    /**
+     * Counts the invalidations so loads can tell whether a change happened meanwhile.
+     */
+    private long invalidations;
+
+    private long hits;
+
+    private long misses;
+
+    private long externalChanges;
+
+    private long ownChangeEvents;
+
+    private long overflows;
+
+    private WatchService watchService;
+
+    private ExecutorService watcher;
+
+    /**
+     * @param maxEntries   The maximum number of paths to keep the metadata of. Zero or negative disables the cache.
+     * @param watchEnabled Whether to watch the root for changes by others than the {@link FilePersistence}.
+     */
+    @Autowired
+    public MetadataCache(@Value("${application.config.custom-server.storage.metadata.max-entries:65536}") final int maxEntries,
+                         @Value("${application.config.custom-server.storage.metadata.watch:true}") final boolean watchEnabled)
+    {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.watchEnabled = watchEnabled;
+    }
+
+    /**
+     * @param path The resolved path.
+     * @return The metadata of the path, {@link FileMetadata#NO_FILE} if it does not exist or is no file.
+     * @throws IOException If the attributes cannot be read for other reasons than the path not existing.
+     */
+    @Nonnull
+    public FileMetadata get(@Nonnull final Path path) throws IOException
+    {
+        final long stamp;
+        synchronized (this)
+        {
+            final FileMetadata metadata = entries.get(path);
+            if (metadata != null)
+            {
+                hits++;
+                return metadata;
+            }
+
+            misses++;
+            stamp = invalidations;
+        }
+
+        final FileMetadata metadata = load(path);
+        synchronized (this)
+        {
+            if (maxEntries > 0 && stamp == invalidations)
+            {
+                entries.put(path, metadata);
+                final Iterator<FileMetadata> eldest = entries.values().iterator();
+                while (entries.size() > maxEntries)
+                {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+
+        return metadata;
+    }
+
+    @Nonnull
+    private static FileMetadata load(@Nonnull final Path path) throws IOException
+    {
+        try
+        {
+            return FileMetadata.of(path, Files.readAttributes(path, BasicFileAttributes.class));
+        }
+        catch (NoSuchFileException e)
+        {
+            return FileMetadata.NO_FILE;
+        }
+    }
+
+    /**
+     * Drops the metadata of the path, to be called once the file has been written or deleted.
+     *
+     * @param path The resolved path.
+     */
+    public synchronized void invalidate(@Nonnull final Path path)
+    {
+        invalidations++;
+        entries.remove(path);
+        if (watchService != null)
+        {
+            final long now = System.nanoTime();
+            expireOwnChanges(now);
+            ownChanges.remove(path);
+            ownChanges.put(path, now);
+        }
+    }
+
+    /**
+     * Drops the metadata of the path and all paths below it.
+     *
+     * @param path The resolved path.
+     */
+    public synchronized void invalidateTree(@Nonnull final Path path)
+    {
+        invalidations++;
+        entries.keySet().removeIf(p -> p.startsWith(path));
+    }
+
+    /**
+     * Starts watching the tree of the root for changes in a thread of its own, unless disabled. Subdirectories created later are
+     * watched as well. If the watch service is not available the cache relies on invalidations by the {@link FilePersistence} only.
+     *
+     * @param root        The root of the storage.
+     * @param onChange    Called with each path changed by others (after invalidating it here), with the root if events got lost.
+     *                    Everything below the path is stale.
+     * @param onOwnChange Called with each path changed shortly after the server changed it (after invalidating it here). Only the path
+     *                    itself is stale.
+     */
+    public synchronized void watch(@Nonnull final Path root, @Nonnull final Consumer<Path> onChange,
+                                   @Nonnull final Consumer<Path> onOwnChange)
+    {
+        if (!watchEnabled || watchService != null)
+        {
+            return;
+        }
+
+        try
+        {
+            watchService = root.getFileSystem().newWatchService();
+            register(root);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Not watching {} for external changes: {}", root, e.getMessage());
+            close();
+            return;
+        }
+
+        final BasicThreadFactory factory = new BasicThreadFactory.Builder().namingPattern("storage-watcher-%d").daemon(true).build();
+        watcher = Executors.newSingleThreadExecutor(factory);
+        final WatchService service = watchService;
+        watcher.submit(new SurvivingRunnable(() -> poll(service, root, onChange, onOwnChange)));
+        LOG.info("Watching {} for external changes.", root);
+    }
+
+    /**
+     * Stops watching.
+     */
+    @PreDestroy
+    public synchronized void close()
+    {
+        if (watchService != null)
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed closing watch service: " + e.getMessage());
+            }
+
+            watchService = null;
+            ownChanges.clear();
+        }
+
+        if (watcher != null)
+        {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Waits for the next changes and handles them.
+     *
+     * @return 0 to keep polling, -1 once the watch service is closed.
+     */
+    private long poll(@Nonnull final WatchService service, @Nonnull final Path root, @Nonnull final Consumer<Path> onChange,
+                      @Nonnull final Consumer<Path> onOwnChange) throws InterruptedException
+    {
+        final WatchKey key;
+        try
+        {
+            key = service.take();
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            return -1;
+        }
+
+        final Path directory = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                LOG.warn("Lost change events of {}, dropping all metadata.", root);
+                synchronized (this)
+                {
+                    overflows++;
+                }
+
+                invalidateTree(root);
+                onChange.accept(root);
+                continue;
+            }
+
+            final Path changed = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS))
+            {
+                // registered before invalidating, so anything created within meanwhile is not missed
+                registerQuietly(changed);
+            }
+
+            if (DurableWrites.isTemporary(changed) || JsonDocumentStore.isJournal(changed))
+            {
+                synchronized (this)
+                {
+                    ownChangeEvents++;
+                }
+
+                continue;
+            }
+
+            if (invalidateOwnChange(changed))
+            {
+                onOwnChange.accept(changed);
+                continue;
+            }
+
+            LOG.debug("External change {} of {}", event.kind().name(), changed);
+            synchronized (this)
+            {
+                externalChanges++;
+            }
+
+            invalidateTree(changed);
+            onChange.accept(changed);
+        }
+
+        if (!key.reset())
+        {
+            // the directory is gone or not accessible anymore
+            invalidateTree(directory);
+            onChange.accept(directory);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Invalidates the path only, without recording it as changed by the server again, if the server changed it recently.
+     *
+     * @return True if the change was likely caused by the server itself.
+     */
+    private synchronized boolean invalidateOwnChange(@Nonnull final Path path)
+    {
+        expireOwnChanges(System.nanoTime());
+        if (ownChanges.containsKey(path))
+        {
+            ownChangeEvents++;
+            invalidations++;
+            entries.remove(path);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void expireOwnChanges(final long now)
+    {
+        final Iterator<Long> eldest = ownChanges.values().iterator();
+        while (eldest.hasNext() && now - eldest.next() >= OWN_CHANGE_WINDOW_NANOS)
+        {
+            eldest.remove();
+        }
+    }
+
+    private void registerQuietly(@Nonnull final Path directory)
+    {
+        try
+        {
+            register(directory);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Not watching {} for external changes: {}", directory, e.getMessage());
+        }
+    }
+
+    private void register(@Nonnull final Path directory) throws IOException
+    {
+        final WatchService service;
+        synchronized (this)
+        {
+            service = watchService;
+        }
+
+        if (service == null)
+        {
+            return;
+        }
+
+        Files.walkFileTree(directory, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) throws IOException
+            {
+                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @ManagedAttribute(description = "The maximum number of paths to keep the metadata of.")
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    @ManagedAttribute(description = "The number of paths the metadata is cached of.")
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "The number of lookups served from the cache.")
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    @ManagedAttribute(description = "The number of lookups that had to read the attributes from the file system.")
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @ManagedAttribute(description = "The number of changes by others reported by the watch service.")
+    public synchronized long getExternalChanges()
+    {
+        return externalChanges;
+    }
+
+    @ManagedAttribute(description = "The number of change events likely caused by the server itself, not invalidating trees.")
+    public synchronized long getOwnChangeEvents()
+    {
+        return ownChangeEvents;
+    }
+
+    @ManagedAttribute(description = "The number of times change events got lost and all metadata was dropped.")
+    public synchronized long getOverflows()
+    {
+        return overflows;
+    }
+
+    @ManagedAttribute(description = "Whether the root is watched for changes by others.")
+    public synchronized boolean isWatching()
+    {
+        return watchService != null;
+    }
+}
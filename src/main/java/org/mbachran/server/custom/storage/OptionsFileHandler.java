@@ -10,7 +10,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
-import java.io.IOException;
 import java.net.URI;
 
 /**
@@ -35,14 +34,10 @@ public class OptionsFileHandler implements NamedHandler
     public Response handle(@Nonnull final Request request)
     {
         final URI uri = request.getRequestLine().getUri();
-        try
+        // validates the resource existence without reading it
+        if (!filePersistence.exists(uri.getPath()))
         {
-            // just to validate resource existence
-            filePersistence.readBinary(uri.getPath());
-        }
-        catch (IOException e)
-        {
-            LOG.warn("Failed deleting resource {}: {}", uri, e.getMessage());
+            LOG.warn("Resource not found: {}", uri);
             return Response.buildErrorResponse(HttpCode.NOT_FOUND);
         }
 
@@ -2,6 +2,7 @@ package org.mbachran.server.custom.storage;
 
 import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestBody;
 import org.mbachran.server.custom.response.Response;
 import org.mbachran.server.custom.spi.NamedHandler;
 import org.slf4j.Logger;
@@ -12,6 +13,7 @@ import org.springframework.stereotype.Component;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.ReadableByteChannel;
  
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -39,34 +41,41 @@ public class PostFileHandler implements NamedHandler
         final URI uri = request.getRequestLine().getUri();
         try
         {
-            final byte[] body = request.getRequestBody().getContent();
+            final RequestBody requestBody = request.getRequestBody();
             final String resourcePath = uri.getPath();
 
             // interpret POST as update in case of json resource
             if (resourcePath.endsWith(".json"))
             {
+                // JSON documents are merged in memory anyway
+                final byte[] body = requestBody.getContent();
                 final boolean created = filePersistence.createOrUpdateJson(resourcePath, new String(body, UTF_8));
                 if (created)
                 {
                     logContentInfo(body, "Created JSON with");
-                    return new Response.Builder().code(HttpCode.CREATED).addHeader("Content-Length", String.valueOf(0)).build();
+                    return new Response.Builder().code(HttpCode.CREATED).contentLength(0).build();
                 }
                 else
                 {
                     logContentInfo(body, "Updated JSON with");
+                    // served from memory as the document is held by the store after the merge
                     final byte[] updated = filePersistence.readBinary(resourcePath);
                     return new Response.Builder()
                             .code(HttpCode.OK)
-                            .addHeader("Content-Length", String.valueOf(updated.length))
+                            .contentLength(updated.length)
                             .body(updated)
                             .build();
                 }
             }
             else
             {
-                filePersistence.writeBinary(resourcePath, body);
-                logContentInfo(body, "Wrote");
-                return new Response.Builder().code(HttpCode.CREATED).addHeader("Content-Length", String.valueOf(0)).build();
+                try (final ReadableByteChannel content = requestBody.getChannel())
+                {
+                    filePersistence.writeBinary(resourcePath, content, requestBody.getLength());
+                }
+
+                LOG.info("Wrote body content of length: " + requestBody.getLength());
+                return new Response.Builder().code(HttpCode.CREATED).contentLength(0).build();
             }
         }
         catch (IOException e)
@@ -2,6 +2,7 @@ package org.mbachran.server.custom.storage;
 
 import org.mbachran.server.custom.HttpCode;
 import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestBody;
 import org.mbachran.server.custom.response.Response;
 import org.mbachran.server.custom.spi.NamedHandler;
 import org.slf4j.Logger;
@@ -12,12 +13,12 @@ import org.springframework.stereotype.Component;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.net.URI;
- 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Configured in (application.config.custom-server.spi.handler.put) handler for PUT requests.
  * Uses {@link FilePersistence} as simple storage.
+ * The body is copied from its channel so large (spooled) bodies are never loaded onto the heap.
  */
 @Component
 public class PutFileHandler implements NamedHandler
@@ -39,9 +40,13 @@ public class PutFileHandler implements NamedHandler
         final URI uri = request.getRequestLine().getUri();
         try
         {
-            final byte[] body = request.getRequestBody().getContent();
-            filePersistence.writeBinary(uri.getPath(), body);
-            logContentInfo(body);
+            final RequestBody body = request.getRequestBody();
+            try (final ReadableByteChannel content = body.getChannel())
+            {
+                filePersistence.writeBinary(uri.getPath(), content, body.getLength());
+            }
+
+            LOG.info("Wrote body content of length: " + body.getLength());
         }
         catch (IOException e)
         {
@@ -49,19 +54,7 @@ public class PutFileHandler implements NamedHandler
             return Response.buildErrorResponse(HttpCode.NOT_FOUND);
         }
 
-        return new Response.Builder().code(HttpCode.CREATED).addHeader("Content-Length", String.valueOf(0)).build();
-    }
-
-    private static void logContentInfo(@Nonnull final byte[] body)
-    {
-        if (LOG.isDebugEnabled())
-        {
-            LOG.debug("Wrote body content (up to 100 bytes in utf-8): " + new String(body, 0, Math.min(body.length, 100), UTF_8));
-        }
-        else
-        {
-            LOG.info("Wrote body content of length: " + body.length);
-        }
+        return new Response.Builder().code(HttpCode.CREATED).contentLength(0).build();
     }
 
     @Nonnull
@@ -0,0 +1,154 @@
+package org.mbachran.server.custom.storage;
+
+import org.mbachran.server.custom.request.api.HeaderNames;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validators of a stored resource as derived from its file attributes (or the state of a document held by the
+ * {@link JsonDocumentStore}) without reading the content:
+ * - ETag: strong tag of modification time and size like "17a2c3f0b1e-14"
+ * - Last-Modified: the modification time as HTTP-date (second precision)
+ *
+ * Evaluates the conditional headers of GET requests against them (RFC 7232 and 7233):
+ * - If-None-Match: weak comparison against the given tags or '*'; if present If-Modified-Since is ignored
+ * - If-Modified-Since: not modified if the resource was not modified after the given date; ignored if not a valid HTTP-date
+ * - If-Range: whether a Range header is to be served, see {@link #isRangeApplicable(RequestHeaders)}
+ *
+ * The compression dispatcher marks the ETag of compressed variants as weak, so they validate against the same resource.
+ */
+final class ResourceValidators
+{
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static final String WEAK_PREFIX = "W/";
+
+    private final String eTag;
+
+    private final Instant lastModified;
+
+    /**
+     * @param attributes The attributes of the file of the resource.
+     */
+    ResourceValidators(@Nonnull final BasicFileAttributes attributes)
+    {
+        this(attributes.size(), attributes.lastModifiedTime());
+    }
+
+    /**
+     * @param size         The size of the resource.
+     * @param lastModified The modification time of the resource.
+     */
+    ResourceValidators(final long size, @Nonnull final FileTime lastModified)
+    {
+        this.eTag = "\"" + Long.toHexString(lastModified.to(TimeUnit.NANOSECONDS)) + "-" + Long.toHexString(size) + "\"";
+        this.lastModified = lastModified.toInstant().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    @Nonnull
+    String getETag()
+    {
+        return eTag;
+    }
+
+    @Nonnull
+    String getLastModified()
+    {
+        return HTTP_DATE.format(lastModified);
+    }
+
+    /**
+     * @param headers The headers of a GET or HEAD request.
+     * @return True if the conditional headers match, so the request is to be answered with 304 Not Modified.
+     */
+    boolean isNotModified(@Nonnull final RequestHeaders headers)
+    {
+        final String ifNoneMatch = headers.getHeader(HeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null)
+        {
+            return matchesAny(ifNoneMatch);
+        }
+
+        final Instant ifModifiedSince = parseHttpDate(headers.getHeader(HeaderNames.IF_MODIFIED_SINCE));
+        return ifModifiedSince != null && !lastModified.isAfter(ifModifiedSince);
+    }
+
+    /**
+     * @param headers The headers of a GET request.
+     * @return True if a Range header is to be served: there is no If-Range or it matches the current ETag (strong comparison) or
+     * Last-Modified date exactly. Otherwise the client's partial copy is outdated and it needs the full resource.
+     */
+    boolean isRangeApplicable(@Nonnull final RequestHeaders headers)
+    {
+        final String ifRange = headers.getHeader(HeaderNames.IF_RANGE);
+        if (ifRange == null)
+        {
+            return true;
+        }
+
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith(WEAK_PREFIX))
+        {
+            // weak tags never match strongly
+            return value.equals(eTag);
+        }
+
+        return lastModified.equals(parseHttpDate(value));
+    }
+
+    private boolean matchesAny(@Nonnull final String tags)
+    {
+        if ("*".equals(tags.trim()))
+        {
+            return true;
+        }
+
+        // entity tags cannot contain commas, so the list can simply be split
+        for (final String tag : tags.split(","))
+        {
+            if (opaque(tag.trim()).equals(eTag))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Nonnull
+    private static String opaque(@Nonnull final String tag)
+    {
+        return tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag;
+    }
+
+    @Nullable
+    private static Instant parseHttpDate(@Nullable final String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        }
+        catch (DateTimeParseException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.mbachran.server.custom.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Immutable table resolving a fixed set of ASCII tokens (like methods or header names) to constants right from the bytes read, without
+ * creating a String first.
+ *
+ * The table is a perfect hash: on construction a hash seed is searched for which no two tokens share a slot, so a lookup hashes the
+ * input once, probes a single slot and compares the token stored there. Optionally case insensitive (ASCII only).
+ *
+ * @param <T> The type of the constants.
+ */
+public final class TokenTable<T>
+{
+    private static final int MAX_SEED_ATTEMPTS = 10_000;
+
+    private final boolean ignoreCase;
+
+    private final byte[][] tokens;
+
+    private final Object[] values;
+
+    private final int mask;
+
+    private final int seed;
+
+    /**
+     * @param tokens     The tokens to resolve mapped to their constants.
+     * @param ignoreCase True to resolve tokens regardless of the case of letters.
+     */
+    public TokenTable(@Nonnull final Map<String, T> tokens, final boolean ignoreCase)
+    {
+        this.ignoreCase = ignoreCase;
+        int size = Integer.highestOneBit(Math.max(1, tokens.size()) * 4 - 1) << 1;
+        int seed = findSeed(tokens, size);
+        while (seed == -1)
+        {
+            size <<= 1;
+            seed = findSeed(tokens, size);
+        }
+
+        this.seed = seed;
+        this.mask = size - 1;
+        this.tokens = new byte[size][];
+        this.values = new Object[size];
+        for (final Map.Entry<String, T> entry : tokens.entrySet())
+        {
+            final byte[] token = normalize(entry.getKey());
+            final int slot = hash(token, seed) & mask;
+            this.tokens[slot] = token;
+            this.values[slot] = entry.getValue();
+        }
+    }
+
+    /**
+     * @param bytes The bytes holding the token.
+     * @param start The start of the token within the bytes.
+     * @param end   The end of the token within the bytes (exclusive).
+     * @return The constant for the token or null if the token is unknown.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T get(@Nonnull final byte[] bytes, final int start, final int end)
+    {
+        int hash = seed;
+        for (int i = start; i < end; i++)
+        {
+            hash = step(hash, bytes[i] & 0xff);
+        }
+
+        final int slot = mix(hash) & mask;
+        final byte[] token = tokens[slot];
+        if (token == null || token.length != end - start)
+        {
+            return null;
+        }
+
+        for (int i = 0; i < token.length; i++)
+        {
+            if (token[i] != normalize(bytes[start + i] & 0xff))
+            {
+                return null;
+            }
+        }
+
+        return (T) values[slot];
+    }
+
+    /**
+     * @param chars The token.
+     * @return The constant for the token or null if the token is unknown.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T get(@Nonnull final CharSequence chars)
+    {
+        int hash = seed;
+        for (int i = 0; i < chars.length(); i++)
+        {
+            hash = step(hash, chars.charAt(i));
+        }
+
+        final int slot = mix(hash) & mask;
+        final byte[] token = tokens[slot];
+        if (token == null || token.length != chars.length())
+        {
+            return null;
+        }
+
+        for (int i = 0; i < token.length; i++)
+        {
+            if (token[i] != normalize(chars.charAt(i)))
+            {
+                return null;
+            }
+        }
+
+        return (T) values[slot];
+    }
+
+    /**
+     * @return A seed for which no two tokens share a slot of a table of the given size or -1 if there is none within reasonable attempts.
+     */
+    private int findSeed(@Nonnull final Map<String, T> tokens, final int size)
+    {
+        for (int seed = 1; seed <= MAX_SEED_ATTEMPTS; seed++)
+        {
+            final boolean[] used = new boolean[size];
+            boolean collision = false;
+            for (final String token : tokens.keySet())
+            {
+                final int slot = hash(normalize(token), seed) & (size - 1);
+                collision = used[slot];
+                if (collision)
+                {
+                    break;
+                }
+
+                used[slot] = true;
+            }
+
+            if (!collision)
+            {
+                return seed;
+            }
+        }
+
+        return -1;
+    }
+
+    @Nonnull
+    private byte[] normalize(@Nonnull final String token)
+    {
+        final byte[] bytes = token.getBytes(US_ASCII);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) normalize(bytes[i]);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return The character lower cased if the table ignores case. Characters beyond a byte never match.
+     */
+    private int normalize(final int c)
+    {
+        if (c > 0xff)
+        {
+            return 0x100;
+        }
+
+        return ignoreCase && c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : (byte) c;
+    }
+
+    private int hash(@Nonnull final byte[] normalized, final int seed)
+    {
+        int hash = seed;
+        for (final byte b : normalized)
+        {
+            hash = step(hash, b & 0xff);
+        }
+
+        return mix(hash);
+    }
+
+    private int step(final int hash, final int c)
+    {
+        return (hash ^ (normalize(c) & 0xff)) * 0x01000193;
+    }
+
+    private static int mix(final int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,216 @@
+package org.mbachran.server.custom;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mbachran.server.custom.StorageResponses.withoutStorageHeaders;
+import static org.mbachran.server.custom.StorageResponses.withoutValidators;
+
+/**
+ * Runs requests against the selector based connection engine.
+ * Testing with buffer size 1 to ensure buffer can end at any position in the stream without breaking the parser.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"application.config.custom-server.port:7072", "application.config.custom-server.connection.read-buffer-size:1",
+        "application.config.custom-server.connection.engine:selector"})
+public class SelectorServerTests
+{
+    @Autowired
+    private ServerConfig serverConfig;
+
+    @Test
+    public void testGetByRequestLineOnly() throws IOException
+    {
+        final String expectedResponse = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+        final SocketChannel socket = openSocket();
+        final String readData = writeRead("GET /path/not/found/ HTTP/1.1\r\n\r\n", socket);
+        socket.close();
+        Assert.assertEquals(expectedResponse, readData);
+    }
+
+    @Test
+    public void testPutGetDeleteKeepAlive() throws IOException
+    {
+        final SocketChannel socket = openSocket();
+        final String putBody = "{\"created-by\":\"put\"}";
+        final String putData = "PUT /selector.json HTTP/1.1\r\nContent-Length: " + putBody.getBytes(UTF_8).length + "\r\n\r\n" + putBody;
+        Assert.assertEquals("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n", writeRead(putData, socket));
+
+        final String expectedGetResponse = "HTTP/1.1 200 OK\r\nContent-Length: " + putBody.getBytes(UTF_8).length + "\r\n\r\n" + putBody;
+        final String getResponse = writeRead("GET /selector.json HTTP/1.1\r\n\r\n", socket);
+        Assert.assertEquals(expectedGetResponse, withoutStorageHeaders(getResponse, "application/json"));
+
+        // unchanged, so answered without body
+        final Matcher eTag = Pattern.compile("ETag: ([^\r]*)\r\n").matcher(getResponse);
+        Assert.assertTrue(eTag.find());
+        final String notModified = writeRead("GET /selector.json HTTP/1.1\r\nIf-None-Match: " + eTag.group(1) + "\r\n\r\n", socket);
+        Assert.assertEquals("HTTP/1.1 304 Not Modified\r\n\r\n", withoutValidators(notModified));
+        Assert.assertTrue(notModified.contains(eTag.group()));
+
+        Assert.assertEquals("HTTP/1.1 204 No Content\r\n\r\n", writeRead("DELETE /selector.json HTTP/1.1\r\n\r\n", socket));
+        socket.close();
+    }
+
+    @Test
+    public void testRangeRequests() throws IOException
+    {
+        final SocketChannel socket = openSocket();
+        final String putBody = "{\"created-by\":\"put\"}";
+        final String putData = "PUT /range.json HTTP/1.1\r\nContent-Length: " + putBody.getBytes(UTF_8).length + "\r\n\r\n" + putBody;
+        Assert.assertEquals("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n", writeRead(putData, socket));
+
+        final String single = writeRead("GET /range.json HTTP/1.1\r\nRange: bytes=2-11\r\n\r\n", socket);
+        Assert.assertTrue(single.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        Assert.assertTrue(single.contains("Content-Range: bytes 2-11/20\r\n"));
+        Assert.assertTrue(single.endsWith("\r\n\r\ncreated-by"));
+
+        final String multiple = writeRead("GET /range.json HTTP/1.1\r\nRange: bytes=0-0,-1\r\n\r\n", socket);
+        final Matcher boundary = Pattern.compile("Content-Type: multipart/byteranges; boundary=([0-9a-f]+)\r\n").matcher(multiple);
+        Assert.assertTrue(boundary.find());
+        final String delimiter = "\r\n--" + boundary.group(1) + "\r\nContent-Type: application/json\r\n";
+        Assert.assertTrue(multiple.endsWith(delimiter + "Content-Range: bytes 0-0/20\r\n\r\n{"
+                + delimiter + "Content-Range: bytes 19-19/20\r\n\r\n}\r\n--" + boundary.group(1) + "--\r\n"));
+
+        final String outdated = writeRead("GET /range.json HTTP/1.1\r\nRange: bytes=2-11\r\nIf-Range: \"outdated\"\r\n\r\n", socket);
+        Assert.assertTrue(outdated.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(outdated.endsWith("\r\n\r\n" + putBody));
+
+        final String notSatisfiable = writeRead("GET /range.json HTTP/1.1\r\nRange: bytes=20-\r\n\r\n", socket);
+        Assert.assertTrue(notSatisfiable.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+        Assert.assertTrue(notSatisfiable.contains("Content-Range: bytes */20\r\n"));
+
+        Assert.assertEquals("HTTP/1.1 204 No Content\r\n\r\n", writeRead("DELETE /range.json HTTP/1.1\r\n\r\n", socket));
+        socket.close();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException
+    {
+        final SocketChannel socket = openSocket();
+        final String notFound = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+        final String readData = writeRead("GET /not/found/1 HTTP/1.1\r\n\r\nGET /not/found/2 HTTP/1.1\r\n\r\n", socket);
+        final String remainder = readData.length() < 2 * notFound.length() ? writeRead("", socket) : "";
+        socket.close();
+        Assert.assertEquals(notFound + notFound, readData + remainder);
+    }
+
+    @Test
+    public void testGetLargeFileIsTransferred() throws Exception
+    {
+        final byte[] expected = Files.readAllBytes(Path.of(getClass().getClassLoader().getResource("static/Dossier.pdf").toURI()));
+        final SocketChannel socket = openSocket();
+        socket.write(ByteBuffer.wrap("GET /Dossier.pdf HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+
+        final ByteBuffer readBuffer = ByteBuffer.allocate(expected.length + 1024);
+        int headLength = -1;
+        while (headLength == -1 || readBuffer.position() < headLength + expected.length)
+        {
+            if (socket.read(readBuffer) == -1)
+            {
+                break;
+            }
+
+            if (headLength == -1)
+            {
+                // the head is ASCII, so the index of its end is the same in bytes
+                final int headEnd = new String(readBuffer.array(), 0, readBuffer.position(), US_ASCII).indexOf("\r\n\r\n");
+                headLength = headEnd == -1 ? -1 : headEnd + 4;
+            }
+        }
+
+        socket.close();
+        final String head = new String(readBuffer.array(), 0, headLength, UTF_8);
+        Assert.assertEquals("HTTP/1.1 200 OK\r\nContent-Length: " + expected.length + "\r\n\r\n",
+                withoutStorageHeaders(head, "application/pdf"));
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(readBuffer.array(), headLength, readBuffer.position()));
+    }
+
+    @Test
+    public void testManyConcurrentKeepAliveConnections() throws IOException
+    {
+        // more connections than the default connection pool has threads
+        final List<SocketChannel> sockets = new ArrayList<>();
+        for (int i = 0; i < 150; i++)
+        {
+            sockets.add(openSocket());
+        }
+
+        for (final SocketChannel socket : sockets)
+        {
+            Assert.assertEquals("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n", writeRead("GET /not/found HTTP/1.1\r\n\r\n", socket));
+        }
+
+        for (final SocketChannel socket : sockets)
+        {
+            socket.close();
+        }
+    }
+
+    private String writeRead(@Nonnull final String data, @Nonnull final SocketChannel socket) throws IOException
+    {
+        final ByteBuffer writeBuffer = ByteBuffer.wrap(data.getBytes(UTF_8));
+        while (writeBuffer.hasRemaining())
+        {
+            socket.write(writeBuffer);
+        }
+
+        // the response might arrive in pieces as it is written as far as the socket accepts it
+        final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        String readData = "";
+        while (!isComplete(readData))
+        {
+            if (socket.read(readBuffer) == -1)
+            {
+                break;
+            }
+
+            readData = new String(readBuffer.array(), 0, readBuffer.position(), UTF_8);
+        }
+
+        return readData;
+    }
+
+    private static boolean isComplete(@Nonnull final String readData)
+    {
+        final int headerEnd = readData.indexOf("\r\n\r\n");
+        if (headerEnd == -1)
+        {
+            return false;
+        }
+
+        final int lengthStart = readData.indexOf("Content-Length: ");
+        if (lengthStart == -1 || lengthStart > headerEnd)
+        {
+            return true;
+        }
+
+        final int length = Integer.parseInt(readData.substring(lengthStart + "Content-Length: ".length(), readData.indexOf("\r\n", lengthStart)));
+        return readData.getBytes(UTF_8).length >= headerEnd + 4 + length;
+    }
+
+
+    @Nonnull
+    private SocketChannel openSocket() throws IOException
+    {
+        return SocketChannel.open(new InetSocketAddress(serverConfig.getInterface(), serverConfig.getPort()));
+    }
+}
@@ -0,0 +1,177 @@
+package org.mbachran.server.custom;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mbachran.server.custom.accept.api.AcceptorFactory;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the {@link Server} with acceptors that only count the connections they accept per server socket.
+ */
+public class ServerReusePortTests
+{
+    private static final int ACCEPTOR_COUNT = 4;
+
+    private final Map<Integer, ServerSocketChannel> channels = new ConcurrentHashMap<>();
+
+    private final Map<Integer, AtomicInteger> accepted = new ConcurrentHashMap<>();
+
+    private ExecutorService acceptPool;
+
+    private Server server;
+
+    @Before
+    public void setUp()
+    {
+        acceptPool = Executors.newFixedThreadPool(ACCEPTOR_COUNT);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (server != null)
+        {
+            server.shutdown();
+        }
+
+        acceptPool.shutdownNow();
+    }
+
+    @Test
+    public void testEachAcceptorBindsItsOwnServerSocket() throws Exception
+    {
+        Assume.assumeTrue("SO_REUSEPORT is not supported on this platform", Server.isReusePortSupported());
+        final int port = start(true);
+        Assert.assertEquals(ACCEPTOR_COUNT, Set.copyOf(channels.values()).size());
+        for (final ServerSocketChannel channel : channels.values())
+        {
+            Assert.assertTrue(channel.getOption(StandardSocketOptions.SO_REUSEPORT));
+            Assert.assertEquals(port, ((InetSocketAddress) channel.getLocalAddress()).getPort());
+        }
+
+        // the kernel spreads the connections by their source ports, so with that many each socket gets some
+        connect(port, 200);
+        awaitAccepted(200);
+        for (int acceptorNumber = 0; acceptorNumber < ACCEPTOR_COUNT; acceptorNumber++)
+        {
+            Assert.assertTrue("Acceptor " + acceptorNumber + " accepted nothing", accepted.get(acceptorNumber).get() > 0);
+        }
+    }
+
+    @Test
+    public void testAcceptorsShareOneServerSocketByDefault() throws Exception
+    {
+        final int port = start(false);
+        Assert.assertEquals(1, Set.copyOf(channels.values()).size());
+        connect(port, 20);
+        awaitAccepted(20);
+    }
+
+    @Test
+    public void testUnsupportedReusePortIsWarnedAbout()
+    {
+        final ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Server.class);
+        final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try
+        {
+            Assert.assertFalse(Server.isReusePortSupported(Set.of(StandardSocketOptions.SO_REUSEADDR, StandardSocketOptions.SO_RCVBUF)));
+            final List<ILoggingEvent> warnings = appender.list.stream().filter(event -> event.getLevel() == Level.WARN)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(1, warnings.size());
+            Assert.assertTrue(warnings.get(0).getFormattedMessage().startsWith("SO_REUSEPORT is not supported"));
+
+            appender.list.clear();
+            Assert.assertTrue(Server.isReusePortSupported(Set.of(StandardSocketOptions.SO_REUSEPORT)));
+            Assert.assertTrue(appender.list.isEmpty());
+        }
+        finally
+        {
+            logger.detachAppender(appender);
+        }
+    }
+
+    /**
+     * @return The port the server listens to.
+     */
+    private int start(final boolean reusePort) throws IOException
+    {
+        final int port;
+        try (final ServerSocketChannel probe = ServerSocketChannel.open())
+        {
+            probe.bind(new InetSocketAddress("localhost", 0));
+            port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+
+        final AcceptorFactory acceptorFactory = (acceptorNumber, serverSocketChannel) ->
+        {
+            channels.put(acceptorNumber, serverSocketChannel);
+            accepted.put(acceptorNumber, new AtomicInteger());
+            return () ->
+            {
+                try
+                {
+                    serverSocketChannel.accept().close();
+                }
+                catch (ClosedChannelException e)
+                {
+                    return -1L;
+                }
+
+                accepted.get(acceptorNumber).incrementAndGet();
+                return 0L;
+            };
+        };
+
+        server = new Server(new ServerConfig(port, ACCEPTOR_COUNT, 1000, "localhost", reusePort), acceptPool, acceptorFactory);
+        server.init();
+        Assert.assertEquals(ACCEPTOR_COUNT, channels.size());
+        return port;
+    }
+
+    private static void connect(final int port, final int count) throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+        }
+    }
+
+    private void awaitAccepted(final int count) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (total() < count)
+        {
+            Assert.assertTrue("Accepted " + total() + " of " + count, System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int total()
+    {
+        return accepted.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+}
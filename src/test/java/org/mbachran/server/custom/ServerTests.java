@@ -17,6 +17,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mbachran.server.custom.StorageResponses.withoutStorageHeaders;
 
 /**
  * Testing with buffer size 1 to ensure buffer can end at any position in the stream without breaking the parser.
@@ -44,7 +45,7 @@ public class ServerTests
         final String expectedResponse = "HTTP/1.1 200 OK\r\nContent-Length: 20\r\n\r\n{\r\n  \"foo\": \"bar\"\r\n}";
         final String data = "GET /foobar.json HTTP/1.1\r\nCache-Control: no-cache\r\n\r\n";
         final String readData = openWriteReadClose(data);
-        Assert.assertEquals(expectedResponse, readData);
+        Assert.assertEquals(expectedResponse, withoutStorageHeaders(readData, "application/json"));
     }
 
     @Test
@@ -53,7 +54,7 @@ public class ServerTests
         final String expectedResponse = "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 20\r\n\r\n{\r\n  \"foo\": \"bar\"\r\n}";
         final String data = "GET /foobar.json HTTP/1.1\r\nConnection: close\r\n\r\n";
         final String readData = openWriteReadClose(data);
-        Assert.assertEquals(expectedResponse, readData);
+        Assert.assertEquals(expectedResponse, withoutStorageHeaders(readData, "application/json"));
     }
 
     @Test
@@ -62,7 +63,7 @@ public class ServerTests
         final String expectedResponse = "HTTP/1.1 200 OK\r\nContent-Length: 20\r\n\r\n{\r\n  \"foo\": \"bar\"\r\n}";
         final String data = "GET /foobar.json HTTP/1.1\r\nmy-custom-multi-line-header: first\r\n\tsecond\r\n third\r\n\r\n";
         final String readData = openWriteReadClose(data);
-        Assert.assertEquals(expectedResponse, readData);
+        Assert.assertEquals(expectedResponse, withoutStorageHeaders(readData, "application/json"));
     }
 
     @Test
@@ -95,7 +96,7 @@ public class ServerTests
                 Integer.toHexString(chunk1Length) + "\r\n" +
                 chunk1 + "\r\n" +
                 Integer.toHexString(chunk2Length) + ";extension\r\n" +
-                chunk2 + "\r\n0\r\ntrailer\r\n";
+                chunk2 + "\r\n0\r\ntrailer: value\r\n\r\n";
 
         final String readData = openWriteReadClose(data);
         Assert.assertEquals(expectedResponse, readData);
@@ -166,7 +167,8 @@ public class ServerTests
         final String[] prefixAndBody = readGetResponse.split("\r\n\r\n");
         Assert.assertEquals(prefixAndBody.length, 2);
         final JSONObject readGetBody = new JSONObject(prefixAndBody[1]);
-        Assert.assertEquals(expectedGetResponsePrefix, prefixAndBody[0]);
+        Assert.assertEquals(expectedGetResponsePrefix,
+                withoutStorageHeaders(prefixAndBody[0] + "\r\n", "application/json").trim());
         Assert.assertEquals(readGetBody.keySet().size(), 2);
         Assert.assertEquals(readGetBody.getString("created-by"), "put");
         Assert.assertEquals(readGetBody.getString("modified-by"), "post");
@@ -0,0 +1,44 @@
+package org.mbachran.server.custom;
+
+import org.junit.Assert;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Helpers for asserting responses of the file storage, whose validators change with every write of a file.
+ */
+final class StorageResponses
+{
+    private static final String CONTENT_TYPE = "Content-Type: ";
+
+    private StorageResponses()
+    {
+    }
+
+    /**
+     * @return The response without the Accept-Ranges, ETag and Last-Modified headers added by the file storage.
+     */
+    @Nonnull
+    static String withoutValidators(@Nonnull final String response)
+    {
+        return response.replaceAll("(Accept-Ranges|ETag|Last-Modified): [^\r]*\r\n", "");
+    }
+
+    /**
+     * Asserts the content type of the response. The headers are compared without it as their order is not defined.
+     *
+     * @param response    The response or its head.
+     * @param contentType The expected value of the Content-Type header.
+     * @return The response without the Content-Type header and the headers removed by {@link #withoutValidators(String)}.
+     */
+    @Nonnull
+    static String withoutStorageHeaders(@Nonnull final String response, @Nonnull final String contentType)
+    {
+        final int headEnd = response.indexOf("\r\n\r\n");
+        final String head = headEnd == -1 ? response : response.substring(0, headEnd + 2);
+        final String header = "\r\n" + CONTENT_TYPE + contentType + "\r\n";
+        Assert.assertTrue(response, head.contains(header));
+        Assert.assertEquals(response, head.indexOf("\r\n" + CONTENT_TYPE), head.lastIndexOf("\r\n" + CONTENT_TYPE));
+        return withoutValidators(head.replace(header, "\r\n") + response.substring(head.length()));
+    }
+}
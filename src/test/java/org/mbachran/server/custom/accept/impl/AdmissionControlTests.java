@@ -0,0 +1,133 @@
+package org.mbachran.server.custom.accept.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class AdmissionControlTests
+{
+    @Test
+    public void testLimitIsEnforcedAndReleased() throws IOException
+    {
+        final ExecutorService connectionPool = Executors.newSingleThreadExecutor();
+        final AdmissionControl admissionControl = new AdmissionControl(2, 1, connectionPool);
+        Assert.assertTrue(admissionControl.tryAdmit());
+        Assert.assertTrue(admissionControl.tryAdmit());
+        Assert.assertFalse(admissionControl.tryAdmit());
+        Assert.assertEquals(2, admissionControl.getInFlight());
+
+        admissionControl.track(() -> {}).run();
+        Assert.assertEquals(1, admissionControl.getInFlight());
+        Assert.assertTrue(admissionControl.tryAdmit());
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testLimitIsIgnoredInVirtualPoolMode()
+    {
+        final ExecutorService connectionPool = Executors.newSingleThreadExecutor();
+        final AcceptorConfig acceptorConfig = new AcceptorConfig(5, 100, 10, AcceptorConfig.PoolMode.virtual);
+        final AdmissionControl admissionControl = new AdmissionControl(2, 1, acceptorConfig, connectionPool);
+        for (int i = 0; i < 3; i++)
+        {
+            Assert.assertTrue(admissionControl.tryAdmit());
+        }
+
+        Assert.assertEquals(3, admissionControl.getInFlight());
+        Assert.assertEquals(0, admissionControl.getMaxInFlight());
+
+        final AcceptorConfig platformConfig = new AcceptorConfig(5, 100, 10, AcceptorConfig.PoolMode.platform);
+        Assert.assertEquals(2, new AdmissionControl(2, 1, platformConfig, connectionPool).getMaxInFlight());
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testRejectAnswersWith503AndCloses() throws IOException
+    {
+        final ExecutorService connectionPool = Executors.newSingleThreadExecutor();
+        final AdmissionControl admissionControl = new AdmissionControl(1, 5, connectionPool);
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                admissionControl.reject(serverSocketChannel.accept());
+
+                final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+                while (client.read(readBuffer) != -1)
+                {
+                    // read until the server closed the connection
+                }
+
+                final String response = new String(readBuffer.array(), 0, readBuffer.position(), UTF_8);
+                Assert.assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+                Assert.assertTrue(response, response.contains("Retry-After: 5\r\n"));
+                Assert.assertTrue(response, response.contains("Connection: close\r\n"));
+                Assert.assertEquals(1, admissionControl.getRejections());
+            }
+        }
+
+        connectionPool.shutdown();
+    }
+
+    @Test
+    public void testConnectionIsOnlyCreatedOnceAdmitted() throws Exception
+    {
+        final ExecutorService connectionPool = Executors.newSingleThreadExecutor();
+        final AdmissionControl admissionControl = new AdmissionControl(1, 5, connectionPool);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel first = SocketChannel.open(serverSocketChannel.getLocalAddress());
+                 final SocketChannel second = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                Assert.assertTrue(admissionControl.submit(serverSocketChannel.accept(), () -> {
+                    created.incrementAndGet();
+                    return () -> awaitUninterruptibly(release);
+                }));
+                Assert.assertFalse(admissionControl.submit(serverSocketChannel.accept(), () -> {
+                    created.incrementAndGet();
+                    return () -> {};
+                }));
+
+                Assert.assertEquals(1, created.get());
+                Assert.assertEquals(1, admissionControl.getInFlight());
+                Assert.assertEquals(1, admissionControl.getRejections());
+            }
+        }
+        finally
+        {
+            release.countDown();
+            connectionPool.shutdown();
+        }
+
+        Assert.assertTrue(connectionPool.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, admissionControl.getInFlight());
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.mbachran.server.custom.accept.impl;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load comparison of the connection pool modes.
+ * Each submitted task simulates a keep-alive connection blocking in a read on an idle socket until the test releases it.
+ * The numbers of connections that are served, waiting or rejected are logged and asserted per mode.
+ */
+public class ConnectionPoolModeTests
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPoolModeTests.class);
+
+    private static final int MAX_CONNECTION_COUNT = 100;
+
+    private static final int IDLE_CONNECTION_COUNT = 2000;
+
+    @Test
+    public void testPlatformModeSustainsMaxCountOnly() throws InterruptedException
+    {
+        final Result result = load("platform", MAX_CONNECTION_COUNT);
+        Assert.assertEquals(MAX_CONNECTION_COUNT, result.served);
+        Assert.assertEquals(MAX_CONNECTION_COUNT, result.waiting);
+        Assert.assertEquals(IDLE_CONNECTION_COUNT - 2 * MAX_CONNECTION_COUNT, result.rejected);
+    }
+
+    @Test
+    public void testVirtualModeSustainsAllConnections() throws InterruptedException
+    {
+        Assume.assumeTrue("Virtual threads require a Java 21+ runtime", Runtime.version().feature() >= 21);
+        final Result result = load("virtual", IDLE_CONNECTION_COUNT);
+        Assert.assertEquals(IDLE_CONNECTION_COUNT, result.served);
+        Assert.assertEquals(0, result.rejected);
+    }
+
+    /**
+     * @param expectedServed The number of connections the pool is expected to pick up, awaited before taking the numbers.
+     */
+    private Result load(final String poolMode, final int expectedServed) throws InterruptedException
+    {
+        final AcceptorSpringConfig config = new AcceptorSpringConfig(5, MAX_CONNECTION_COUNT, 10, poolMode);
+        final ExecutorService connectionPool = config.executorService();
+        final CountDownLatch idle = new CountDownLatch(1);
+        final AtomicInteger served = new AtomicInteger();
+        final Semaphore started = new Semaphore(0);
+        int rejected = 0;
+        for (int i = 0; i < IDLE_CONNECTION_COUNT; i++)
+        {
+            try
+            {
+                connectionPool.submit(() -> {
+                    served.incrementAndGet();
+                    started.release();
+                    idle.await();
+                    return null;
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                rejected++;
+            }
+        }
+
+        Assert.assertTrue("Connections not picked up", started.tryAcquire(expectedServed, 10, TimeUnit.SECONDS));
+        final Result result = new Result(served.get(), IDLE_CONNECTION_COUNT - rejected - served.get(), rejected);
+        LOG.info("Pool mode {} with {} idle connections: served={}, waiting={}, rejected={}", poolMode, IDLE_CONNECTION_COUNT, result.served,
+                result.waiting, result.rejected);
+
+        idle.countDown();
+        connectionPool.shutdown();
+        Assert.assertTrue(connectionPool.awaitTermination(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class Result
+    {
+        private final int served;
+
+        private final int waiting;
+
+        private final int rejected;
+
+        private Result(final int served, final int waiting, final int rejected)
+        {
+            this.served = served;
+            this.waiting = waiting;
+            this.rejected = rejected;
+        }
+    }
+}
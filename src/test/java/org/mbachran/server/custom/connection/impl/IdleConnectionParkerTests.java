@@ -0,0 +1,159 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mbachran.server.custom.accept.impl.AdmissionControl;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class IdleConnectionParkerTests
+{
+    private ServerSocketChannel serverSocketChannel;
+
+    private ExecutorService connectionPool;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        connectionPool = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        connectionPool.shutdownNow();
+        serverSocketChannel.close();
+    }
+
+    @Test
+    public void testParkedConnectionIsResumedAsInFlight() throws Exception
+    {
+        final AdmissionControl admissionControl = new AdmissionControl(10, 1, connectionPool);
+        final IdleConnectionParker parker = start(admissionControl);
+        try (final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+        {
+            final SocketChannel dataSocketChannel = serverSocketChannel.accept();
+            final CountDownLatch served = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            parker.park(() ->
+            {
+                served.countDown();
+                await(release);
+                return -1L;
+            }, dataSocketChannel, 60_000);
+
+            // nothing to serve until data arrives
+            Assert.assertFalse(served.await(200, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(0, admissionControl.getInFlight());
+
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+            Assert.assertTrue(served.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue("Resumed connection must be blocking again", dataSocketChannel.isBlocking());
+            Assert.assertEquals(1, admissionControl.getInFlight());
+
+            release.countDown();
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (admissionControl.getInFlight() > 0)
+            {
+                Assert.assertTrue("Slot not released", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            dataSocketChannel.close();
+        }
+        finally
+        {
+            parker.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws Exception
+    {
+        final IdleConnectionParker parker = start(new AdmissionControl(10, 1, connectionPool));
+        try (final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+        {
+            parker.park(() -> -1L, serverSocketChannel.accept(), 10);
+
+            // closed by the next idle check, without any response
+            client.socket().setSoTimeout(10_000);
+            Assert.assertEquals(-1, client.socket().getInputStream().read());
+        }
+        finally
+        {
+            parker.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectedResumeIsAnsweredWith503() throws Exception
+    {
+        final AdmissionControl admissionControl = new AdmissionControl(10, 1, connectionPool);
+        final IdleConnectionParker parker = start(admissionControl);
+        try (final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+        {
+            final CountDownLatch served = new CountDownLatch(1);
+            parker.park(() ->
+            {
+                served.countDown();
+                return -1L;
+            }, serverSocketChannel.accept(), 60_000);
+
+            connectionPool.shutdown();
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+
+            final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+            client.socket().setSoTimeout(10_000);
+            int read;
+            while ((read = client.socket().getInputStream().read(readBuffer.array(), readBuffer.position(), readBuffer.remaining())) != -1)
+            {
+                readBuffer.position(readBuffer.position() + read);
+            }
+
+            final String response = new String(readBuffer.array(), 0, readBuffer.position(), UTF_8);
+            Assert.assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+            Assert.assertEquals(1, admissionControl.getRejections());
+            Assert.assertEquals(0, admissionControl.getInFlight());
+            Assert.assertEquals(1, served.getCount());
+        }
+        finally
+        {
+            parker.shutdown();
+        }
+    }
+
+    @Nonnull
+    private static IdleConnectionParker start(@Nonnull final AdmissionControl admissionControl) throws IOException
+    {
+        final IdleConnectionParker parker = new IdleConnectionParker(true, admissionControl);
+        parker.init();
+        return parker;
+    }
+
+    private static void await(@Nonnull final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ReadBufferPoolTests
+{
+    @Test
+    public void testReleasedBuffersAreLeasedAgain()
+    {
+        final ReadBufferPool pool = new ReadBufferPool(16, 64);
+        final ByteBuffer first = pool.lease();
+        Assert.assertTrue(first.isDirect());
+        Assert.assertEquals(16, first.capacity());
+        Assert.assertEquals(1, pool.getMisses());
+        Assert.assertEquals(16, pool.getDirectBytes());
+
+        first.put((byte) 1).flip();
+        pool.release(first);
+        Assert.assertEquals(1, pool.getFreeCount());
+
+        // a hit hands out the same buffer cleared, without allocating
+        final ByteBuffer second = pool.lease();
+        Assert.assertSame(first, second);
+        Assert.assertEquals(0, second.position());
+        Assert.assertEquals(16, second.limit());
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(1, pool.getMisses());
+        Assert.assertEquals(16, pool.getDirectBytes());
+        Assert.assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void testMissesAllocateUpToTheCap()
+    {
+        final ReadBufferPool pool = new ReadBufferPool(16, 40);
+        final ByteBuffer first = pool.lease();
+        final ByteBuffer second = pool.lease();
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(second.isDirect());
+        Assert.assertEquals(2, pool.getMisses());
+        Assert.assertEquals(32, pool.getDirectBytes());
+
+        // another 16 bytes would exceed the cap of 40
+        final ByteBuffer third = pool.lease();
+        Assert.assertFalse(third.isDirect());
+        Assert.assertEquals(16, third.capacity());
+        Assert.assertEquals(3, pool.getMisses());
+        Assert.assertEquals(1, pool.getHeapFallbacks());
+        Assert.assertEquals(32, pool.getDirectBytes());
+    }
+
+    @Test
+    public void testHeapFallbacksAreDroppedOnRelease()
+    {
+        final ReadBufferPool pool = new ReadBufferPool(16, 0);
+        final ByteBuffer buffer = pool.lease();
+        Assert.assertFalse(buffer.isDirect());
+        Assert.assertEquals(0, pool.getDirectBytes());
+
+        pool.release(buffer);
+        Assert.assertEquals(0, pool.getFreeCount());
+        Assert.assertNotSame(buffer, pool.lease());
+        Assert.assertEquals(0, pool.getHits());
+        Assert.assertEquals(2, pool.getHeapFallbacks());
+    }
+}
@@ -0,0 +1,211 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.parser.impl.ChunkedBodyParser;
+import org.mbachran.server.custom.parser.impl.DefaultRequestParserFactory;
+import org.mbachran.server.custom.parser.impl.IdentityBodyParser;
+import org.mbachran.server.custom.parser.impl.RequestLimits;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.impl.FileRequestBody;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.StreamResponseBody;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class RequestPipelineTests
+{
+    /**
+     * Echoes method, path and body so the order and the request boundaries can be verified.
+     */
+    private static final Dispatcher ECHO = new Dispatcher()
+    {
+        @Nonnull
+        @Override
+        public String getName()
+        {
+            return "echo";
+        }
+
+        @Nonnull
+        @Override
+        public Response handle(@Nonnull final Request request)
+        {
+            final String echo = request.getRequestLine().getMethod() + " " + request.getRequestLine().getUri() + " "
+                    + new String(request.getRequestBody().getContent(), UTF_8);
+            return new Response.Builder().body(echo.getBytes(UTF_8)).build();
+        }
+    };
+
+    @Test
+    public void testPipelinedRequestsWithinOneBuffer() throws Exception
+    {
+        final String requests = "GET /first HTTP/1.1\r\n\r\n"
+                + "PUT /second HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc"
+                + "POST /third HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nde\r\n0\r\n\r\n"
+                + "GET /fourth HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /fif";
+
+        try (final RequestPipeline pipeline = createPipeline())
+        {
+            final List<Response> responses = pipeline.process(ByteBuffer.wrap(requests.getBytes(UTF_8)));
+            Assert.assertEquals(4, responses.size());
+            Assert.assertEquals("GET /first ", new String(responses.get(0).getBody(), UTF_8));
+            Assert.assertEquals("PUT /second abc", new String(responses.get(1).getBody(), UTF_8));
+            Assert.assertEquals("POST /third de", new String(responses.get(2).getBody(), UTF_8));
+            Assert.assertEquals("GET /fourth ", new String(responses.get(3).getBody(), UTF_8));
+            Assert.assertTrue(pipeline.isRequestPending());
+
+            final List<Response> completed = pipeline.process(ByteBuffer.wrap("th HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+            Assert.assertEquals(1, completed.size());
+            Assert.assertEquals("GET /fifth ", new String(completed.get(0).getBody(), UTF_8));
+            Assert.assertFalse(pipeline.isRequestPending());
+        }
+    }
+
+    @Test
+    public void testCloseStopsPipeline() throws Exception
+    {
+        final String requests = "GET /first HTTP/1.1\r\nConnection: close\r\n\r\nGET /second HTTP/1.1\r\n\r\n";
+        try (final RequestPipeline pipeline = createPipeline())
+        {
+            final List<Response> responses = pipeline.process(ByteBuffer.wrap(requests.getBytes(UTF_8)));
+            Assert.assertEquals(1, responses.size());
+            Assert.assertTrue(pipeline.isCloseRequested());
+        }
+    }
+
+    @Test
+    public void testFailureClosesConnection() throws Exception
+    {
+        final String requests = "GARBAGE\r\nGET /second HTTP/1.1\r\n\r\n";
+        try (final RequestPipeline pipeline = createPipeline())
+        {
+            final List<Response> responses = pipeline.process(ByteBuffer.wrap(requests.getBytes(UTF_8)));
+            Assert.assertEquals(1, responses.size());
+            Assert.assertEquals("close", responses.get(0).getHeaders().get("Connection"));
+            Assert.assertTrue(pipeline.isCloseRequested());
+        }
+    }
+
+    @Test
+    public void testBodyOfUnknownLengthIsDelimitedPerVersion() throws Exception
+    {
+        final Dispatcher streaming = new Dispatcher()
+        {
+            @Nonnull
+            @Override
+            public String getName()
+            {
+                return "streaming";
+            }
+
+            @Nonnull
+            @Override
+            public Response handle(@Nonnull final Request request)
+            {
+                return new Response.Builder().body(new StreamResponseBody(new ByteArrayInputStream(new byte[1]), -1)).build();
+            }
+        };
+
+        final DefaultRequestParserFactory parserFactory = new DefaultRequestParserFactory(
+                List.of(new IdentityBodyParser(1024, RequestLimits.UNLIMITED)), RequestLimits.UNLIMITED, "string");
+        try (final RequestPipeline pipeline = new RequestPipeline(parserFactory, streaming))
+        {
+            final Response response = pipeline.process(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes(UTF_8))).get(0);
+            Assert.assertEquals("chunked", response.getHeaders().get("Transfer-Encoding"));
+            Assert.assertFalse(pipeline.isCloseRequested());
+        }
+
+        try (final RequestPipeline pipeline = new RequestPipeline(parserFactory, streaming))
+        {
+            final Response response = pipeline.process(ByteBuffer.wrap("GET / HTTP/1.0\r\n\r\n".getBytes(UTF_8))).get(0);
+            Assert.assertNull(response.getHeaders().get("Transfer-Encoding"));
+            Assert.assertTrue(pipeline.isCloseRequested());
+        }
+    }
+
+    @Test
+    public void testLargeBodiesAreSpooledWhileHandled() throws Exception
+    {
+        final String content = "x".repeat(5000);
+        final List<Request> handled = new ArrayList<>();
+        final Dispatcher spoolChecking = new Dispatcher()
+        {
+            @Nonnull
+            @Override
+            public String getName()
+            {
+                return "spool-checking";
+            }
+
+            @Nonnull
+            @Override
+            public Response handle(@Nonnull final Request request) throws IOException
+            {
+                Assert.assertTrue(request.getRequestBody() instanceof FileRequestBody);
+                Assert.assertEquals(content.length(), request.getRequestBody().getLength());
+                try (final InputStream inputStream = request.getRequestBody().getInputStream())
+                {
+                    Assert.assertEquals(content, new String(inputStream.readAllBytes(), UTF_8));
+                }
+
+                handled.add(request);
+                return new Response.Builder().build();
+            }
+        };
+
+        final String chunked = Integer.toHexString(3000) + "\r\n" + content.substring(0, 3000) + "\r\n"
+                + Integer.toHexString(2000) + "\r\n" + content.substring(3000) + "\r\n0\r\n\r\n";
+        final String requests = "PUT /identity HTTP/1.1\r\nContent-Length: 5000\r\n\r\n" + content
+                + "PUT /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + chunked;
+        final DefaultRequestParserFactory parserFactory = new DefaultRequestParserFactory(
+                List.of(new IdentityBodyParser(1024, RequestLimits.UNLIMITED), new ChunkedBodyParser(1024, RequestLimits.UNLIMITED)),
+                RequestLimits.UNLIMITED, "string");
+        try (final RequestPipeline pipeline = new RequestPipeline(parserFactory, spoolChecking))
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap(requests.getBytes(UTF_8));
+            final ByteBuffer readBuffer = ByteBuffer.allocate(700);
+            while (buffer.hasRemaining())
+            {
+                readBuffer.clear();
+                readBuffer.put(buffer.slice().limit(Math.min(buffer.remaining(), readBuffer.capacity())));
+                buffer.position(buffer.position() + readBuffer.position());
+                pipeline.process(readBuffer.flip());
+            }
+        }
+
+        Assert.assertEquals(2, handled.size());
+        for (final Request request : handled)
+        {
+            // spool files are deleted as soon as the request has been handled
+            try
+            {
+                request.getRequestBody().getContent();
+                Assert.fail("Spool file should have been deleted.");
+            }
+            catch (UncheckedIOException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Nonnull
+    private static RequestPipeline createPipeline()
+    {
+        return new RequestPipeline(new DefaultRequestParserFactory(
+                List.of(new IdentityBodyParser(1024, RequestLimits.UNLIMITED), new ChunkedBodyParser(1024, RequestLimits.UNLIMITED)),
+                RequestLimits.UNLIMITED, "string"), ECHO);
+    }
+}
@@ -0,0 +1,217 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.response.ByteBufferResponseBody;
+import org.mbachran.server.custom.response.HeaderEncoder;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.StreamResponseBody;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+public class ResponseWriterTests
+{
+    /**
+     * Accepts only a few bytes per write, like a socket with a full send buffer.
+     */
+    private static class ShortWritingChannel implements GatheringByteChannel
+    {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        private final int maxBytesPerWrite;
+
+        private int writes;
+
+        private int gatheringWrites;
+
+        private ShortWritingChannel(final int maxBytesPerWrite)
+        {
+            this.maxBytesPerWrite = maxBytesPerWrite;
+        }
+
+        @Override
+        public int write(@Nonnull final ByteBuffer source)
+        {
+            writes++;
+            final int count = Math.min(maxBytesPerWrite, source.remaining());
+            for (int i = 0; i < count; i++)
+            {
+                written.write(source.get());
+            }
+
+            return count;
+        }
+
+        @Override
+        public long write(@Nonnull final ByteBuffer[] sources, final int offset, final int length)
+        {
+            gatheringWrites++;
+            long count = 0;
+            for (int i = offset; i < offset + length && count < maxBytesPerWrite; i++)
+            {
+                while (sources[i].hasRemaining() && count < maxBytesPerWrite)
+                {
+                    written.write(sources[i].get());
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        @Override
+        public long write(@Nonnull final ByteBuffer[] sources)
+        {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    @Test
+    public void testShortWritesResumeAtTheRightOffsets() throws IOException
+    {
+        final Response first = new Response.Builder().code(HttpCode.OK).body("first body".getBytes(US_ASCII)).build();
+        final Response second = new Response.Builder().code(HttpCode.OK)
+                .body(new StreamResponseBody(new ByteArrayInputStream("streamed body".getBytes(US_ASCII)), 13)).build();
+        final Response third = new Response.Builder().code(HttpCode.NOT_FOUND).body("third".getBytes(US_ASCII)).build();
+        final String expected = head(first) + "first body" + head(second) + "streamed body" + head(third) + "third";
+
+        final ShortWritingChannel channel = new ShortWritingChannel(3);
+        try (final ResponseWriter writer = new ResponseWriter())
+        {
+            writer.begin(List.of(first, second, third));
+            int calls = 0;
+            while (!writer.writeTo(channel))
+            {
+                calls++;
+                Assert.assertFalse(writer.isDone());
+                Assert.assertTrue("Not making progress", calls < expected.length());
+            }
+
+            Assert.assertTrue(writer.isDone());
+        }
+
+        Assert.assertEquals(expected, channel.written.toString(US_ASCII));
+        // the runs of heads and bodies in memory are written gathering, the stream body by writes of its own
+        Assert.assertTrue(channel.gatheringWrites > 1);
+        Assert.assertTrue(channel.writes > 1);
+    }
+
+    @Test
+    public void testNextBatchOnlyOnceWritten() throws IOException
+    {
+        final ShortWritingChannel channel = new ShortWritingChannel(1);
+        try (final ResponseWriter writer = new ResponseWriter())
+        {
+            final Response response = new Response.Builder().code(HttpCode.OK).body("body".getBytes(US_ASCII)).build();
+            writer.begin(List.of(response));
+            Assert.assertFalse(writer.writeTo(channel));
+            try
+            {
+                writer.begin(List.of(response));
+                Assert.fail("Expected the unwritten batch to be rejected.");
+            }
+            catch (IllegalStateException e)
+            {
+                // expected
+            }
+
+            writer.close();
+            Assert.assertTrue(writer.isDone());
+            writer.begin(List.of(new Response.Builder().code(HttpCode.OK).body("next".getBytes(US_ASCII)).build()));
+            while (!writer.writeTo(channel))
+            {
+                Assert.assertFalse(writer.isDone());
+            }
+        }
+
+        Assert.assertTrue(channel.written.toString(US_ASCII).endsWith("\r\n\r\nnext"));
+    }
+
+    @Test
+    public void testBodiesAreOnlyReadWhileProducingSegments() throws IOException
+    {
+        final byte[] content = "x".repeat(200_000).getBytes(US_ASCII);
+        final AtomicBoolean producing = new AtomicBoolean();
+        final ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(content));
+        final ReadableByteChannel checkedSource = new ReadableByteChannel()
+        {
+            @Override
+            public int read(final ByteBuffer dst) throws IOException
+            {
+                Assert.assertTrue("Source read while writing", producing.get());
+                return source.read(dst);
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return source.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                source.close();
+            }
+        };
+
+        final ByteBuffer mapped = ByteBuffer.allocateDirect(5).put("moped".getBytes(US_ASCII)).flip();
+        final Response streamed = new Response.Builder().body(new StreamResponseBody(checkedSource, content.length)).build();
+        final Response direct = new Response.Builder().body(new ByteBufferResponseBody(mapped)).build();
+        final String expected = head(streamed) + new String(content, US_ASCII) + head(direct) + "moped";
+
+        final ShortWritingChannel channel = new ShortWritingChannel(30_000);
+        int segments = 0;
+        try (final ResponseWriter writer = new ResponseWriter(true))
+        {
+            writer.begin(List.of(streamed, direct));
+            while (!writer.writeTo(channel))
+            {
+                if (writer.needsSegment())
+                {
+                    producing.set(true);
+                    writer.produceSegment();
+                    producing.set(false);
+                    segments++;
+                }
+            }
+
+            Assert.assertTrue(writer.isDone());
+        }
+
+        Assert.assertEquals(expected, channel.written.toString(US_ASCII));
+        // the stream in segments of 64 KB and the mapped body in one
+        Assert.assertEquals(5, segments);
+        // direct buffers are written from the segments only
+        Assert.assertEquals(5, mapped.position());
+    }
+
+    @Nonnull
+    private static String head(@Nonnull final Response response)
+    {
+        return US_ASCII.decode(response.encodeHead(new HeaderEncoder(512))).toString();
+    }
+}
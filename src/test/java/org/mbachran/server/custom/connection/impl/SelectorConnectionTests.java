@@ -0,0 +1,296 @@
+package org.mbachran.server.custom.connection.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.accept.api.Acceptor;
+import org.mbachran.server.custom.accept.impl.AdmissionControl;
+import org.mbachran.server.custom.accept.impl.DefaultAcceptorFactory;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.parser.impl.DefaultRequestParserFactory;
+import org.mbachran.server.custom.parser.impl.IdentityBodyParser;
+import org.mbachran.server.custom.parser.impl.RequestLimits;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.StreamResponseBody;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class SelectorConnectionTests
+{
+    private static final Dispatcher NOT_FOUND = new Dispatcher()
+    {
+        @Nonnull
+        @Override
+        public String getName()
+        {
+            return "notFound";
+        }
+
+        @Nonnull
+        @Override
+        public Response handle(@Nonnull final Request request)
+        {
+            return Response.buildErrorResponse(HttpCode.NOT_FOUND);
+        }
+    };
+
+    @Test
+    public void testConnectionRejectedByThePoolHoldsNoReadBuffer() throws Exception
+    {
+        final ReadBufferPool readBufferPool = new ReadBufferPool(16, 64);
+        final SelectorConnectionFactory connectionFactory = createConnectionFactory(readBufferPool, NOT_FOUND);
+        final ExecutorService connectionPool = Executors.newSingleThreadExecutor();
+        connectionPool.shutdown();
+        final AdmissionControl admissionControl = new AdmissionControl(10, 1, connectionPool);
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            final Acceptor acceptor = new DefaultAcceptorFactory(connectionFactory, admissionControl)
+                    .create(0, serverSocketChannel);
+            try (final SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                acceptor.accept();
+
+                final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+                while (client.read(readBuffer) != -1)
+                {
+                    // read until the acceptor closed the connection
+                }
+
+                final String response = new String(readBuffer.array(), 0, readBuffer.position(), UTF_8);
+                Assert.assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+                Assert.assertEquals(1, admissionControl.getRejections());
+                Assert.assertEquals(0, admissionControl.getInFlight());
+            }
+        }
+        finally
+        {
+            connectionFactory.shutdown();
+        }
+
+        Assert.assertEquals(0, readBufferPool.getLeasedCount());
+        Assert.assertEquals(0, readBufferPool.getDirectBytes());
+    }
+
+    @Test
+    public void testReadBufferIsLeasedOnRegistrationAndReleasedOnClose() throws IOException
+    {
+        final ReadBufferPool readBufferPool = new ReadBufferPool(16, 64);
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+             final Selector selector = Selector.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel ignored = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                final SelectorConnection connection = new SelectorConnection(1000L, readBufferPool, createRequestParserFactory(),
+                        System.currentTimeMillis(), serverSocketChannel.accept(), NOT_FOUND, Runnable::run, new SelectorLoop(0, selector));
+                Assert.assertEquals(0, readBufferPool.getLeasedCount());
+
+                connection.register(selector);
+                Assert.assertEquals(1, readBufferPool.getLeasedCount());
+                Assert.assertEquals(16, readBufferPool.getDirectBytes());
+
+                // closing twice must not release twice
+                connection.close();
+                connection.close();
+                Assert.assertEquals(0, readBufferPool.getLeasedCount());
+                Assert.assertEquals(1, readBufferPool.getFreeCount());
+            }
+        }
+    }
+
+    @Test
+    public void testBlockingRequestDoesNotStallOtherConnectionsOfTheLoop() throws Exception
+    {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch slowReleased = new CountDownLatch(1);
+        final AtomicBoolean slowTimedOut = new AtomicBoolean();
+        final Dispatcher blocking = new Dispatcher()
+        {
+            @Nonnull
+            @Override
+            public String getName()
+            {
+                return "blocking";
+            }
+
+            @Nonnull
+            @Override
+            public Response handle(@Nonnull final Request request) throws InterruptedException
+            {
+                if ("/slow".equals(request.getRequestLine().getUri().getPath()))
+                {
+                    slowStarted.countDown();
+                    slowTimedOut.set(!slowReleased.await(5, TimeUnit.SECONDS));
+                }
+
+                return Response.buildErrorResponse(HttpCode.NOT_FOUND);
+            }
+        };
+
+        // a single loop serves both connections
+        final SelectorConnectionFactory connectionFactory = createConnectionFactory(new ReadBufferPool(16, 64), blocking);
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel slow = SocketChannel.open(serverSocketChannel.getLocalAddress());
+                 final SocketChannel fast = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                connectionFactory.create(System.currentTimeMillis(), serverSocketChannel.accept()).serve();
+                connectionFactory.create(System.currentTimeMillis(), serverSocketChannel.accept()).serve();
+
+                slow.write(ByteBuffer.wrap("GET /slow HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+                Assert.assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+                fast.write(ByteBuffer.wrap("GET /fast HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+                Assert.assertTrue(readResponse(fast).startsWith("HTTP/1.1 404 Not Found\r\n"));
+                Assert.assertFalse("The fast request waited for the slow one", slowTimedOut.get());
+
+                slowReleased.countDown();
+                Assert.assertTrue(readResponse(slow).startsWith("HTTP/1.1 404 Not Found\r\n"));
+            }
+        }
+        finally
+        {
+            slowReleased.countDown();
+            connectionFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowBodyDoesNotStallOtherConnectionsOfTheLoop() throws Exception
+    {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch slowReleased = new CountDownLatch(1);
+        final AtomicBoolean slowTimedOut = new AtomicBoolean();
+        final InputStream slowContent = new InputStream()
+        {
+            private boolean released;
+
+            @Override
+            public int read() throws IOException
+            {
+                if (!released)
+                {
+                    slowStarted.countDown();
+                    try
+                    {
+                        slowTimedOut.set(!slowReleased.await(5, TimeUnit.SECONDS));
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException();
+                    }
+
+                    released = true;
+                }
+
+                return 'x';
+            }
+        };
+
+        final Dispatcher slowBody = new Dispatcher()
+        {
+            @Nonnull
+            @Override
+            public String getName()
+            {
+                return "slowBody";
+            }
+
+            @Nonnull
+            @Override
+            public Response handle(@Nonnull final Request request)
+            {
+                if ("/slow".equals(request.getRequestLine().getUri().getPath()))
+                {
+                    return new Response.Builder().body(new StreamResponseBody(slowContent, 1)).build();
+                }
+
+                return Response.buildErrorResponse(HttpCode.NOT_FOUND);
+            }
+        };
+
+        // a single loop serves both connections
+        final SelectorConnectionFactory connectionFactory = createConnectionFactory(new ReadBufferPool(16, 64), slowBody);
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open())
+        {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel slow = SocketChannel.open(serverSocketChannel.getLocalAddress());
+                 final SocketChannel fast = SocketChannel.open(serverSocketChannel.getLocalAddress()))
+            {
+                connectionFactory.create(System.currentTimeMillis(), serverSocketChannel.accept()).serve();
+                connectionFactory.create(System.currentTimeMillis(), serverSocketChannel.accept()).serve();
+
+                slow.write(ByteBuffer.wrap("GET /slow HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+                Assert.assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+                fast.write(ByteBuffer.wrap("GET /fast HTTP/1.1\r\n\r\n".getBytes(UTF_8)));
+                Assert.assertTrue(readResponse(fast).startsWith("HTTP/1.1 404 Not Found\r\n"));
+                Assert.assertFalse("The fast request waited for the slow body", slowTimedOut.get());
+
+                slowReleased.countDown();
+                Assert.assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n", readResponse(slow));
+                final ByteBuffer body = ByteBuffer.allocate(1);
+                while (body.hasRemaining() && slow.read(body) != -1)
+                {
+                    // read the body following the head
+                }
+
+                Assert.assertEquals('x', body.get(0));
+            }
+        }
+        finally
+        {
+            slowReleased.countDown();
+            connectionFactory.shutdown();
+        }
+    }
+
+    @Nonnull
+    private static String readResponse(@Nonnull final SocketChannel socketChannel) throws IOException
+    {
+        final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        while (!new String(readBuffer.array(), 0, readBuffer.position(), UTF_8).endsWith("\r\n\r\n"))
+        {
+            if (socketChannel.read(readBuffer) == -1)
+            {
+                break;
+            }
+        }
+
+        return new String(readBuffer.array(), 0, readBuffer.position(), UTF_8);
+    }
+
+    @Nonnull
+    private static SelectorConnectionFactory createConnectionFactory(@Nonnull final ReadBufferPool readBufferPool,
+                                                                     @Nonnull final Dispatcher dispatcher) throws IOException
+    {
+        final SelectorConnectionFactory connectionFactory = new SelectorConnectionFactory(1, 1, 2, dispatcher.getName(), readBufferPool,
+                createRequestParserFactory(), List.of(dispatcher));
+        connectionFactory.init();
+        return connectionFactory;
+    }
+
+    @Nonnull
+    private static DefaultRequestParserFactory createRequestParserFactory()
+    {
+        return new DefaultRequestParserFactory(List.of(new IdentityBodyParser(1024, RequestLimits.UNLIMITED)), RequestLimits.UNLIMITED,
+                "byte");
+    }
+}
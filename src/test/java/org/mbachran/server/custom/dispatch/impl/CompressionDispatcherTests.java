@@ -0,0 +1,219 @@
+package org.mbachran.server.custom.dispatch.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.HttpVersion;
+import org.mbachran.server.custom.dispatch.api.Dispatcher;
+import org.mbachran.server.custom.request.api.Method;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+import org.mbachran.server.custom.request.impl.DefaultRequest;
+import org.mbachran.server.custom.request.impl.DefaultRequestBody;
+import org.mbachran.server.custom.request.impl.DefaultRequestHeaders;
+import org.mbachran.server.custom.request.impl.DefaultRequestLine;
+import org.mbachran.server.custom.response.ContentCoding;
+import org.mbachran.server.custom.response.Response;
+import org.mbachran.server.custom.response.ResponseBody;
+import org.mbachran.server.custom.response.StreamResponseBody;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class CompressionDispatcherTests
+{
+    private static final String JSON = "{\"items\": [" + "{\"name\": \"foo\", \"value\": \"bar\"}, ".repeat(200) + "{}]}";
+
+    @Test
+    public void testNegotiation()
+    {
+        Assert.assertNull(CompressionDispatcher.negotiate(null));
+        Assert.assertNull(CompressionDispatcher.negotiate("identity"));
+        Assert.assertNull(CompressionDispatcher.negotiate("gzip;q=0, deflate;q=0"));
+        Assert.assertNull(CompressionDispatcher.negotiate("*;q=0"));
+        Assert.assertEquals(ContentCoding.gzip, CompressionDispatcher.negotiate("gzip, deflate, br"));
+        Assert.assertEquals(ContentCoding.gzip, CompressionDispatcher.negotiate("deflate, GZIP"));
+        Assert.assertEquals(ContentCoding.gzip, CompressionDispatcher.negotiate("x-gzip"));
+        Assert.assertEquals(ContentCoding.gzip, CompressionDispatcher.negotiate("*"));
+        Assert.assertEquals(ContentCoding.deflate, CompressionDispatcher.negotiate("gzip;q=0.5, deflate"));
+        Assert.assertEquals(ContentCoding.deflate, CompressionDispatcher.negotiate("gzip;q=0, *"));
+    }
+
+    @Test
+    public void testCompressesAndCachesEligibleResponses() throws Exception
+    {
+        final CompressionDispatcher dispatcher = create(() -> bytes(JSON));
+        for (final ContentCoding coding : ContentCoding.values())
+        {
+            final Response response = dispatcher.handle(request("/items.json", coding.name()));
+            Assert.assertEquals(coding.name(), response.getHeaders().get("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", response.getHeaders().get("Vary"));
+            Assert.assertEquals(response.getBody().length, response.getContentLength());
+            Assert.assertTrue(response.getBody().length < JSON.length() / 4);
+            Assert.assertEquals(JSON, decompress(coding, response.getBody()));
+        }
+
+        // the same content again is served from the cache
+        final long cacheSize = dispatcher.getCacheSize();
+        Assert.assertTrue(cacheSize > 0);
+        Assert.assertEquals(0, dispatcher.getCacheHits());
+        final Response cached = dispatcher.handle(request("/items.json", "gzip"));
+        Assert.assertEquals(JSON, decompress(ContentCoding.gzip, cached.getBody()));
+        Assert.assertEquals(1, dispatcher.getCacheHits());
+        Assert.assertEquals(cacheSize, dispatcher.getCacheSize());
+    }
+
+    @Test
+    public void testCompressedVariantsHaveWeakETags() throws Exception
+    {
+        final CompressionDispatcher dispatcher = create(() -> {
+            final Response response = bytes(JSON);
+            response.setHeader("ETag", "\"5eda-3a5\"");
+            return response;
+        });
+        Assert.assertEquals("W/\"5eda-3a5\"", dispatcher.handle(request("/items.json", "gzip")).getHeaders().get("ETag"));
+        Assert.assertEquals("\"5eda-3a5\"", dispatcher.handle(request("/items.json", null)).getHeaders().get("ETag"));
+    }
+
+    @Test
+    public void testNotModifiedCarriesVaryAndETagOfTheVariant() throws Exception
+    {
+        final CompressionDispatcher dispatcher = create(() -> {
+            final Response response = new Response.Builder().code(HttpCode.NOT_MODIFIED).build();
+            response.setHeader("ETag", "\"5eda-3a5\"");
+            return response;
+        });
+
+        final Response gzip = dispatcher.handle(request("/items.json", "gzip"));
+        Assert.assertEquals(HttpCode.NOT_MODIFIED, gzip.getCode());
+        Assert.assertEquals("Accept-Encoding", gzip.getHeaders().get("Vary"));
+        Assert.assertEquals("W/\"5eda-3a5\"", gzip.getHeaders().get("ETag"));
+
+        final Response identity = dispatcher.handle(request("/items.json", null));
+        Assert.assertEquals("Accept-Encoding", identity.getHeaders().get("Vary"));
+        Assert.assertEquals("\"5eda-3a5\"", identity.getHeaders().get("ETag"));
+
+        final Response image = dispatcher.handle(request("/cat.png", "gzip"));
+        Assert.assertNull(image.getHeaders().get("Vary"));
+        Assert.assertEquals("\"5eda-3a5\"", image.getHeaders().get("ETag"));
+    }
+
+    @Test
+    public void testChangedContentIsNotServedFromCache() throws Exception
+    {
+        final String[] content = {JSON};
+        final CompressionDispatcher dispatcher = create(() -> bytes(content[0]));
+        dispatcher.handle(request("/items.json", "gzip"));
+        content[0] = JSON.replace("bar", "baz");
+        Assert.assertEquals(content[0], decompress(ContentCoding.gzip, dispatcher.handle(request("/items.json", "gzip")).getBody()));
+    }
+
+    @Test
+    public void testIneligibleResponsesAreUntouched() throws Exception
+    {
+        final CompressionDispatcher dispatcher = create(() -> bytes(JSON));
+        final Response image = dispatcher.handle(request("/cat.png", "gzip"));
+        Assert.assertNull(image.getHeaders().get("Content-Encoding"));
+        Assert.assertNull(image.getHeaders().get("Vary"));
+
+        final Response small = create(() -> bytes("{}")).handle(request("/small.json", "gzip"));
+        Assert.assertNull(small.getHeaders().get("Content-Encoding"));
+        Assert.assertEquals("{}", new String(small.getBody(), UTF_8));
+
+        final Response notAccepted = dispatcher.handle(request("/items.json", null));
+        Assert.assertNull(notAccepted.getHeaders().get("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", notAccepted.getHeaders().get("Vary"));
+        Assert.assertEquals(JSON, new String(notAccepted.getBody(), UTF_8));
+    }
+
+    @Test
+    public void testLargeAndUnknownLengthBodiesAreCompressedOnTheFly() throws Exception
+    {
+        final String large = JSON.repeat(20);
+        for (final long length : new long[]{large.length(), -1})
+        {
+            final CompressionDispatcher dispatcher = create(() -> new Response.Builder()
+                    .body(new StreamResponseBody(new ByteArrayInputStream(large.getBytes(UTF_8)), length))
+                    .build());
+            final Response response = dispatcher.handle(request("/large.json", "gzip"));
+            Assert.assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+            Assert.assertEquals(-1, response.getContentLength());
+            Assert.assertEquals(-1, response.getResponseBody().getLength());
+            Assert.assertEquals(large, decompress(ContentCoding.gzip, write(response.getResponseBody())));
+            Assert.assertEquals(0, dispatcher.getCacheSize());
+        }
+    }
+
+    @Nonnull
+    private static CompressionDispatcher create(@Nonnull final Supplier<Response> responses)
+    {
+        final Dispatcher next = new Dispatcher()
+        {
+            @Nonnull
+            @Override
+            public String getName()
+            {
+                return "next";
+            }
+
+            @Nonnull
+            @Override
+            public Response handle(@Nonnull final Request request)
+            {
+                return responses.get();
+            }
+        };
+
+        return new CompressionDispatcher("next", 1024, 64 * 1024, 6, 1024 * 1024, "text/*, application/json", List.of(next));
+    }
+
+    @Nonnull
+    private static Response bytes(@Nonnull final String content)
+    {
+        final byte[] body = content.getBytes(UTF_8);
+        return new Response.Builder().contentLength(body.length).body(body).build();
+    }
+
+    @Nonnull
+    private static Request request(@Nonnull final String path, @Nullable final String acceptEncoding)
+    {
+        final RequestHeaders headers = acceptEncoding == null ? new DefaultRequestHeaders.DefaultBuilder().build()
+                : new DefaultRequestHeaders.DefaultBuilder().addHeader("Accept-Encoding", acceptEncoding).build();
+        return new DefaultRequest(new DefaultRequestLine(Method.GET, URI.create(path), HttpVersion.HTTP_1_1), headers,
+                new DefaultRequestBody());
+    }
+
+    @Nonnull
+    private static byte[] write(@Nonnull final ResponseBody body) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (body)
+        {
+            Assert.assertTrue(body.writeTo(Channels.newChannel(out)));
+        }
+
+        return out.toByteArray();
+    }
+
+    @Nonnull
+    private static String decompress(@Nonnull final ContentCoding coding, @Nonnull final byte[] compressed) throws IOException
+    {
+        final InputStream in = new ByteArrayInputStream(compressed);
+        try (final InputStream decompressed = coding == ContentCoding.gzip ? new GZIPInputStream(in) : new InflaterInputStream(in))
+        {
+            return new String(decompressed.readAllBytes(), UTF_8);
+        }
+    }
+}
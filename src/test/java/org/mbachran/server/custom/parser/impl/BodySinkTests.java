@@ -0,0 +1,74 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BodySinkTests
+{
+    @Test
+    public void testMemoryGrowsAsBytesArrive() throws IOException
+    {
+        final byte[] body = new byte[20_000];
+        Arrays.fill(body, (byte) 'x');
+        try (final BodySink sink = new BodySink(1_000_000))
+        {
+            // announced but not sent yet, so nothing is allocated
+            sink.expect(body.length);
+            Assert.assertEquals(0, sink.capacity());
+
+            final ByteBuffer buffer = ByteBuffer.wrap(body);
+            sink.write(buffer, 100);
+            Assert.assertEquals(8192, sink.capacity());
+            sink.write(buffer, 10_000);
+            Assert.assertEquals(16384, sink.capacity());
+
+            // limited to the announced length, which is handed over without copying
+            sink.write(buffer, buffer.remaining());
+            Assert.assertEquals(body.length, sink.capacity());
+            Assert.assertArrayEquals(body, sink.toRequestBody().getContent());
+        }
+    }
+
+    @Test
+    public void testHugeSpoolThresholdIsLimitedToArrays() throws IOException
+    {
+        try (final BodySink sink = new BodySink(Long.MAX_VALUE))
+        {
+            sink.expect(Long.MAX_VALUE - 1);
+            sink.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 3);
+            Assert.assertEquals(8192, sink.capacity());
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, sink.toRequestBody().getContent());
+        }
+    }
+
+    @Test
+    public void testSpoolsBeyondTheThreshold() throws IOException
+    {
+        try (final BodySink sink = new BodySink(10))
+        {
+            sink.expect(16);
+            sink.write(ByteBuffer.wrap(new byte[8]), 8);
+            Assert.assertEquals(10, sink.capacity());
+            sink.write(ByteBuffer.wrap(new byte[8]), 8);
+            Assert.assertEquals(0, sink.capacity());
+            Assert.assertEquals(16, sink.toRequestBody().getLength());
+        }
+    }
+
+    @Test
+    public void testBodyOfTheThresholdSizeIsSpooled() throws IOException
+    {
+        try (final BodySink sink = new BodySink(10))
+        {
+            sink.write(ByteBuffer.wrap(new byte[9]), 9);
+            Assert.assertTrue(sink.capacity() > 0);
+            sink.write(ByteBuffer.wrap(new byte[1]), 1);
+            Assert.assertEquals(0, sink.capacity());
+            Assert.assertEquals(10, sink.toRequestBody().getLength());
+        }
+    }
+}
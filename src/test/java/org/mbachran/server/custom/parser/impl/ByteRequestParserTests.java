@@ -0,0 +1,199 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.parser.api.RequestParser;
+import org.mbachran.server.custom.request.api.Request;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.StringJoiner;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares the {@link ByteRequestParser} with the {@link DefaultRequestParser} on the same requests split at any position.
+ */
+public class ByteRequestParserTests
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ByteRequestParserTests.class);
+
+    private static final List<String> REQUESTS = List.of(
+            "GET /path/not/found/ HTTP/1.1\r\n\r\n",
+            "GET /foobar.json HTTP/1.0\r\nConnection: keep-alive\r\n\r\n",
+            "GET /foo?bar=baz HTTP/1.1\r\nHost: localhost:7070\r\nUser-Agent: curl/7.68.0\r\nAccept: */*\r\nAccept: text/html\r\n\r\n",
+            "GET / HTTP/1.1\r\nX-Multi-Line: first\r\n second\r\n\tthird \r\nX-Empty:\r\nHOST:localhost\r\n\r\n",
+            "PUT /foo.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: 13\r\n\r\n{\"foo\":\"bär\"}",
+            "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+
+    private static final List<String> HEADER_NAMES = List.of("host", "user-agent", "accept", "connection", "content-type", "content-length",
+            "transfer-encoding", "x-multi-line", "x-empty", "x-missing");
+
+    private static final String NEXT_REQUEST = "GET /next HTTP/1.1\r\n\r\n";
+
+    @Test
+    public void testSameRequestsAsDefaultParser() throws Exception
+    {
+        for (final String request : REQUESTS)
+        {
+            for (final int readSize : new int[]{1, 3, 16, Integer.MAX_VALUE})
+            {
+                final String expected = describe(new DefaultRequestParser(bodyParsers(), RequestLimits.UNLIMITED), request, readSize);
+                final String actual = describe(new ByteRequestParser(bodyParsers(), RequestLimits.UNLIMITED), request, readSize);
+                Assert.assertEquals(request + " read by " + readSize, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidRequests()
+    {
+        for (final String request : List.of("FOO / HTTP/1.1\r\n\r\n", "GET / HTTP/2.0\r\n\r\n", "GET /\r\n\r\n", "GET /a b HTTP/1.1\r\n\r\n",
+                "GET / HTTP/1.1\r\nNoColon\r\n\r\n", "GET / HTTP/1.1\r\n continued\r\n\r\n", "GET / HTTP/1.1\rX\r\n\r\n",
+                "GET /<> HTTP/1.1\r\n\r\n"))
+        {
+            final ByteRequestParser parser = new ByteRequestParser(bodyParsers(), RequestLimits.UNLIMITED);
+            Assert.assertTrue(request, parser.parse(ByteBuffer.wrap(request.getBytes(UTF_8))));
+            Assert.assertEquals(request, HttpCode.BAD_REQUEST, parser.getFailure());
+        }
+    }
+
+    @Test
+    public void testEmptyLinesBeforeRequestLineAreIgnored()
+    {
+        final ByteRequestParser parser = new ByteRequestParser(bodyParsers(), RequestLimits.UNLIMITED);
+        Assert.assertTrue(parser.parse(ByteBuffer.wrap("\r\nGET /foo HTTP/1.1\r\n\r\n".getBytes(UTF_8))));
+        Assert.assertNull(parser.getFailure());
+        Assert.assertEquals("/foo", parser.retrieve().getRequestLine().getUri().toString());
+    }
+
+    @Test
+    public void testLimitsAreEnforcedByBothParsers()
+    {
+        final RequestLimits limits = new RequestLimits(32, 64, 2, 16);
+        final List<String> requests = List.of(
+                "GET /" + "a".repeat(40) + " HTTP/1.1\r\n\r\n",
+                "GET / HTTP/1.1\r\nX-Large: " + "v".repeat(60) + "\r\n\r\n",
+                "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n",
+                "PUT / HTTP/1.1\r\nContent-Length: 17\r\n\r\n",
+                "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n11\r\n");
+        final List<HttpCode> expected = List.of(HttpCode.URI_TOO_LONG, HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                HttpCode.REQUEST_HEADER_FIELDS_TOO_LARGE, HttpCode.PAYLOAD_TOO_LARGE, HttpCode.PAYLOAD_TOO_LARGE);
+        for (int i = 0; i < requests.size(); i++)
+        {
+            final EnumMap<TransferEncoding, BodyParser> bodyParsers = bodyParsers(limits);
+            for (final RequestParser parser : List.of(new DefaultRequestParser(bodyParsers, limits), new ByteRequestParser(bodyParsers, limits)))
+            {
+                // the body is never sent, the announced size has to suffice
+                final String request = requests.get(i);
+                Assert.assertTrue(request, parser.parse(ByteBuffer.wrap(request.getBytes(UTF_8))));
+                Assert.assertEquals(request, expected.get(i), parser.getFailure());
+            }
+        }
+    }
+
+    /**
+     * Not a rigorous benchmark but shows the relation of both parsers on typical requests arriving in one and in many reads.
+     * Only logs the numbers, hence excluded from the regular runs. Remove the annotation to run it on demand.
+     */
+    @Ignore("Benchmark without assertions, run on demand")
+    @Test
+    public void testCompareThroughput() throws Exception
+    {
+        final byte[] request = REQUESTS.get(2).getBytes(UTF_8);
+        for (final int readSize : new int[]{Integer.MAX_VALUE, 16})
+        {
+            long defaultNanos = 0;
+            long byteNanos = 0;
+            for (int round = 0; round < 5; round++)
+            {
+                defaultNanos = measure(false, request, readSize);
+                byteNanos = measure(true, request, readSize);
+            }
+
+            LOG.info("Parsing requests read by {} bytes took {} ns (string) vs {} ns (byte) per request.", readSize, defaultNanos, byteNanos);
+        }
+    }
+
+    private static long measure(final boolean byteParser, @Nonnull final byte[] request, final int readSize) throws Exception
+    {
+        final int iterations = 20_000;
+        final EnumMap<TransferEncoding, BodyParser> bodyParsers = bodyParsers();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            final RequestParser parser = byteParser ? new ByteRequestParser(bodyParsers, RequestLimits.UNLIMITED)
+                    : new DefaultRequestParser(bodyParsers, RequestLimits.UNLIMITED);
+            describe(parser, request, readSize);
+        }
+
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    @Nonnull
+    private static String describe(@Nonnull final RequestParser parser, @Nonnull final String request, final int readSize) throws Exception
+    {
+        final String description = describe(parser, (request + NEXT_REQUEST).getBytes(UTF_8), readSize);
+        Assert.assertTrue(request, description.endsWith(NEXT_REQUEST));
+        return description;
+    }
+
+    /**
+     * Feeds the bytes in reads of the given size until the parser is done.
+     *
+     * @return The parsed request and the bytes left for the next request.
+     */
+    @Nonnull
+    private static String describe(@Nonnull final RequestParser parser, @Nonnull final byte[] bytes, final int readSize) throws Exception
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean done = false;
+        while (!done && buffer.hasRemaining())
+        {
+            final ByteBuffer read = buffer.slice();
+            read.limit(Math.min(read.remaining(), readSize));
+            done = parser.parse(read);
+
+            // like the connections the whole read is handed over unless the request is complete
+            buffer.position(buffer.position() + (done ? read.position() : read.limit()));
+        }
+
+        Assert.assertTrue(done);
+        Assert.assertNull(parser.getFailure());
+        final Request request = parser.retrieve();
+        parser.close();
+        return request.getRequestLine().getMethod() + " " + request.getRequestLine().getUri() + " " + request.getRequestLine().getVersion()
+                + " " + describe(request.getRequestHeaders()) + " " + new String(request.getRequestBody().getContent(), UTF_8) + "|"
+                + UTF_8.decode(buffer);
+    }
+
+    @Nonnull
+    private static String describe(@Nonnull final RequestHeaders headers)
+    {
+        final StringJoiner description = new StringJoiner(", ");
+        HEADER_NAMES.forEach(name -> description.add(name + "=" + headers.getHeader(name)));
+        return description.toString();
+    }
+
+    @Nonnull
+    private static EnumMap<TransferEncoding, BodyParser> bodyParsers()
+    {
+        return bodyParsers(RequestLimits.UNLIMITED);
+    }
+
+    @Nonnull
+    private static EnumMap<TransferEncoding, BodyParser> bodyParsers(@Nonnull final RequestLimits limits)
+    {
+        final EnumMap<TransferEncoding, BodyParser> bodyParsers = new EnumMap<>(TransferEncoding.class);
+        bodyParsers.put(TransferEncoding.identity, new IdentityBodyParser(1024, limits));
+        bodyParsers.put(TransferEncoding.chunked, new ChunkedBodyParser(1024, limits));
+        return bodyParsers;
+    }
+}
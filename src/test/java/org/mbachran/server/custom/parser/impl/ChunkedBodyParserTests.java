@@ -0,0 +1,96 @@
+package org.mbachran.server.custom.parser.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+import org.mbachran.server.custom.request.impl.DefaultRequestHeaders;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class ChunkedBodyParserTests
+{
+    private static final String NEXT_REQUEST = "GET / HTTP/1.1\r\n\r\n";
+
+    @Test
+    public void testExtensionsAndTrailersInAnyReadSize() throws Exception
+    {
+        final String chunked = "5;name=value\r\nhello\r\n7 ; ext\r\n wörld\r\n0\r\nExpires: never\r\nX-Checksum: 1\r\n\r\n";
+        for (final int readSize : new int[]{1, 2, 7, Integer.MAX_VALUE})
+        {
+            final BodyParser.Parser parser = createParser(RequestLimits.UNLIMITED);
+            final ByteBuffer buffer = ByteBuffer.wrap((chunked + NEXT_REQUEST).getBytes(UTF_8));
+            Assert.assertTrue(parse(parser, buffer, readSize));
+            Assert.assertNull(parser.getFailure());
+            Assert.assertEquals("hello wörld", new String(parser.retrieve().getContent(), UTF_8));
+            Assert.assertEquals(NEXT_REQUEST, UTF_8.decode(buffer).toString());
+            parser.close();
+        }
+    }
+
+    @Test
+    public void testSpoolsLargeBodies() throws Exception
+    {
+        final String data = "x".repeat(3000);
+        final String chunked = Integer.toHexString(data.length()) + "\r\n" + data + "\r\n" + Integer.toHexString(data.length()) + "\r\n" + data
+                + "\r\n0\r\n\r\n";
+        final BodyParser.Parser parser = createParser(RequestLimits.UNLIMITED);
+        Assert.assertTrue(parse(parser, ByteBuffer.wrap(chunked.getBytes(UTF_8)), 700));
+        Assert.assertEquals(6000, parser.retrieve().getLength());
+        Assert.assertEquals(data + data, new String(parser.retrieve().getContent(), UTF_8));
+        parser.close();
+    }
+
+    @Test
+    public void testMalformedFraming() throws Exception
+    {
+        for (final String chunked : List.of("\r\n", "x\r\n", "5\r\nhelloX\r\n", "5\nhello\r\n", "1234567890abcdef\r\n", "5 x\r\n",
+                "0\r\nNoColon\r\n\r\n", "0\r\n: value\r\n\r\n", "1;" + "e".repeat(9000) + "\r\n"))
+        {
+            final BodyParser.Parser parser = createParser(RequestLimits.UNLIMITED);
+            Assert.assertTrue(chunked, parse(parser, ByteBuffer.wrap(chunked.getBytes(UTF_8)), 3));
+            Assert.assertEquals(chunked, HttpCode.BAD_REQUEST, parser.getFailure());
+            parser.close();
+        }
+    }
+
+    @Test
+    public void testRejectsChunkExceedingBodyLimit() throws Exception
+    {
+        final RequestLimits limits = new RequestLimits(0, 0, 0, 8);
+        final BodyParser.Parser parser = createParser(limits);
+        // the second chunk is announced only, rejection must not wait for its data
+        Assert.assertTrue(parse(parser, ByteBuffer.wrap("5\r\nhello\r\n4\r\n".getBytes(UTF_8)), 3));
+        Assert.assertEquals(HttpCode.PAYLOAD_TOO_LARGE, parser.getFailure());
+        parser.close();
+    }
+
+    @Nonnull
+    private static BodyParser.Parser createParser(@Nonnull final RequestLimits limits)
+    {
+        return new ChunkedBodyParser(1024, limits).create(new DefaultRequestHeaders.DefaultBuilder().build());
+    }
+
+    /**
+     * Feeds the buffer in reads of the given size until the parser is done. The buffer is left at the position the parser stopped.
+     */
+    private static boolean parse(@Nonnull final BodyParser.Parser parser, @Nonnull final ByteBuffer buffer, final int readSize)
+    {
+        while (buffer.hasRemaining())
+        {
+            final ByteBuffer read = buffer.slice();
+            read.limit(Math.min(read.remaining(), readSize));
+            final boolean done = parser.parse(read);
+            buffer.position(buffer.position() + read.position());
+            if (done)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
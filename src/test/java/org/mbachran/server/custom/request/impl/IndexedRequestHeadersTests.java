@@ -0,0 +1,63 @@
+package org.mbachran.server.custom.request.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.request.api.HeaderNames;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class IndexedRequestHeadersTests
+{
+    private static final String BLOCK = "Content-Type: text/plain\r\nAccept: a\r\nX-Folded: first\r\n\tsecond\r\nACCEPT: b\r\nX-Utf8: välue\r\n";
+
+    @Test
+    public void testLookupIsCaseInsensitive()
+    {
+        final IndexedRequestHeaders headers = headers();
+        Assert.assertEquals("text/plain", headers.getHeader("content-type"));
+        Assert.assertEquals("text/plain", headers.getHeader("Content-Type"));
+        Assert.assertNull(headers.getHeader("content-length"));
+        Assert.assertNull(headers.getHeader("content-typ"));
+    }
+
+    @Test
+    public void testRepeatedHeadersAreJoined()
+    {
+        Assert.assertEquals("a,b", headers().getHeader("accept"));
+        Assert.assertEquals("a,b", headers().getHeader(HeaderNames.ACCEPT));
+    }
+
+    @Test
+    public void testFoldedAndEncodedValues()
+    {
+        final IndexedRequestHeaders headers = headers();
+        Assert.assertEquals("first\tsecond", headers.getHeader("x-folded"));
+        Assert.assertEquals("välue", headers.getHeader("x-utf8"));
+        Assert.assertSame(headers.getHeader("x-utf8"), headers.getHeader("x-utf8"));
+    }
+
+    private static IndexedRequestHeaders headers()
+    {
+        final byte[] block = BLOCK.getBytes(UTF_8);
+        final String text = new String(block, ISO_8859_1);
+        final String[][] headers = {{"Content-Type", "text/plain"}, {"Accept", "a"}, {"X-Folded", "first\r\n\tsecond"}, {"ACCEPT", "b"},
+                {"X-Utf8", new String("välue".getBytes(UTF_8), ISO_8859_1)}};
+        final int[] index = new int[headers.length * IndexedRequestHeaders.INDEX_ENTRY_SIZE];
+        final String[] names = new String[headers.length];
+        int from = 0;
+        for (int i = 0; i < headers.length; i++)
+        {
+            final int nameStart = text.indexOf(headers[i][0], from);
+            final int valueStart = text.indexOf(headers[i][1], nameStart);
+            index[i * 4] = nameStart;
+            index[i * 4 + 1] = nameStart + headers[i][0].length();
+            index[i * 4 + 2] = valueStart;
+            index[i * 4 + 3] = valueStart + headers[i][1].length();
+            names[i] = HeaderNames.canonical(block, index[i * 4], index[i * 4 + 1]);
+            from = index[i * 4 + 3];
+        }
+
+        return new IndexedRequestHeaders(block, index, names, headers.length);
+    }
+}
@@ -0,0 +1,54 @@
+package org.mbachran.server.custom.response;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.HttpCode;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class HeaderEncoderTests
+{
+    @Test
+    public void testHeadsStayValidWhileGrowing()
+    {
+        final HeaderEncoder encoder = new HeaderEncoder(8);
+        final Response first = new Response.Builder().code(HttpCode.NOT_FOUND).addHeader("Content-Length", "0").build();
+        final Response second = new Response.Builder().addHeader("X-Custom", "välue").body("x".getBytes(UTF_8)).build();
+
+        final ByteBuffer[] firstBuffers = first.toByteBuffers(encoder);
+        final ByteBuffer[] secondBuffers = second.toByteBuffers(encoder);
+
+        Assert.assertEquals(1, firstBuffers.length);
+        Assert.assertEquals("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n", UTF_8.decode(firstBuffers[0]).toString());
+        Assert.assertEquals(2, secondBuffers.length);
+        Assert.assertEquals("HTTP/1.1 200 OK\r\nX-Custom: välue\r\n\r\n", UTF_8.decode(secondBuffers[0]).toString());
+        Assert.assertEquals("x", UTF_8.decode(secondBuffers[1]).toString());
+    }
+
+    @Test
+    public void testContentLengthIsWrittenAsDigits()
+    {
+        final HeaderEncoder encoder = new HeaderEncoder(8);
+        for (final long contentLength : new long[]{0, 7, 10, 1234567890, 9876543210L, Long.MAX_VALUE})
+        {
+            final Response response = new Response.Builder().addHeader("Connection", "close").contentLength(contentLength).build();
+            Assert.assertEquals("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: " + contentLength + "\r\n\r\n",
+                    UTF_8.decode(response.toByteBuffers(encoder)[0]).toString());
+        }
+
+        final Response response = new Response.Builder().addHeader("Content-Length", "42").build();
+        Assert.assertEquals(42, response.getContentLength());
+        Assert.assertFalse(response.getHeaders().containsKey("Content-Length"));
+        response.removeHeader("Content-Length");
+        Assert.assertEquals("HTTP/1.1 200 OK\r\n\r\n", UTF_8.decode(response.toByteBuffers(encoder)[0]).toString());
+    }
+
+    @Test
+    public void testToByteBufferMatchesGatheredBuffers()
+    {
+        final Response response = new Response.Builder().addHeader("Content-Type", "application/json").body("{}".getBytes(UTF_8)).build();
+        Assert.assertEquals("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n{}", UTF_8.decode(response.toByteBuffer()).toString());
+    }
+}
@@ -0,0 +1,92 @@
+package org.mbachran.server.custom.response;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class StreamResponseBodyTests
+{
+    @Test
+    public void testUnknownLengthIsChunked() throws IOException
+    {
+        final Response response = new Response.Builder().body(stream("hello world", -1, 4)).build();
+        response.useChunkedTransferEncoding();
+
+        Assert.assertEquals("chunked", response.getHeaders().get("Transfer-Encoding"));
+        Assert.assertEquals("4\r\nhell\r\n4\r\no wo\r\n3\r\nrld\r\n0\r\n\r\n", write(response.getResponseBody()));
+    }
+
+    @Test
+    public void testKnownLengthIsSentAsIs() throws IOException
+    {
+        final Response response = new Response.Builder().body(stream("hello world", 11, 4)).build();
+
+        Assert.assertEquals(11, response.getContentLength());
+        Assert.assertEquals("hello world", write(response.getResponseBody()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSourceShorterThanLengthFails() throws IOException
+    {
+        write(stream("hello", 11, 4));
+    }
+
+    @Test
+    public void testSourceWithoutBytesForNowIsNotSpunOn() throws IOException
+    {
+        final long readyAt = System.nanoTime() + 20_000_000L;
+        final ReadableByteChannel delegate = Channels.newChannel(new ByteArrayInputStream("hello".getBytes(UTF_8)));
+        final AtomicInteger reads = new AtomicInteger();
+        final ReadableByteChannel source = new ReadableByteChannel()
+        {
+            @Override
+            public int read(final ByteBuffer dst) throws IOException
+            {
+                reads.incrementAndGet();
+                return System.nanoTime() < readyAt ? 0 : delegate.read(dst);
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return delegate.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                delegate.close();
+            }
+        };
+
+        Assert.assertEquals("hello", write(new StreamResponseBody(source, 5, 4096)));
+        Assert.assertTrue("Spinning on the source: " + reads.get() + " reads", reads.get() < 50);
+    }
+
+    private static StreamResponseBody stream(final String content, final long length, final int bufferSize)
+    {
+        return new StreamResponseBody(Channels.newChannel(new ByteArrayInputStream(content.getBytes(UTF_8))), length, bufferSize);
+    }
+
+    private static String write(final ResponseBody body) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (body)
+        {
+            final WritableByteChannel channel = Channels.newChannel(out);
+            Assert.assertTrue(body.writeTo(channel));
+        }
+
+        return out.toString(UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ByteRangesTests
+{
+    @Test
+    public void testRangesAreResolvedAgainstTheSize()
+    {
+        Assert.assertEquals("0-99", ranges("bytes=0-99", 1000));
+        Assert.assertEquals("900-999", ranges("bytes=900-", 1000));
+        Assert.assertEquals("900-999", ranges("bytes=-100", 1000));
+        Assert.assertEquals("0-999", ranges("bytes=-2000", 1000));
+        Assert.assertEquals("990-999", ranges("bytes=990-2000", 1000));
+        Assert.assertEquals("0-0,999-999,5-9", ranges("Bytes=0-0, -1,, 5-9", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRangesAreLeftOut()
+    {
+        Assert.assertEquals("", ranges("bytes=1000-", 1000));
+        Assert.assertEquals("", ranges("bytes=-0", 1000));
+        Assert.assertEquals("", ranges("bytes=0-", 0));
+        Assert.assertEquals("0-9", ranges("bytes=2000-3000,0-9", 1000));
+    }
+
+    @Test
+    public void testInvalidHeadersAreIgnored()
+    {
+        Assert.assertNull(ByteRanges.parse(null, 1000));
+        Assert.assertNull(ByteRanges.parse("items=0-9", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=9-0", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=-", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=5", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=--5", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=0-9,x-y", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=99999999999999999999-", 1000));
+        Assert.assertNull(ByteRanges.parse("bytes=" + "0-0,".repeat(ByteRanges.MAX_RANGES) + "0-0", 1000));
+    }
+
+    @Nonnull
+    private static String ranges(@Nonnull final String header, final long size)
+    {
+        final List<ByteRanges.Range> ranges = ByteRanges.parse(header, size);
+        Assert.assertNotNull(ranges);
+        return ranges.stream().map(r -> r.getFirst() + "-" + r.getLast()).collect(Collectors.joining(","));
+    }
+}
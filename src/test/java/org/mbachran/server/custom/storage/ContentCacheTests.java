@@ -0,0 +1,118 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+
+public class ContentCacheTests
+{
+    @Test
+    public void testHitsAndMisses()
+    {
+        final ContentCache cache = new ContentCache(10_000, 1000);
+        final Path path = Path.of("/static/index.html");
+        Assert.assertNull(cache.get(path));
+        cache.put(path, new byte[100], cache.stamp());
+        Assert.assertEquals(100, cache.get(path).length);
+        Assert.assertTrue(cache.contains(path));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.0);
+        Assert.assertEquals(100, cache.getResidentBytes());
+    }
+
+    @Test
+    public void testInvalidation()
+    {
+        final ContentCache cache = new ContentCache(10_000, 1000);
+        final Path path = Path.of("/static/foo.json");
+        cache.put(path, new byte[10], cache.stamp());
+        cache.invalidate(path);
+        Assert.assertNull(cache.get(path));
+        Assert.assertEquals(0, cache.getResidentBytes());
+
+        // a load that started before a write must not be cached as it might be outdated
+        final long stamp = cache.stamp();
+        cache.invalidate(path);
+        cache.put(path, new byte[10], stamp);
+        Assert.assertFalse(cache.contains(path));
+    }
+
+    @Test
+    public void testBudgetIsKept()
+    {
+        final ContentCache cache = new ContentCache(10_000, 1000);
+        cache.put(Path.of("/too-large"), new byte[1001], cache.stamp());
+        Assert.assertEquals(0, cache.getEntryCount());
+
+        for (int i = 0; i < 100; i++)
+        {
+            load(cache, "/file" + i, 500);
+            Assert.assertTrue(cache.getResidentBytes() <= 10_000);
+        }
+
+        Assert.assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testHotSetSurvivesScan()
+    {
+        final ContentCache cache = new ContentCache(10_000, 1000);
+        for (int round = 0; round < 5; round++)
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                load(cache, "/hot" + i, 500);
+            }
+        }
+
+        // many files read once each would flush an LRU cache completely
+        for (int i = 0; i < 1000; i++)
+        {
+            load(cache, "/scan" + i, 500);
+        }
+
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertTrue("/hot" + i, cache.contains(Path.of("/hot" + i)));
+        }
+    }
+
+    @Test
+    public void testRejectedCandidateEvictsNothing()
+    {
+        final ContentCache cache = new ContentCache(1_000_000, 1_000_000);
+        load(cache, "/cold", 400_000);
+        load(cache, "/hot", 400_000);
+        for (int i = 0; i < 5; i++)
+        {
+            load(cache, "/hot", 400_000);
+        }
+
+        // more frequent than the cold entry, but it needs the room of the hot one as well
+        for (int i = 0; i < 3; i++)
+        {
+            cache.get(Path.of("/candidate"));
+        }
+
+        load(cache, "/candidate", 600_000);
+        Assert.assertFalse(cache.contains(Path.of("/candidate")));
+        Assert.assertTrue(cache.contains(Path.of("/cold")));
+        Assert.assertTrue(cache.contains(Path.of("/hot")));
+        Assert.assertEquals(800_000, cache.getResidentBytes());
+    }
+
+    /**
+     * Reads like the {@link FilePersistence} does: from the cache or loading and offering the content.
+     */
+    private static void load(@Nonnull final ContentCache cache, @Nonnull final String name, final int size)
+    {
+        final Path path = Path.of(name);
+        if (cache.get(path) == null)
+        {
+            cache.put(path, new byte[size], cache.stamp());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DurableWritesTests
+{
+    @Test
+    public void testFailedAtomicWritesLeaveTheFileUnchanged() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("DurableWritesTests");
+        final Path file = directory.resolve("file.txt");
+        try
+        {
+            final DurableWrites durableWrites = new DurableWrites("atomic", 0, 1);
+            durableWrites.write(file, "first".getBytes(UTF_8));
+            Assert.assertEquals("first", Files.readString(file));
+
+            try
+            {
+                durableWrites.write(file, channel ->
+                {
+                    channel.write(ByteBuffer.wrap("sec".getBytes(UTF_8)));
+                    throw new IOException("Content ended.");
+                });
+                Assert.fail("Expected the write to fail.");
+            }
+            catch (IOException e)
+            {
+                Assert.assertEquals("Content ended.", e.getMessage());
+            }
+
+            Assert.assertEquals("first", Files.readString(file));
+            Assert.assertEquals(List.of(file), list(directory));
+            Assert.assertEquals(0, durableWrites.getCommits());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testConcurrentSyncedWritesShareBatches() throws Exception
+    {
+        final Path directory = Files.createTempDirectory("DurableWritesTests");
+        final DurableWrites durableWrites = new DurableWrites("synced", 50, 1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                final Path file = directory.resolve("file" + i + ".txt");
+                writes.add(executor.submit(() ->
+                {
+                    start.await();
+                    durableWrites.write(file, file.getFileName().toString().getBytes(UTF_8));
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (final Future<?> write : writes)
+            {
+                write.get();
+            }
+
+            // each write waits twice: for the temporary file and for the directory after the rename
+            Assert.assertEquals(16, durableWrites.getCommits());
+            Assert.assertTrue("Writes did not share batches", durableWrites.getBatches() < 16);
+            Assert.assertEquals(8, list(directory).size());
+            Assert.assertEquals("file3.txt", Files.readString(directory.resolve("file3.txt")));
+
+            durableWrites.delete(directory.resolve("file3.txt"));
+            Assert.assertEquals(17, durableWrites.getCommits());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            durableWrites.close();
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testTemporaryFilesAreRemoved() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("DurableWritesTests");
+        final Path file = directory.resolve("file.txt");
+        try
+        {
+            Files.writeString(file, "kept");
+            Files.writeString(directory.resolve(".file.txt.0123abcd.writing"), "torn");
+
+            new DurableWrites("none", 0, 1).removeTemporaryFiles(directory);
+            Assert.assertEquals(List.of(file), list(directory));
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Nonnull
+    private static List<Path> list(@Nonnull final Path directory) throws IOException
+    {
+        try (final Stream<Path> paths = Files.list(directory))
+        {
+            return paths.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void delete(@Nonnull final Path directory) throws IOException
+    {
+        for (final Path path : list(directory))
+        {
+            Files.delete(path);
+        }
+
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,203 @@
+package org.mbachran.server.custom.storage;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class JsonDocumentStoreTests
+{
+    @Test
+    public void testMergesAreJournaledAndCompacted() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("JsonDocumentStoreTests");
+        final Path document = directory.resolve("sub").resolve("doc.json");
+        final Path journal = document.resolveSibling(".doc.json.journal");
+        try
+        {
+            final List<Path> written = new ArrayList<>();
+            final JsonDocumentStore store = new JsonDocumentStore(4, 4, new DurableWrites("synced", 1, 8));
+            store.setWriteListener(written::add);
+
+            Assert.assertTrue(store.merge(document, "{\"a\":1}"));
+            Assert.assertEquals("{\"a\":1}", Files.readString(document));
+            Assert.assertEquals(List.of(document), written);
+            Assert.assertNull(store.metadata(document));
+
+            // the file is left as is, the deltas go to the journal and the content is served from memory
+            Assert.assertFalse(store.merge(document, "{\"b\":{\"c\":2}}"));
+            Assert.assertFalse(store.merge(document, "{\"b\":{\"d\":3}}"));
+            Assert.assertEquals("{\"a\":1}", Files.readString(document));
+            Assert.assertEquals(2, Files.readAllLines(journal).size());
+            final JSONObject json = new JSONObject(new String(store.read(document), UTF_8));
+            Assert.assertEquals(3, json.getJSONObject("b").getInt("d"));
+            final FileMetadata first = store.metadata(document);
+            Assert.assertNotNull(first);
+            Assert.assertTrue(first.isInMemory());
+            Assert.assertEquals(store.read(document).length, first.getSize());
+
+            // each merge yields another ETag
+            Assert.assertFalse(store.merge(document, "{\"a\":4}"));
+            final FileMetadata second = store.metadata(document);
+            Assert.assertNotNull(second);
+            Assert.assertNotEquals(first.getValidators().getETag(), second.getValidators().getETag());
+
+            // compacted once the journal holds four deltas
+            store.merge(document, "{\"e\":5}");
+            Assert.assertEquals(1, store.getCompactions());
+            Assert.assertFalse(Files.exists(journal));
+            Assert.assertNull(store.metadata(document));
+            Assert.assertEquals(5, new JSONObject(Files.readString(document)).getInt("e"));
+            store.merge(document, "{\"f\":6}");
+            Assert.assertEquals(1, Files.readAllLines(journal).size());
+
+            store.close();
+            Assert.assertFalse(Files.exists(journal));
+            final JSONObject compacted = new JSONObject(Files.readString(document));
+            Assert.assertEquals(4, compacted.getInt("a"));
+            Assert.assertEquals(2, compacted.getJSONObject("b").getInt("c"));
+            Assert.assertEquals(6, compacted.getInt("f"));
+            Assert.assertEquals(0, store.getDocumentCount());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testJournalsAreRecovered() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("JsonDocumentStoreTests");
+        final Path document = directory.resolve("doc.json");
+        final Path journal = directory.resolve(".doc.json.journal");
+        try
+        {
+            Files.writeString(document, "{\"a\":1,\"b\":{\"c\":2}}");
+            // as left by a crash: the last delta torn
+            Files.writeString(journal, "{\"b\":{\"d\":3}}\n{\"a\":4}\n{\"e\":");
+
+            final JsonDocumentStore store = new JsonDocumentStore(4, 1000, new DurableWrites("none", 0, 1));
+            store.recover(directory);
+            Assert.assertFalse(Files.exists(journal));
+            final JSONObject recovered = new JSONObject(Files.readString(document));
+            Assert.assertEquals(4, recovered.getInt("a"));
+            Assert.assertEquals(2, recovered.getJSONObject("b").getInt("c"));
+            Assert.assertEquals(3, recovered.getJSONObject("b").getInt("d"));
+            Assert.assertFalse(recovered.has("e"));
+
+            // replacing the file drops the deltas not compacted yet
+            store.merge(document, "{\"f\":6}");
+            Assert.assertTrue(Files.exists(journal));
+            store.replace(document, () -> Files.writeString(document, "{\"g\":7}"));
+            Assert.assertFalse(Files.exists(journal));
+            Assert.assertNull(store.read(document));
+            Assert.assertEquals("{\"g\":7}", Files.readString(document));
+            Assert.assertEquals(0, store.getDocumentCount());
+
+            // merges after the replacement start from the new file
+            store.merge(document, "{\"h\":8}");
+            final JSONObject merged = new JSONObject(new String(store.read(document), UTF_8));
+            Assert.assertEquals(7, merged.getInt("g"));
+            Assert.assertFalse(merged.has("f"));
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testTornDeltasAreCutOff() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("JsonDocumentStoreTests");
+        final Path document = directory.resolve("doc.json");
+        final Path journal = directory.resolve(".doc.json.journal");
+        try
+        {
+            Files.writeString(document, "{\"a\":1}");
+            Files.writeString(journal, "{\"b\":2}\n{\"c\":");
+
+            // the delta appended after loading starts on a line of its own, so a later replay sees it
+            final JsonDocumentStore store = new JsonDocumentStore(4, 1000, new DurableWrites("none", 0, 1));
+            store.merge(document, "{\"d\":4}");
+            Assert.assertEquals(List.of("{\"b\":2}", "{\"d\":4}"), Files.readAllLines(journal));
+
+            new JsonDocumentStore(4, 1000, new DurableWrites("none", 0, 1)).recover(directory);
+            final JSONObject recovered = new JSONObject(Files.readString(document));
+            Assert.assertEquals(2, recovered.getInt("b"));
+            Assert.assertEquals(4, recovered.getInt("d"));
+            Assert.assertFalse(recovered.has("c"));
+
+            // only the last line may be torn, deltas after a corrupt line must not be dropped silently
+            Files.writeString(journal, "{\"e\":5}\n{\"f\":\n{\"g\":7}\n");
+            try
+            {
+                new JsonDocumentStore(4, 1000, new DurableWrites("none", 0, 1)).recover(directory);
+                Assert.fail("Expected the corrupt journal to be reported.");
+            }
+            catch (IOException e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt delta in line 2"));
+            }
+
+            Assert.assertTrue(Files.exists(journal));
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testEvictedDocumentsAreCompacted() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("JsonDocumentStoreTests");
+        try
+        {
+            final JsonDocumentStore store = new JsonDocumentStore(1, 1000, new DurableWrites("atomic", 0, 1));
+            final Path first = directory.resolve("first.json");
+            final Path second = directory.resolve("second.json");
+            store.merge(first, "{\"a\":1}");
+            store.merge(first, "{\"b\":2}");
+            store.merge(second, "{\"c\":3}");
+
+            Assert.assertEquals(1, store.getDocumentCount());
+            Assert.assertNull(store.read(first));
+            Assert.assertFalse(Files.exists(directory.resolve(".first.json.journal")));
+            Assert.assertEquals(2, new JSONObject(Files.readString(first)).getInt("b"));
+
+            // held again: loaded from the compacted file, evicting the other document
+            store.merge(first, "{\"d\":4}");
+            Assert.assertEquals(2, new JSONObject(new String(store.read(first), UTF_8)).getInt("b"));
+            Assert.assertEquals(3, new JSONObject(Files.readString(second)).getInt("c"));
+            Assert.assertEquals(1, store.getDocumentCount());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    private static void delete(@Nonnull final Path directory) throws IOException
+    {
+        try (final Stream<Path> paths = Files.walk(directory))
+        {
+            final List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            for (int i = all.size() - 1; i >= 0; i--)
+            {
+                Files.deleteIfExists(all.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class MappedFilesTests
+{
+    @Test
+    public void testMappingIsSharedAndRemappedOnModification() throws IOException
+    {
+        final Path file = Files.createTempFile("MappedFilesTests", ".txt");
+        try
+        {
+            final MappedFiles mappedFiles = new MappedFiles(1024, 300);
+            Files.writeString(file, "first");
+            Assert.assertEquals("first", UTF_8.decode(mappedFiles.map(file)).toString());
+
+            // every caller gets a buffer of its own
+            final ByteBuffer mapping = mappedFiles.map(file);
+            Assert.assertEquals(5, mapping.remaining());
+            Assert.assertEquals(1, mappedFiles.getHits());
+            Assert.assertEquals(1, mappedFiles.getMaps());
+
+            Files.writeString(file, "second");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            Assert.assertEquals("second", UTF_8.decode(mappedFiles.map(file)).toString());
+            Assert.assertEquals(2, mappedFiles.getMaps());
+            Assert.assertEquals(6, mappedFiles.getMappedBytes());
+
+            mappedFiles.invalidate(file);
+            Assert.assertEquals(0, mappedFiles.getMappedCount());
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLimitAndIdleTimeout() throws IOException
+    {
+        final Path first = Files.createTempFile("MappedFilesTests", ".txt");
+        final Path second = Files.createTempFile("MappedFilesTests", ".txt");
+        final Path tooLarge = Files.createTempFile("MappedFilesTests", ".txt");
+        try
+        {
+            Files.writeString(first, "x".repeat(600));
+            Files.writeString(second, "y".repeat(600));
+            Files.writeString(tooLarge, "z".repeat(1025));
+
+            final MappedFiles mappedFiles = new MappedFiles(1024, 300);
+            Assert.assertNull(mappedFiles.map(tooLarge));
+            mappedFiles.map(first);
+            mappedFiles.map(second);
+            Assert.assertEquals(1, mappedFiles.getMappedCount());
+            Assert.assertEquals(600, mappedFiles.getMappedBytes());
+
+            final MappedFiles expiring = new MappedFiles(1024, 0);
+            expiring.map(first);
+            expiring.map(second);
+            Assert.assertEquals(1, expiring.getMappedCount());
+            Assert.assertEquals(1, expiring.getUnmaps());
+        }
+        finally
+        {
+            Files.delete(first);
+            Files.delete(second);
+            Files.delete(tooLarge);
+        }
+    }
+
+    @Test
+    public void testMappingIsOnlyEnabledInMappedMode()
+    {
+        Assert.assertTrue(new MappedFiles("mapped", 1024, 300).isEnabled());
+        Assert.assertFalse(new MappedFiles("mapped", 0, 300).isEnabled());
+
+        // files are transferred and never mapped, so writes need not replace them by rename
+        Assert.assertFalse(new MappedFiles("transfer", 1024, 300).isEnabled());
+    }
+}
@@ -0,0 +1,159 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class MetadataCacheTests
+{
+    @Test
+    public void testMetadataIsCachedUntilInvalidated() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("MetadataCacheTests");
+        final Path file = directory.resolve("index.html");
+        try
+        {
+            final MetadataCache cache = new MetadataCache(2, false);
+            Assert.assertFalse(cache.get(file).isFile());
+            Assert.assertFalse(cache.get(directory).isFile());
+
+            // the missing file is cached as such until invalidated
+            Files.writeString(file, "<html/>");
+            Assert.assertFalse(cache.get(file).isFile());
+            cache.invalidate(file);
+            final FileMetadata metadata = cache.get(file);
+            Assert.assertTrue(metadata.isFile());
+            Assert.assertEquals(7, metadata.getSize());
+            Assert.assertEquals("text/html", metadata.getContentType());
+            Assert.assertSame(metadata, cache.get(file));
+            Assert.assertEquals(2, cache.getHits());
+            Assert.assertEquals(2, cache.getEntryCount());
+
+            cache.invalidateTree(directory);
+            Assert.assertEquals(0, cache.getEntryCount());
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testExternalChangesAreNoticed() throws Exception
+    {
+        final Path directory = Files.createTempDirectory("MetadataCacheTests");
+        final Path subdirectory = directory.resolve("sub");
+        final Path file = subdirectory.resolve("foo.json");
+        final MetadataCache cache = new MetadataCache(100, true);
+        try
+        {
+            final Queue<Path> changes = new ConcurrentLinkedQueue<>();
+            cache.watch(directory, changes::add, changes::add);
+            Assert.assertTrue(cache.isWatching());
+            Assert.assertFalse(cache.get(file).isFile());
+
+            // the creation of the directory invalidates everything below it
+            Files.createDirectory(subdirectory);
+            Files.writeString(file, "{}");
+            awaitFile(cache, file, true);
+
+            // reported by the directory that is watched since its creation
+            Files.delete(file);
+            awaitFile(cache, file, false);
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (!changes.contains(file))
+            {
+                Assert.assertTrue("Change not passed on for " + file, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            cache.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(subdirectory);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testOwnChangesAreSkipped() throws Exception
+    {
+        final Path directory = Files.createTempDirectory("MetadataCacheTests");
+        final Path own = directory.resolve("own.json");
+        final Path external = directory.resolve("external.json");
+        final MetadataCache cache = new MetadataCache(100, true);
+        try
+        {
+            final Queue<Path> changes = new ConcurrentLinkedQueue<>();
+            final Queue<Path> ownChanges = new ConcurrentLinkedQueue<>();
+            cache.watch(directory, changes::add, ownChanges::add);
+
+            // written by the persistence, which invalidates right away, along with its journal and temporary file
+            cache.invalidate(own);
+            Files.writeString(own, "{}");
+            Files.writeString(directory.resolve(".own.json.journal"), "{\"a\":1}\n");
+            Files.writeString(directory.resolve(".own.json.0123abcd.writing"), "{}");
+            Files.writeString(external, "{}");
+
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (!changes.contains(external) || !ownChanges.contains(own))
+            {
+                Assert.assertTrue("Change not passed on for " + external, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // created and modified, the own change invalidates the path only
+            Assert.assertEquals(Set.of(external), Set.copyOf(changes));
+            Assert.assertEquals(Set.of(own), Set.copyOf(ownChanges));
+            Assert.assertTrue(cache.getExternalChanges() >= 1);
+            Assert.assertTrue(cache.getOwnChangeEvents() >= 3);
+
+            // a change by others right after the own change is not missed
+            Assert.assertEquals(2, cache.get(own).getSize());
+            Files.writeString(own, "{\"b\":2}");
+            while (cache.get(own).getSize() != 7)
+            {
+                Assert.assertTrue("Change not noticed for " + own, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            cache.close();
+            try (final Stream<Path> paths = Files.list(directory))
+            {
+                for (final Path path : paths.collect(Collectors.toList()))
+                {
+                    Files.delete(path);
+                }
+            }
+
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Waits for the cache to reflect the change, as the watch service reports it asynchronously (polling every few seconds on some
+     * platforms). Without the watch service the cached metadata would never change.
+     */
+    private static void awaitFile(@Nonnull final MetadataCache cache, @Nonnull final Path path, final boolean file) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + 30_000;
+        while (cache.get(path).isFile() != file)
+        {
+            Assert.assertTrue("Change not noticed for " + path, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
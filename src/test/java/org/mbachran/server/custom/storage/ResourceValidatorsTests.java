@@ -0,0 +1,86 @@
+package org.mbachran.server.custom.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.request.api.RequestHeaders;
+import org.mbachran.server.custom.request.impl.DefaultRequestHeaders;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+public class ResourceValidatorsTests
+{
+    @Test
+    public void testValidatorsFollowModification() throws IOException
+    {
+        final Path file = Files.createTempFile("ResourceValidatorsTests", ".txt");
+        try
+        {
+            Files.writeString(file, "content");
+            Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2020-06-03T11:05:30.123Z")));
+            final ResourceValidators validators = new ResourceValidators(Files.readAttributes(file, BasicFileAttributes.class));
+            Assert.assertEquals("Wed, 03 Jun 2020 11:05:30 GMT", validators.getLastModified());
+            Assert.assertTrue(validators.getETag().matches("\"[0-9a-f]+-7\""));
+
+            Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2020-06-03T11:05:31Z")));
+            final ResourceValidators modified = new ResourceValidators(Files.readAttributes(file, BasicFileAttributes.class));
+            Assert.assertNotEquals(validators.getETag(), modified.getETag());
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConditionalHeaders() throws IOException
+    {
+        final Path file = Files.createTempFile("ResourceValidatorsTests", ".txt");
+        try
+        {
+            Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2020-06-03T11:05:30.123Z")));
+            final ResourceValidators validators = new ResourceValidators(Files.readAttributes(file, BasicFileAttributes.class));
+            final String eTag = validators.getETag();
+
+            Assert.assertFalse(validators.isNotModified(headers(null, null)));
+            Assert.assertTrue(validators.isNotModified(headers(eTag, null)));
+            Assert.assertTrue(validators.isNotModified(headers("\"other\", W/" + eTag, null)));
+            Assert.assertTrue(validators.isNotModified(headers("*", null)));
+            Assert.assertFalse(validators.isNotModified(headers("\"other\"", null)));
+
+            Assert.assertTrue(validators.isNotModified(headers(null, "Wed, 03 Jun 2020 11:05:30 GMT")));
+            Assert.assertTrue(validators.isNotModified(headers(null, "Thu, 4 Jun 2020 00:00:00 GMT")));
+            Assert.assertFalse(validators.isNotModified(headers(null, "Wed, 03 Jun 2020 11:05:29 GMT")));
+            Assert.assertFalse(validators.isNotModified(headers(null, "yesterday")));
+
+            // If-None-Match takes precedence
+            Assert.assertFalse(validators.isNotModified(headers("\"other\"", "Wed, 03 Jun 2020 11:05:30 GMT")));
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Nonnull
+    private static RequestHeaders headers(final String ifNoneMatch, final String ifModifiedSince)
+    {
+        final RequestHeaders.Builder builder = new DefaultRequestHeaders.DefaultBuilder();
+        if (ifNoneMatch != null)
+        {
+            builder.addHeader("If-None-Match", ifNoneMatch);
+        }
+
+        if (ifModifiedSince != null)
+        {
+            builder.addHeader("If-Modified-Since", ifModifiedSince);
+        }
+
+        return builder.build();
+    }
+}
@@ -5,9 +5,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 /**
  * @author mba
  */
@@ -43,6 +46,30 @@ public class TestFilePersistence
         Assert.assertTrue(!Files.exists(Paths.get(persistence.getRootPath(), filename)));
     }
 
+    @Test
+    public void testWritesInvalidateCachedContent() throws IOException
+    {
+        final String filename = "TestFilePersistence.cached";
+        final ContentCache cache = new ContentCache(1024 * 1024, 1024);
+
+        final DurableWrites durableWrites = new DurableWrites("synced", 0, 1);
+        final FilePersistence persistence = new FilePersistence(cache, new MappedFiles(0, 0), new MetadataCache(0, false),
+                new JsonDocumentStore(1, 1000, durableWrites), durableWrites);
+        persistence.writeText(filename, "first");
+        Assert.assertEquals("first", persistence.readText(filename));
+        Assert.assertEquals("first", persistence.readText(filename));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertTrue(persistence.exists(filename));
+
+        persistence.writeBinary(filename, "second".getBytes());
+        Assert.assertEquals("second", persistence.readText(filename));
+        Assert.assertEquals(6, persistence.size(filename));
+
+        persistence.delete(filename);
+        Assert.assertFalse(persistence.exists(filename));
+        Assert.assertEquals(0, cache.getResidentBytes());
+    }
+
     @Test
     public void testJsonReadWriteUpdateDelete() throws IOException
     {
@@ -65,4 +92,30 @@ public class TestFilePersistence
         persistence.delete(filename);
         Assert.assertTrue(!Files.exists(Paths.get(persistence.getRootPath(), filename)));
     }
+
+    @Test
+    public void testWritesKeepMappingsIntact() throws IOException
+    {
+        final String filename = "TestFilePersistence.mapped";
+        final DurableWrites durableWrites = new DurableWrites("none", 0, 1);
+        final FilePersistence persistence = new FilePersistence(new ContentCache(0, 0), new MappedFiles(1024 * 1024, 300),
+                new MetadataCache(0, false), new JsonDocumentStore(1, 1000, durableWrites), durableWrites);
+        persistence.writeText(filename, "x".repeat(10_000));
+        try
+        {
+            final ByteBuffer mapping = persistence.map(filename);
+            Assert.assertNotNull(mapping);
+
+            // even without durability the mapped file is replaced, not truncated underneath the mapping
+            persistence.writeText(filename, "short");
+            final byte[] mapped = new byte[mapping.remaining()];
+            mapping.get(mapped);
+            Assert.assertEquals("x".repeat(10_000), new String(mapped, UTF_8));
+            Assert.assertEquals("short", UTF_8.decode(persistence.map(filename)).toString());
+        }
+        finally
+        {
+            persistence.delete(filename);
+        }
+    }
 }
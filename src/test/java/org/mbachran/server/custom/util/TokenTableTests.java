@@ -0,0 +1,35 @@
+package org.mbachran.server.custom.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mbachran.server.custom.request.api.HeaderNames;
+
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class TokenTableTests
+{
+    @Test
+    public void testResolvesFromBytesAndChars()
+    {
+        final TokenTable<Integer> table = new TokenTable<>(Map.of("GET", 1, "PUT", 2, "DELETE", 3), false);
+        final byte[] bytes = "xDELETEx".getBytes(UTF_8);
+        Assert.assertEquals(Integer.valueOf(3), table.get(bytes, 1, 7));
+        Assert.assertEquals(Integer.valueOf(1), table.get("GET"));
+        Assert.assertNull(table.get("get"));
+        Assert.assertNull(table.get("GE"));
+        Assert.assertNull(table.get(bytes, 0, 7));
+        Assert.assertNull(table.get("PUTĀ"));
+    }
+
+    @Test
+    public void testIgnoreCase()
+    {
+        final byte[] bytes = "Content-Length".getBytes(UTF_8);
+        Assert.assertSame(HeaderNames.CONTENT_LENGTH, HeaderNames.canonical(bytes, 0, bytes.length));
+        Assert.assertSame(HeaderNames.USER_AGENT, HeaderNames.canonical("USER-AGENT"));
+        Assert.assertSame(HeaderNames.HOST, HeaderNames.canonical("host"));
+        Assert.assertNull(HeaderNames.canonical("x-custom"));
+    }
+}